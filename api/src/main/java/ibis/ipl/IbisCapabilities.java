@@ -89,6 +89,20 @@ public final class IbisCapabilities extends CapabilitySet {
     public final static String MEMBERSHIP_TOTALLY_ORDERED
             = "membership.totally.ordered";
     
+    /**
+     * Capability, indicating that sequence numbers and tokens may be leased:
+     * the registry may reserve blocks of sequence numbers or tokens for an
+     * Ibis instance, and hand them out locally. The numbers returned by
+     * {@link Registry#getSequenceNumber(String)} are then still unique, but
+     * not gap-free, and not ordered over the pool: a number obtained later
+     * by one instance may be smaller than a number obtained earlier by
+     * another instance. Likewise, {@link Registry#getToken(String)} may
+     * return null while other instances still hold unused tokens.
+     * 
+     * @ibis.experimental
+     */
+    public final static String REGISTRY_LEASES = "registry.leases";
+
     /**
      * Capability indicating an Ibis that can deal with malleability.
      * This means that Ibis instances can join and/or leave a run at any
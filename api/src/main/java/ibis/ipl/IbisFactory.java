@@ -17,6 +17,8 @@
 
 package ibis.ipl;
 
+import ibis.ipl.impl.ManifestCache;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,8 +32,6 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.jar.Attributes;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
 
 /**
  * This is the class responsible for starting an Ibis instance. During
@@ -44,6 +44,10 @@ import java.util.jar.Manifest;
  * where each class named provides an {@link IbisStarter} implementation. In
  * addition, a property "Ibis-IPL-Version" should be defined in the manifest,
  * containing a version number (e.g. 2.1).
+ *
+ * To keep startup fast with large class paths, the Ibis entries of the
+ * manifests are cached on disk (see the ibis.manifest.cache property), so a
+ * jar file is only opened when it was changed since the cache was written.
  */
 public final class IbisFactory {
 
@@ -151,7 +155,12 @@ public final class IbisFactory {
 
         // load implementations from jar path
 
-        loadIbisesFromJars(implementationPath);
+        ManifestCache cache = new ManifestCache(properties.getProperty(
+                IbisProperties.MANIFEST_CACHE, ManifestCache.DEFAULT_FILE));
+
+        loadIbisesFromJars(implementationPath, cache);
+
+        cache.save();
 
         // load implementations from manifest property file
 
@@ -635,34 +644,28 @@ public final class IbisFactory {
     }
 
     /**
-     * Creates a JarFile object from a given File object.
+     * Adds the given file to the list if it is a jar file with a manifest.
      */
-    private static JarFile getJarFile(File file) {
-        try {
-            if (!file.isFile() || !file.getName().endsWith(".jar")) {
-                // not a jar file
-                return null;
-            }
-            JarFile result = new JarFile(file, true);
-            Manifest manifest = result.getManifest();
-            if (manifest != null) {
-                manifest.getMainAttributes();
-                return result;
-            }
-        } catch (IOException e) {
-            // System.err.println("IbisFactory: Could not create jar file from
-            // file: " + file);
+    private static void addJarFile(File file, ManifestCache cache,
+            ArrayList<File> files, ArrayList<Attributes> attributes) {
+        if (!file.isFile() || !file.getName().endsWith(".jar")) {
+            // not a jar file
+            return;
+        }
+
+        Attributes result = cache.getIbisAttributes(file);
+        if (result != null) {
+            files.add(file);
+            attributes.add(result);
         }
-        return null;
     }
 
     /**
-     * This method reads all jar files found in the specified path, and stores
-     * them in a list.
+     * This method finds all jar files in the specified path, and stores them
+     * in a list, together with the Ibis attributes of their manifests.
      */
-    private static JarFile[] readJarFiles(String path) {
-        ArrayList<JarFile> result = new ArrayList<JarFile>();
-
+    private static void readJarFiles(String path, ManifestCache cache,
+            ArrayList<File> files, ArrayList<Attributes> attributes) {
         StringTokenizer st = new StringTokenizer(path, File.pathSeparator);
 
         while (st.hasMoreTokens()) {
@@ -675,34 +678,23 @@ public final class IbisFactory {
             }
 
             if (file.isFile()) {
-                JarFile jarFile = getJarFile(file);
-                if (jarFile != null) {
-                    result.add(jarFile);
-                }
+                addJarFile(file, cache, files, attributes);
             } else if (file.isDirectory()) {
                 File[] children = file.listFiles();
                 for (File child : children) {
-                    JarFile jarFile = getJarFile(child);
-                    if (jarFile != null) {
-                        result.add(jarFile);
-                    }
+                    addJarFile(child, cache, files, attributes);
                 }
             } else {
                 // System.err.println("IbisFactory: Not a file/directory: " +
                 // file);
             }
         }
-        return result.toArray(new JarFile[0]);
     }
 
-    private static IbisStarter loadIbisFromJar(JarFile jar,
-            ClassLoader classLoader) {
+    private static IbisStarter loadIbisFromJar(File jar,
+            Attributes attributes, ClassLoader classLoader) {
 
         try {
-            Manifest manifest = jar.getManifest();
-
-            Attributes attributes = manifest.getMainAttributes();
-
             String iplVersion = attributes.getValue(IPL_VERSION_STRING);
             String implementationVersion = attributes
                     .getValue(IMPLEMENTATION_VERSION_STRING);
@@ -719,27 +711,28 @@ public final class IbisFactory {
                     nickName, iplVersion, implementationVersion);
         } catch (Exception e) {
             System.err.println("IbisFactory: Could not load ibis from jar: "
-                    + jar.getName() + ": " + e);
+                    + jar + ": " + e);
             return null;
         }
     }
 
-    private void loadIbisesFromJars(String implementationPath) {
-        JarFile[] jarFiles;
+    private void loadIbisesFromJars(String implementationPath,
+            ManifestCache cache) {
+        ArrayList<File> jarFiles = new ArrayList<File>();
+        ArrayList<Attributes> attributes = new ArrayList<Attributes>();
 
         if (implementationPath == null) {
             implementationPath = System.getProperty("java.class.path");
         }
-        jarFiles = readJarFiles(implementationPath);
+        readJarFiles(implementationPath, cache, jarFiles, attributes);
 
         // create ClassLoader for jar files
 
-        URL[] urls = new URL[jarFiles.length];
+        URL[] urls = new URL[jarFiles.size()];
 
-        for (int i = 0; i < jarFiles.length; i++) {
+        for (int i = 0; i < urls.length; i++) {
             try {
-                File f = new File(jarFiles[i].getName());
-                urls[i] = f.toURI().toURL();
+                urls[i] = jarFiles.get(i).toURI().toURL();
             } catch (Exception e) {
                 throw new Error(e);
             }
@@ -748,8 +741,9 @@ public final class IbisFactory {
         ClassLoader classLoader = new URLClassLoader(urls,
                 this.getClass().getClassLoader());
 
-        for (int i = 0; i < jarFiles.length; i++) {
-            IbisStarter starter = loadIbisFromJar(jarFiles[i], classLoader);
+        for (int i = 0; i < urls.length; i++) {
+            IbisStarter starter = loadIbisFromJar(jarFiles.get(i),
+                    attributes.get(i), classLoader);
 
             if (starter != null) {
                 implementations.put(starter.getNickName(), starter);
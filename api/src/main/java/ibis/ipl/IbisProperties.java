@@ -55,6 +55,9 @@ public final class IbisProperties {
     /** Property name for the path used to find Ibis implementations. */
     public static final String IMPLEMENTATION_PATH = PREFIX + "implementation.path";
 
+    /** Property name for the file caching the manifests of jar files. */
+    public static final String MANIFEST_CACHE = PREFIX + "manifest.cache";
+
     /** Property name for verbosity. */
     public static final String VERBOSE = PREFIX + "verbose";
 
@@ -105,6 +108,13 @@ public final class IbisProperties {
 
                 { IMPLEMENTATION_PATH, null, "Path used to find Ibis implementations" },
 
+                { MANIFEST_CACHE, null,
+                    "File caching the Ibis manifest entries of the jar files"
+                            + " searched for Ibis implementations, so unchanged"
+                            + " jar files are not opened again. Defaults to a file"
+                            + " in the home directory of the user, an empty value"
+                            + " disables the cache" },
+
                 { VERBOSE, "false",
                     "Boolean: If true, makes Ibis more verbose, if false, does not" },
 
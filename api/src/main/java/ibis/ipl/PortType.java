@@ -160,6 +160,15 @@ public final class PortType extends CapabilitySet {
      * safe enough to use on open networks. */
     public final static String COMMUNICATION_RELIABLE_UNSAFE
             = COMMUNICATION + ".reliable.unsafe";
+
+    /**
+     * This capability describes that message data is compressed on the way.
+     * The codec is determined by the <code>ibis.compression</code> property
+     * of the send port. This is useful for bandwidth-bound links.
+     * @ibis.experimental
+     */
+    public final static String COMMUNICATION_COMPRESSED
+            = COMMUNICATION + ".compressed";
     
     /**
      * This capability describes that readByte/writeByte and
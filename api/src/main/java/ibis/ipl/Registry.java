@@ -255,7 +255,9 @@ public interface Registry extends Manageable {
 
     /**
      * Obtains a sequence number from the registry. Each sequencer has a name,
-     * which must be provided to this call.
+     * which must be provided to this call. The numbers of a sequencer are
+     * unique. They are also consecutive and globally ordered, unless the
+     * {@link IbisCapabilities#REGISTRY_LEASES} capability is requested.
      *
      * @param name
      *            the name of this sequencer.
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * On-disk cache of the Ibis entries ("Ibis-...") of the manifests of jar
+ * files, so that jar files only have to be opened when they changed. Entries
+ * are keyed by the path of the jar file, and are valid as long as the
+ * modification time and length of the jar file do not change. Entries of jar
+ * files that no longer exist are dropped. The cache is shared with
+ * <code>ibis.util.ClassLister</code>.
+ *
+ * The cache file is a properties file. For each jar file, the key
+ * "@&lt;path&gt;" holds "&lt;modification time&gt;,&lt;length&gt;,&lt;has
+ * manifest&gt;", and the key "&lt;attribute&gt;@&lt;path&gt;" holds the
+ * value of each Ibis attribute in its manifest.
+ *
+ * This class is not part of the IPL API. It lives in the IPL jar because
+ * {@link ibis.ipl.IbisFactory} uses it to find Ibis implementations.
+ */
+public final class ManifestCache {
+
+    /** Prefix of the manifest attributes that are cached. */
+    public static final String ATTRIBUTE_PREFIX = "Ibis-";
+
+    /**
+     * The default cache file, in the home directory of the user, so it is
+     * not shared with (or replaced by) other users.
+     */
+    public static final String DEFAULT_FILE = System.getProperty("user.home")
+            + File.separator + ".ibis-manifests.properties";
+
+    private static final class Entry {
+        final String stamp;
+
+        // null if the file is not a jar file with a manifest
+        final Attributes attributes;
+
+        Entry(String stamp, Attributes attributes) {
+            this.stamp = stamp;
+            this.attributes = attributes;
+        }
+    }
+
+    private final File file;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private boolean changed = false;
+
+    /**
+     * Creates a manifest cache, backed by the given file.
+     *
+     * @param fileName
+     *            the cache file, or <code>null</code> or an empty string for
+     *            an in-memory cache only.
+     */
+    public ManifestCache(String fileName) {
+        if (fileName == null || fileName.equals("")) {
+            file = null;
+            return;
+        }
+
+        file = new File(fileName);
+
+        if (!file.isFile()) {
+            return;
+        }
+
+        try {
+            Properties properties = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            load(properties);
+        } catch (Throwable e) {
+            // ignore, the cache is rebuilt
+            entries.clear();
+        }
+    }
+
+    private void load(Properties properties) {
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith("@")) {
+                if (!new File(key.substring(1)).isFile()) {
+                    // the jar file is gone, drop its entry
+                    changed = true;
+                    continue;
+                }
+                String value = properties.getProperty(key);
+                int split = value.lastIndexOf(',');
+                entries.put(key.substring(1), new Entry(value.substring(0,
+                        split + 1), value.endsWith("true") ? new Attributes()
+                        : null));
+            }
+        }
+
+        for (String key : properties.stringPropertyNames()) {
+            int split = key.indexOf('@');
+            if (split > 0) {
+                Entry entry = entries.get(key.substring(split + 1));
+                if (entry != null && entry.attributes != null) {
+                    entry.attributes.putValue(key.substring(0, split),
+                            properties.getProperty(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the Ibis entries of the main attributes of the manifest of the
+     * given jar file, opening it only if it is not in the cache or changed.
+     *
+     * @param jar
+     *            the jar file.
+     * @return the Ibis attributes, or <code>null</code> if the file is not a
+     *         jar file with a manifest.
+     */
+    public synchronized Attributes getIbisAttributes(File jar) {
+        String path = jar.getAbsolutePath();
+        String stamp = jar.lastModified() + "," + jar.length() + ",";
+        Entry entry = entries.get(path);
+
+        if (entry == null || !entry.stamp.equals(stamp)) {
+            entry = new Entry(stamp, readIbisAttributes(jar));
+            entries.put(path, entry);
+            changed = true;
+        }
+
+        if (entry.attributes == null) {
+            return null;
+        }
+        return (Attributes) entry.attributes.clone();
+    }
+
+    private static Attributes readIbisAttributes(File jar) {
+        try {
+            // Only the manifest is read, so no need to verify the jar file.
+            JarFile jarFile = new JarFile(jar, false);
+            try {
+                Manifest manifest = jarFile.getManifest();
+
+                if (manifest == null) {
+                    return null;
+                }
+
+                Attributes result = new Attributes();
+                for (Map.Entry<Object, Object> entry : manifest
+                        .getMainAttributes().entrySet()) {
+                    if (entry.getKey().toString()
+                            .startsWith(ATTRIBUTE_PREFIX)) {
+                        result.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                return result;
+            } finally {
+                jarFile.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Properties store() {
+        Properties result = new Properties();
+
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            String path = entry.getKey();
+            Attributes attributes = entry.getValue().attributes;
+
+            result.setProperty("@" + path, entry.getValue().stamp
+                    + (attributes != null));
+
+            if (attributes != null) {
+                for (Map.Entry<Object, Object> attribute : attributes
+                        .entrySet()) {
+                    result.setProperty(attribute.getKey() + "@" + path,
+                            attribute.getValue().toString());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the cache back to its file, if it changed. The file is replaced
+     * atomically, so concurrently starting processes never read a partially
+     * written cache. Errors are ignored.
+     */
+    public synchronized void save() {
+        if (file == null || !changed) {
+            return;
+        }
+
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+
+            try {
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    store().store(out, "Ibis manifest cache");
+                } finally {
+                    out.close();
+                }
+
+                if (!tmp.renameTo(file)) {
+                    // on some systems, an existing file is not replaced
+                    file.delete();
+                    tmp.renameTo(file);
+                }
+            } finally {
+                tmp.delete();
+            }
+            changed = false;
+        } catch (Throwable e) {
+            // ignore, we try again next time
+        }
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.benchmarks.harness;
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisCapabilities;
+import ibis.ipl.IbisFactory;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.PortType;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.Registry;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Latency and throughput benchmark harness. Two Ibises run a sweep over
+ * benchmark modes, serializations, connection types, receive modes and
+ * message sizes. Each run starts with a warm-up phase, which is not
+ * measured. Times are measured with <code>System.nanoTime()</code>, and
+ * recorded in a {@link Histogram}, so percentiles are reported as well as
+ * averages.
+ *
+ * In latency mode, the master sends a message and the other Ibis echoes it;
+ * the round-trip time of each message is recorded. In throughput mode, the
+ * master streams messages and the other Ibis acknowledges the last one; the
+ * time to send each message is recorded, and the rate is computed from the
+ * time until the acknowledgement arrived.
+ *
+ * The results are written as comma separated values, one line per run,
+ * preceded by a header line. Lines starting with '#' are comments. Each
+ * line holds the tag given with -tag (for instance a commit id) and the
+ * Ibis implementation, so the output of runs on different commits or
+ * implementations can simply be concatenated and compared.
+ *
+ * For example, to run with the nio implementation on a single host:
+ *
+ * <pre>
+ * ipl-server --events &amp;
+ * for i in 1 2; do
+ *     ipl-run -Dibis.server.address=localhost -Dibis.pool.name=harness \
+ *         -Dibis.pool.size=2 -Dibis.implementation=nio \
+ *         ibis.ipl.benchmarks.harness.Harness -tag `git rev-parse --short HEAD` &amp;
+ * done
+ * </pre>
+ *
+ * Use ibis.implementation=tcp or ibis.implementation=smartsockets for the
+ * other implementations.
+ */
+public class Harness {
+
+    static final String[] MODES = { "latency", "throughput" };
+
+    static final String[] SERIALIZATIONS = { "byte", "data", "object", "sun",
+            "ibis" };
+
+    static final String[] CONNECTIONS = { "OneToOne", "ManyToOne",
+            "OneToMany", "ManyToMany" };
+
+    static final String[] RECEIVES = { "explicit", "upcall" };
+
+    static final long CONNECT_TIMEOUT = 60000;
+
+    /**
+     * Type of the ports used to tell the other Ibis that the ports of a run
+     * are ready, as not all implementations retry a connection to a port
+     * which does not exist yet.
+     */
+    static final PortType controlType = new PortType(
+            PortType.SERIALIZATION_DATA, PortType.CONNECTION_ONE_TO_ONE,
+            PortType.COMMUNICATION_RELIABLE, PortType.RECEIVE_EXPLICIT);
+
+    /** A single benchmark run. */
+    static class Run {
+        final int id;
+
+        final String mode;
+
+        final String serialization;
+
+        final String connection;
+
+        final String receive;
+
+        final int size;
+
+        final int messages;
+
+        final PortType type;
+
+        Run(int id, String mode, String serialization, String connection,
+                String receive, int size, int messages, PortType type) {
+            this.id = id;
+            this.mode = mode;
+            this.serialization = serialization;
+            this.connection = connection;
+            this.receive = receive;
+            this.size = size;
+            this.messages = messages;
+            this.type = type;
+        }
+
+        boolean latency() {
+            return mode.equals("latency");
+        }
+
+        boolean objects() {
+            return !serialization.equals("byte")
+                    && !serialization.equals("data");
+        }
+    }
+
+    String tag = "-";
+
+    String[] modes = MODES;
+
+    String[] serializations = { "byte", "data", "object" };
+
+    String[] connections = CONNECTIONS;
+
+    String[] receives = RECEIVES;
+
+    int[] sizes = { 0, 64, 1024, 16 * 1024, 256 * 1024 };
+
+    int warmup = 1000;
+
+    int count = 10000;
+
+    long maxBytes = 256L * 1024 * 1024;
+
+    String output = null;
+
+    Ibis ibis;
+
+    ReceivePort controlIn;
+
+    SendPort controlOut;
+
+    public static void main(String[] args) {
+        new Harness(args).run();
+    }
+
+    static void usage() {
+        System.err.println("Harness [-tag <tag>] [-modes <list>] "
+                + "[-serializations <list>] [-connections <list>] "
+                + "[-receives <list>] [-sizes <list>] [-warmup <messages>] "
+                + "[-count <messages>] [-bytes <bytes per run>] "
+                + "[-output <file>]");
+        System.err.println("lists are comma separated, choose from:");
+        System.err.println("  modes:          " + Arrays.toString(MODES));
+        System.err.println("  serializations: "
+                + Arrays.toString(SERIALIZATIONS));
+        System.err.println("  connections:    "
+                + Arrays.toString(CONNECTIONS));
+        System.err.println("  receives:       " + Arrays.toString(RECEIVES));
+        System.exit(1);
+    }
+
+    static String[] list(String arg, String[] valid) {
+        String[] result = arg.split(",");
+        for (String s : result) {
+            if (!Arrays.asList(valid).contains(s)) {
+                System.err.println("unknown value: " + s);
+                usage();
+            }
+        }
+        return result;
+    }
+
+    Harness(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (i == args.length - 1) {
+                usage();
+            }
+            if (args[i].equals("-tag")) {
+                tag = args[++i];
+            } else if (args[i].equals("-modes")) {
+                modes = list(args[++i], MODES);
+            } else if (args[i].equals("-serializations")) {
+                serializations = list(args[++i], SERIALIZATIONS);
+            } else if (args[i].equals("-connections")) {
+                connections = list(args[++i], CONNECTIONS);
+            } else if (args[i].equals("-receives")) {
+                receives = list(args[++i], RECEIVES);
+            } else if (args[i].equals("-sizes")) {
+                String[] s = args[++i].split(",");
+                sizes = new int[s.length];
+                for (int j = 0; j < s.length; j++) {
+                    sizes[j] = Integer.parseInt(s[j]);
+                }
+            } else if (args[i].equals("-warmup")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-count")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-bytes")) {
+                maxBytes = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-output")) {
+                output = args[++i];
+            } else {
+                usage();
+            }
+        }
+    }
+
+    static PortType portType(String serialization, String connection) {
+        String s;
+        if (serialization.equals("byte")) {
+            s = PortType.SERIALIZATION_BYTE;
+        } else if (serialization.equals("data")) {
+            s = PortType.SERIALIZATION_DATA;
+        } else if (serialization.equals("sun")) {
+            s = PortType.SERIALIZATION_OBJECT_SUN;
+        } else if (serialization.equals("ibis")) {
+            s = PortType.SERIALIZATION_OBJECT_IBIS;
+        } else {
+            s = PortType.SERIALIZATION_OBJECT;
+        }
+
+        String c;
+        if (connection.equals("OneToOne")) {
+            c = PortType.CONNECTION_ONE_TO_ONE;
+        } else if (connection.equals("ManyToOne")) {
+            c = PortType.CONNECTION_MANY_TO_ONE;
+        } else if (connection.equals("OneToMany")) {
+            c = PortType.CONNECTION_ONE_TO_MANY;
+        } else {
+            c = PortType.CONNECTION_MANY_TO_MANY;
+        }
+
+        return new PortType(s, c, PortType.COMMUNICATION_RELIABLE,
+                PortType.RECEIVE_EXPLICIT, PortType.RECEIVE_AUTO_UPCALLS);
+    }
+
+    /**
+     * Number of measured messages of the given size, limited so that a run
+     * does not send more than maxBytes.
+     */
+    int messages(int size) {
+        if (size == 0) {
+            return count;
+        }
+        return (int) Math.min(count, Math.max(100, maxBytes / size));
+    }
+
+    List<Run> runs(Map<String, PortType> types) {
+        List<Run> result = new ArrayList<Run>();
+
+        for (String mode : modes) {
+            for (String serialization : serializations) {
+                for (String connection : connections) {
+                    String key = serialization + "-" + connection;
+                    PortType type = types.get(key);
+                    if (type == null) {
+                        type = portType(serialization, connection);
+                        types.put(key, type);
+                    }
+                    for (String receive : receives) {
+                        for (int size : sizes) {
+                            result.add(new Run(result.size(), mode,
+                                    serialization, connection, receive, size,
+                                    messages(size), type));
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    static void write(SendPort port, byte[] buffer, boolean objects)
+            throws IOException {
+        WriteMessage m = port.newMessage();
+        if (objects) {
+            m.writeObject(buffer);
+        } else if (buffer.length > 0) {
+            m.writeArray(buffer);
+        }
+        m.finish();
+    }
+
+    static void read(ReadMessage m, byte[] buffer, boolean objects)
+            throws IOException {
+        try {
+            if (objects) {
+                m.readObject();
+            } else if (buffer.length > 0) {
+                m.readArray(buffer);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unexpected object: " + e);
+        }
+        m.finish();
+    }
+
+    void signal(int id) throws IOException {
+        WriteMessage m = controlOut.newMessage();
+        m.writeInt(id);
+        m.finish();
+    }
+
+    void await(int id) throws IOException {
+        ReadMessage m = controlIn.receive();
+        int got = m.readInt();
+        m.finish();
+
+        if (got != id) {
+            throw new IOException("expected signal for run " + id + ", got "
+                    + got);
+        }
+    }
+
+    /** Runs on the master: sends the messages and measures. */
+    String measure(Run run, IbisIdentifier peer) throws IOException {
+        ReceivePort reply = ibis.createReceivePort(run.type, "reply-"
+                + run.id);
+        reply.enableConnections();
+        signal(run.id);
+
+        // the other Ibis created its port and connected to ours
+        await(run.id);
+        SendPort out = ibis.createSendPort(run.type);
+        out.connect(peer, "data-" + run.id, CONNECT_TIMEOUT, true);
+
+        byte[] buffer = new byte[run.size];
+        boolean objects = run.objects();
+        Histogram histogram = new Histogram();
+        long time;
+
+        if (run.latency()) {
+            for (int i = 0; i < warmup; i++) {
+                write(out, buffer, objects);
+                read(reply.receive(), buffer, objects);
+            }
+
+            time = System.nanoTime();
+            for (int i = 0; i < run.messages; i++) {
+                long start = System.nanoTime();
+                write(out, buffer, objects);
+                read(reply.receive(), buffer, objects);
+                histogram.record(System.nanoTime() - start);
+            }
+            time = System.nanoTime() - time;
+        } else {
+            byte[] empty = new byte[0];
+
+            if (warmup > 0) {
+                for (int i = 0; i < warmup; i++) {
+                    write(out, buffer, objects);
+                }
+                read(reply.receive(), empty, objects);
+            }
+
+            time = System.nanoTime();
+            for (int i = 0; i < run.messages; i++) {
+                long start = System.nanoTime();
+                write(out, buffer, objects);
+                histogram.record(System.nanoTime() - start);
+            }
+            read(reply.receive(), empty, objects);
+            time = System.nanoTime() - time;
+        }
+
+        out.close();
+        reply.close();
+
+        double seconds = time / 1000000000.0;
+        double rate = run.messages / seconds;
+        double megabytes = (double) run.messages * run.size / (1024 * 1024);
+
+        return String.format(Locale.ROOT, "%s,%s,%s,%s,%s,%s,%d,%d,"
+                + "%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.1f,%.3f", tag, ibis
+                .getVersion(), run.mode, run.serialization, run.connection,
+                run.receive, run.size, run.messages,
+                histogram.getMin() / 1000.0,
+                histogram.getPercentile(50) / 1000.0,
+                histogram.getPercentile(90) / 1000.0,
+                histogram.getPercentile(99) / 1000.0,
+                histogram.getPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0, histogram.getMean() / 1000.0,
+                rate, megabytes / seconds);
+    }
+
+    /** Receives the messages of a run, and echoes or acknowledges them. */
+    class Receiver implements MessageUpcall {
+        final Run run;
+
+        final SendPort reply;
+
+        final byte[] buffer;
+
+        final byte[] empty = new byte[0];
+
+        final int total;
+
+        int received = 0;
+
+        Receiver(Run run, SendPort reply) {
+            this.run = run;
+            this.reply = reply;
+            buffer = new byte[run.size];
+            total = warmup + run.messages;
+        }
+
+        public void upcall(ReadMessage m) throws IOException {
+            read(m, buffer, run.objects());
+
+            int n;
+            synchronized (this) {
+                n = ++received;
+            }
+
+            if (run.latency()) {
+                write(reply, buffer, run.objects());
+            } else if (n == warmup || n == total) {
+                write(reply, empty, run.objects());
+            }
+
+            if (n == total) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized void waitUntilDone() {
+            while (received < total) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    /** Runs on the other Ibis. */
+    void serve(Run run, IbisIdentifier master) throws IOException {
+        SendPort reply = ibis.createSendPort(run.type);
+        Receiver receiver = new Receiver(run, reply);
+        boolean upcalls = run.receive.equals("upcall");
+
+        ReceivePort in = ibis.createReceivePort(run.type, "data-" + run.id,
+                upcalls ? receiver : null);
+        in.enableConnections();
+
+        await(run.id);
+        reply.connect(master, "reply-" + run.id, CONNECT_TIMEOUT, true);
+        signal(run.id);
+
+        if (upcalls) {
+            in.enableMessageUpcalls();
+            receiver.waitUntilDone();
+        } else {
+            for (int i = 0; i < receiver.total; i++) {
+                receiver.upcall(in.receive());
+            }
+        }
+
+        reply.close();
+        in.close();
+    }
+
+    public void run() {
+        try {
+            Map<String, PortType> types = new LinkedHashMap<String, PortType>();
+            types.put("control", controlType);
+            List<Run> runs = runs(types);
+
+            ibis = IbisFactory.createIbis(new IbisCapabilities(
+                    IbisCapabilities.ELECTIONS_STRICT), null, true, null,
+                    types.values().toArray(new PortType[types.size()]));
+
+            // both control ports exist before the election is decided
+            controlIn = ibis.createReceivePort(controlType, "control");
+            controlIn.enableConnections();
+
+            Registry registry = ibis.registry();
+            IbisIdentifier master = registry.elect("harness");
+            IbisIdentifier peer;
+
+            if (master.equals(ibis.identifier())) {
+                peer = registry.getElectionResult("harness peer");
+            } else {
+                registry.elect("harness peer");
+                peer = master;
+            }
+
+            controlOut = ibis.createSendPort(controlType);
+            controlOut.connect(peer, "control", CONNECT_TIMEOUT, true);
+
+            if (master.equals(ibis.identifier())) {
+
+                PrintStream file = null;
+                if (output != null) {
+                    file = new PrintStream(new FileOutputStream(output, true));
+                }
+
+                String header = "# harness tag=" + tag + " implementation="
+                        + ibis.getVersion() + " java="
+                        + System.getProperty("java.version") + " date="
+                        + new Date() + " warmup=" + warmup + "\n"
+                        + "# times in microseconds: round trip (latency) or"
+                        + " send (throughput)\n"
+                        + "tag,implementation,mode,serialization,connection,"
+                        + "receive,size,messages,min,p50,p90,p99,p999,max,"
+                        + "mean,messages/s,MB/s";
+
+                System.out.println(header);
+                if (file != null) {
+                    file.println(header);
+                }
+
+                for (Run run : runs) {
+                    String line = measure(run, peer);
+                    System.out.println(line);
+                    if (file != null) {
+                        file.println(line);
+                        file.flush();
+                    }
+                }
+
+                if (file != null) {
+                    file.close();
+                }
+            } else {
+                for (Run run : runs) {
+                    serve(run, master);
+                }
+            }
+
+            controlOut.close();
+            controlIn.close();
+            ibis.end();
+        } catch (Exception e) {
+            System.err.println("Got exception " + e);
+            System.err.println("StackTrace:");
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.benchmarks.harness;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative values, typically times in nanoseconds. Values
+ * are counted in buckets whose width grows with the value: each power of two
+ * is split in 32 buckets, so percentiles are accurate to about 3%, using a
+ * fixed amount of memory regardless of the number or range of the values.
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final long[] counts = new long[64 * SUB_BUCKETS];
+
+    private long count = 0;
+
+    private long sum = 0;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max = 0;
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            // small values are counted exactly
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return ((shift + 1) << SUB_BITS) + sub;
+    }
+
+    private static long lowest(int index) {
+        int block = index >>> SUB_BITS;
+        long sub = index & (SUB_BUCKETS - 1);
+
+        if (block == 0) {
+            return sub;
+        }
+        return (SUB_BUCKETS | sub) << (block - 1);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /** Adds all values recorded in the given histogram to this one. */
+    public void add(Histogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded
+     * values lies.
+     *
+     * @param percentile
+     *            the percentile, between 0 and 100.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // middle of the bucket, within the observed range
+                long value = (lowest(i) + lowest(i + 1) - 1) / 2;
+                return Math.max(min, Math.min(max, value));
+            }
+        }
+        return max;
+    }
+}
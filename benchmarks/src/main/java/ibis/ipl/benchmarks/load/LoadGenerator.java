@@ -0,0 +1,491 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.benchmarks.load;
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisCapabilities;
+import ibis.ipl.IbisFactory;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.PortType;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.ReceiveTimedOutException;
+import ibis.ipl.Registry;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+import ibis.ipl.benchmarks.harness.Histogram;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator. Unlike the other benchmarks, which send a new
+ * request only after the previous one completed, the clients send requests
+ * at a fixed offered rate, with constant or exponentially distributed
+ * (Poisson) intervals, regardless of how fast they are answered. This shows
+ * the queueing behaviour of the server under load.
+ *
+ * One Ibis is the server, all others are clients. Each client runs a number
+ * of threads, each sending requests to one of the request ports of the
+ * server. The server replies to each request, and tells how long it spent on
+ * it (the service time). The response time is measured from the time a
+ * request was scheduled to be sent, not from the time it was actually sent,
+ * so a sender that falls behind does not hide the delays (coordinated
+ * omission).
+ *
+ * The offered rate is increased step by step (multiplied by -factor, or
+ * taken from -rates) until the server saturates: the achieved throughput
+ * stays below 90% of the offered rate. This is done for both the explicit
+ * receive and the upcall request ports. Each client prints its own results,
+ * so with more than one client the total offered rate is the sum of the
+ * rates of the clients.
+ *
+ * Times in the output are in microseconds, rates in requests per second.
+ */
+public class LoadGenerator {
+
+    static final String[] RECEIVES = { "explicit", "upcall" };
+
+    static final double SATURATED = 0.9;
+
+    static final PortType requestType = new PortType(
+            PortType.SERIALIZATION_DATA, PortType.COMMUNICATION_RELIABLE,
+            PortType.CONNECTION_MANY_TO_ONE, PortType.RECEIVE_EXPLICIT,
+            PortType.RECEIVE_TIMEOUT, PortType.RECEIVE_AUTO_UPCALLS);
+
+    static final PortType replyType = new PortType(
+            PortType.SERIALIZATION_DATA, PortType.COMMUNICATION_RELIABLE,
+            PortType.CONNECTION_MANY_TO_ONE, PortType.RECEIVE_EXPLICIT,
+            PortType.RECEIVE_TIMEOUT);
+
+    static final PortType controlType = new PortType(
+            PortType.SERIALIZATION_DATA, PortType.COMMUNICATION_RELIABLE,
+            PortType.CONNECTION_MANY_TO_ONE, PortType.RECEIVE_EXPLICIT);
+
+    String tag = "-";
+
+    String[] receives = RECEIVES;
+
+    boolean poisson = false;
+
+    int threads = 16;
+
+    int ports = 4;
+
+    int size = 64;
+
+    /** Simulated processing time of the server, in nanoseconds. */
+    long work = 0;
+
+    double rate = 1000;
+
+    double factor = 2;
+
+    double maxRate = 1000000;
+
+    double[] rates = null;
+
+    long warmup = 2000000000L;
+
+    long duration = 5000000000L;
+
+    String output = null;
+
+    Ibis ibis;
+
+    // set by the reply reader
+
+    private int index = -1;
+
+    private volatile Step current = null;
+
+    private volatile boolean stopped = false;
+
+    public static void main(String[] args) {
+        new LoadGenerator(args).run();
+    }
+
+    static void usage() {
+        System.err.println("LoadGenerator [-tag <tag>] "
+                + "[-receives explicit,upcall] [-poisson] "
+                + "[-threads <sender threads>] [-ports <request ports>] "
+                + "[-size <bytes>] [-work <server micros/request>] "
+                + "[-rate <initial requests/s>] [-factor <step factor>] "
+                + "[-max <requests/s>] [-rates <list of requests/s>] "
+                + "[-warmup <seconds>] [-duration <seconds>] "
+                + "[-output <file>]");
+        System.exit(1);
+    }
+
+    LoadGenerator(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-poisson")) {
+                poisson = true;
+                continue;
+            }
+            if (i == args.length - 1) {
+                usage();
+            }
+            if (args[i].equals("-tag")) {
+                tag = args[++i];
+            } else if (args[i].equals("-receives")) {
+                receives = args[++i].split(",");
+                for (String s : receives) {
+                    if (!Arrays.asList(RECEIVES).contains(s)) {
+                        usage();
+                    }
+                }
+            } else if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-ports")) {
+                ports = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size")) {
+                size = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-work")) {
+                work = Long.parseLong(args[++i]) * 1000;
+            } else if (args[i].equals("-rate")) {
+                rate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-factor")) {
+                factor = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-max")) {
+                maxRate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-rates")) {
+                String[] s = args[++i].split(",");
+                rates = new double[s.length];
+                for (int j = 0; j < s.length; j++) {
+                    rates[j] = Double.parseDouble(s[j]);
+                }
+            } else if (args[i].equals("-warmup")) {
+                warmup = (long) (Double.parseDouble(args[++i]) * 1000000000L);
+            } else if (args[i].equals("-duration")) {
+                duration = (long) (Double.parseDouble(args[++i]) * 1000000000L);
+            } else if (args[i].equals("-output")) {
+                output = args[++i];
+            } else {
+                usage();
+            }
+        }
+    }
+
+    /** A sender thread, with its own port to one of the request ports. */
+    private class Sender implements Runnable {
+
+        final SendPort port;
+
+        final Random random;
+
+        final byte[] payload = new byte[size];
+
+        Step step;
+
+        // offset of the first request, spreads constant rate senders
+        long offset;
+
+        Sender(SendPort port, long seed) {
+            this.port = port;
+            random = new Random(seed);
+        }
+
+        long interval(double threadRate) {
+            if (poisson) {
+                return (long) (-Math.log(1.0 - random.nextDouble())
+                        / threadRate * 1000000000.0);
+            }
+            return (long) (1000000000.0 / threadRate);
+        }
+
+        public void run() {
+            Histogram lag = new Histogram();
+            double threadRate = step.rate / threads;
+            long next = step.windowStart - warmup + offset;
+            long count = 0;
+
+            try {
+                while (next < step.windowEnd) {
+                    long now = System.nanoTime();
+                    while (now < next) {
+                        LockSupport.parkNanos(next - now);
+                        now = System.nanoTime();
+                    }
+
+                    // never skip a request, even when we are late
+                    lag.record(now - next);
+
+                    WriteMessage m = port.newMessage();
+                    m.writeInt(index);
+                    m.writeInt(step.id);
+                    m.writeLong(next);
+                    if (payload.length > 0) {
+                        m.writeArray(payload);
+                    }
+                    m.finish();
+                    count++;
+
+                    next += interval(threadRate);
+                }
+            } catch (IOException e) {
+                System.err.println("sender got exception: " + e);
+            }
+
+            step.sent(lag, count);
+        }
+    }
+
+    /** Reads the replies of the server. */
+    private class Reader implements Runnable {
+
+        final ReceivePort port;
+
+        Reader(ReceivePort port) {
+            this.port = port;
+        }
+
+        public void run() {
+            while (!stopped) {
+                ReadMessage m;
+                try {
+                    m = port.receive(100);
+                } catch (ReceiveTimedOutException e) {
+                    continue;
+                } catch (IOException e) {
+                    if (!stopped) {
+                        System.err.println("reader got exception: " + e);
+                    }
+                    return;
+                }
+
+                try {
+                    long now = System.nanoTime();
+                    int step = m.readInt();
+                    long scheduled = m.readLong();
+                    long service = m.readLong();
+                    m.finish();
+
+                    if (step == -1) {
+                        // our index, we can start
+                        synchronized (LoadGenerator.this) {
+                            index = (int) scheduled;
+                            LoadGenerator.this.notifyAll();
+                        }
+                        continue;
+                    }
+
+                    Step s = current;
+                    if (s != null && s.id == step) {
+                        s.replied(scheduled, service, now);
+                    }
+                } catch (IOException e) {
+                    System.err.println("reader got exception: " + e);
+                }
+            }
+        }
+    }
+
+    private synchronized void waitForIndex() {
+        while (index < 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        }
+    }
+
+    private String format(String receive, Step step, long lost) {
+        double seconds = duration / 1000000000.0;
+        double achieved = step.getCompleted() / seconds;
+
+        return String.format(Locale.ROOT, "%s,%s,%d,%s,%s,%.1f,%.1f,%d,%d,%d,"
+                + "%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%s", tag,
+                ibis.getVersion(), index, receive, poisson ? "poisson"
+                        : "constant", step.rate, achieved, step.getSent(),
+                step.getCompleted(), lost,
+                step.response.getPercentile(50) / 1000.0,
+                step.response.getPercentile(90) / 1000.0,
+                step.response.getPercentile(99) / 1000.0,
+                step.response.getPercentile(99.9) / 1000.0,
+                step.response.getMax() / 1000.0,
+                step.service.getPercentile(50) / 1000.0,
+                step.service.getPercentile(99) / 1000.0,
+                step.service.getMax() / 1000.0,
+                step.lag.getPercentile(99) / 1000.0,
+                achieved < SATURATED * step.rate);
+    }
+
+    void client(IbisIdentifier server, PrintStream file) throws IOException {
+        ReceivePort replies = ibis.createReceivePort(replyType, "reply");
+        replies.enableConnections();
+
+        Thread reader = new Thread(new Reader(replies), "reply reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        SendPort control = ibis.createSendPort(controlType);
+        control.connect(server, "control");
+        WriteMessage hello = control.newMessage();
+        hello.finish();
+
+        waitForIndex();
+
+        String header = "# load generator tag=" + tag + " implementation="
+                + ibis.getVersion() + " java="
+                + System.getProperty("java.version") + " date=" + new Date()
+                + " threads=" + threads + " ports=" + ports + " size="
+                + size + " work=" + (work / 1000) + "\n"
+                + "tag,implementation,client,receive,distribution,offered,"
+                + "achieved,sent,completed,lost,response_p50,response_p90,"
+                + "response_p99,response_p999,response_max,service_p50,"
+                + "service_p99,service_max,lag_p99,saturated";
+        print(header, file);
+
+        int stepId = 0;
+
+        for (String receive : receives) {
+            Sender[] senders = new Sender[threads];
+            for (int i = 0; i < threads; i++) {
+                SendPort port = ibis.createSendPort(requestType);
+                port.connect(server, receive + "-" + (i % ports));
+                senders[i] = new Sender(port, 31 * index + i);
+            }
+
+            double best = 0;
+
+            for (int r = 0;; r++) {
+                double offered = rates != null ? rates[r] : rate
+                        * Math.pow(factor, r);
+                if (rates == null && offered > maxRate) {
+                    break;
+                }
+
+                // start a bit in the future, so all senders start together
+                Step step = new Step(stepId++, offered,
+                        System.nanoTime() + 10000000, warmup, duration);
+                current = step;
+
+                Thread[] running = new Thread[threads];
+                for (int i = 0; i < threads; i++) {
+                    senders[i].step = step;
+                    senders[i].offset = poisson ? 0 : i
+                            * (long) (1000000000.0 / offered);
+                    running[i] = new Thread(senders[i], "sender " + i);
+                    running[i].start();
+                }
+                for (Thread thread : running) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+                }
+                step.doneSending();
+
+                // give the server as long as the step took to catch up
+                long lost = step.drain(System.nanoTime() + warmup + duration);
+
+                print(format(receive, step, lost), file);
+
+                double achieved = step.getCompleted()
+                        / (duration / 1000000000.0);
+                best = Math.max(best, achieved);
+
+                if (achieved < SATURATED * offered
+                        || (rates != null && r == rates.length - 1)) {
+                    break;
+                }
+            }
+
+            print("# saturation throughput " + receive + ": "
+                    + String.format(Locale.ROOT, "%.1f", best), file);
+
+            for (Sender sender : senders) {
+                sender.port.close();
+            }
+        }
+
+        WriteMessage done = control.newMessage();
+        done.finish();
+        control.close();
+
+        stopped = true;
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            // ignored
+        }
+        replies.close();
+    }
+
+    private static void print(String line, PrintStream file) {
+        System.out.println(line);
+        if (file != null) {
+            file.println(line);
+            file.flush();
+        }
+    }
+
+    public void run() {
+        try {
+            ibis = IbisFactory.createIbis(new IbisCapabilities(
+                    IbisCapabilities.CLOSED_WORLD,
+                    IbisCapabilities.ELECTIONS_STRICT), null, requestType,
+                    replyType, controlType);
+
+            Registry registry = ibis.registry();
+            registry.waitUntilPoolClosed();
+
+            int clients = registry.getPoolSize() - 1;
+            if (clients < 1) {
+                System.err.println("LoadGenerator needs at least 2 Ibises");
+                ibis.end();
+                return;
+            }
+
+            IbisIdentifier server = registry.elect("load server");
+
+            if (server.equals(ibis.identifier())) {
+                LoadServer loadServer = new LoadServer(ibis, this);
+                loadServer.createPorts(clients);
+
+                // the ports exist, let the clients connect
+                registry.elect("load server ready");
+                loadServer.run(clients);
+            } else {
+                registry.getElectionResult("load server ready");
+
+                PrintStream file = null;
+                if (output != null) {
+                    file = new PrintStream(new FileOutputStream(output, true));
+                }
+                client(server, file);
+                if (file != null) {
+                    file.close();
+                }
+            }
+
+            ibis.end();
+        } catch (Exception e) {
+            System.err.println("Got exception " + e);
+            System.err.println("StackTrace:");
+            e.printStackTrace();
+        }
+    }
+}
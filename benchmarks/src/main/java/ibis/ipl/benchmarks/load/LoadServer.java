@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.benchmarks.load;
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.ReceiveTimedOutException;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server side of the load generator. For each receive mode, it has a number
+ * of request ports, each served by its own handler: a thread doing explicit
+ * receives, or an upcall. Each handler has its own reply port to each
+ * client.
+ */
+final class LoadServer {
+
+    private final Ibis ibis;
+
+    private final LoadGenerator config;
+
+    private final List<Handler> handlers = new ArrayList<Handler>();
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private ReceivePort control;
+
+    private volatile boolean stopped = false;
+
+    private class Handler implements MessageUpcall, Runnable {
+
+        final ReceivePort port;
+
+        // indexed by client
+        final SendPort[] replies;
+
+        final byte[] payload = new byte[config.size];
+
+        Handler(String receive, int index, int clients) throws IOException {
+            boolean upcalls = receive.equals("upcall");
+
+            port = ibis.createReceivePort(LoadGenerator.requestType, receive
+                    + "-" + index, upcalls ? this : null);
+            replies = new SendPort[clients];
+        }
+
+        public void upcall(ReadMessage m) throws IOException {
+            long start = System.nanoTime();
+
+            int client = m.readInt();
+            int step = m.readInt();
+            long scheduled = m.readLong();
+            if (payload.length > 0) {
+                m.readArray(payload);
+            }
+            m.finish();
+
+            // simulated processing
+            long end = start + config.work;
+            while (System.nanoTime() < end) {
+                // spin
+            }
+
+            WriteMessage w = replies[client].newMessage();
+            w.writeInt(step);
+            w.writeLong(scheduled);
+            w.writeLong(System.nanoTime() - start);
+            w.finish();
+        }
+
+        public void run() {
+            while (!stopped) {
+                try {
+                    upcall(port.receive(100));
+                } catch (ReceiveTimedOutException e) {
+                    // check if we are done
+                } catch (IOException e) {
+                    if (!stopped) {
+                        System.err.println("handler of " + port.name()
+                                + " got exception: " + e);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    LoadServer(Ibis ibis, LoadGenerator config) {
+        this.ibis = ibis;
+        this.config = config;
+    }
+
+    /** Creates all ports, before the clients know about this server. */
+    void createPorts(int clients) throws IOException {
+        control = ibis.createReceivePort(LoadGenerator.controlType,
+                "control");
+        control.enableConnections();
+
+        for (String receive : LoadGenerator.RECEIVES) {
+            for (int i = 0; i < config.ports; i++) {
+                Handler handler = new Handler(receive, i, clients);
+                handler.port.enableConnections();
+                handlers.add(handler);
+            }
+        }
+    }
+
+    void run(int clients) throws IOException {
+        // every client says hello once its reply port exists
+        IbisIdentifier[] members = new IbisIdentifier[clients];
+        for (int i = 0; i < clients; i++) {
+            ReadMessage m = control.receive();
+            members[i] = m.origin().ibisIdentifier();
+            m.finish();
+        }
+
+        for (Handler handler : handlers) {
+            for (int i = 0; i < clients; i++) {
+                handler.replies[i] = ibis
+                        .createSendPort(LoadGenerator.replyType);
+                handler.replies[i].connect(members[i], "reply");
+            }
+        }
+
+        for (Handler handler : handlers) {
+            if (handler.port.name().startsWith("upcall")) {
+                handler.port.enableMessageUpcalls();
+            } else {
+                Thread thread = new Thread(handler, handler.port.name());
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        // tell the clients their index, which they put in their requests
+        for (int i = 0; i < clients; i++) {
+            WriteMessage w = handlers.get(0).replies[i].newMessage();
+            w.writeInt(-1);
+            w.writeLong(i);
+            w.writeLong(0);
+            w.finish();
+        }
+
+        for (int i = 0; i < clients; i++) {
+            control.receive().finish();
+        }
+
+        stopped = true;
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        }
+
+        for (Handler handler : handlers) {
+            for (SendPort reply : handler.replies) {
+                reply.close();
+            }
+        }
+        for (Handler handler : handlers) {
+            handler.port.close();
+        }
+        control.close();
+    }
+}
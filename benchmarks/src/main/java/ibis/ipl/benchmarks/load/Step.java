@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.benchmarks.load;
+
+import ibis.ipl.benchmarks.harness.Histogram;
+
+/**
+ * One step of a load run: a fixed offered rate for a warm-up period and a
+ * measurement window. Only requests scheduled within the window are counted
+ * in the histograms; the throughput is the number of replies which arrived
+ * within the window.
+ */
+final class Step {
+
+    final int id;
+
+    final double rate;
+
+    final long windowStart;
+
+    final long windowEnd;
+
+    /** Scheduled send time until reply, in nanoseconds. */
+    final Histogram response = new Histogram();
+
+    /** As measured by the server, in nanoseconds. */
+    final Histogram service = new Histogram();
+
+    /** Actual minus scheduled send time, in nanoseconds. */
+    final Histogram lag = new Histogram();
+
+    private long sent = 0;
+
+    private long received = 0;
+
+    private long completed = 0;
+
+    private boolean sending = true;
+
+    Step(int id, double rate, long start, long warmup, long duration) {
+        this.id = id;
+        this.rate = rate;
+        windowStart = start + warmup;
+        windowEnd = windowStart + duration;
+    }
+
+    boolean inWindow(long time) {
+        return time >= windowStart && time < windowEnd;
+    }
+
+    synchronized void sent(Histogram threadLag, long count) {
+        lag.add(threadLag);
+        sent += count;
+    }
+
+    synchronized void doneSending() {
+        sending = false;
+        notifyAll();
+    }
+
+    synchronized void replied(long scheduled, long serviceTime, long now) {
+        if (inWindow(scheduled)) {
+            response.record(now - scheduled);
+            service.record(serviceTime);
+        }
+        if (inWindow(now)) {
+            completed++;
+        }
+        received++;
+        if (!sending && received == sent) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all requests sent have been answered, or until the
+     * deadline passes.
+     *
+     * @return the number of requests not answered.
+     */
+    synchronized long drain(long deadline) {
+        while (sending || received < sent) {
+            long left = (deadline - System.nanoTime()) / 1000000;
+            if (left <= 0) {
+                break;
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        }
+        return sent - received;
+    }
+
+    synchronized long getSent() {
+        return sent;
+    }
+
+    synchronized long getCompleted() {
+        return completed;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.benchmarks.multicast;
+
+/* $Id$ */
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisCapabilities;
+import ibis.ipl.IbisFactory;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.PortType;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.Registry;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+import java.io.IOException;
+
+/**
+ * Multicast benchmark. One Ibis (the master) multicasts to the others, and
+ * measures the time until the last receiver has received all messages, and
+ * the aggregate bandwidth (bytes delivered to all receivers per second).
+ * Receivers acknowledge the last message of each iteration over a separate
+ * port, so the measured time includes one acknowledgement.
+ *
+ * The benchmark is run for 2, 4, 8, ... receivers, up to the number of
+ * receivers in the pool (or the number given with -receivers). To use
+ * label routing multicast, run with ibis.implementation=lrmc; its chains
+ * are set with the lrmc.chains property (0 is adaptive).
+ */
+public class Multicast {
+
+    int count = 100;
+
+    int size = 64 * 1024;
+
+    int iters = 5;
+
+    int maxReceivers = Integer.MAX_VALUE;
+
+    byte[] data;
+
+    final PortType multicastType = new PortType(
+            PortType.SERIALIZATION_DATA,
+            PortType.CONNECTION_ONE_TO_MANY,
+            PortType.RECEIVE_EXPLICIT);
+
+    final PortType ackType = new PortType(
+            PortType.SERIALIZATION_DATA,
+            PortType.CONNECTION_MANY_TO_ONE,
+            PortType.COMMUNICATION_RELIABLE,
+            PortType.RECEIVE_EXPLICIT);
+
+    public static void main(String[] args) {
+        new Multicast(args).run();
+    }
+
+    Multicast(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-count")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size")) {
+                size = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-iters")) {
+                iters = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-receivers")) {
+                maxReceivers = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Multicast [-count <messages>] "
+                        + "[-size <bytes>] [-iters <iterations>] "
+                        + "[-receivers <max receivers>]");
+                System.exit(1);
+            }
+        }
+
+        data = new byte[size];
+    }
+
+    void master(Ibis ibis, int poolSize) throws IOException {
+        ReceivePort ackPort = ibis.createReceivePort(ackType, "ack");
+        ackPort.enableConnections();
+
+        // every receiver says hello, so we know who they are
+        int receivers = Math.min(poolSize - 1, maxReceivers);
+        IbisIdentifier[] members = new IbisIdentifier[poolSize - 1];
+        for (int i = 0; i < members.length; i++) {
+            ReadMessage m = ackPort.receive();
+            members[i] = m.origin().ibisIdentifier();
+            m.finish();
+        }
+
+        SendPort multicastPort = ibis.createSendPort(multicastType);
+        int connected = 0;
+
+        System.out.println("#RECEIVERS TIME_TO_LAST(ms) BANDWIDTH(MB/s)"
+                + " AGGREGATE(MB/s)");
+
+        int n = Math.min(2, receivers);
+
+        while (true) {
+            while (connected < n) {
+                multicastPort.connect(members[connected], "multicast");
+                connected++;
+            }
+
+            double best = Double.MAX_VALUE;
+
+            for (int iter = 0; iter < iters; iter++) {
+                long start = System.nanoTime();
+
+                for (int i = 0; i < count; i++) {
+                    WriteMessage m = multicastPort.newMessage();
+                    m.writeInt(i);
+                    m.writeArray(data);
+                    m.finish();
+                }
+
+                // wait until the last receiver has all messages
+                for (int i = 0; i < n; i++) {
+                    ackPort.receive().finish();
+                }
+
+                double time = (System.nanoTime() - start) / 1000000.0;
+                if (time < best) {
+                    best = time;
+                }
+            }
+
+            double megabytes = ((double) count * size) / (1024.0 * 1024.0);
+            double bandwidth = megabytes / (best / 1000.0);
+
+            System.out.printf("%10d %16.2f %15.2f %15.2f\n", n, best,
+                    bandwidth, bandwidth * n);
+
+            if (n == receivers) {
+                break;
+            }
+            // double the receivers, ending with all of them
+            n = Math.min(n * 2, receivers);
+        }
+
+        // tell all receivers to stop, connecting to any left out
+        for (int i = connected; i < members.length; i++) {
+            multicastPort.connect(members[i], "multicast");
+        }
+        WriteMessage m = multicastPort.newMessage();
+        m.writeInt(-1);
+        m.finish();
+
+        multicastPort.close();
+        ackPort.close();
+    }
+
+    void receiver(Ibis ibis, IbisIdentifier master) throws IOException {
+        ReceivePort multicastPort = ibis.createReceivePort(multicastType,
+                "multicast");
+        multicastPort.enableConnections();
+
+        SendPort ackPort = ibis.createSendPort(ackType);
+        ackPort.connect(master, "ack");
+
+        WriteMessage hello = ackPort.newMessage();
+        hello.finish();
+
+        while (true) {
+            ReadMessage m = multicastPort.receive();
+            int sequenceNumber = m.readInt();
+
+            if (sequenceNumber < 0) {
+                m.finish();
+                break;
+            }
+
+            m.readArray(data);
+            m.finish();
+
+            if (sequenceNumber == count - 1) {
+                WriteMessage ack = ackPort.newMessage();
+                ack.finish();
+            }
+        }
+
+        ackPort.close();
+        multicastPort.close();
+    }
+
+    public void run() {
+        try {
+            IbisCapabilities s = new IbisCapabilities(
+                    IbisCapabilities.CLOSED_WORLD,
+                    IbisCapabilities.ELECTIONS_STRICT);
+
+            Ibis ibis = IbisFactory.createIbis(s, null, multicastType,
+                    ackType);
+
+            Registry registry = ibis.registry();
+            registry.waitUntilPoolClosed();
+
+            IbisIdentifier master = registry.elect("multicast master");
+
+            if (master.equals(ibis.identifier())) {
+                int poolSize = registry.getPoolSize();
+                if (poolSize < 2) {
+                    System.err.println("Multicast needs at least 2 Ibises");
+                } else {
+                    master(ibis, poolSize);
+                }
+            } else {
+                receiver(ibis, master);
+            }
+
+            ibis.end();
+        } catch (Exception e) {
+            System.out.println("Got exception " + e);
+            System.out.println("StackTrace:");
+            e.printStackTrace();
+        }
+    }
+}
@@ -39,6 +39,11 @@ final class IbisApplication implements Runnable, RegistryEventHandler {
 
     private final boolean generateEvents;
 
+    // do registry operations back to back, instead of generating events
+    private final boolean operations;
+
+    private long operationCount = 0;
+
     private Set<IbisIdentifier> ibisses;
 
     private boolean stopped = false;
@@ -49,9 +54,10 @@ final class IbisApplication implements Runnable, RegistryEventHandler {
 
     private final PortType portType;
 
-    IbisApplication(boolean generateEvents, boolean fail)
+    IbisApplication(boolean generateEvents, boolean operations, boolean fail)
             throws IbisCreationFailedException, IOException {
         this.generateEvents = generateEvents;
+        this.operations = operations;
 
         ibisses = new HashSet<IbisIdentifier>();
         random = new Random();
@@ -136,6 +142,14 @@ final class IbisApplication implements Runnable, RegistryEventHandler {
         }
     }
 
+    public synchronized long getOperationCount() {
+        return operationCount;
+    }
+
+    private synchronized void operationDone() {
+        operationCount++;
+    }
+
     public synchronized int nrOfIbisses() {
         return ibisses.size();
     }
@@ -212,6 +226,12 @@ final class IbisApplication implements Runnable, RegistryEventHandler {
                         return;
                     }
 
+                    if (operations) {
+                        ibis.registry().getSequenceNumber("benchmark");
+                        operationDone();
+                        continue;
+                    }
+
                     if (generateEvents) {
 
                         int nextCase = random.nextInt(6);
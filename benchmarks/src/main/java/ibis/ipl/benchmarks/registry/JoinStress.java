@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.benchmarks.registry;
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisCapabilities;
+import ibis.ipl.IbisFactory;
+import ibis.ipl.PortType;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry stress test: a number of threads join and leave a pool as fast as
+ * they can. Prints the number of joins per second the server sustains, and
+ * the average time spent in each phase of the creation of an Ibis, as
+ * reported in its "startup.*" management properties.
+ */
+public final class JoinStress implements Runnable {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(JoinStress.class);
+
+    private static final IbisCapabilities capabilities = new IbisCapabilities(
+            IbisCapabilities.MEMBERSHIP_UNRELIABLE);
+
+    private static final PortType portType = new PortType(
+            PortType.CONNECTION_ONE_TO_ONE, PortType.SERIALIZATION_OBJECT);
+
+    // startup phases reported, in the order they happen
+    private static final String[] PHASES = { "data", "server", "registry",
+            "total" };
+
+    private long joins = 0;
+
+    // total time spent in each phase, in ms
+    private final double[] phaseTimes = new double[PHASES.length];
+
+    private synchronized void joined(Map<String, String> properties) {
+        joins++;
+
+        for (int i = 0; i < PHASES.length; i++) {
+            String time = properties.get("startup." + PHASES[i]);
+            if (time != null) {
+                phaseTimes[i] += Double.parseDouble(time);
+            }
+        }
+    }
+
+    synchronized void addPhaseTimes(double[] result) {
+        for (int i = 0; i < result.length; i++) {
+            result[i] += phaseTimes[i];
+        }
+    }
+
+    synchronized long getJoins() {
+        return joins;
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Ibis ibis = IbisFactory.createIbis(capabilities, null,
+                        portType);
+                joined(ibis.managementProperties());
+                ibis.end();
+            } catch (Exception e) {
+                logger.error("join/leave failed", e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = 1;
+        long runtime = Long.MAX_VALUE;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("--threads")) {
+                i++;
+                threads = Integer.parseInt(args[i]);
+            } else if (args[i].equalsIgnoreCase("--runtime")) {
+                i++;
+                runtime = Long.parseLong(args[i]) * 1000;
+            } else {
+                System.err.println("unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        JoinStress[] stressers = new JoinStress[threads];
+        for (int i = 0; i < threads; i++) {
+            stressers[i] = new JoinStress();
+            Thread thread = new Thread(stressers[i], "join stress " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long start = System.currentTimeMillis();
+        long lastTime = start;
+        long lastJoins = 0;
+        double[] lastPhaseTimes = new double[PHASES.length];
+
+        while (System.currentTimeMillis() - start < runtime) {
+            Thread.sleep(1000);
+
+            long joins = 0;
+            double[] phaseTimes = new double[PHASES.length];
+            for (JoinStress stresser : stressers) {
+                joins += stresser.getJoins();
+                stresser.addPhaseTimes(phaseTimes);
+            }
+            long now = System.currentTimeMillis();
+
+            double perSecond = (joins - lastJoins) * 1000.0
+                    / Math.max(1, now - lastTime);
+
+            StringBuilder phases = new StringBuilder();
+            for (int i = 0; i < PHASES.length; i++) {
+                double average = (phaseTimes[i] - lastPhaseTimes[i])
+                        / Math.max(1, joins - lastJoins);
+                phases.append(String.format(" %s = %.1f", PHASES[i],
+                        average));
+            }
+
+            lastJoins = joins;
+            lastPhaseTimes = phaseTimes;
+            lastTime = now;
+
+            String date = DateFormat.getTimeInstance().format(new Date(now));
+            System.out.printf(date + " joins/s = %.1f (total %d)"
+                    + ", startup (ms):%s\n", perSecond, joins, phases);
+        }
+        System.exit(0);
+    }
+}
@@ -27,12 +27,17 @@ public final class Main {
 
     private final IbisApplication[] apps;
 
-    Main(int threads, boolean generateEvents, boolean fail) throws Exception {
+    private long lastOperationCount = 0;
+
+    private long lastOperationTime = System.currentTimeMillis();
+
+    Main(int threads, boolean generateEvents, boolean operations,
+            boolean fail) throws Exception {
 
         apps = new IbisApplication[threads];
         for (int i = 0; i < threads; i++) {
             logger.debug("starting thread " + i + " of " + threads);
-            apps[i] = new IbisApplication(generateEvents, fail);
+            apps[i] = new IbisApplication(generateEvents, operations, fail);
         }
     }
 
@@ -57,6 +62,26 @@ public final class Main {
             apps.length);
     }
 
+    void printOperationStats() {
+        long count = 0;
+        for (IbisApplication app : apps) {
+            count += app.getOperationCount();
+        }
+        long now = System.currentTimeMillis();
+
+        double perSecond = (count - lastOperationCount) * 1000.0
+                / Math.max(1, now - lastOperationTime);
+
+        lastOperationCount = count;
+        lastOperationTime = now;
+
+        String date =
+            DateFormat.getTimeInstance().format(new Date(now));
+
+        System.out.printf(date + " registry operations/s = %.1f (total %d)\n",
+            perSecond, count);
+    }
+
     public static void main(String[] args) throws Exception {
         int threads = 1;
         boolean generateEvents = false;
@@ -64,6 +89,7 @@ public final class Main {
         long runtime = Long.MAX_VALUE;
 	long delay = 0;
         boolean fail = false;
+        boolean operations = false;
 
         // int rank = new Integer(System.getProperty("rank", "0"));
         
@@ -73,6 +99,8 @@ public final class Main {
                 threads = new Integer(args[i]);
             } else if (args[i].equalsIgnoreCase("--events")) {
                 generateEvents = true;
+            } else if (args[i].equalsIgnoreCase("--operations")) {
+                operations = true;
             } else if (args[i].equalsIgnoreCase("--fail")) {
                 fail = true;
             } else if (args[i].equalsIgnoreCase("--runtime")) {
@@ -93,7 +121,14 @@ public final class Main {
             }
 
 	    //create ibisses
-            new Main(threads, generateEvents, fail);
+            Main main = new Main(threads, generateEvents, operations, fail);
+
+            //print registry operations per second until the runtime is over
+            while (operations
+                    && System.currentTimeMillis() - start < runtime) {
+                Thread.sleep(1000);
+                main.printOperationStats();
+            }
 
 	    //sleep for specified runtime
             long sleep = runtime - (System.currentTimeMillis() - start);
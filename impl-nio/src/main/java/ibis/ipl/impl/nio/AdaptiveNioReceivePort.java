@@ -0,0 +1,511 @@
+/* $Id$ */
+
+package ibis.ipl.impl.nio;
+
+import ibis.ipl.ConnectionClosedException;
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.PortType;
+import ibis.ipl.ReceivePortConnectUpcall;
+import ibis.ipl.ReceiveTimedOutException;
+import ibis.ipl.impl.Ibis;
+import ibis.ipl.impl.SendPortIdentifier;
+import ibis.util.TypedProperties;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receive port which adapts the way it waits for messages to the traffic it
+ * sees. All channels are non-blocking and registered with a selector. A
+ * connection which recently delivered a message is "polled": while the port
+ * is in spin mode, it busy-polls the polled connections for a short time
+ * before falling back to a select, which avoids the select and wakeup
+ * latency for a steady stream of messages. Connections that stay idle are
+ * moved back to the selector, and the port switches to select mode when
+ * spinning does not pay off, or when more connections are active than it
+ * is willing to poll.
+ */
+final class AdaptiveNioReceivePort extends NioReceivePort {
+    static final int INITIAL_ARRAY_SIZE = 8;
+
+    /** Number of spins without a message after which spinning stops. */
+    static final int SPIN_MISS_LIMIT = 8;
+
+    /**
+     * Number of messages in a row which arrived within the spin time after
+     * the port started waiting, after which spinning starts.
+     */
+    static final int QUICK_ARRIVAL_LIMIT = 4;
+
+    private static Logger logger
+        = LoggerFactory.getLogger(AdaptiveNioReceivePort.class);
+
+    private static final class Connection {
+        final NonBlockingChannelNioDissipator dissipator;
+
+        // time at which the last message from this connection was found
+        long lastMessage;
+
+        // polled while spinning, otherwise only selected
+        boolean polled = false;
+
+        Connection(NonBlockingChannelNioDissipator dissipator) {
+            this.dissipator = dissipator;
+            lastMessage = System.nanoTime();
+        }
+    }
+
+    private Connection[] connections = new Connection[INITIAL_ARRAY_SIZE];
+
+    private int nrOfConnections = 0;
+
+    private NonBlockingChannelNioDissipator[] pendingConnections
+            = new NonBlockingChannelNioDissipator[INITIAL_ARRAY_SIZE];
+
+    private int nrOfPendingConnections = 0;
+
+    private boolean closing = false;
+
+    private final Selector selector;
+
+    // configuration
+
+    private final long spinTime;
+
+    private final int maxPolled;
+
+    private final long idleTime;
+
+    // adaptation state
+
+    private boolean spinning = false;
+
+    private int nrOfPolled = 0;
+
+    private int spinMisses = 0;
+
+    private int quickArrivals = 0;
+
+    // last time more connections were active than we are willing to poll
+    private long overflow;
+
+    // statistics
+
+    private long modeSwitches = 0;
+
+    private long promotions = 0;
+
+    private long demotions = 0;
+
+    private long spinHits = 0;
+
+    private long selectHits = 0;
+
+    AdaptiveNioReceivePort(Ibis ibis, PortType type, String name,
+            MessageUpcall upcall, ReceivePortConnectUpcall connUpcall,
+            Properties props) throws IOException {
+        super(ibis, type, name, upcall, connUpcall, props);
+
+        TypedProperties properties = new TypedProperties(this.properties);
+
+        spinTime = properties.getLongProperty(NioIbis.s_adaptive_spin, 50)
+                * 1000;
+        maxPolled = properties.getIntProperty(
+                NioIbis.s_adaptive_connections, 4);
+        idleTime = properties.getLongProperty(NioIbis.s_adaptive_idle, 10)
+                * 1000000;
+
+        overflow = System.nanoTime() - idleTime;
+
+        selector = Selector.open();
+    }
+
+    synchronized void newConnection(SendPortIdentifier spi, Channel channel)
+            throws IOException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("registering new connection");
+        }
+
+        if (!(channel instanceof ReadableByteChannel)) {
+            logger.error("wrong channel type");
+            throw new IOException("wrong channel type on creating connection");
+        }
+
+        NonBlockingChannelNioDissipator dissipator
+            = new NonBlockingChannelNioDissipator(
+                (ReadableByteChannel) channel);
+
+        addConnection(spi, dissipator);
+
+        if (nrOfConnections == connections.length) {
+            Connection[] newConnections
+                = new Connection[connections.length * 2];
+            for (int i = 0; i < connections.length; i++) {
+                newConnections[i] = connections[i];
+            }
+            connections = newConnections;
+        }
+        connections[nrOfConnections] = new Connection(dissipator);
+        nrOfConnections++;
+
+        if (nrOfPendingConnections == pendingConnections.length) {
+            NonBlockingChannelNioDissipator[] newPendingConnections;
+            newPendingConnections = new NonBlockingChannelNioDissipator[pendingConnections.length * 2];
+
+            for (int i = 0; i < pendingConnections.length; i++) {
+                newPendingConnections[i] = pendingConnections[i];
+            }
+            pendingConnections = newPendingConnections;
+        }
+        pendingConnections[nrOfPendingConnections] = dissipator;
+        nrOfPendingConnections++;
+
+        // wake up selector if needed
+        selector.wakeup();
+    }
+
+    synchronized void errorOnRead(NioDissipator dissipator, Exception cause) {
+
+        logger.debug("lost connection", cause);
+
+        for (int i = 0; i < nrOfPendingConnections; i++) {
+            if (dissipator == pendingConnections[i]) {
+                nrOfPendingConnections--;
+                pendingConnections[i] = pendingConnections[nrOfPendingConnections];
+                pendingConnections[nrOfPendingConnections] = null;
+                break;
+            }
+        }
+
+        dissipator.info.close(cause);
+
+        for (int i = 0; i < nrOfConnections; i++) {
+            if (dissipator == connections[i].dissipator) {
+                if (connections[i].polled) {
+                    nrOfPolled--;
+                }
+                nrOfConnections--;
+                connections[i] = connections[nrOfConnections];
+                connections[nrOfConnections] = null;
+                logger.debug("removed connection");
+                break;
+            }
+        }
+
+        if (nrOfPolled == 0) {
+            setSpinning(false);
+        }
+
+        if (nrOfConnections == 0) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("no more connections, waking up selector");
+            }
+            selector.wakeup();
+        }
+    }
+
+    private synchronized void registerPendingConnections() throws IOException {
+        for (int i = 0; i < nrOfPendingConnections; i++) {
+            SelectableChannel sh = (SelectableChannel) pendingConnections[i].channel;
+
+            sh.register(selector, SelectionKey.OP_READ, pendingConnections[i]);
+            pendingConnections[i] = null;
+        }
+        nrOfPendingConnections = 0;
+    }
+
+    private void setSpinning(boolean spinning) {
+        if (this.spinning == spinning) {
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(ident + " switches to "
+                    + (spinning ? "spin" : "select") + " mode");
+        }
+        this.spinning = spinning;
+        modeSwitches++;
+        spinMisses = 0;
+        quickArrivals = 0;
+    }
+
+    /**
+     * Moves the connections which did not deliver a message for a while from
+     * the polled connections to the selector.
+     */
+    private synchronized void demoteIdleConnections(long now) {
+        for (int i = 0; i < nrOfConnections; i++) {
+            Connection c = connections[i];
+            if (c.polled && now - c.lastMessage > idleTime) {
+                c.polled = false;
+                nrOfPolled--;
+                demotions++;
+            }
+        }
+
+        if (nrOfPolled == 0) {
+            setSpinning(false);
+        }
+    }
+
+    private Connection find(NioDissipator dissipator) {
+        for (int i = 0; i < nrOfConnections; i++) {
+            if (connections[i].dissipator == dissipator) {
+                return connections[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records that a message was found on the given connection, and adapts
+     * the mode of this port.
+     *
+     * @param spun
+     *            the message was found while spinning, otherwise it was
+     *            already buffered or found after a select.
+     * @param waited
+     *            the time we waited for it, in nanoseconds.
+     */
+    private synchronized void found(NioDissipator dissipator, boolean spun,
+            long waited, long now) {
+        Connection c = find(dissipator);
+
+        if (c == null) {
+            return;
+        }
+        c.lastMessage = now;
+
+        if (spun) {
+            spinHits++;
+        } else {
+            selectHits++;
+        }
+
+        if (!c.polled) {
+            if (nrOfPolled < maxPolled) {
+                c.polled = true;
+                nrOfPolled++;
+                promotions++;
+            } else {
+                // more active connections than we are willing to poll,
+                // don't spin until this has not happened for a while
+                overflow = now;
+                setSpinning(false);
+                return;
+            }
+        }
+
+        if (spun) {
+            spinMisses = 0;
+        } else if (!spinning && spinTime > 0
+                && now - overflow > idleTime) {
+            if (waited <= spinTime) {
+                quickArrivals++;
+                if (quickArrivals >= QUICK_ARRIVAL_LIMIT) {
+                    setSpinning(true);
+                }
+            } else {
+                quickArrivals = 0;
+            }
+        }
+    }
+
+    private synchronized void spinMissed() {
+        spinMisses++;
+        if (spinMisses >= SPIN_MISS_LIMIT) {
+            setSpinning(false);
+        }
+    }
+
+    private synchronized NonBlockingChannelNioDissipator[] polledConnections() {
+        NonBlockingChannelNioDissipator[] result
+            = new NonBlockingChannelNioDissipator[nrOfPolled];
+        int n = 0;
+
+        for (int i = 0; i < nrOfConnections && n < result.length; i++) {
+            if (connections[i].polled) {
+                result[n++] = connections[i].dissipator;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Does a single non-blocking read on each of the given connections.
+     *
+     * @return a connection with a message waiting, or null.
+     */
+    private synchronized NioDissipator poll(
+            NonBlockingChannelNioDissipator[] polled) {
+        for (int i = 0; i < polled.length; i++) {
+            try {
+                polled[i].readFromChannel();
+                if (polled[i].messageWaiting()) {
+                    return polled[i];
+                }
+            } catch (IOException e) {
+                if (find(polled[i]) != null) {
+                    errorOnRead(polled[i], e);
+                }
+            }
+        }
+        return null;
+    }
+
+    NioDissipator getReadyDissipator(long deadline) throws IOException {
+        boolean deadlinePassed = false;
+        boolean firstTry = true;
+        long start = System.nanoTime();
+        long time;
+        NioDissipator dissipator;
+
+        demoteIdleConnections(start);
+
+        while (!deadlinePassed) {
+            registerPendingConnections();
+
+            synchronized (this) {
+                if (nrOfConnections == 0) {
+                    if (closing) {
+                        throw new ConnectionClosedException();
+                    }
+                    if (deadline == -1) {
+                        deadlinePassed = true;
+                        continue;
+                    } else if (deadline == 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // IGNORE
+                        }
+                        continue;
+                    } else {
+                        time = System.currentTimeMillis();
+                        if (time >= deadline) {
+                            deadlinePassed = true;
+                        } else {
+                            try {
+                                wait(deadline - time);
+                            } catch (InterruptedException e) {
+                                // IGNORE
+                            }
+                            continue;
+                        }
+                    }
+                }
+
+                for (int i = 0; i < nrOfConnections; i++) {
+                    NioDissipator d = connections[i].dissipator;
+                    try {
+                        if (d.messageWaiting()) {
+                            long now = System.nanoTime();
+                            found(d, false, now - start, now);
+                            return d;
+                        }
+                    } catch (IOException e) {
+                        errorOnRead(d, e);
+                        i--;
+                    }
+                }
+            } // end of synchronized block
+
+            if (firstTry) {
+                firstTry = false;
+
+                NonBlockingChannelNioDissipator[] polled = polledConnections();
+                boolean spin;
+
+                synchronized (this) {
+                    spin = spinning && deadline != -1;
+                }
+
+                // always try the polled connections once, spin on them
+                // for a while if we are in spin mode
+                long end = System.nanoTime() + spinTime;
+                do {
+                    dissipator = poll(polled);
+                    if (dissipator != null) {
+                        long now = System.nanoTime();
+                        found(dissipator, spin, now - start, now);
+                        return dissipator;
+                    }
+                    if (spin) {
+                        Thread.yield();
+                    }
+                } while (spin && System.nanoTime() < end);
+
+                if (spin) {
+                    spinMissed();
+                }
+            }
+
+            if (deadline == -1) {
+                try {
+                    selector.selectNow();
+                } catch (IOException e) {
+                    // IGNORE
+                }
+                deadlinePassed = true;
+            } else if (deadline == 0) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.error("error on select: " + e);
+                    // IGNORE
+                }
+            } else {
+                time = System.currentTimeMillis();
+                if (time >= deadline) {
+                    deadlinePassed = true;
+                } else {
+                    try {
+                        selector.select(deadline - time);
+                    } catch (IOException e) {
+                        logger.error("error on select: " + e);
+                        // IGNORE
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.selectedKeys()) {
+                NonBlockingChannelNioDissipator d
+                    = (NonBlockingChannelNioDissipator) key.attachment();
+
+                try {
+                    d.readFromChannel();
+                } catch (IOException e) {
+                    errorOnRead(d, e);
+                }
+            }
+            selector.selectedKeys().clear();
+        } // end of while(!deadlinePassed)
+
+        throw new ReceiveTimedOutException("timeout while waiting"
+                + " for dissipator");
+    }
+
+    synchronized void closing() {
+        closing = true;
+    }
+
+    @Override
+    protected synchronized void updateProperties() {
+        super.updateProperties();
+        setProperty("AdaptiveMode", spinning ? "spin" : "select");
+        setProperty("AdaptiveModeSwitches", "" + modeSwitches);
+        setProperty("AdaptivePolledConnections", "" + nrOfPolled);
+        setProperty("AdaptivePromotions", "" + promotions);
+        setProperty("AdaptiveDemotions", "" + demotions);
+        setProperty("AdaptiveSpinHits", "" + spinHits);
+        setProperty("AdaptiveSelectHits", "" + selectHits);
+    }
+}
@@ -327,6 +327,14 @@ public abstract class NioDissipator extends DataInputStream
         // claim space
         usedLimit = (usedPosition + totalSize) % BUFFER_LIMIT;
 
+        if (usedLimit == 0 && buffer.position() == BUFFER_LIMIT) {
+            // we claimed up to the very end of a full buffer. Wrap now, as
+            // an unwrapped buffer with usedLimit 0 looks like it is
+            // completely filled with data not used yet.
+            buffer.position(0);
+            buffer.limit(usedPosition - 1);
+        }
+
         next = setView(longs, next, headerArray[LONGS], SIZEOF_LONG);
         next = setView(doubles, next, headerArray[DOUBLES], SIZEOF_DOUBLE);
         next = setView(ints, next, headerArray[INTS], SIZEOF_INT);
@@ -363,8 +371,14 @@ public abstract class NioDissipator extends DataInputStream
 
         while (true) {
             if (info.in.available() == 0) {
-                // no data available at all
-                return false;
+                // Sun serialization only sees a block header once it can
+                // read two bytes, while we report a single byte for data
+                // that is received but not unpacked yet. Asking made it
+                // read (and unpack) that byte, so ask once more.
+                if (available() == 0 || info.in.available() == 0) {
+                    // no data available at all
+                    return false;
+                }
             }
 
             command = info.in.readByte();
@@ -34,6 +34,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 import org.slf4j.Logger;
@@ -47,7 +48,30 @@ public final class NioIbis extends ibis.ipl.impl.Ibis {
 
     static final String s_rpi = prefix + "rpi";
 
-    static final String[] props = { s_spi, s_rpi };
+    /** Number of send/receive threads, each with its own selector. */
+    static final String s_selectors = prefix + "selectors";
+
+    /**
+     * Use adaptive receive ports for port types that do not ask for a
+     * specific kind of receive port.
+     */
+    static final String s_adaptive = prefix + "adaptive";
+
+    /** Time an adaptive receive port spins for a message, in microseconds. */
+    static final String s_adaptive_spin = prefix + "adaptive.spin";
+
+    /** Maximum number of connections an adaptive receive port spins on. */
+    static final String s_adaptive_connections = prefix
+            + "adaptive.connections";
+
+    /**
+     * Time after which an idle connection of an adaptive receive port is no
+     * longer spun on, in milliseconds.
+     */
+    static final String s_adaptive_idle = prefix + "adaptive.idle";
+
+    static final String[] props = { s_spi, s_rpi, s_selectors, s_adaptive,
+            s_adaptive_spin, s_adaptive_connections, s_adaptive_idle };
     
     private static final Logger logger
             = LoggerFactory.getLogger("ibis.ipl.impl.nio.NioIbis");
@@ -108,7 +132,7 @@ public final class NioIbis extends ibis.ipl.impl.Ibis {
             }
 
             if (sendReceiveThread != null) {
-                factory.quit();
+                sendReceiveThread.quit();
             }
         } catch(Throwable e) {
             // ignored
@@ -118,11 +142,24 @@ public final class NioIbis extends ibis.ipl.impl.Ibis {
 
     synchronized SendReceiveThread sendReceiveThread() throws IOException {
         if (sendReceiveThread == null) {
-            sendReceiveThread = new SendReceiveThread();
+            sendReceiveThread = new SendReceiveThread(properties.getIntProperty(
+                    s_selectors, Runtime.getRuntime().availableProcessors()));
         }
         return sendReceiveThread;
     }
 
+    public synchronized Map<String, String> managementProperties() {
+        Map<String, String> result = super.managementProperties();
+
+        SendBuffer.addManagementProperties(result);
+
+        if (sendReceiveThread != null) {
+            sendReceiveThread.addManagementProperties(result);
+        }
+
+        return result;
+    }
+
     InetSocketAddress getAddress(IbisIdentifier id) throws IOException {
         InetSocketAddress idAddr;
         synchronized(addresses) {
@@ -161,8 +198,16 @@ public final class NioIbis extends ibis.ipl.impl.Ibis {
         if (tp.hasCapability("receiveport.thread")) {
             return new ThreadNioReceivePort(this, tp, name, u, cU, props);
         }
-        if (tp.hasCapability(PortType.CONNECTION_ONE_TO_ONE)
-                || tp.hasCapability(PortType.CONNECTION_MANY_TO_ONE)) {
+        if (tp.hasCapability("receiveport.adaptive")) {
+            return new AdaptiveNioReceivePort(this, tp, name, u, cU, props);
+        }
+        if (tp.hasCapability(PortType.CONNECTION_ONE_TO_ONE)) {
+            return new BlockingChannelNioReceivePort(this, tp, name, u, cU, props);
+        }
+        if (properties.getBooleanProperty(s_adaptive, true)) {
+            return new AdaptiveNioReceivePort(this, tp, name, u, cU, props);
+        }
+        if (tp.hasCapability(PortType.CONNECTION_MANY_TO_ONE)) {
             return new BlockingChannelNioReceivePort(this, tp, name, u, cU, props);
         }
         return new NonBlockingChannelNioReceivePort(this, tp, name, u, cU, props);
@@ -42,13 +42,15 @@ public final class NioIbisStarter extends ibis.ipl.IbisStarter {
             IbisCapabilities.MEMBERSHIP_UNRELIABLE,
             IbisCapabilities.MEMBERSHIP_TOTALLY_ORDERED,
             IbisCapabilities.SIGNALS, IbisCapabilities.ELECTIONS_UNRELIABLE,
-            IbisCapabilities.ELECTIONS_STRICT);
+            IbisCapabilities.ELECTIONS_STRICT,
+            IbisCapabilities.REGISTRY_LEASES);
 
     static final PortType portCapabilities = new PortType(
             PortType.SERIALIZATION_OBJECT_SUN,
             PortType.SERIALIZATION_OBJECT_IBIS, PortType.SERIALIZATION_OBJECT,
             PortType.SERIALIZATION_DATA, PortType.SERIALIZATION_BYTE,
             PortType.COMMUNICATION_FIFO, PortType.COMMUNICATION_NUMBERED,
+            PortType.COMMUNICATION_COMPRESSED,
             PortType.COMMUNICATION_RELIABLE, PortType.CONNECTION_DOWNCALLS,
             PortType.CONNECTION_UPCALLS, PortType.CONNECTION_TIMEOUT,
             PortType.CONNECTION_MANY_TO_MANY, PortType.CONNECTION_MANY_TO_ONE,
@@ -57,7 +59,8 @@ public final class NioIbisStarter extends ibis.ipl.IbisStarter {
             PortType.RECEIVE_EXPLICIT, PortType.RECEIVE_POLL_UPCALLS,
             PortType.RECEIVE_TIMEOUT, "sendport.blocking",
             "sendport.nonblocking", "sendport.thread", "receiveport.blocking",
-            "receivport.nonblocking", "receiveport.thread");
+            "receivport.nonblocking", "receiveport.thread",
+            "receiveport.adaptive");
 
     public NioIbisStarter(String nickName, String iplVersion,
             String implementationVersion) {
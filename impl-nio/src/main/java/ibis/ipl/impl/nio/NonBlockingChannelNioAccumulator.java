@@ -105,6 +105,9 @@ final class NonBlockingChannelNioAccumulator extends NioAccumulator {
                     }
                     connection.send();
                 } catch (IOException e) {
+                    // the connection is gone, so its copy is never sent
+                    SendBuffer.recycle(copies[i]);
+
                     // inform the SendPort
                     port.lostConnection(connection.target, e);
 
@@ -112,7 +115,8 @@ final class NonBlockingChannelNioAccumulator extends NioAccumulator {
                     nrOfConnections--;
                     connections[i] = connections[nrOfConnections];
                     connections[nrOfConnections] = null;
-                    SendBuffer.recycle(copies[nrOfConnections]);
+                    // the copy of the moved connection was not sent yet
+                    copies[i] = copies[nrOfConnections];
                     i--;
                 }
             }
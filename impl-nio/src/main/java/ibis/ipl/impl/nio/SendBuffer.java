@@ -25,6 +25,11 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,50 +80,90 @@ final class SendBuffer implements Config {
 
     public static final int SIZEOF_DOUBLE = 8;
 
+    /** Maximum number of buffers in the shared cache. */
     static final int BUFFER_CACHE_SIZE = 128;
 
-    static SendBuffer[] cache = new SendBuffer[BUFFER_CACHE_SIZE];
+    /** Maximum number of buffers cached by each thread. */
+    static final int LOCAL_CACHE_SIZE = 8;
 
-    static int cacheSize = 0;
+    private static final ConcurrentLinkedQueue<SendBuffer> cache =
+        new ConcurrentLinkedQueue<SendBuffer>();
+
+    private static final AtomicInteger cacheSize = new AtomicInteger(0);
+
+    // only created for threads that get buffers: threads that only recycle
+    // them, such as the send/receive threads, would never reuse what they
+    // keep, so they put buffers in the shared cache instead
+    private static final ThreadLocal<ArrayDeque<SendBuffer>> localCache =
+        new ThreadLocal<ArrayDeque<SendBuffer>>();
+
+    // statistics
+
+    private static final AtomicLong localHits = new AtomicLong(0);
+
+    private static final AtomicLong sharedHits = new AtomicLong(0);
+
+    private static final AtomicLong misses = new AtomicLong(0);
+
+    private static final AtomicLong discards = new AtomicLong(0);
+
+    private static final AtomicLong replicas = new AtomicLong(0);
 
     private static Logger logger = LoggerFactory.getLogger(SendBuffer.class);
 
     /**
-     * Static method to get a sendbuffer out of the cache
+     * Static method to get a sendbuffer out of the cache. The cache of the
+     * current thread is tried first, then the shared cache. Only threads that
+     * get buffers have a cache of their own.
      */
-    synchronized static SendBuffer get() {
-        if (cacheSize > 0) {
+    static SendBuffer get() {
+        ArrayDeque<SendBuffer> local = localCache.get();
+
+        if (local == null) {
+            local = new ArrayDeque<SendBuffer>(LOCAL_CACHE_SIZE);
+            localCache.set(local);
+        }
+
+        SendBuffer result = local.pollFirst();
+
+        if (result != null) {
+            localHits.incrementAndGet();
+        } else {
+            result = cache.poll();
+
+            if (result != null) {
+                cacheSize.decrementAndGet();
+                sharedHits.incrementAndGet();
+            }
+        }
+
+        if (result != null) {
             if (logger.isDebugEnabled()) {
                 logger.debug("SendBuffer: got empty buffer from cache");
             }
-            cacheSize--;
-            cache[cacheSize].clear();
-            return cache[cacheSize];
+            result.clear();
+            return result;
         }
+
         if (logger.isDebugEnabled()) {
         	logger.debug("SendBuffer: got new empty buffer");
         }
+        misses.incrementAndGet();
         return new SendBuffer();
     }
 
     /**
-     * static method to put a buffer in the cache
+     * static method to put a buffer in the cache. Copies of a buffer share
+     * its data, so the buffer itself is only put back in the cache when its
+     * last copy is recycled.
      */
-    synchronized static void recycle(SendBuffer buffer) {
+    static void recycle(SendBuffer buffer) {
         if (buffer.parent == null) {
-            if (buffer.copies != 0) {
+            if (buffer.copies.get() != 0) {
                 // throw new Error("tried to recycle buffer with children!");
                 return;
             }
-            if (cacheSize >= BUFFER_CACHE_SIZE) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("SendBuffer: cache full"
-                            + " apon recycling buffer, throwing away");
-                }
-                return;
-            }
-            cache[cacheSize] = buffer;
-            cacheSize++;
+            cache(buffer);
             if (logger.isDebugEnabled()) {
                 logger.debug("SendBuffer: recycled buffer");
             }
@@ -126,18 +171,8 @@ final class SendBuffer implements Config {
             if (logger.isDebugEnabled()) {
                 logger.debug("SendBuffer: recycling child buffer");
             }
-            buffer.parent.copies--;
-            if (buffer.parent.copies == 0) {
-                if (cacheSize >= BUFFER_CACHE_SIZE) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("SendBuffer: cache full"
-                                + " apon recycling parent of child buffer,"
-                                + " throwing away");
-                    }
-                    return;
-                }
-                cache[cacheSize] = buffer.parent;
-                cacheSize++;
+            if (buffer.parent.copies.decrementAndGet() == 0) {
+                cache(buffer.parent);
                 if (logger.isDebugEnabled()) {
                     logger.debug("SendBuffer: recycled parent buffer");
                 }
@@ -145,27 +180,83 @@ final class SendBuffer implements Config {
         }
     }
 
+    private static void cache(SendBuffer buffer) {
+        ArrayDeque<SendBuffer> local = localCache.get();
+
+        if (local != null && local.size() < LOCAL_CACHE_SIZE) {
+            local.addFirst(buffer);
+            return;
+        }
+
+        if (cacheSize.incrementAndGet() > BUFFER_CACHE_SIZE) {
+            cacheSize.decrementAndGet();
+            discards.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("SendBuffer: cache full"
+                        + " apon recycling buffer, throwing away");
+            }
+            return;
+        }
+        cache.add(buffer);
+    }
+
     /**
-     * create copies of a buffer, records how may copies are made so far
+     * create copies of a buffer, records how may copies are made so far. The
+     * copies share the data of the original, and only have their own
+     * positions and limits, so each can be sent to another connection. The
+     * copy objects are kept with the original, and reused the next time it
+     * is replicated.
      */
-    synchronized static SendBuffer[] replicate(SendBuffer original, int copies) {
+    static SendBuffer[] replicate(SendBuffer original, int copies) {
         SendBuffer[] result = new SendBuffer[copies];
 
+        if (original.children == null || original.children.length < copies) {
+            SendBuffer[] children = new SendBuffer[copies];
+            int existing = 0;
+
+            if (original.children != null) {
+                existing = original.children.length;
+                System.arraycopy(original.children, 0, children, 0, existing);
+            }
+            for (int i = existing; i < copies; i++) {
+                children[i] = new SendBuffer(original);
+            }
+            original.children = children;
+        }
+
         for (int i = 0; i < copies; i++) {
-            result[i] = new SendBuffer(original);
+            result[i] = original.children[i];
+            result[i].copyPositions();
         }
-        original.copies += copies;
+        original.copies.addAndGet(copies);
+        replicas.addAndGet(copies);
 
         return result;
     }
 
+    /**
+     * Adds the statistics of the buffer cache to the given management
+     * properties.
+     */
+    static void addManagementProperties(Map<String, String> properties) {
+        properties.put("nio.sendBuffer.localHits", "" + localHits.get());
+        properties.put("nio.sendBuffer.sharedHits", "" + sharedHits.get());
+        properties.put("nio.sendBuffer.misses", "" + misses.get());
+        properties.put("nio.sendBuffer.discards", "" + discards.get());
+        properties.put("nio.sendBuffer.replicas", "" + replicas.get());
+        properties.put("nio.sendBuffer.cached", "" + cacheSize.get());
+    }
+
     // number of copies that exist of this buffer
-    private int copies = 0;
+    private final AtomicInteger copies = new AtomicInteger(0);
 
     // original buffer this buffer is a copy of (if applicable)
     SendBuffer parent = null;
 
-    private static long nextSequenceNr = 0;
+    // copies made of this buffer so far, reused by replicate
+    private SendBuffer[] children = null;
+
+    private static final AtomicLong nextSequenceNr = new AtomicLong(0);
 
     ShortBuffer header;
 
@@ -236,6 +327,17 @@ final class SendBuffer implements Config {
         }
     }
 
+    /**
+     * Sets the positions and limits of a copy to those of its parent.
+     */
+    private void copyPositions() {
+        for (int i = 0; i < NR_OF_BUFFERS; i++) {
+            ByteBuffer original = parent.byteBuffers[i];
+            byteBuffers[i].limit(original.limit());
+            byteBuffers[i].position(original.position());
+        }
+    }
+
     /**
      * 
      * 
@@ -253,11 +355,9 @@ final class SendBuffer implements Config {
         bytes.clear();
 
         parent = null;
-        copies = 0;
+        copies.set(0);
 
-        // FIXME: this isn't thread safe
-        sequenceNr = nextSequenceNr;
-        nextSequenceNr++;
+        sequenceNr = nextSequenceNr.getAndIncrement();
     }
 
     /**
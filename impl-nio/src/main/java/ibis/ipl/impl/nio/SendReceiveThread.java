@@ -24,271 +24,354 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Class used as a single send/receive thread for an entire NioIbis instance.
+ * The send/receive threads of an entire NioIbis instance. Each thread has its
+ * own selector, and channels are assigned to the selectors by hash.
+ * Requests to enable reading or writing on a channel are passed to its
+ * selector thread through lock-free queues, and the selector is only woken
+ * up if it was not woken up already.
  */
-final class SendReceiveThread implements Runnable {
-
-    static final int INITIAL_ARRAY_SIZE = 8;
+final class SendReceiveThread {
 
     private static Logger logger = LoggerFactory.getLogger(SendReceiveThread.class);
 
-    private ArrayList<SelectableChannel> pendingChannels
-            = new ArrayList<SelectableChannel>();
-
-    private ArrayList<Object> pendingAttachments = new ArrayList<Object>();
-
-    private SelectionKey[] readyWriteKeys;
-
-    private int nrOfReadyWriteKeys;
+    /**
+     * A channel waiting to be registered with a selector.
+     */
+    private static final class Registration {
+        final SelectableChannel channel;
 
-    private SelectionKey[] readyReadKeys;
+        final Object attachment;
 
-    private int nrOfReadyReadKeys;
+        SelectionKey key = null;
 
-    private Selector selector;
+        boolean done = false;
 
-    private boolean exit = false;
+        Registration(SelectableChannel channel, Object attachment) {
+            this.channel = channel;
+            this.attachment = attachment;
+        }
 
-    SendReceiveThread() throws IOException {
-        selector = Selector.open();
-        ThreadPool.createNew(this, "SendReceiveThread");
+        synchronized void done(SelectionKey key) {
+            this.key = key;
+            done = true;
+            notifyAll();
+        }
 
-        readyWriteKeys = new SelectionKey[INITIAL_ARRAY_SIZE];
-        readyReadKeys = new SelectionKey[INITIAL_ARRAY_SIZE];
+        synchronized SelectionKey waitUntilDone() {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
+            }
+            return key;
+        }
     }
 
     /**
-     * Registers the given channel with our selector.
-     * 
-     * @return The SelectionKey representing the registration, with the given
-     *         attachment attached to it.
+     * A single selector, and the thread selecting on it.
      */
-    synchronized SelectionKey register(SelectableChannel channel,
-            Object attachment) throws IOException {
-        SelectionKey key = null;
+    private static final class SelectorThread implements Runnable {
 
-        pendingChannels.add(channel);
-        pendingAttachments.add(attachment);
+        private final int index;
 
-        channel.configureBlocking(false);
+        private final Selector selector;
 
-        selector.wakeup();
+        private final ConcurrentLinkedQueue<Registration> pendingChannels =
+            new ConcurrentLinkedQueue<Registration>();
 
-        while (key == null) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                // IGNORE
-            }
-            key = channel.keyFor(selector);
-        }
-        return key;
-    }
+        private final ConcurrentLinkedQueue<SelectionKey> readyWriteKeys =
+            new ConcurrentLinkedQueue<SelectionKey>();
 
-    void registerPendingChannels() {
-        SelectableChannel channel;
-        SelectionKey key;
+        private final ConcurrentLinkedQueue<SelectionKey> readyReadKeys =
+            new ConcurrentLinkedQueue<SelectionKey>();
 
-        if (pendingChannels.size() == 0) {
-            return;
-        }
+        // set if the selector was woken up, and did not handle the queues
+        // yet
+        private final AtomicBoolean wokenUp = new AtomicBoolean(false);
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("registering " + pendingChannels.size() + " channels");
-        }
+        private volatile boolean exit = false;
 
-        for (int i = 0; i < pendingChannels.size(); i++) {
-            channel = pendingChannels.get(i);
-            try {
-                key = channel.register(selector, 0);
-                key.attach(pendingAttachments.get(i));
-            } catch (IOException e) {
-                // IGNORE
-            }
-        }
+        // statistics, only written by the selector thread
 
-        pendingChannels.clear();
-        pendingAttachments.clear();
+        private volatile int channels = 0;
 
-        notifyAll();
-    }
+        private volatile long selects = 0;
 
-    /**
-     * signals a connection is ready for writing data
-     */
-    synchronized void enableWriting(SelectionKey key) {
-        if (logger.isDebugEnabled()) {
-            logger.debug("queueing write enable");
+        private volatile long events = 0;
+
+        private volatile long interestChanges = 0;
+
+        SelectorThread(int index) throws IOException {
+            this.index = index;
+            selector = Selector.open();
         }
 
-        if (nrOfReadyWriteKeys == readyWriteKeys.length) {
-            SelectionKey[] newKeys;
-            newKeys = new SelectionKey[readyWriteKeys.length * 2];
-            for (int i = 0; i < readyWriteKeys.length; i++) {
-                newKeys[i] = readyWriteKeys[i];
+        void wakeup() {
+            if (wokenUp.compareAndSet(false, true)) {
+                selector.wakeup();
             }
-            readyWriteKeys = newKeys;
         }
-        readyWriteKeys[nrOfReadyWriteKeys] = key;
-        nrOfReadyWriteKeys++;
 
-        selector.wakeup();
-    }
+        SelectionKey register(SelectableChannel channel, Object attachment)
+                throws IOException {
+            Registration registration = new Registration(channel, attachment);
 
-    /**
-     * signals a connection is ready to read data
-     */
-    synchronized void enableReading(SelectionKey key) {
-        if (logger.isDebugEnabled()) {
-            logger.debug("queueing read enable");
-        }
+            channel.configureBlocking(false);
 
-        if (nrOfReadyReadKeys == readyReadKeys.length) {
-            SelectionKey[] newKeys;
-            newKeys = new SelectionKey[readyReadKeys.length * 2];
-            for (int i = 0; i < readyReadKeys.length; i++) {
-                newKeys[i] = readyReadKeys[i];
+            pendingChannels.add(registration);
+            wakeup();
+
+            SelectionKey key = registration.waitUntilDone();
+            if (key == null) {
+                throw new IOException("could not register channel");
             }
-            readyReadKeys = newKeys;
+            return key;
         }
-        readyReadKeys[nrOfReadyReadKeys] = key;
-        nrOfReadyReadKeys++;
-
-        selector.wakeup();
-    }
 
-    void handlePendingKeys() {
-        if (logger.isDebugEnabled()) {
-            if (nrOfReadyWriteKeys != 0 || nrOfReadyReadKeys != 0) {
-                logger
-                        .debug("enabling " + nrOfReadyWriteKeys
-                                + " write keys and " + nrOfReadyReadKeys
-                                + " read keys");
+        void enableWriting(SelectionKey key) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("queueing write enable");
             }
+            readyWriteKeys.add(key);
+            wakeup();
         }
 
-        for (int i = 0; i < nrOfReadyWriteKeys; i++) {
-            try {
-                readyWriteKeys[i].interestOps(SelectionKey.OP_WRITE);
-            } catch (CancelledKeyException e) {
-                // Channels was closed/lost, ignore
+        void enableReading(SelectionKey key) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("queueing read enable");
             }
-            readyWriteKeys[i] = null;
+            readyReadKeys.add(key);
+            wakeup();
         }
-        nrOfReadyWriteKeys = 0;
 
-        for (int i = 0; i < nrOfReadyReadKeys; i++) {
-            try {
-                readyReadKeys[i].interestOps(SelectionKey.OP_READ);
-            } catch (CancelledKeyException e) {
-                // Channels was closed/lost, ignore
-            }
-            readyReadKeys[i] = null;
+        void quit() {
+            exit = true;
+            selector.wakeup();
         }
-        nrOfReadyReadKeys = 0;
-    }
 
-    private void send(SelectionKey key) {
-        ThreadNioAccumulatorConnection out;
+        private void registerPendingChannels() {
+            Registration registration;
+
+            while ((registration = pendingChannels.poll()) != null) {
+                SelectionKey key = null;
+                try {
+                    key = registration.channel.register(selector, 0);
+                    key.attach(registration.attachment);
+                } catch (IOException e) {
+                    // IGNORE
+                }
+                registration.done(key);
+            }
+        }
 
-        out = (ThreadNioAccumulatorConnection) key.attachment();
+        private void handlePendingKeys() {
+            SelectionKey key;
 
-        out.threadSend();
-    }
+            while ((key = readyWriteKeys.poll()) != null) {
+                try {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } catch (CancelledKeyException e) {
+                    // Channels was closed/lost, ignore
+                }
+                interestChanges++;
+            }
 
-    private void receive(SelectionKey key) {
-        ThreadNioDissipator in;
+            while ((key = readyReadKeys.poll()) != null) {
+                try {
+                    key.interestOps(SelectionKey.OP_READ);
+                } catch (CancelledKeyException e) {
+                    // Channels was closed/lost, ignore
+                }
+                interestChanges++;
+            }
+        }
 
-        in = (ThreadNioDissipator) key.attachment();
+        private void send(SelectionKey key) {
+            ThreadNioAccumulatorConnection out;
 
-        in.doRead();
-    }
+            out = (ThreadNioAccumulatorConnection) key.attachment();
 
-    /**
-     * Stops the send/receive Thread
-     */
-    synchronized void quit() {
-        exit = true;
-    }
+            out.threadSend();
+        }
 
-    public void run() {
+        private void receive(SelectionKey key) {
+            ThreadNioDissipator in;
 
-        Thread.currentThread().setName("send/receive thread");
+            in = (ThreadNioDissipator) key.attachment();
 
-        // try to add some importance to this thread
-        try {
-            int max = Thread.currentThread().getThreadGroup().getMaxPriority();
-            int current = Thread.currentThread().getPriority();
-            Thread.currentThread().setPriority(Math.min(max, (current + 1)));
-        } catch (Exception e) {
-            // IGNORE
+            in.doRead();
         }
 
-        while (true) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("looking for work");
+        public void run() {
+
+            Thread.currentThread().setName("send/receive thread " + index);
+
+            // try to add some importance to this thread
+            try {
+                int max = Thread.currentThread().getThreadGroup()
+                        .getMaxPriority();
+                int current = Thread.currentThread().getPriority();
+                Thread.currentThread().setPriority(
+                        Math.min(max, (current + 1)));
+            } catch (Exception e) {
+                // IGNORE
             }
 
-            synchronized (this) {
+            while (true) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("looking for work");
+                }
+
                 if (exit) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("done looking for work");
                     }
                     return;
                 }
+
+                // Requests queued after this are followed by a wakeup, which
+                // makes the select below return immediately.
+                wokenUp.set(false);
                 registerPendingChannels();
                 handlePendingKeys();
-            }
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("doing a select on " + selector.keys().size()
-                        + " channels");
-            }
+                channels = selector.keys().size();
 
-            try {
-                selector.select();
-            } catch (IOException e) {
-                logger.warn("ibis.ipl.impl.nio.SendReceiveThread.run():"
-                        + " select failed with exception: " + e);
-                // IGNORE
-            } catch (CancelledKeyException e) {
-                // INGORE
-            }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("doing a select on " + channels
+                            + " channels");
+                }
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("selected " + selector.selectedKeys().size()
-                        + " channel(s)");
-            }
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.warn("ibis.ipl.impl.nio.SendReceiveThread.run():"
+                            + " select failed with exception: " + e);
+                    // IGNORE
+                } catch (CancelledKeyException e) {
+                    // INGORE
+                }
+                selects++;
 
-            for (SelectionKey key : selector.selectedKeys()) {
-                if (key.attachment() == null) {
-                    continue; // skip this key, nothing attached to it
+                if (logger.isDebugEnabled()) {
+                    logger.debug("selected " + selector.selectedKeys().size()
+                            + " channel(s)");
                 }
 
-                try {
-                    if (key.isWritable()) {
-                        send(key);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.attachment() == null) {
+                        continue; // skip this key, nothing attached to it
                     }
-                    if (key.isReadable()) {
-                        receive(key);
+
+                    try {
+                        if (key.isWritable()) {
+                            send(key);
+                        }
+                        if (key.isReadable()) {
+                            receive(key);
+                        }
+                    } catch (CancelledKeyException e) {
+                        // key was cancelled or channel was closed
+                        // skip this key
                     }
-                } catch (CancelledKeyException e) {
-                    // key was cancelled or channel was closed
-                    // skip this key
+                    events++;
                 }
-            }
-            selector.selectedKeys().clear();
+                selector.selectedKeys().clear();
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("done");
+                if (logger.isDebugEnabled()) {
+                    logger.debug("done");
+                }
             }
+        }
+    }
+
+    private final SelectorThread[] threads;
+
+    // selector thread of each selector
+    private final HashMap<Selector, SelectorThread> threadOf =
+        new HashMap<Selector, SelectorThread>();
+
+    /**
+     * Starts the given number of send/receive threads.
+     */
+    SendReceiveThread(int count) throws IOException {
+        threads = new SelectorThread[Math.max(1, count)];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new SelectorThread(i);
+            threadOf.put(threads[i].selector, threads[i]);
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            ThreadPool.createNew(threads[i], "SendReceiveThread");
+        }
+    }
+
+    private SelectorThread threadFor(SelectionKey key) {
+        return threadOf.get(key.selector());
+    }
+
+    /**
+     * Registers the given channel with one of our selectors.
+     * 
+     * @return The SelectionKey representing the registration, with the given
+     *         attachment attached to it.
+     */
+    SelectionKey register(SelectableChannel channel, Object attachment)
+            throws IOException {
+        int hash = System.identityHashCode(channel) & Integer.MAX_VALUE;
+
+        return threads[hash % threads.length].register(channel, attachment);
+    }
+
+    /**
+     * signals a connection is ready for writing data
+     */
+    void enableWriting(SelectionKey key) {
+        threadFor(key).enableWriting(key);
+    }
+
+    /**
+     * signals a connection is ready to read data
+     */
+    void enableReading(SelectionKey key) {
+        threadFor(key).enableReading(key);
+    }
+
+    /**
+     * Stops the send/receive Threads
+     */
+    void quit() {
+        for (SelectorThread thread : threads) {
+            thread.quit();
+        }
+    }
+
+    /**
+     * Adds the load of each selector to the given management properties.
+     */
+    void addManagementProperties(Map<String, String> properties) {
+        properties.put("nio.selectors", "" + threads.length);
+
+        for (SelectorThread thread : threads) {
+            String prefix = "nio.selector." + thread.index + ".";
 
+            properties.put(prefix + "channels", "" + thread.channels);
+            properties.put(prefix + "selects", "" + thread.selects);
+            properties.put(prefix + "events", "" + thread.events);
+            properties.put(prefix + "interestChanges", ""
+                    + thread.interestChanges);
         }
     }
 }
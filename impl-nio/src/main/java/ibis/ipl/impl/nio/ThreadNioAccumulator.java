@@ -100,6 +100,8 @@ final class ThreadNioAccumulator extends NioAccumulator {
                     nrOfConnections--;
                     connections[i] = connections[nrOfConnections];
                     connections[nrOfConnections] = null;
+                    // the copy of the moved connection was not sent yet
+                    copies[i] = copies[nrOfConnections];
                     i--;
                 }
             }
@@ -19,6 +19,8 @@ package ibis.ipl.impl.smartsockets;
 
 import ibis.io.BufferedArrayInputStream;
 import ibis.io.BufferedArrayOutputStream;
+import ibis.io.BufferedDirectInputStream;
+import ibis.io.IOProperties;
 import ibis.ipl.AlreadyConnectedException;
 import ibis.ipl.CapabilitySet;
 import ibis.ipl.ConnectionRefusedException;
@@ -136,6 +138,11 @@ public final class SmartSocketsIbis extends ibis.ipl.impl.Ibis implements
         ThreadPool.createNew(this, "SmartSocketsIbis Accept Thread");
     }
 
+    protected boolean createsClient() {
+        // the client must use the configured local port
+        return true;
+    }
+
     protected byte[] getData() throws IOException {
         String clientID = this.properties.getProperty(ID_PROPERTY);
 
@@ -390,8 +397,12 @@ public final class SmartSocketsIbis extends ibis.ipl.impl.Ibis implements
             logger.debug("--> SmartSocketsIbis got connection request from " + s);
         }
  
-        BufferedArrayInputStream bais = 
-            new BufferedArrayInputStream(s.getInputStream());
+        ibis.io.DataInputStream bais;
+        if (IOProperties.DIRECT_BUFFERS) {
+            bais = new BufferedDirectInputStream(s.getInputStream());
+        } else {
+            bais = new BufferedArrayInputStream(s.getInputStream());
+        }
 
         DataInputStream in = new DataInputStream(bais);
         OutputStream out = s.getOutputStream();
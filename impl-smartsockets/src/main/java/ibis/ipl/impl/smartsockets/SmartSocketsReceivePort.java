@@ -17,8 +17,8 @@
 
 package ibis.ipl.impl.smartsockets;
 
-import ibis.io.BufferedArrayInputStream;
 import ibis.io.Conversion;
+import ibis.io.DataInputStream;
 import ibis.ipl.MessageUpcall;
 import ibis.ipl.PortType;
 import ibis.ipl.ReceivePortConnectUpcall;
@@ -42,7 +42,7 @@ class SmartSocketsReceivePort extends ReceivePort implements SmartSocketsProtoco
         private final VirtualSocket s;
 
         ConnectionHandler(SendPortIdentifier origin, VirtualSocket s,
-                ReceivePort port, BufferedArrayInputStream in)
+                ReceivePort port, DataInputStream in)
                 throws IOException {
             super(origin, port, in);
             this.s = s;
@@ -366,7 +366,7 @@ class SmartSocketsReceivePort extends ReceivePort implements SmartSocketsProtoco
     }
 
     void connect(SendPortIdentifier origin, VirtualSocket s,
-            BufferedArrayInputStream in) throws IOException {
+            DataInputStream in) throws IOException {
         ConnectionHandler conn;
 
         synchronized(this) {
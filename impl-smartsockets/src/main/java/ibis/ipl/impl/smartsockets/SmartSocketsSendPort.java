@@ -18,7 +18,10 @@
 package ibis.ipl.impl.smartsockets;
 
 import ibis.io.BufferedArrayOutputStream;
+import ibis.io.BufferedDirectOutputStream;
 import ibis.io.Conversion;
+import ibis.io.DataOutputStream;
+import ibis.io.IOProperties;
 import ibis.io.OutputStreamSplitter;
 import ibis.io.SplitterException;
 import ibis.ipl.PortType;
@@ -71,7 +74,7 @@ final class SmartSocketsSendPort extends SendPort implements SmartSocketsProtoco
 
     final OutputStreamSplitter splitter;
 
-    final BufferedArrayOutputStream bufferedStream;
+    final DataOutputStream bufferedStream;
 
     SmartSocketsSendPort(Ibis ibis, PortType type, String name,
             SendPortDisconnectUpcall cU, Properties props) throws IOException {
@@ -83,7 +86,12 @@ final class SmartSocketsSendPort extends SendPort implements SmartSocketsProtoco
         		type.hasCapability(PortType.CONNECTION_ONE_TO_MANY) || 
         		type.hasCapability(PortType.CONNECTION_MANY_TO_MANY));
 
-        bufferedStream = new BufferedArrayOutputStream(splitter);
+        if (IOProperties.DIRECT_BUFFERS) {
+            bufferedStream = new BufferedDirectOutputStream(
+                    (OutputStream) splitter);
+        } else {
+            bufferedStream = new BufferedArrayOutputStream(splitter);
+        }
         initStream(bufferedStream);
     }
 
@@ -24,6 +24,7 @@ import ibis.ipl.SendPort;
 import ibis.ipl.WriteMessage;
 import ibis.ipl.impl.stacking.lrmc.io.MessageReceiver;
 import ibis.ipl.impl.stacking.lrmc.util.DynamicObjectArray;
+import ibis.ipl.impl.stacking.lrmc.util.FlowControl;
 import ibis.ipl.impl.stacking.lrmc.util.IbisSorter;
 import ibis.ipl.impl.stacking.lrmc.util.Message;
 import ibis.ipl.impl.stacking.lrmc.util.MessageCache;
@@ -31,14 +32,19 @@ import ibis.ipl.impl.stacking.lrmc.util.MessageQueue;
 import ibis.util.TypedProperties;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class LabelRoutingMulticast extends Thread implements MessageUpcall {
+public class LabelRoutingMulticast extends Thread implements MessageUpcall,
+        MessageCache.ReleaseHandler {
 
     private final static int ZOMBIE_THRESHOLD = 100000;
 
+    // length field of the control messages
+    private final static int DONE = -1;
+
     private static final Logger logger = LoggerFactory
             .getLogger(LabelRoutingMulticast.class);
 
@@ -48,17 +54,53 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
 
     ReceivePort receive;
 
+    // Acknowledgements have their own ports, so they are not held up by the
+    // upcall of the data port, which may block on a full send queue while
+    // the sender thread waits for credits.
+    private ReceivePort ackReceive;
+
     private MessageReceiver receiver;
 
     private final MessageCache cache;
 
     private final DynamicObjectArray<SendPort> sendports = new DynamicObjectArray<SendPort>();
+    private final DynamicObjectArray<SendPort> ackports = new DynamicObjectArray<SendPort>();
     private final DynamicObjectArray<Long> diedmachines = new DynamicObjectArray<Long>();
 
+    // flow control towards the next nodes, null if disabled
+    private final FlowControl flowControl;
+
+    // number of released messages after which we acknowledge them
+    private final int ackBatch;
+
+    // time a slow node may keep us waiting before it is bypassed, and the
+    // time it is bypassed for
+    private final long bypassTimeout;
+
+    private final DynamicObjectArray<Long> bypassed =
+        new DynamicObjectArray<Long>();
+
+    // released messages not acknowledged yet, per upstream node
+    private final DynamicObjectArray<int[]> unacknowledged =
+        new DynamicObjectArray<int[]>();
+
+    // id and number of the last message received, per sender
+    private final DynamicObjectArray<int[]> received =
+        new DynamicObjectArray<int[]>();
+
     private boolean finish = false;
 
     private int[] destinations = null;
 
+    // number of chains the destinations are split in, 0 means adaptive
+    private final int chainCount;
+
+    // destinations of the current multicast, split in chains
+    private int[][] chains = null;
+
+    // number of fragments of the last multicast sent
+    private int lastFragments = 1;
+
     private long bytes = 0;
 
     private MessageQueue sendQueue;
@@ -69,9 +111,37 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
         this.receiver = m;
         this.name = name;
         this.cache = c;
-        this.sendQueue = new MessageQueue(
-                new TypedProperties(ibis.properties()).getIntProperty(
-                        "lrmc.queueSize", 256));
+        TypedProperties properties = new TypedProperties(ibis.properties());
+        this.sendQueue = new MessageQueue(properties.getIntProperty(
+                "lrmc.queueSize", 256));
+        this.chainCount = properties.getIntProperty("lrmc.chains", 1);
+
+        // Flow control is off unless asked for: a node that does not keep up
+        // is bypassed, and misses the fragments sent while it is bypassed.
+        int credits = properties.getIntProperty("lrmc.credits", 0);
+        this.bypassTimeout = properties.getLongProperty("lrmc.bypassTimeout",
+                5000);
+        if (credits > 0) {
+            this.flowControl = new FlowControl(credits, c);
+            this.ackBatch = Math.max(1, credits / 4);
+            c.setReleaseHandler(this);
+        } else {
+            this.flowControl = null;
+            this.ackBatch = 0;
+        }
+
+        if (flowControl != null) {
+            ackReceive = ibis.base.createReceivePort(
+                    LrmcIbis.additionalPortType, "LRMCAck-" + name,
+                    new MessageUpcall() {
+                        public void upcall(ReadMessage rm) throws IOException {
+                            gotAck(rm);
+                        }
+                    });
+            ackReceive.enableConnections();
+            ackReceive.enableMessageUpcalls();
+        }
+
         receive = ibis.base.createReceivePort(LrmcIbis.additionalPortType, "LRMCRing-"
                 + name, this);
         receive.enableConnections();
@@ -87,14 +157,23 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
                 PortType.CONNECTION_MANY_TO_ONE, PortType.RECEIVE_AUTO_UPCALLS);
     }
 
-    private synchronized SendPort getSendPort(int id) {
+    private SendPort getSendPort(int id) {
+        return getSendPort(id, sendports, "LRMCRing-");
+    }
+
+    private SendPort getAckPort(int id) {
+        return getSendPort(id, ackports, "LRMCAck-");
+    }
+
+    private synchronized SendPort getSendPort(int id,
+            DynamicObjectArray<SendPort> ports, String prefix) {
 
         if (id == -1) {
             logger.info("Ignoring " + id);
             return null;
         }
 
-        SendPort sp = sendports.get(id);
+        SendPort sp = ports.get(id);
 
         if (sp == null) {
             // We're not connect to this ibis yet, so connect and store for
@@ -132,8 +211,8 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
                 ibisID = ibis.getId(id);
 
                 if (ibisID != null) {
-                    sp.connect(ibisID, "LRMCRing-" + name, 10000, true);
-                    sendports.put(id, sp);
+                    sp.connect(ibisID, prefix + name, 10000, true);
+                    ports.put(id, sp);
                 } else {
                     logger.info("No Ibis at position " + id);
                     failed = true;
@@ -178,7 +257,7 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
                     }
                     try {
                         WriteMessage wm = sp.newMessage();
-                        wm.writeInt(-1);
+                        wm.writeInt(DONE);
                         wm.writeInt(m.id);
                         wm.finish();
                     } catch (IOException e) {
@@ -192,47 +271,177 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
             return;
         }
 
+        forward(m, m.destinations, 0, m.destinationsUsed);
+    }
+
+    /**
+     * Sends a message to the first working node of route[from] ...
+     * route[to - 1], which forwards it to the rest.
+     */
+    private void forward(Message m, int[] route, int from, int to) {
         // Get the next target from the destination array. If this fails, get
         // the next one, etc. If no working destination is found we give up.
-        int index = 0;
-        int id = -1;
+        int index = from;
 
-        do {
-            id = m.destinations[index++];
-            sp = getSendPort(id);
+        while (index < to) {
+            int id = route[index++];
+
+            if (isBypassed(id)) {
+                continue;
+            }
+
+            SendPort sp = getSendPort(id);
             if (sp == null) {
                 synchronized (this) {
                     if (finish) {
                         return;
                     }
                 }
+                continue;
             }
-        } while (sp == null && index < m.destinationsUsed);
 
-        try {
-            if (sp == null) {
-                // No working destinations where found, so give up!
-                logger.info("No working destinations found, giving up!");
-                return;
+            if (flowControl != null
+                    && !flowControl.acquire(id, bypassTimeout)) {
+                // The node did not keep up, send its share to the next one.
+                bypass(id);
+                continue;
             }
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Writing message " + m.id + "/" + m.num + " to "
                         + id + ", sender " + m.sender
-                        + ", destinations left = "
-                        + (m.destinationsUsed - index));
+                        + ", destinations left = " + (to - index));
+            }
+
+            if (flowControl != null) {
+                flowControl.sent(id, m, route, index, to);
+            }
+
+            try {
+                // send the message to the target
+                WriteMessage wm = sp.newMessage();
+                m.write(wm, route, index, to);
+                bytes += wm.finish();
+                return;
+            } catch (IOException e) {
+                logger.info("Write to " + id + " failed! ", e);
+                synchronized (this) {
+                    sendports.remove(id);
+                }
+            }
+
+            if (flowControl != null) {
+                // resend everything the node did not acknowledge, including
+                // this message, to the nodes after it
+                resend(id, false);
+                return;
+            }
+        }
+
+        // No working destinations where found, so give up!
+        logger.info("No working destinations found, giving up!");
+    }
+
+    private synchronized boolean isBypassed(int id) {
+        Long since = bypassed.get(id);
+
+        if (since == null) {
+            return false;
+        }
+
+        if (System.currentTimeMillis() - since.longValue() > bypassTimeout) {
+            bypassed.remove(id);
+            return false;
+        }
+
+        return true;
+    }
+
+    private void bypass(int id) {
+        logger.info("Node " + id + " does not keep up, bypassing it for "
+                + bypassTimeout + " ms");
+
+        synchronized (this) {
+            bypassed.put(id, System.currentTimeMillis());
+        }
+
+        resend(id, true);
+    }
+
+    private void resend(int id, boolean bypassed) {
+        // A bypassed node still acknowledges the messages it got, those
+        // acknowledgements must not be credited to messages sent to it later.
+        List<FlowControl.Pending> pending = flowControl.remove(id, bypassed);
+
+        for (FlowControl.Pending p : pending) {
+            try {
+                forward(p.message, p.route, p.from, p.to);
+            } finally {
+                cache.release(p.message);
+            }
+        }
+    }
+
+    /**
+     * Called by the message cache when we are done with a message received
+     * from the given node. Acknowledges the messages in batches.
+     */
+    public void released(int upstream, boolean last) {
+        int count;
+
+        synchronized (this) {
+            int[] tmp = unacknowledged.get(upstream);
+
+            if (tmp == null) {
+                tmp = new int[1];
+                unacknowledged.put(upstream, tmp);
             }
 
-            // send the message to the target
+            tmp[0]++;
+
+            if (tmp[0] < ackBatch && !last) {
+                return;
+            }
+
+            count = tmp[0];
+            tmp[0] = 0;
+        }
+
+        SendPort sp = getAckPort(upstream);
+
+        if (sp == null) {
+            return;
+        }
+
+        try {
             WriteMessage wm = sp.newMessage();
-            m.write(wm, index);
-            bytes += wm.finish();
+            wm.writeInt(ibis.myID);
+            wm.writeInt(count);
+            wm.finish();
         } catch (IOException e) {
-            logger.info("Write to " + id + " failed! ", e);
-            sendports.remove(id);
+            logger.debug("Writing ACK message to " + upstream + " failed");
         }
     }
 
+    // Only needed when a node was bypassed, after which its upstream node
+    // may send us fragments we already got from it.
+    private synchronized boolean isDuplicate(Message m) {
+        int[] last = received.get(m.sender);
+
+        if (last == null) {
+            received.put(m.sender, new int[] { m.id, m.num });
+            return false;
+        }
+
+        if (m.id - last[0] < 0 || (m.id == last[0] && m.num <= last[1])) {
+            return true;
+        }
+
+        last[0] = m.id;
+        last[1] = m.num;
+        return false;
+    }
+
     public void setDestination(IbisIdentifier[] destinations) {
 
         logger.debug("setDestination called, destinations.length = "
@@ -250,6 +459,47 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
                     + destinations[i].location().getParent() + ") -> "
                     + this.destinations[i]);
         }
+
+        chains = null;
+    }
+
+    /**
+     * Returns the number of chains to split the destinations in. If not set
+     * with the lrmc.chains property, the number of chains is chosen to
+     * minimize the time until the last destination has received the
+     * multicast. This takes about k * F + N / k hops for k chains, F
+     * fragments and N destinations, so sqrt(N / F) chains are used, with F
+     * the number of fragments of the previous multicast.
+     */
+    private int getChainCount() {
+        int result = chainCount;
+
+        if (result <= 0) {
+            result = (int) Math.round(Math.sqrt((double) destinations.length
+                    / lastFragments));
+        }
+
+        return Math.max(1, Math.min(result, destinations.length));
+    }
+
+    // split the (sorted) destinations in k consecutive parts, so each chain
+    // still visits nearby machines one after the other
+    private static int[][] split(int[] destinations, int k) {
+        if (k <= 1) {
+            return new int[][] { destinations };
+        }
+
+        int[][] result = new int[k][];
+        int from = 0;
+
+        for (int i = 0; i < k; i++) {
+            int to = (int) (((long) destinations.length * (i + 1)) / k);
+            result[i] = new int[to - from];
+            System.arraycopy(destinations, from, result[i], 0, to - from);
+            from = to;
+        }
+
+        return result;
     }
 
     public long getBytes(boolean reset) {
@@ -266,15 +516,37 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
     public boolean send(Message m) {
 
         int[] destOld = m.destinations;
+        int fragment = m.num & ~Message.LAST_PACKET;
+
+        // all fragments of a multicast must follow the same chains, so only
+        // (re)compute them at the start of a multicast
+        if (chains == null || fragment == 0) {
+            chains = split(destinations, getChainCount());
+        }
 
-        m.destinations = destinations;
-        m.destinationsUsed = destinations.length;
         m.sender = ibis.myID;
         m.local = true;
 
-        internalSend(m);
+        // the chains forward the fragments in parallel
+        for (int[] chain : chains) {
+            m.destinations = chain;
+            m.destinationsUsed = chain.length;
+
+            internalSend(m);
+        }
+
+        if ((m.num & Message.LAST_PACKET) != 0) {
+            lastFragments = fragment + 1;
+        }
 
         m.destinations = destOld;
+
+        if (flowControl != null) {
+            // The message is retained until the first nodes of the chains
+            // acknowledge it, so the caller needs a new one.
+            cache.put(m);
+            return false;
+        }
         return true;
     }
 
@@ -310,30 +582,51 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
         }
         try {
             receive.disableConnections();
-
-            int last = sendports.last();
-
-            for (int i = 0; i < last; i++) {
-                SendPort tmp = sendports.get(i);
-
-                if (tmp != null) {
-                    tmp.close();
-                }
+            if (ackReceive != null) {
+                ackReceive.disableConnections();
             }
 
+            close(sendports);
+            close(ackports);
+
             receive.close(1000);
+            if (ackReceive != null) {
+                ackReceive.close(1000);
+            }
         } catch (Throwable e) {
             // ignore, we tried...
         }
     }
 
+    private static void close(DynamicObjectArray<SendPort> ports)
+            throws IOException {
+        int last = ports.last();
+
+        for (int i = 0; i < last; i++) {
+            SendPort tmp = ports.get(i);
+
+            if (tmp != null) {
+                tmp.close();
+            }
+        }
+    }
+
+    private void gotAck(ReadMessage rm) throws IOException {
+        int from = rm.readInt();
+        int count = rm.readInt();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Got ACK for " + count + " messages from " + from);
+        }
+        flowControl.acknowledged(from, count);
+    }
+
     public void upcall(ReadMessage rm) throws IOException {
 
         Message message = null;
 
         try {
             int len = rm.readInt();
-            if (len == -1) {
+            if (len == DONE) {
                 // DONE message
                 int id = rm.readInt();
                 if (logger.isDebugEnabled()) {
@@ -353,6 +646,21 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
                         + message.num + " from " + message.sender);
             }
 
+            if (flowControl != null) {
+                // acknowledge the message once we are done with it
+                message.upstream = ibis.getIbisID(rm.origin()
+                        .ibisIdentifier());
+
+                if (isDuplicate(message)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Dropping duplicate " + message.id + "/"
+                                + message.num);
+                    }
+                    cache.put(message);
+                    return;
+                }
+            }
+
             if (!message.local) {
                 message.refcount++;
                 try {
@@ -362,9 +670,19 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
                 }
             }
 
+            if (message.destinationsUsed == 0 && !message.last) {
+                // End of the chain, and no DONE message to send, so there is
+                // nothing to forward. Release the fragment here instead of
+                // passing it through the send queue and sender thread.
+                cache.put(message);
+                return;
+            }
+
             // Is this OK? sendQueue may block (is not allowed in upcall)!
             // However, calling finish() here may change the message order,
             // so we cannot do that. (Ceriel).
+            // The fragment is forwarded from the buffer it was received in,
+            // which is shared with the local delivery above.
             sendQueue.enqueue(message);
 
         } catch (IOException e) {
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.impl.stacking.lrmc.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Credit based flow control towards the next nodes in the multicast chains.
+ * Each node may have at most <code>window</code> messages outstanding: sent
+ * to it, but not acknowledged yet. A node acknowledges a message once it is
+ * done with it (delivered locally and forwarded), so a slow node makes its
+ * upstream node wait instead of filling its queues.
+ *
+ * Outstanding messages are retained in the message cache, so they can be
+ * sent to the nodes after the next one if the next one fails or has to be
+ * bypassed. A bypassed node does not get the messages sent while it is
+ * bypassed, so flow control is only used when asked for (with the
+ * lrmc.credits property).
+ */
+public class FlowControl {
+
+    /** A message sent to a node, waiting for its acknowledgement. */
+    public static class Pending {
+
+        public final Message message;
+
+        // the destinations the node was asked to forward the message to
+        public final int[] route;
+
+        public final int from;
+
+        public final int to;
+
+        Pending(Message message, int[] route, int from, int to) {
+            this.message = message;
+            this.route = route;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final int window;
+
+    private final MessageCache cache;
+
+    private final DynamicObjectArray<LinkedList<Pending>> outstanding =
+        new DynamicObjectArray<LinkedList<Pending>>();
+
+    // acknowledgements still to come for messages taken away from a node
+    // when it was bypassed, per node
+    private final DynamicObjectArray<int[]> stale =
+        new DynamicObjectArray<int[]>();
+
+    public FlowControl(int window, MessageCache cache) {
+        this.window = window;
+        this.cache = cache;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    private LinkedList<Pending> getOutstanding(int id) {
+        LinkedList<Pending> result = outstanding.get(id);
+
+        if (result == null) {
+            result = new LinkedList<Pending>();
+            outstanding.put(id, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Waits until a message may be sent to the given node.
+     *
+     * @return false if the node did not acknowledge any of its outstanding
+     *         messages within the timeout (in milliseconds).
+     */
+    public synchronized boolean acquire(int id, long timeout) {
+        LinkedList<Pending> list = getOutstanding(id);
+
+        if (list.size() < window) {
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (list.size() >= window) {
+            long left = deadline - System.currentTimeMillis();
+
+            if (left <= 0) {
+                return false;
+            }
+
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                // ignored
+            }
+
+            // the node may have been removed in the meantime
+            list = getOutstanding(id);
+        }
+
+        return true;
+    }
+
+    /**
+     * Registers a message sent to the given node, which was asked to forward
+     * it to route[from] ... route[to - 1].
+     */
+    public void sent(int id, Message m, int[] route, int from, int to) {
+        cache.retain(m);
+
+        synchronized (this) {
+            getOutstanding(id).addLast(new Pending(m, route, from, to));
+        }
+    }
+
+    /**
+     * Releases the oldest <code>count</code> messages sent to the given node.
+     * Acknowledgements of messages the node got before it was bypassed are
+     * ignored.
+     */
+    public void acknowledged(int id, int count) {
+        List<Message> done = new ArrayList<Message>(count);
+
+        synchronized (this) {
+            int[] skip = stale.get(id);
+
+            if (skip != null) {
+                int n = Math.min(skip[0], count);
+                skip[0] -= n;
+                count -= n;
+                if (skip[0] == 0) {
+                    stale.remove(id);
+                }
+            }
+
+            LinkedList<Pending> list = outstanding.get(id);
+
+            if (list == null) {
+                return;
+            }
+
+            while (done.size() < count && !list.isEmpty()) {
+                done.add(list.removeFirst().message);
+            }
+
+            notifyAll();
+        }
+
+        for (Message m : done) {
+            cache.release(m);
+        }
+    }
+
+    /**
+     * Returns the messages not acknowledged by the given node, oldest first,
+     * and forgets about them. The caller must release the messages in the
+     * message cache once it is done with them.
+     *
+     * @param bypassed
+     *            true if the node is bypassed but still alive, so it will
+     *            acknowledge the messages it already got, while they are
+     *            sent to other nodes.
+     */
+    public synchronized List<Pending> remove(int id, boolean bypassed) {
+        LinkedList<Pending> result = outstanding.get(id);
+
+        if (result == null) {
+            return new LinkedList<Pending>();
+        }
+
+        if (bypassed && !result.isEmpty()) {
+            int[] skip = stale.get(id);
+            if (skip == null) {
+                skip = new int[1];
+                stale.put(id, skip);
+            }
+            skip[0] += result.size();
+        }
+
+        outstanding.remove(id);
+        notifyAll();
+        return result;
+    }
+}
@@ -28,6 +28,13 @@ public class Message {
 
     public short refcount;
 
+    // number of nodes this message was sent to that did not acknowledge it
+    // yet, the buffer is only reused when this is 0 as well
+    public short retained;
+
+    // node we received this message from, -1 if we created it
+    public int upstream = -1;
+
     public int[] destinations;
     public int destinationsUsed;
 
@@ -82,8 +89,16 @@ public class Message {
     }
 
     public void write(WriteMessage wm, int fromDest) throws IOException {
+        write(wm, destinations, fromDest, destinationsUsed);
+    }
+
+    /**
+     * Writes this message, with the given part of a route as destinations.
+     */
+    public void write(WriteMessage wm, int[] route, int fromDest, int toDest)
+            throws IOException {
 
-        int destinationLength = destinationsUsed - fromDest;
+        int destinationLength = toDest - fromDest;
 
         // First write the two variable lengths present in the message.
         wm.writeInt(len);
@@ -105,7 +120,7 @@ public class Message {
         }
 
         if (destinationLength > 0) {
-            wm.writeArray(destinations, fromDest, destinationLength);
+            wm.writeArray(route, fromDest, destinationLength);
         }
     }
 }
@@ -15,14 +15,42 @@
  */
 package ibis.ipl.impl.stacking.lrmc.util;
 
+/**
+ * Cache of messages, so the buffers of fragments are reused. A received
+ * fragment is shared by local delivery and forwarding, its reference count
+ * tells when both are done with it.
+ *
+ * Messages that are retained until the nodes they were sent to acknowledge
+ * them (see {@link FlowControl}) are only reused once they are released.
+ *
+ * The cache follows the size of the fragments it sees: if a sender uses
+ * larger fragments than our own message size, buffers of that size are
+ * cached from then on, instead of allocating (and dropping) a buffer for
+ * every fragment. The total size of the cached buffers stays the same, so
+ * fewer buffers are kept when fragments grow.
+ */
 public class MessageCache {
 
-    private final int MESSAGE_SIZE;
-    private final int MAX_SIZE;
+    /**
+     * Notified when we are done with a message received from another node:
+     * it has been delivered locally and forwarded.
+     */
+    public interface ReleaseHandler {
+        void released(int upstream, boolean last);
+    }
+
+    // largest fragment size we adapt to
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    private final long MAX_BYTES;
+
+    private int messageSize;
 
     private Message cache;
     private int size;
 
+    private ReleaseHandler handler;
+
     private long hits = 0;
     private long miss = 0;
 
@@ -30,8 +58,8 @@ public class MessageCache {
     private long discard = 0;
 
     public MessageCache(int cacheSize, int messageSize) {
-        this.MAX_SIZE = cacheSize;
-        this.MESSAGE_SIZE = messageSize;
+        this.MAX_BYTES = (long) cacheSize * messageSize;
+        this.messageSize = messageSize;
 
         /*
          * // fill the cache for (int i=0; i<MAX_SIZE; i++) { Message m =
@@ -50,28 +78,78 @@ public class MessageCache {
         }
     }
 
-    public synchronized void put(Message m) {
-        m.refcount--;
-        if (m.refcount == 0) {
-            if (size < MAX_SIZE && m.buffer != null
-                    && m.buffer.length == MESSAGE_SIZE) {
+    public synchronized void setReleaseHandler(ReleaseHandler handler) {
+        this.handler = handler;
+    }
+
+    public void put(Message m) {
+        int upstream;
+        boolean last;
+        ReleaseHandler handler;
 
-                m.next = cache;
-                cache = m;
-                size++;
-                store++;
-            } else {
-                m.next = null;
-                discard++;
+        synchronized (this) {
+            m.refcount--;
+            if (m.refcount != 0) {
+                return;
             }
+            upstream = m.upstream;
+            last = m.last;
+            handler = this.handler;
+            m.upstream = -1;
+
+            if (m.retained == 0) {
+                recycle(m);
+            }
+        }
+
+        if (upstream >= 0 && handler != null) {
+            handler.released(upstream, last);
         }
     }
 
-    public Message get(int len) {
-        if (len > MESSAGE_SIZE) {
-            // System.err.println("Creating new message of size " + len);
-            miss++;
-            return new Message(len);
+    /**
+     * Keeps the buffer of a message from being reused until
+     * {@link #release(Message)} is called.
+     */
+    public synchronized void retain(Message m) {
+        m.retained++;
+    }
+
+    public synchronized void release(Message m) {
+        m.retained--;
+        if (m.retained == 0 && m.refcount == 0) {
+            recycle(m);
+        }
+    }
+
+    private void recycle(Message m) {
+        if ((size + 1) * (long) messageSize <= MAX_BYTES
+                && m.buffer != null && m.buffer.length == messageSize) {
+
+            m.next = cache;
+            cache = m;
+            size++;
+            store++;
+        } else {
+            m.next = null;
+            discard++;
+        }
+    }
+
+    public synchronized Message get(int len) {
+        if (len > messageSize) {
+            if (len <= MAX_MESSAGE_SIZE) {
+                // someone sends larger fragments, cache those from now on
+                messageSize = len;
+                cache = null;
+                size = 0;
+            } else {
+                miss++;
+                Message tmp = new Message(len);
+                tmp.refcount = 1;
+                tmp.upstream = -1;
+                return tmp;
+            }
         }
 
         return get();
@@ -82,7 +160,7 @@ public class MessageCache {
 
         if (size == 0) {
             miss++;
-            tmp = new Message(MESSAGE_SIZE);
+            tmp = new Message(messageSize);
         } else {
             hits++;
 
@@ -93,11 +171,13 @@ public class MessageCache {
         tmp.next = null;
         tmp.local = false;
         tmp.refcount = 1;
+        tmp.retained = 0;
+        tmp.upstream = -1;
 
         return tmp;
     }
 
-    public int getPrefferedMessageSize() {
-        return MESSAGE_SIZE;
+    public synchronized int getPrefferedMessageSize() {
+        return messageSize;
     }
 }
@@ -34,7 +34,7 @@ class IbisServerSocket {
         Socket s = socket.accept();
         int b = s.getInputStream().read();
         if (b > 1) {
-            ServerSocket n = new ServerSocket();
+            ServerSocket n = IbisSocketFactory.newServerSocket();
             Socket[] result = new Socket[b];
             result[0] = s;
             try {
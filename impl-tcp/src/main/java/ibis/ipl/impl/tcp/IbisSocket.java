@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 
 class IbisSocket {
@@ -60,6 +61,17 @@ class IbisSocket {
         return in;
     }
 
+    /**
+     * Returns the channel of this socket, or <code>null</code> if it
+     * consists of parallel streams, or was not created through a channel.
+     */
+    SocketChannel getChannel() {
+        if (sockets.length == 1) {
+            return sockets[0].getChannel();
+        }
+        return null;
+    }
+
     void close() throws java.io.IOException {
         if (sockets == null) {
             return;
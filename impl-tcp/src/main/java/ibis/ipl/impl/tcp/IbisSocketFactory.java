@@ -15,6 +15,7 @@
  */
 package ibis.ipl.impl.tcp;
 
+import ibis.io.IOProperties;
 import ibis.ipl.IbisConfigurationException;
 import ibis.ipl.impl.IbisIdentifier;
 import ibis.util.IPUtils;
@@ -25,6 +26,8 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.Properties;
 
@@ -43,9 +46,32 @@ class IbisSocketFactory {
     void setIdent(IbisIdentifier id) {
     }
 
+    /**
+     * Creates an unconnected socket. When direct buffers are used, the
+     * socket is obtained from a socket channel, so that the data streams can
+     * hand their buffers to the channel directly.
+     */
+    static Socket newSocket() throws IOException {
+        if (IOProperties.DIRECT_BUFFERS) {
+            return SocketChannel.open().socket();
+        }
+        return new Socket();
+    }
+
+    /**
+     * Creates an unbound server socket, which accepts sockets that are
+     * obtained from a socket channel when direct buffers are used.
+     */
+    static ServerSocket newServerSocket() throws IOException {
+        if (IOProperties.DIRECT_BUFFERS) {
+            return ServerSocketChannel.open().socket();
+        }
+        return new ServerSocket();
+    }
+
     IbisServerSocket createServerSocket(int port, int backlog, boolean retry,
             Properties properties) throws IOException {
-        ServerSocket server = new ServerSocket();
+        ServerSocket server = newServerSocket();
         InetSocketAddress local = new InetSocketAddress(
                 IPUtils.getLocalHostAddress(), port);
         server.bind(local, backlog);
@@ -57,7 +83,7 @@ class IbisSocketFactory {
             throws IOException {
 
         int nparallel = 1;
-        Socket s = new Socket();
+        Socket s = newSocket();
         s.connect(addr.address, timeout);
         if (properties != null) {
             String np = properties.get("nParallelStreams");
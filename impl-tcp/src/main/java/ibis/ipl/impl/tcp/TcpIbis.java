@@ -19,6 +19,8 @@ package ibis.ipl.impl.tcp;
 
 import ibis.io.BufferedArrayInputStream;
 import ibis.io.BufferedArrayOutputStream;
+import ibis.io.BufferedDirectInputStream;
+import ibis.io.IOProperties;
 import ibis.ipl.AlreadyConnectedException;
 import ibis.ipl.CapabilitySet;
 import ibis.ipl.ConnectionRefusedException;
@@ -245,8 +247,12 @@ public final class TcpIbis extends ibis.ipl.impl.Ibis implements Runnable,
             logger.debug("--> TcpIbis got connection request from " + s);
         }
 
-        BufferedArrayInputStream bais = new BufferedArrayInputStream(
-                s.getInputStream());
+        ibis.io.DataInputStream bais;
+        if (IOProperties.DIRECT_BUFFERS && s.getChannel() != null) {
+            bais = new BufferedDirectInputStream(s.getChannel());
+        } else {
+            bais = new BufferedArrayInputStream(s.getInputStream());
+        }
 
         DataInputStream in = new DataInputStream(bais);
         OutputStream out = s.getOutputStream();
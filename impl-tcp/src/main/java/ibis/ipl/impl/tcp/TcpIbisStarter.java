@@ -43,13 +43,15 @@ public final class TcpIbisStarter extends ibis.ipl.IbisStarter {
             IbisCapabilities.MEMBERSHIP_UNRELIABLE, IbisCapabilities.SIGNALS,
             IbisCapabilities.ELECTIONS_UNRELIABLE,
             IbisCapabilities.ELECTIONS_STRICT, IbisCapabilities.MALLEABLE,
-            IbisCapabilities.TERMINATION);
+            IbisCapabilities.TERMINATION,
+            IbisCapabilities.REGISTRY_LEASES);
 
     static final PortType portCapabilities = new PortType(
             PortType.SERIALIZATION_OBJECT_SUN,
             PortType.SERIALIZATION_OBJECT_IBIS, PortType.SERIALIZATION_OBJECT,
             PortType.SERIALIZATION_DATA, PortType.SERIALIZATION_BYTE,
             PortType.COMMUNICATION_FIFO, PortType.COMMUNICATION_NUMBERED,
+            PortType.COMMUNICATION_COMPRESSED,
             PortType.COMMUNICATION_RELIABLE, PortType.CONNECTION_DOWNCALLS,
             PortType.CONNECTION_UPCALLS, PortType.CONNECTION_TIMEOUT,
             PortType.CONNECTION_MANY_TO_MANY, PortType.CONNECTION_MANY_TO_ONE,
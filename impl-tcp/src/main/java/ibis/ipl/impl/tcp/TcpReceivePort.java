@@ -17,8 +17,8 @@
 
 package ibis.ipl.impl.tcp;
 
-import ibis.io.BufferedArrayInputStream;
 import ibis.io.Conversion;
+import ibis.io.DataInputStream;
 import ibis.ipl.MessageUpcall;
 import ibis.ipl.PortType;
 import ibis.ipl.ReceivePortConnectUpcall;
@@ -41,7 +41,7 @@ class TcpReceivePort extends ReceivePort implements TcpProtocol {
         private final IbisSocket s;
 
         ConnectionHandler(SendPortIdentifier origin, IbisSocket s,
-                ReceivePort port, BufferedArrayInputStream in)
+                ReceivePort port, DataInputStream in)
                 throws IOException {
             super(origin, port, in);
             this.s = s;
@@ -354,7 +354,7 @@ class TcpReceivePort extends ReceivePort implements TcpProtocol {
     }
 
     void connect(SendPortIdentifier origin, IbisSocket s,
-            BufferedArrayInputStream in) throws IOException {
+            DataInputStream in) throws IOException {
         ConnectionHandler conn;
 
         synchronized(this) {
@@ -18,7 +18,11 @@
 package ibis.ipl.impl.tcp;
 
 import ibis.io.BufferedArrayOutputStream;
+import ibis.io.BufferedDirectOutputStream;
+import ibis.io.ChannelOutputStream;
 import ibis.io.Conversion;
+import ibis.io.DataOutputStream;
+import ibis.io.IOProperties;
 import ibis.io.OutputStreamSplitter;
 import ibis.io.SplitterException;
 import ibis.ipl.PortType;
@@ -45,7 +49,11 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
                 throws IOException {
             super(port, target);
             this.s = s;
-            out = s.getOutputStream();
+            if (IOProperties.DIRECT_BUFFERS && s.getChannel() != null) {
+                out = new ChannelOutputStream(s.getChannel());
+            } else {
+                out = s.getOutputStream();
+            }
             splitter.add(out);
         }
 
@@ -66,7 +74,7 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
 
     final OutputStreamSplitter splitter;
 
-    final BufferedArrayOutputStream bufferedStream;
+    final DataOutputStream bufferedStream;
 
     TcpSendPort(Ibis ibis, PortType type, String name,
             SendPortDisconnectUpcall cU, Properties props) throws IOException {
@@ -83,7 +91,12 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
                                     PortType.CONNECTION_MANY_TO_MANY));
             
 
-        bufferedStream = new BufferedArrayOutputStream(splitter);
+        if (IOProperties.DIRECT_BUFFERS) {
+            bufferedStream = new BufferedDirectOutputStream(
+                    (OutputStream) splitter);
+        } else {
+            bufferedStream = new BufferedArrayOutputStream(splitter);
+        }
         initStream(bufferedStream);
     }
 
@@ -336,6 +336,9 @@ final class AlternativeTypeInfo {
     /** Set if the class has a <code>writeReplace</code> method. */
     boolean hasReplace;
 
+    /** Set if the class has a <code>readResolve</code> method. */
+    boolean hasResolve;
+
     /** Set if the class is Ibis serializable. */
     boolean isIbisSerializable = false;
 
@@ -620,6 +623,7 @@ final class AlternativeTypeInfo {
                     Object.class);
 
             hasReplace = writeReplaceMethod != null;
+            hasResolve = readResolveMethod != null;
 
             // Determines whether a class is Ibis-serializable.
             // We cannot use "instanceof ibis.io.Serializable", because that
@@ -36,8 +36,35 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
     private static final boolean DEBUG = IOProperties.DEBUG;
 
+    /**
+     * Number of recent messages on which the buffer size is based in
+     * adaptive mode.
+     */
+    private static final int WINDOW = 16;
+
     /** Size of the buffer in which output data is collected. */
-    private final int BUF_SIZE;
+    private int bufSize;
+
+    /**
+     * Bounds of the buffer size in adaptive mode. The buffer size is fixed
+     * when <code>recent</code> is <code>null</code>.
+     */
+    private final int minSize, maxSize;
+
+    /**
+     * Sizes of the most recent messages, i.e. of the data written between
+     * flushes, in adaptive mode.
+     */
+    private final int[] recent;
+
+    /** Index of the next entry of <code>recent</code> to be filled. */
+    private int recentIndex = 0;
+
+    /** Number of valid entries in <code>recent</code>. */
+    private int recentCount = 0;
+
+    /** Value of <code>bytesWritten()</code> at the previous flush. */
+    private long lastFlush = 0;
 
     /** The underlying <code>OutputStream</code>. */
     private OutputStream out;
@@ -60,18 +87,51 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
      * @param bufSize   the size of the output buffer in bytes
      */
     public BufferedArrayOutputStream(OutputStream out, int bufSize) {
-        this.out = out;
-        BUF_SIZE = bufSize;
-        buffer = new byte[BUF_SIZE];
-        conversion = Conversion.loadConversion(false);
+        this(out, bufSize, bufSize, bufSize, false);
     }
 
     /**
-     * Constructor.
+     * Constructor for an output stream in adaptive mode: the buffer size is
+     * adapted to the sizes of the most recent messages written, within the
+     * specified bounds. It grows as soon as a message does not fit, and
+     * shrinks when a whole window of messages would have fitted in a
+     * quarter of the buffer.
+     * @param out	the underlying <code>OutputStream</code>
+     * @param bufSize   the initial size of the output buffer in bytes
+     * @param minSize   the minimum size of the output buffer in bytes
+     * @param maxSize   the maximum size of the output buffer in bytes
+     */
+    public BufferedArrayOutputStream(OutputStream out, int bufSize,
+            int minSize, int maxSize) {
+        this(out, bufSize, minSize, maxSize, true);
+    }
+
+    /**
+     * Constructor. The stream is in adaptive mode when the
+     * <code>ibis.io.buffer.adaptive</code> property is set.
      * @param out       the underlying <code>OutputStream</code>
      */
     public BufferedArrayOutputStream(OutputStream out) {
-        this(out, IOProperties.BUFFER_SIZE);
+        this(out, IOProperties.BUFFER_SIZE, IOProperties.ADAPTIVE_BUFFER_MIN,
+                IOProperties.ADAPTIVE_BUFFER_MAX, IOProperties.ADAPTIVE_BUFFERS);
+    }
+
+    private BufferedArrayOutputStream(OutputStream out, int bufSize,
+            int minSize, int maxSize, boolean adaptive) {
+        this.out = out;
+        if (adaptive) {
+            minSize = Math.max(minSize, Constants.SIZEOF_DOUBLE);
+            maxSize = Math.max(maxSize, minSize);
+            bufSize = Math.min(Math.max(bufSize, minSize), maxSize);
+            recent = new int[WINDOW];
+        } else {
+            recent = null;
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.bufSize = bufSize;
+        buffer = new byte[bufSize];
+        conversion = Conversion.loadConversion(false);
     }
 
     public long bytesWritten() {
@@ -79,6 +139,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     }
 
     public void resetBytesWritten() {
+        lastFlush -= bytes + index;
         bytes = -index;
     }
 
@@ -93,10 +154,10 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
         if (DEBUG && logger.isDebugEnabled()) {
             logger.debug("flush(" + incr + ") : " + " "
-                    + (index + incr >= BUF_SIZE) + " " + (index) + ")");
+                    + (index + incr >= bufSize) + " " + (index) + ")");
         }
 
-        if (index + incr > BUF_SIZE) {
+        if (index + incr > bufSize) {
             bytes += index;
 
             out.write(buffer, 0, index);
@@ -173,7 +234,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(1);
 
-            int size = Math.min(BUF_SIZE - index, len);
+            int size = Math.min(bufSize - index, len);
 
             conversion.boolean2byte(ref, off, size, buffer, index);
 
@@ -191,14 +252,14 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
                     + "])");
         }
 
-        if (len > (BUF_SIZE - index)) {
+        if (len > (bufSize - index)) {
 
             if (index > 0) {
                 bytes += index;
                 out.write(buffer, 0, index);
                 index = 0;
             }
-            if (len >= BUF_SIZE) {
+            if (len >= bufSize) {
                 bytes += len;
                 out.write(ref, off, len);
             } else {
@@ -221,7 +282,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(Constants.SIZEOF_CHAR);
 
-            int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_CHAR, len);
+            int size = Math.min((bufSize - index) / Constants.SIZEOF_CHAR, len);
 
             conversion.char2byte(ref, off, size, buffer, index);
 
@@ -242,7 +303,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(Constants.SIZEOF_SHORT);
 
-            int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_SHORT, len);
+            int size = Math.min((bufSize - index) / Constants.SIZEOF_SHORT, len);
 
             conversion.short2byte(ref, off, size, buffer, index);
 
@@ -263,7 +324,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(Constants.SIZEOF_INT);
 
-            int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_INT, len);
+            int size = Math.min((bufSize - index) / Constants.SIZEOF_INT, len);
 
             conversion.int2byte(ref, off, size, buffer, index);
 
@@ -284,7 +345,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(Constants.SIZEOF_LONG);
 
-            int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_LONG, len);
+            int size = Math.min((bufSize - index) / Constants.SIZEOF_LONG, len);
 
             conversion.long2byte(ref, off, size, buffer, index);
 
@@ -304,7 +365,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(Constants.SIZEOF_FLOAT);
 
-            int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_FLOAT, len);
+            int size = Math.min((bufSize - index) / Constants.SIZEOF_FLOAT, len);
 
             conversion.float2byte(ref, off, size, buffer, index);
 
@@ -325,7 +386,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(Constants.SIZEOF_DOUBLE);
 
-            int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_DOUBLE, len);
+            int size = Math.min((bufSize - index) / Constants.SIZEOF_DOUBLE, len);
 
             conversion.double2byte(ref, off, size, buffer, index);
 
@@ -337,8 +398,59 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     }
 
     public void flush() throws IOException {
-        flush(BUF_SIZE + 1); /* Forces flush */
+        flush(bufSize + 1); /* Forces flush */
         out.flush();
+        if (recent != null) {
+            adapt();
+        }
+    }
+
+    /**
+     * Records the size of the message that was just flushed, and resizes
+     * the (now empty) buffer if the recent message sizes call for it.
+     */
+    private void adapt() {
+        long size = bytes - lastFlush;
+        lastFlush = bytes;
+        if (size <= 0) {
+            return;
+        }
+
+        recent[recentIndex] = (int) Math.min(size, Integer.MAX_VALUE);
+        recentIndex = (recentIndex + 1) % WINDOW;
+        if (recentCount < WINDOW) {
+            recentCount++;
+        }
+
+        int max = 0;
+        for (int i = 0; i < recentCount; i++) {
+            max = Math.max(max, recent[i]);
+        }
+
+        int newSize = bufSize;
+        if (max > bufSize) {
+            newSize = Math.min(roundUp(max), maxSize);
+        } else if (recentCount == WINDOW && max <= bufSize / 4) {
+            newSize = Math.max(roundUp(max), minSize);
+        }
+
+        if (newSize != bufSize) {
+            if (DEBUG && logger.isDebugEnabled()) {
+                logger.debug("adapting buffer size from " + bufSize + " to "
+                        + newSize);
+            }
+            bufSize = newSize;
+            buffer = new byte[bufSize];
+            recentCount = 0;
+        }
+    }
+
+    /**
+     * Returns the smallest power of two that is at least <code>n</code>.
+     */
+    private static int roundUp(int n) {
+        int p = Integer.highestOneBit(n);
+        return (p == n || p == 1 << 30) ? p : p << 1;
     }
 
     public void finish() {
@@ -355,7 +467,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     }
     
     public int bufferSize() {
-        return BUF_SIZE;
+        return bufSize;
     }
 
     public void writeByteBuffer(ByteBuffer value) throws IOException {
@@ -366,7 +478,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
             logger.debug("BufferedArrayOutputStream: writing ByteBuffer of size " + len);
         }
 	
-        if (len > (BUF_SIZE - index)) {
+        if (len > (bufSize - index)) {
 
             if (index > 0) {
                 bytes += index;
@@ -374,16 +486,16 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
                 index = 0;
             }
             
-            if (len >= BUF_SIZE) {
+            if (len >= bufSize) {
                 if (value.hasArray()) {
                     bytes += len;
                     out.write(value.array(), value.position() + value.arrayOffset(), len);
                 } else {
-                    while (len >= BUF_SIZE) {
-                	bytes += BUF_SIZE;
-                	value.get(buffer, 0, BUF_SIZE);
-                	out.write(buffer, 0, BUF_SIZE);
-                	len -= BUF_SIZE;
+                    while (len >= bufSize) {
+                	bytes += bufSize;
+                	value.get(buffer, 0, bufSize);
+                	out.write(buffer, 0, bufSize);
+                	len -= bufSize;
                     }
                     value.get(buffer, 0, len);
                     index = len;
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is a complete implementation of <code>DataInputStream</code>,
+ * built on top of a <code>ReadableByteChannel</code>. Input data is read
+ * from the channel straight into a pooled direct <code>ByteBuffer</code>
+ * (see {@link DirectBufferPool}), from which primitives are obtained
+ * without further conversion.
+ *
+ * The data is read in little-endian byte order, so a
+ * <code>BufferedDirectInputStream</code> can talk to a
+ * {@link BufferedArrayOutputStream} and vice versa.
+ */
+public final class BufferedDirectInputStream extends DataInputStream {
+
+    private static final boolean DEBUG = IOProperties.DEBUG;
+
+    private static final Logger logger = LoggerFactory.getLogger(BufferedDirectInputStream.class);
+
+    /** The buffer size. */
+    private final int BUF_SIZE;
+
+    /** The underlying channel. */
+    private final ReadableByteChannel channel;
+
+    /**
+     * The underlying <code>InputStream</code>, if the stream was created
+     * on top of one, or <code>null</code>.
+     */
+    private final InputStream in;
+
+    /**
+     * The buffer. Between calls, the buffered data is between the position
+     * and the limit of the buffer.
+     */
+    private ByteBuffer buffer;
+
+    /** Number of bytes read so far from the underlying layer. */
+    private long bytes = 0;
+
+    /**
+     * Constructor.
+     * @param channel   the underlying channel, which must be in blocking mode
+     * @param bufSize   the size of the input buffer in bytes
+     */
+    public BufferedDirectInputStream(ReadableByteChannel channel, int bufSize) {
+        this(channel, null, bufSize);
+    }
+
+    /**
+     * Constructor.
+     * @param channel   the underlying channel, which must be in blocking mode
+     */
+    public BufferedDirectInputStream(ReadableByteChannel channel) {
+        this(channel, IOProperties.BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor. If the specified <code>InputStream</code> is a
+     * <code>ReadableByteChannel</code> as well, it is read as a channel.
+     * @param in        the underlying <code>InputStream</code>
+     * @param bufSize   the size of the input buffer in bytes
+     */
+    public BufferedDirectInputStream(InputStream in, int bufSize) {
+        this(in instanceof ReadableByteChannel ? (ReadableByteChannel) in
+                : Channels.newChannel(in), in, bufSize);
+    }
+
+    /**
+     * Constructor.
+     * @param in        the underlying <code>InputStream</code>
+     */
+    public BufferedDirectInputStream(InputStream in) {
+        this(in, IOProperties.BUFFER_SIZE);
+    }
+
+    private BufferedDirectInputStream(ReadableByteChannel channel,
+            InputStream in, int bufSize) {
+        this.channel = channel;
+        this.in = in;
+        BUF_SIZE = bufSize;
+        buffer = DirectBufferPool.get(BUF_SIZE);
+        buffer.limit(0);
+    }
+
+    /**
+     * Returns the number of bytes in the buffer, which is 0 when the stream
+     * is closed.
+     */
+    private int buffered() {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    public long bytesRead() {
+        return bytes - buffered();
+    }
+
+    public void resetBytesRead() {
+        bytes = buffered();
+    }
+
+    /**
+     * Reads from the channel into the specified buffer.
+     * @return the number of bytes read, or -1 at end-of-stream.
+     */
+    private int readChannel(ByteBuffer b) throws IOException {
+        int n = channel.read(b);
+        if (n > 0) {
+            bytes += n;
+        }
+        return n;
+    }
+
+    /**
+     * Makes sure that there are at least <code>len</code> bytes in the
+     * buffer. <code>len</code> may not be larger than the buffer size.
+     */
+    private void fillBuffer(int len) throws IOException {
+        if (buffer.remaining() >= len) {
+            return;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < len) {
+                if (readChannel(buffer) < 0) {
+                    throw new EOFException("EOF encountered");
+                }
+            }
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    public final int read() throws IOException {
+        if (! buffer.hasRemaining()) {
+            buffer.clear();
+            int n;
+            try {
+                n = readChannel(buffer);
+            } finally {
+                buffer.flip();
+            }
+            if (n < 0) {
+                return -1;
+            }
+            if (n == 0) {
+                // Should not happen on a blocking channel.
+                fillBuffer(1);
+            }
+        }
+        return buffer.get() & 0377;
+    }
+
+    public final int available() throws IOException {
+        return buffered() + (in == null ? 0 : in.available());
+    }
+
+    public void readArray(boolean[] a, int off, int len) throws IOException {
+
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("readArray(boolean[" + off + " ... "
+                    + (off + len) + "])");
+        }
+
+        for (int i = off; i < off + len; i++) {
+            fillBuffer(1);
+            a[i] = buffer.get() == (byte) 1;
+        }
+    }
+
+    public void readArray(byte[] a, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("readArray(byte[" + off + " ... " + (off + len)
+                    + "])");
+        }
+
+        readByteBuffer(ByteBuffer.wrap(a, off, len));
+    }
+
+    public void readArray(short[] a, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("readArray(short[" + off + " ... "
+                    + (off + len) + "])");
+        }
+
+        while (len != 0) {
+            fillBuffer(Constants.SIZEOF_SHORT);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_SHORT, len);
+            buffer.asShortBuffer().get(a, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_SHORT);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void readArray(char[] a, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("readArray(char[" + off + " ... " + (off + len)
+                    + "])");
+        }
+
+        while (len != 0) {
+            fillBuffer(Constants.SIZEOF_CHAR);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_CHAR, len);
+            buffer.asCharBuffer().get(a, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_CHAR);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void readArray(int[] a, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("readArray(int[" + off + " ... " + (off + len)
+                    + "])");
+        }
+
+        while (len != 0) {
+            fillBuffer(Constants.SIZEOF_INT);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_INT, len);
+            buffer.asIntBuffer().get(a, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_INT);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void readArray(long[] a, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("readArray(long[" + off + " ... " + (off + len)
+                    + "])");
+        }
+
+        while (len != 0) {
+            fillBuffer(Constants.SIZEOF_LONG);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_LONG, len);
+            buffer.asLongBuffer().get(a, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_LONG);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void readArray(float[] a, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("readArray(float[" + off + " ... "
+                    + (off + len) + "])");
+        }
+
+        while (len != 0) {
+            fillBuffer(Constants.SIZEOF_FLOAT);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_FLOAT, len);
+            buffer.asFloatBuffer().get(a, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_FLOAT);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void readArray(double[] a, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("readArray(double[" + off + " ... "
+                    + (off + len) + "])");
+        }
+
+        while (len != 0) {
+            fillBuffer(Constants.SIZEOF_DOUBLE);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_DOUBLE, len);
+            buffer.asDoubleBuffer().get(a, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_DOUBLE);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public byte readByte() throws IOException {
+        fillBuffer(1);
+        return buffer.get();
+    }
+
+    public boolean readBoolean() throws IOException {
+        fillBuffer(1);
+        return buffer.get() == (byte) 1;
+    }
+
+    public char readChar() throws IOException {
+        fillBuffer(Constants.SIZEOF_CHAR);
+        return buffer.getChar();
+    }
+
+    public short readShort() throws IOException {
+        fillBuffer(Constants.SIZEOF_SHORT);
+        return buffer.getShort();
+    }
+
+    public int readInt() throws IOException {
+        fillBuffer(Constants.SIZEOF_INT);
+        return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        fillBuffer(Constants.SIZEOF_LONG);
+        return buffer.getLong();
+    }
+
+    public float readFloat() throws IOException {
+        fillBuffer(Constants.SIZEOF_FLOAT);
+        return buffer.getFloat();
+    }
+
+    public double readDouble() throws IOException {
+        fillBuffer(Constants.SIZEOF_DOUBLE);
+        return buffer.getDouble();
+    }
+
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    public int read(byte[] a, int off, int len) throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("read(byte[" + off + " ... " + (off + len)
+                    + "])");
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (! buffer.hasRemaining()) {
+            if (len >= BUF_SIZE) {
+                // Read large chunks directly into the destination array.
+                return readChannel(ByteBuffer.wrap(a, off, len));
+            }
+            int b = read();
+            if (b < 0) {
+                return -1;
+            }
+            a[off] = (byte) b;
+            int n = Math.min(buffer.remaining(), len - 1);
+            buffer.get(a, off + 1, n);
+            return n + 1;
+        }
+
+        int n = Math.min(buffer.remaining(), len);
+        buffer.get(a, off, n);
+        return n;
+    }
+
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (in != null) {
+                in.close();
+            } else {
+                channel.close();
+            }
+        } finally {
+            DirectBufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    public int bufferSize() {
+        return BUF_SIZE;
+    }
+
+    public void readByteBuffer(ByteBuffer value) throws IOException,
+	    ReadOnlyBufferException {
+
+        int len = value.remaining();
+
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("BufferedDirectInputStream: reading ByteBuffer of size " + len);
+        }
+
+        if (buffer.remaining() >= len) {
+            // data is already in the buffer.
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + len);
+            value.put(buffer);
+            buffer.limit(limit);
+            return;
+        }
+
+        // first, copy the data we do have.
+        value.put(buffer);
+
+        if (value.remaining() >= BUF_SIZE) {
+            // Read large chunks directly into the destination.
+            while (value.hasRemaining()) {
+                if (readChannel(value) < 0) {
+                    throw new EOFException("EOF encountered");
+                }
+            }
+            return;
+        }
+
+        fillBuffer(value.remaining());
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + value.remaining());
+        value.put(buffer);
+        buffer.limit(limit);
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is a complete implementation of <code>DataOutputStream</code>,
+ * built on top of a <code>WritableByteChannel</code>. Output data is
+ * collected in a pooled direct <code>ByteBuffer</code> (see
+ * {@link DirectBufferPool}), which is handed to the channel as is when it
+ * is full or flushed. Compared to {@link BufferedArrayOutputStream}, this
+ * saves the copy of the buffer into a temporary direct buffer that the JDK
+ * makes for every write of a heap array to a channel, and it keeps large
+ * buffers out of the Java heap.
+ *
+ * The data is written in little-endian byte order, so a
+ * <code>BufferedDirectOutputStream</code> can talk to a
+ * {@link BufferedArrayInputStream} and vice versa.
+ */
+public final class BufferedDirectOutputStream extends DataOutputStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(BufferedDirectOutputStream.class);
+
+    private static final boolean DEBUG = IOProperties.DEBUG;
+
+    /** Size of the buffer in which output data is collected. */
+    private final int BUF_SIZE;
+
+    /** The underlying channel. */
+    private final WritableByteChannel channel;
+
+    /**
+     * The underlying <code>OutputStream</code>, if the stream was created
+     * on top of one, or <code>null</code>.
+     */
+    private final OutputStream out;
+
+    /** The buffer in which output data is collected. */
+    private ByteBuffer buffer;
+
+    /** Number of bytes written so far to the underlying layer. */
+    private long bytes = 0;
+
+    /**
+     * Constructor.
+     * @param channel   the underlying channel, which must be in blocking mode
+     * @param bufSize   the size of the output buffer in bytes
+     */
+    public BufferedDirectOutputStream(WritableByteChannel channel, int bufSize) {
+        this(channel, null, bufSize);
+    }
+
+    /**
+     * Constructor.
+     * @param channel   the underlying channel, which must be in blocking mode
+     */
+    public BufferedDirectOutputStream(WritableByteChannel channel) {
+        this(channel, IOProperties.BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor. If the specified <code>OutputStream</code> is a
+     * <code>WritableByteChannel</code> as well, the buffer is written to it
+     * as a channel.
+     * @param out       the underlying <code>OutputStream</code>
+     * @param bufSize   the size of the output buffer in bytes
+     */
+    public BufferedDirectOutputStream(OutputStream out, int bufSize) {
+        this(out instanceof WritableByteChannel ? (WritableByteChannel) out
+                : Channels.newChannel(out), out, bufSize);
+    }
+
+    /**
+     * Constructor.
+     * @param out       the underlying <code>OutputStream</code>
+     */
+    public BufferedDirectOutputStream(OutputStream out) {
+        this(out, IOProperties.BUFFER_SIZE);
+    }
+
+    private BufferedDirectOutputStream(WritableByteChannel channel,
+            OutputStream out, int bufSize) {
+        this.channel = channel;
+        this.out = out;
+        BUF_SIZE = bufSize;
+        buffer = DirectBufferPool.get(BUF_SIZE);
+    }
+
+    /**
+     * Returns the number of bytes in the buffer, which is 0 when the stream
+     * is closed.
+     */
+    private int buffered() {
+        return buffer == null ? 0 : buffer.position();
+    }
+
+    public long bytesWritten() {
+        return bytes + buffered();
+    }
+
+    public void resetBytesWritten() {
+        bytes = -buffered();
+    }
+
+    /**
+     * Writes the specified buffer to the channel.
+     */
+    private void writeFully(ByteBuffer b) throws IOException {
+        bytes += b.remaining();
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    /**
+     * Writes the buffered data to the channel.
+     */
+    private void drain() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Checks if there is space for <code>incr</code> more bytes and if not,
+     * the buffer is written to the underlying channel.
+     *
+     * @param incr		the space requested
+     * @exception IOException	in case of trouble.
+     */
+    private void flush(int incr) throws IOException {
+
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("flush(" + incr + ") : " + " "
+                    + (buffer.remaining() < incr) + " " + buffer.position()
+                    + ")");
+        }
+
+        if (buffer.remaining() < incr) {
+            drain();
+        }
+    }
+
+    public void write(int b) throws IOException {
+        writeByte((byte) b);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        flush(1);
+        buffer.put(value ? (byte) 1 : (byte) 0);
+    }
+
+    public void writeByte(byte value) throws IOException {
+        flush(1);
+        buffer.put(value);
+    }
+
+    public void writeChar(char value) throws IOException {
+        flush(Constants.SIZEOF_CHAR);
+        buffer.putChar(value);
+    }
+
+    public void writeShort(short value) throws IOException {
+        flush(Constants.SIZEOF_SHORT);
+        buffer.putShort(value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        flush(Constants.SIZEOF_INT);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        flush(Constants.SIZEOF_LONG);
+        buffer.putLong(value);
+    }
+
+    public void writeFloat(float value) throws IOException {
+        flush(Constants.SIZEOF_FLOAT);
+        buffer.putFloat(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        flush(Constants.SIZEOF_DOUBLE);
+        buffer.putDouble(value);
+    }
+
+    public void write(byte[] b) throws IOException {
+        writeArray(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        writeArray(b, off, len);
+    }
+
+    public void writeArray(boolean[] ref, int off, int len)
+            throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(boolean[" + off + " ... "
+                    + (off + len) + "])");
+        }
+
+        for (int i = off; i < off + len; i++) {
+            flush(1);
+            buffer.put(ref[i] ? (byte) 1 : (byte) 0);
+        }
+    }
+
+    public void writeArray(byte[] ref, int off, int len)
+            throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(byte[" + off + " ... " + (off + len)
+                    + "])");
+        }
+
+        writeByteBuffer(ByteBuffer.wrap(ref, off, len));
+    }
+
+    public void writeArray(char[] ref, int off, int len)
+            throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(char[" + off + " ... " + (off + len)
+                    + "])");
+        }
+
+        while (len != 0) {
+            flush(Constants.SIZEOF_CHAR);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_CHAR, len);
+            buffer.asCharBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_CHAR);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(short[] ref, int off, int len)
+            throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(short[" + off + " ... "
+                    + (off + len) + "])");
+        }
+
+        while (len != 0) {
+            flush(Constants.SIZEOF_SHORT);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_SHORT, len);
+            buffer.asShortBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_SHORT);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(int[] ref, int off, int len)
+            throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(int[" + off + " ... " + (off + len)
+                    + "])");
+        }
+
+        while (len != 0) {
+            flush(Constants.SIZEOF_INT);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_INT, len);
+            buffer.asIntBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_INT);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(long[] ref, int off, int len)
+            throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(long[" + off + " ... " + (off + len)
+                    + "])");
+        }
+
+        while (len != 0) {
+            flush(Constants.SIZEOF_LONG);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_LONG, len);
+            buffer.asLongBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_LONG);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(float[] ref, int off, int len)
+            throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(float[" + off + " ... "
+                    + (off + len) + "])");
+        }
+
+        while (len != 0) {
+            flush(Constants.SIZEOF_FLOAT);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_FLOAT, len);
+            buffer.asFloatBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_FLOAT);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void writeArray(double[] ref, int off, int len)
+            throws IOException {
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeArray(double[" + off + " ... "
+                    + (off + len) + "])");
+        }
+
+        while (len != 0) {
+            flush(Constants.SIZEOF_DOUBLE);
+            int size = Math.min(buffer.remaining() / Constants.SIZEOF_DOUBLE, len);
+            buffer.asDoubleBuffer().put(ref, off, size);
+            buffer.position(buffer.position() + size * Constants.SIZEOF_DOUBLE);
+            off += size;
+            len -= size;
+        }
+    }
+
+    public void flush() throws IOException {
+        drain();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    public void finish() {
+        // empty
+    }
+
+    public boolean finished() {
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            flush();
+            if (out != null) {
+                out.close();
+            } else {
+                channel.close();
+            }
+        } finally {
+            DirectBufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    public int bufferSize() {
+        return BUF_SIZE;
+    }
+
+    public void writeByteBuffer(ByteBuffer value) throws IOException {
+
+        int len = value.remaining();
+
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("BufferedDirectOutputStream: writing ByteBuffer of size " + len);
+        }
+
+        if (len > buffer.remaining()) {
+            drain();
+            if (len >= BUF_SIZE) {
+                // Hand large buffers to the channel directly.
+                writeFully(value);
+                return;
+            }
+        }
+        buffer.put(value);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An <code>OutputStream</code> on top of a blocking
+ * <code>WritableByteChannel</code>, that is a channel itself as well.
+ * Unlike the streams returned by
+ * {@link java.nio.channels.Channels#newOutputStream(WritableByteChannel)},
+ * it allows layers that know about channels, such as the
+ * {@link OutputStreamSplitter}, to hand byte buffers straight to the
+ * channel.
+ */
+public final class ChannelOutputStream extends OutputStream implements
+        WritableByteChannel {
+
+    /** The underlying channel. */
+    private final WritableByteChannel channel;
+
+    /** Buffer for single byte writes. */
+    private ByteBuffer single = null;
+
+    /**
+     * Constructor.
+     * @param channel the underlying channel, which must be in blocking mode.
+     */
+    public ChannelOutputStream(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void write(int b) throws IOException {
+        if (single == null) {
+            single = ByteBuffer.allocate(1);
+        }
+        single.clear();
+        single.put((byte) b);
+        single.flip();
+        write(single);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+        return len;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
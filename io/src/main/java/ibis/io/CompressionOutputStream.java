@@ -0,0 +1,269 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An <code>OutputStream</code> that compresses the data written to it, and
+ * writes it in blocks to an underlying {@link DataOutputStream}. A block
+ * ends when it is full, or when the stream is flushed, so a message
+ * typically is a single block. Each block is preceded by a header that
+ * tells the {@link DecompressionInputStream} on the other side how the
+ * block is encoded, so the codec may be changed at any time.
+ *
+ * Blocks that are smaller than the <code>ibis.io.compression.threshold</code>
+ * property are not compressed, and neither are blocks for which
+ * compression does not pay off. After such a block, compression is
+ * skipped for a number of blocks that doubles each time compression fails
+ * again, so that streams of incompressible data (for instance, data that is
+ * already compressed) hardly cost any CPU time.
+ */
+public final class CompressionOutputStream extends OutputStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressionOutputStream.class);
+
+    private static final boolean DEBUG = IOProperties.DEBUG;
+
+    /** Block encoding: the data is not compressed. */
+    static final byte STORED = 0;
+
+    /** Block encoding: the data is compressed with LZ4. */
+    static final byte LZ4 = 1;
+
+    /** Block encoding: the data is compressed with Deflate. */
+    static final byte DEFLATE = 2;
+
+    /** Maximum number of blocks that is skipped after a failure. */
+    private static final int MAX_BACKOFF = 64;
+
+    /** The underlying stream. */
+    private final DataOutputStream out;
+
+    /** Statistics, or <code>null</code>. */
+    private final CompressionStatistics statistics;
+
+    /** The block size. */
+    private final int blockSize;
+
+    /** Blocks smaller than this are not compressed. */
+    private final int threshold;
+
+    /** The block being filled. */
+    private final byte[] block;
+
+    /** Number of bytes in the current block. */
+    private int index = 0;
+
+    /** Buffer for the compressed block, allocated when needed. */
+    private byte[] compressed = null;
+
+    /** The codec used for new blocks. */
+    private volatile byte codec;
+
+    private Lz4Codec lz4 = null;
+
+    private Deflater deflater = null;
+
+    /** Number of blocks to skip after the last compression failure. */
+    private int backoff = 0;
+
+    /** Number of blocks still to be stored without trying compression. */
+    private int skip = 0;
+
+    /**
+     * Constructor.
+     * @param out the underlying stream.
+     * @param codec the name of the codec: "lz4", "deflate" or "none".
+     * @param statistics the statistics to add to, or <code>null</code>.
+     * @exception IllegalArgumentException is thrown when the codec is not
+     *     recognized.
+     */
+    public CompressionOutputStream(DataOutputStream out, String codec,
+            CompressionStatistics statistics) {
+        this.out = out;
+        this.statistics = statistics;
+        blockSize = IOProperties.COMPRESSION_BLOCK_SIZE;
+        threshold = IOProperties.COMPRESSION_THRESHOLD;
+        block = new byte[blockSize];
+        setCodec(codec);
+    }
+
+    /**
+     * Returns the block encoding of the specified codec name, or -1 if it
+     * is not recognized.
+     */
+    private static byte parseCodec(String codec) {
+        if ("lz4".equalsIgnoreCase(codec)) {
+            return LZ4;
+        }
+        if ("deflate".equalsIgnoreCase(codec)) {
+            return DEFLATE;
+        }
+        if ("none".equalsIgnoreCase(codec)) {
+            return STORED;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether the specified codec name is recognized.
+     * @param codec the name of the codec.
+     * @return whether the codec is recognized.
+     */
+    public static boolean isCodec(String codec) {
+        return parseCodec(codec) >= 0;
+    }
+
+    /**
+     * Sets the codec for subsequent blocks.
+     * @param codec the name of the codec: "lz4", "deflate" or "none".
+     * @exception IllegalArgumentException is thrown when the codec is not
+     *     recognized.
+     */
+    public void setCodec(String codec) {
+        byte c = parseCodec(codec);
+        if (c < 0) {
+            throw new IllegalArgumentException("Unknown compression codec "
+                    + codec);
+        }
+        this.codec = c;
+    }
+
+    public void write(int b) throws IOException {
+        if (index == blockSize) {
+            writeBlock();
+        }
+        block[index++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (index == blockSize) {
+                writeBlock();
+            }
+            int n = Math.min(len, blockSize - index);
+            System.arraycopy(b, off, block, index, n);
+            index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compresses the current block with the specified codec.
+     * @return the compressed size, or -1 if the compressed block would not
+     *     be smaller than the original.
+     */
+    private int compress(byte c) {
+        if (c == LZ4) {
+            if (lz4 == null) {
+                lz4 = new Lz4Codec();
+                compressed = new byte[Lz4Codec.maxCompressedLength(blockSize)];
+            }
+            int len = lz4.compress(block, 0, index, compressed, 0);
+            return len < index ? len : -1;
+        }
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        if (compressed == null) {
+            compressed = new byte[blockSize];
+        }
+        deflater.reset();
+        deflater.setInput(block, 0, index);
+        deflater.finish();
+        int len = deflater.deflate(compressed, 0, index);
+        return deflater.finished() && len < index ? len : -1;
+    }
+
+    /**
+     * Writes the current block to the underlying stream.
+     */
+    private void writeBlock() throws IOException {
+        if (index == 0) {
+            return;
+        }
+
+        byte c = codec;
+        int len = -1;
+        long time = 0;
+
+        if (c != STORED && index >= threshold) {
+            if (skip > 0) {
+                skip--;
+            } else {
+                time = CompressionStatistics.time();
+                len = compress(c);
+                time = CompressionStatistics.time() - time;
+                // Compression does not pay off when it saves less than 10%.
+                if (len < 0 || len > index - index / 10) {
+                    backoff = backoff == 0 ? 1 : Math.min(2 * backoff,
+                            MAX_BACKOFF);
+                    skip = backoff;
+                } else {
+                    backoff = 0;
+                }
+            }
+        }
+
+        if (DEBUG && logger.isDebugEnabled()) {
+            logger.debug("writeBlock: " + index + " bytes, codec " + c
+                    + ", compressed " + len);
+        }
+
+        if (len < 0) {
+            out.writeByte(STORED);
+            out.writeInt(index);
+            out.writeArray(block, 0, index);
+            len = index;
+        } else {
+            out.writeByte(c);
+            out.writeInt(index);
+            out.writeInt(len);
+            out.writeArray(compressed, 0, len);
+        }
+
+        if (statistics != null) {
+            statistics.add(index, len, time);
+        }
+        index = 0;
+    }
+
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+            out.close();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Statistics of a compression stage: the number of bytes before and after
+ * compression, and the CPU time spent compressing or decompressing. One
+ * statistics object may be shared by several streams, for instance by all
+ * connections of a receive port.
+ */
+public final class CompressionStatistics {
+
+    /** For measuring thread CPU time, or <code>null</code> if unavailable. */
+    private static final ThreadMXBean threadBean;
+
+    static {
+        ThreadMXBean b = null;
+        try {
+            b = ManagementFactory.getThreadMXBean();
+            if (! b.isCurrentThreadCpuTimeSupported()) {
+                b = null;
+            }
+        } catch (Throwable e) {
+            // Not available on this platform.
+        }
+        threadBean = b;
+    }
+
+    /** Number of bytes before compression. */
+    private long rawBytes = 0;
+
+    /** Number of bytes after compression, including stored blocks. */
+    private long compressedBytes = 0;
+
+    /** CPU time spent compressing or decompressing, in nanoseconds. */
+    private long cpuTime = 0;
+
+    /**
+     * Returns the CPU time of the current thread in nanoseconds, or the
+     * elapsed time if thread CPU time cannot be measured on this platform.
+     * Only differences between values returned by this method are
+     * meaningful.
+     * @return the time in nanoseconds.
+     */
+    static long time() {
+        if (threadBean != null) {
+            return threadBean.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    synchronized void add(long raw, long compressed, long cpu) {
+        rawBytes += raw;
+        compressedBytes += compressed;
+        cpuTime += cpu;
+    }
+
+    /**
+     * Returns the number of bytes before compression.
+     * @return the number of bytes.
+     */
+    public synchronized long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * Returns the number of bytes after compression.
+     * @return the number of bytes.
+     */
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Returns the compression ratio so far: the number of bytes before
+     * compression divided by the number of bytes after compression.
+     * @return the compression ratio, or 1 if nothing was compressed yet.
+     */
+    public synchronized double getRatio() {
+        if (compressedBytes == 0) {
+            return 1.0;
+        }
+        return (double) rawBytes / compressedBytes;
+    }
+
+    /**
+     * Returns the CPU time spent compressing or decompressing.
+     * @return the CPU time in nanoseconds.
+     */
+    public synchronized long getCpuTime() {
+        return cpuTime;
+    }
+}
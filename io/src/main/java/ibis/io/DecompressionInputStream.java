@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An <code>InputStream</code> that reads the blocks written by a
+ * {@link CompressionOutputStream} from an underlying
+ * {@link DataInputStream}, and decompresses them. A block is only read
+ * when the previous one has been consumed completely, so this stream never
+ * reads beyond the last block that was flushed by the sender.
+ */
+public final class DecompressionInputStream extends InputStream {
+
+    /** The underlying stream. */
+    private final DataInputStream in;
+
+    /** Statistics, or <code>null</code>. */
+    private final CompressionStatistics statistics;
+
+    /** The decompressed current block. */
+    private byte[] block = new byte[0];
+
+    /** Buffer for the compressed block. */
+    private byte[] compressed = new byte[0];
+
+    /** Position in the current block. */
+    private int index = 0;
+
+    /** Size of the current block. */
+    private int size = 0;
+
+    private Inflater inflater = null;
+
+    /**
+     * Constructor.
+     * @param in the underlying stream.
+     * @param statistics the statistics to add to, or <code>null</code>.
+     */
+    public DecompressionInputStream(DataInputStream in,
+            CompressionStatistics statistics) {
+        this.in = in;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Reads the next block from the underlying stream.
+     * @return <code>false</code> if the end of the stream is reached.
+     */
+    private boolean readBlock() throws IOException {
+        byte c;
+        try {
+            c = in.readByte();
+        } catch (EOFException e) {
+            return false;
+        }
+        int len = in.readInt();
+        if (len < 0) {
+            throw new IOException("Corrupt compressed stream");
+        }
+        if (block.length < len) {
+            block = new byte[len];
+        }
+
+        if (c == CompressionOutputStream.STORED) {
+            in.readArray(block, 0, len);
+            if (statistics != null) {
+                statistics.add(len, len, 0);
+            }
+        } else {
+            int clen = in.readInt();
+            if (clen < 0) {
+                throw new IOException("Corrupt compressed stream");
+            }
+            if (compressed.length < clen) {
+                compressed = new byte[clen];
+            }
+            in.readArray(compressed, 0, clen);
+
+            long time = CompressionStatistics.time();
+            if (c == CompressionOutputStream.LZ4) {
+                Lz4Codec.decompress(compressed, 0, clen, block, 0, len);
+            } else if (c == CompressionOutputStream.DEFLATE) {
+                inflate(clen, len);
+            } else {
+                throw new IOException("Unknown block encoding " + c);
+            }
+            if (statistics != null) {
+                statistics.add(len, clen, CompressionStatistics.time() - time);
+            }
+        }
+
+        index = 0;
+        size = len;
+        return true;
+    }
+
+    private void inflate(int clen, int len) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(compressed, 0, clen);
+        try {
+            int n = 0;
+            while (n < len && ! inflater.finished()) {
+                int r = inflater.inflate(block, n, len - n);
+                if (r == 0 && (inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != len) {
+                throw new IOException("Corrupt compressed data");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data: " + e.getMessage());
+        }
+    }
+
+    public int read() throws IOException {
+        while (index == size) {
+            if (! readBlock()) {
+                return -1;
+            }
+        }
+        return block[index++] & 0377;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (index == size) {
+            if (! readBlock()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, size - index);
+        System.arraycopy(block, index, b, off, n);
+        index += n;
+        return n;
+    }
+
+    public int available() {
+        return size - index;
+    }
+
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+}
@@ -30,6 +30,9 @@ public class DeepCopy {
     private static final String serialization
             = IOProperties.properties.getProperty(IOProperties.s_deepcopy_ser, "ibis");
 
+    private static final boolean direct
+            = IOProperties.properties.getBooleanProperty(IOProperties.s_deepcopy_direct, true);
+
     /** Prevent creation of a DeepCopy object. */
     private DeepCopy() {
         // Nothing. Not to be called.
@@ -1449,10 +1452,21 @@ public class DeepCopy {
 
     /**
      * Creates and returns a deep copy of the specified object.
+     * When the object graph permits it, the objects are cloned directly
+     * (see {@link DirectDeepCopy}); otherwise, the graph is serialized and
+     * deserialized again.
      * @param o the object to be copied
      * @return the copy.
      */
     public static Serializable deepCopy(Serializable o) {
+        if (direct) {
+            try {
+                return (Serializable) DirectDeepCopy.copy(o);
+            } catch (DirectDeepCopy.NotCopyableException e) {
+                // Fall back to serialization.
+            }
+        }
+
         Store store = new Store();
         StoreArrayInputStream input = new StoreArrayInputStream(store);
         StoreArrayOutputStream output = new StoreArrayOutputStream(store);
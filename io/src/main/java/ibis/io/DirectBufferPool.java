@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A pool of direct (off-heap) byte buffers, used by the direct-buffer data
+ * streams. Allocating direct buffers is expensive, and the memory they
+ * occupy is only reclaimed when the garbage collector happens to collect
+ * the buffer objects, so streams return their buffers here when they are
+ * closed. The number of idle buffers of each size that is kept is bounded
+ * by the <code>ibis.io.buffer.direct.pool.size</code> property.
+ *
+ * Buffers obtained from the pool are cleared and have little-endian byte
+ * order, which is the byte order of the Ibis data streams.
+ */
+public final class DirectBufferPool {
+
+    /** Maximum number of idle buffers of each size. */
+    private static final int MAX_IDLE = IOProperties.DIRECT_BUFFER_POOL_SIZE;
+
+    /** Idle buffers, indexed by capacity. */
+    private static final HashMap<Integer, ArrayList<ByteBuffer>> pool
+            = new HashMap<Integer, ArrayList<ByteBuffer>>();
+
+    private DirectBufferPool() {
+        // prevent construction.
+    }
+
+    /**
+     * Returns a direct buffer with the specified capacity, either from the
+     * pool or newly allocated.
+     * @param size the capacity of the buffer.
+     * @return the buffer.
+     */
+    public static ByteBuffer get(int size) {
+        ByteBuffer b = null;
+        synchronized (pool) {
+            ArrayList<ByteBuffer> l = pool.get(size);
+            if (l != null && l.size() > 0) {
+                b = l.remove(l.size() - 1);
+            }
+        }
+        if (b == null) {
+            b = ByteBuffer.allocateDirect(size);
+        }
+        b.clear();
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        return b;
+    }
+
+    /**
+     * Returns the specified buffer to the pool. The buffer may not be used
+     * by the caller anymore.
+     * @param b the buffer.
+     */
+    public static void release(ByteBuffer b) {
+        if (b == null || ! b.isDirect()) {
+            return;
+        }
+        synchronized (pool) {
+            ArrayList<ByteBuffer> l = pool.get(b.capacity());
+            if (l == null) {
+                l = new ArrayList<ByteBuffer>();
+                pool.put(b.capacity(), l);
+            }
+            if (l.size() < MAX_IDLE) {
+                l.add(b);
+            }
+        }
+    }
+}
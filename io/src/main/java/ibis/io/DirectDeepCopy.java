@@ -0,0 +1,304 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Creates deep copies of object graphs by cloning the objects directly,
+ * field by field, without going through a serialization stream. Only
+ * objects of which the serialized form consists of just their serializable
+ * fields can be copied this way: the copier gives up (by throwing a
+ * {@link NotCopyableException}) as soon as it encounters an object that is
+ * externalizable, not serializable, or that has a <code>writeObject</code>,
+ * <code>readObject</code>, <code>writeReplace</code> or
+ * <code>readResolve</code> method somewhere in its serializable class
+ * hierarchy. {@link DeepCopy} then falls back to serialization.
+ *
+ * The field information is obtained from {@link AlternativeTypeInfo}, so
+ * transient fields are reset and the constructor of the first
+ * non-serializable superclass is run, just like serialization would do.
+ */
+final class DirectDeepCopy {
+
+    /**
+     * Thrown when the object graph contains an object that cannot be copied
+     * directly.
+     */
+    static final class NotCopyableException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        NotCopyableException(String msg) {
+            super(msg);
+        }
+
+        NotCopyableException(String msg, Throwable cause) {
+            super(msg, cause);
+        }
+    }
+
+    /**
+     * Per-class copy information: the type infos of the serializable levels
+     * of the class, from the topmost serializable superclass down to the
+     * class itself, or {@link #NOT_COPYABLE} if the class cannot be copied
+     * directly.
+     */
+    private static final HashMap<Class<?>, AlternativeTypeInfo[]> levels
+            = new HashMap<Class<?>, AlternativeTypeInfo[]>();
+
+    /** Marker for classes that cannot be copied directly. */
+    private static final AlternativeTypeInfo[] NOT_COPYABLE
+            = new AlternativeTypeInfo[0];
+
+    /** Maps originals to their copies, to preserve sharing and cycles. */
+    private final IdentityHashMap<Object, Object> copies
+            = new IdentityHashMap<Object, Object>();
+
+    /**
+     * Objects that have been allocated, but of which the fields or elements
+     * still must be filled in, stored as (original, copy) pairs.
+     */
+    private final ArrayList<Object> todo = new ArrayList<Object>();
+
+    private DirectDeepCopy() {
+        // use copy()
+    }
+
+    /**
+     * Creates and returns a deep copy of the specified object.
+     * @param o the object to be copied
+     * @return the copy.
+     * @exception NotCopyableException is thrown when the object graph
+     *     contains an object that must be copied through serialization.
+     */
+    static Object copy(Object o) throws NotCopyableException {
+        DirectDeepCopy c = new DirectDeepCopy();
+        Object result = c.copyRef(o);
+        c.fill();
+        return result;
+    }
+
+    private static boolean isImmutable(Object o) {
+        return o instanceof String || o instanceof Class || o instanceof Enum
+                || o instanceof Integer || o instanceof Long
+                || o instanceof Double || o instanceof Float
+                || o instanceof Short || o instanceof Character
+                || o instanceof Byte || o instanceof Boolean;
+    }
+
+    /**
+     * Returns the copy of the specified reference, allocating it if it
+     * does not exist yet. The contents of a newly allocated copy are filled
+     * in later, by {@link #fill()}, so that deep graphs do not cause deep
+     * recursion.
+     */
+    private Object copyRef(Object o) throws NotCopyableException {
+        if (o == null || isImmutable(o)) {
+            return o;
+        }
+
+        Object c = copies.get(o);
+        if (c != null) {
+            return c;
+        }
+
+        Class<?> clazz = o.getClass();
+
+        if (clazz.isArray()) {
+            Class<?> component = clazz.getComponentType();
+            if (component.isPrimitive()) {
+                c = clonePrimitiveArray(o, component);
+                copies.put(o, c);
+                return c;
+            }
+            c = Array.newInstance(component, ((Object[]) o).length);
+        } else {
+            getLevels(clazz);
+            try {
+                c = AlternativeTypeInfo.getAlternativeTypeInfo(clazz)
+                        .newInstance();
+            } catch (Exception e) {
+                throw new NotCopyableException("Could not create an instance of "
+                        + clazz.getName(), e);
+            } catch (SerializationError e) {
+                // No serialization info could be built for the class.
+                throw new NotCopyableException("Could not create an instance of "
+                        + clazz.getName(), e);
+            }
+            if (c == null) {
+                throw new NotCopyableException("Could not create an instance of "
+                        + clazz.getName());
+            }
+        }
+
+        copies.put(o, c);
+        todo.add(o);
+        todo.add(c);
+        return c;
+    }
+
+    private static Object clonePrimitiveArray(Object o, Class<?> component) {
+        if (component == Byte.TYPE) {
+            return ((byte[]) o).clone();
+        } else if (component == Integer.TYPE) {
+            return ((int[]) o).clone();
+        } else if (component == Double.TYPE) {
+            return ((double[]) o).clone();
+        } else if (component == Long.TYPE) {
+            return ((long[]) o).clone();
+        } else if (component == Float.TYPE) {
+            return ((float[]) o).clone();
+        } else if (component == Character.TYPE) {
+            return ((char[]) o).clone();
+        } else if (component == Short.TYPE) {
+            return ((short[]) o).clone();
+        }
+        return ((boolean[]) o).clone();
+    }
+
+    /**
+     * Fills in the fields or elements of all allocated copies.
+     */
+    private void fill() throws NotCopyableException {
+        while (todo.size() > 0) {
+            Object c = todo.remove(todo.size() - 1);
+            Object o = todo.remove(todo.size() - 1);
+            if (o instanceof Object[]) {
+                Object[] src = (Object[]) o;
+                Object[] dst = (Object[]) c;
+                for (int i = 0; i < src.length; i++) {
+                    dst[i] = copyRef(src[i]);
+                }
+            } else {
+                AlternativeTypeInfo[] l = getLevels(o.getClass());
+                try {
+                    for (int i = 0; i < l.length; i++) {
+                        copyFields(l[i], o, c);
+                    }
+                } catch (NotCopyableException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new NotCopyableException("Could not copy fields of "
+                            + o.getClass().getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the serializable fields declared at the level of the specified
+     * type info. The fields are ordered by type, see
+     * {@link AlternativeTypeInfo}.
+     */
+    private void copyFields(AlternativeTypeInfo t, Object o, Object c)
+            throws IllegalAccessException, NotCopyableException {
+        Field[] fields = t.serializable_fields;
+        if (fields == null) {
+            return;
+        }
+        int i = 0;
+        for (int n = 0; n < t.double_count; n++, i++) {
+            fields[i].setDouble(c, fields[i].getDouble(o));
+        }
+        for (int n = 0; n < t.long_count; n++, i++) {
+            fields[i].setLong(c, fields[i].getLong(o));
+        }
+        for (int n = 0; n < t.float_count; n++, i++) {
+            fields[i].setFloat(c, fields[i].getFloat(o));
+        }
+        for (int n = 0; n < t.int_count; n++, i++) {
+            fields[i].setInt(c, fields[i].getInt(o));
+        }
+        for (int n = 0; n < t.short_count; n++, i++) {
+            fields[i].setShort(c, fields[i].getShort(o));
+        }
+        for (int n = 0; n < t.char_count; n++, i++) {
+            fields[i].setChar(c, fields[i].getChar(o));
+        }
+        for (int n = 0; n < t.byte_count; n++, i++) {
+            fields[i].setByte(c, fields[i].getByte(o));
+        }
+        for (int n = 0; n < t.boolean_count; n++, i++) {
+            fields[i].setBoolean(c, fields[i].getBoolean(o));
+        }
+        for (int n = 0; n < t.reference_count; n++, i++) {
+            fields[i].set(c, copyRef(fields[i].get(o)));
+        }
+    }
+
+    /**
+     * Returns the serializable levels of the specified class, or throws an
+     * exception if the class cannot be copied directly.
+     */
+    private static AlternativeTypeInfo[] getLevels(Class<?> clazz)
+            throws NotCopyableException {
+        AlternativeTypeInfo[] l;
+        synchronized (levels) {
+            l = levels.get(clazz);
+            if (l == null) {
+                l = computeLevels(clazz);
+                levels.put(clazz, l);
+            }
+        }
+        if (l == NOT_COPYABLE) {
+            throw new NotCopyableException("Class " + clazz.getName()
+                    + " cannot be copied directly");
+        }
+        return l;
+    }
+
+    private static AlternativeTypeInfo[] computeLevels(Class<?> clazz) {
+        AlternativeTypeInfo t;
+        try {
+            t = AlternativeTypeInfo.getAlternativeTypeInfo(clazz);
+        } catch (Exception e) {
+            // For instance, the fields of the class cannot be made accessible.
+            return NOT_COPYABLE;
+        } catch (SerializationError e) {
+            // No serialization info could be built for the class.
+            return NOT_COPYABLE;
+        }
+
+        if (!t.isSerializable || t.isExternalizable) {
+            return NOT_COPYABLE;
+        }
+
+        AlternativeTypeInfo[] l = new AlternativeTypeInfo[t.level];
+        for (int i = l.length - 1; i >= 0; i--) {
+            if (t.hasWriteObject || t.hasReadObject || t.hasReplace
+                    || t.hasResolve) {
+                return NOT_COPYABLE;
+            }
+            if (t.serializable_fields != null) {
+                for (Field f : t.serializable_fields) {
+                    if (f == null) {
+                        // serialPersistentFields entry without a real field.
+                        return NOT_COPYABLE;
+                    }
+                }
+            }
+            l[i] = t;
+            t = t.alternativeSuperInfo;
+        }
+        return l;
+    }
+}
@@ -69,6 +69,23 @@ public final class IOProperties {
 
     static final String s_array_buffer = PREFIX + "array.buffer";
 
+    static final String s_buffer_adaptive = PREFIX + "buffer.adaptive";
+
+    static final String s_buffer_adaptive_min = s_buffer_adaptive + ".min";
+
+    static final String s_buffer_adaptive_max = s_buffer_adaptive + ".max";
+
+    static final String s_buffer_direct = PREFIX + "buffer.direct";
+
+    static final String s_compression_block_size = PREFIX
+            + "compression.block.size";
+
+    static final String s_compression_threshold = PREFIX
+            + "compression.threshold";
+
+    static final String s_buffer_direct_pool_size = s_buffer_direct
+            + ".pool.size";
+
     static final String s_debug = PREFIX + "debug";
 
     static final String s_asserts = PREFIX + "assert";
@@ -85,6 +102,11 @@ public final class IOProperties {
 
     static final String s_deepcopy_ser = PREFIX + "deepcopy.serialization";
 
+    static final String s_deepcopy_direct = PREFIX + "deepcopy.direct";
+
+    static final String s_serialization_pool_size = PREFIX
+            + "serialization.pool.size";
+
     private static final String[][] propertiesList = new String[][] {
             { PROPERTIES_FILE, PROPERTIES_FILENAME,
                     "String: determines the file name of the Ibis IO properties "
@@ -116,6 +138,29 @@ public final class IOProperties {
                             + "used in Ibis serialization" },
             { s_array_buffer, "32",
                     "Integer: determines the size of the buffer for arrays" },
+            { s_buffer_adaptive, "false",
+                    "Boolean: if true, buffered output streams adapt their "
+                            + "buffer size to the sizes of recent messages" },
+            { s_buffer_adaptive_min, "1024",
+                    "Integer: determines the minimum size of adaptive "
+                            + "output buffers" },
+            { s_buffer_adaptive_max, "1048576",
+                    "Integer: determines the maximum size of adaptive "
+                            + "output buffers" },
+            { s_compression_block_size, "65536",
+                    "Integer: determines the size of the blocks in which "
+                            + "the data of compressed port types is "
+                            + "compressed" },
+            { s_compression_threshold, "512",
+                    "Integer: determines the size below which blocks are "
+                            + "not compressed" },
+            { s_buffer_direct, "false",
+                    "Boolean: if true, implementations that support it use "
+                            + "data streams that buffer in direct (off-heap) "
+                            + "byte buffers" },
+            { s_buffer_direct_pool_size, "32",
+                    "Integer: determines the maximum number of idle direct "
+                            + "buffers of each size that are kept for reuse" },
             { s_debug, "false", "Boolean: if true, enables log4j calls" },
             { s_asserts, "false", "Boolean: if true, enables some assertions" },
             { s_small_array_bound, "256",
@@ -135,7 +180,14 @@ public final class IOProperties {
             { s_serialization_default, "ibis",
                     "String: either \"ibis\" or \"sun\", determines the default object serialization" },
             { s_deepcopy_ser, "ibis",
-                    "String: determines the serialization used for DeepCopy" } };
+                    "String: determines the serialization used for DeepCopy" },
+            { s_deepcopy_direct, "true",
+                    "Boolean: if true, DeepCopy clones object graphs directly "
+                            + "when possible, instead of serializing them" },
+            { s_serialization_pool_size, "16",
+                    "Integer: determines the maximum number of idle "
+                            + "serialization tables of each kind that are kept "
+                            + "for reuse by an Ibis instance" } };
 
     static {
         properties = new TypedProperties(getDefaultProperties());
@@ -164,6 +216,30 @@ public final class IOProperties {
     public static final int CONVERSION_BUFFER_SIZE = properties
             .getIntProperty(s_conversion_buf_size, 32 * 1024);
 
+    public static final int SERIALIZATION_POOL_SIZE = properties
+            .getIntProperty(s_serialization_pool_size, 16);
+
+    public static final boolean ADAPTIVE_BUFFERS = properties
+            .getBooleanProperty(s_buffer_adaptive, false);
+
+    public static final int ADAPTIVE_BUFFER_MIN = properties
+            .getIntProperty(s_buffer_adaptive_min, 1024);
+
+    public static final int ADAPTIVE_BUFFER_MAX = properties
+            .getIntProperty(s_buffer_adaptive_max, 1024 * 1024);
+
+    public static final int COMPRESSION_BLOCK_SIZE = properties
+            .getIntProperty(s_compression_block_size, 64 * 1024);
+
+    public static final int COMPRESSION_THRESHOLD = properties
+            .getIntProperty(s_compression_threshold, 512);
+
+    public static final boolean DIRECT_BUFFERS = properties
+            .getBooleanProperty(s_buffer_direct, false);
+
+    public static final int DIRECT_BUFFER_POOL_SIZE = properties
+            .getIntProperty(s_buffer_direct_pool_size, 32);
+
     /**
      * Returns the hard-coded Ibis IO properties.
      *
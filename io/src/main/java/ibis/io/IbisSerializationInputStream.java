@@ -78,6 +78,9 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
     /** List of objects, for cycle checking. */
     private IbisVector objects;
 
+    /** Pool from which the object list is borrowed, or <code>null</code>. */
+    private final SerializationStatePool pool;
+
     /** First free object index. */
     private int next_handle;
 
@@ -164,8 +167,30 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
      *                gets thrown when an IO error occurs.
      */
     public IbisSerializationInputStream(DataInputStream in) throws IOException {
+        this(in, null);
+    }
+
+    /**
+     * Constructor with a <code>DataInputStream</code> and a pool from which
+     * the object table is borrowed. The table is returned to the pool when
+     * this stream is closed.
+     *
+     * @param in
+     *            the underlying <code>DataInputStream</code>
+     * @param pool
+     *            the pool, or <code>null</code>
+     * @exception IOException
+     *                gets thrown when an IO error occurs.
+     */
+    public IbisSerializationInputStream(DataInputStream in,
+            SerializationStatePool pool) throws IOException {
         super(in);
-        objects = new IbisVector(1024);
+        this.pool = pool;
+        if (pool != null) {
+            objects = pool.getObjectVector();
+        } else {
+            objects = new IbisVector(SerializationStatePool.OBJECT_VECTOR_SIZE);
+        }
         init(true);
     }
 
@@ -177,7 +202,8 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
      */
     protected IbisSerializationInputStream() throws IOException {
         super();
-        objects = new IbisVector(1024);
+        pool = null;
+        objects = new IbisVector(SerializationStatePool.OBJECT_VECTOR_SIZE);
         init(true);
     }
 
@@ -199,7 +225,13 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
 
     @Override
     public void close() throws IOException {
-        objects.clear();
+        if (objects != null) {
+            if (pool != null) {
+                pool.release(objects);
+            } else {
+                objects.clear();
+            }
+        }
         objects = null;
         types = null;
         current_object = null;
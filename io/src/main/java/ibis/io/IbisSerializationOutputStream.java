@@ -103,7 +103,7 @@ public class IbisSerializationOutputStream
     int next_handle;
 
     /** Hash table for keeping references to objects already written. */
-    private HandleHash references = new HandleHash(2048);
+    private HandleHash references;
 
     // private IbisHash references = new IbisHash(2048);
 
@@ -117,7 +117,10 @@ public class IbisSerializationOutputStream
     private int next_type;
 
     /** Hashtable for types already put on the stream. */
-    private IbisHash types = new IbisHash();
+    private IbisHash types;
+
+    /** Pool from which the tables are borrowed, or <code>null</code>. */
+    private final SerializationStatePool pool;
 
     /**
      * There is a notion of a "current" object. This is needed when a
@@ -173,8 +176,34 @@ public class IbisSerializationOutputStream
      */
     public IbisSerializationOutputStream(DataOutputStream out)
             throws IOException {
+        this(out, null);
+    }
+
+    /**
+     * Constructor with an <code>DataOutputStream</code> and a pool from which
+     * the handle and type tables are borrowed. The tables are returned to the
+     * pool when this stream is closed.
+     *
+     * @param out
+     *            the underlying <code>DataOutputStream</code>
+     * @param pool
+     *            the pool, or <code>null</code>
+     * @exception IOException
+     *                gets thrown when an IO error occurs.
+     */
+    public IbisSerializationOutputStream(DataOutputStream out,
+            SerializationStatePool pool) throws IOException {
         super(out);
 
+        this.pool = pool;
+        if (pool != null) {
+            references = pool.getHandleHash();
+            types = pool.getTypeHash();
+        } else {
+            references = new HandleHash(SerializationStatePool.HANDLE_HASH_SIZE);
+            types = new IbisHash();
+        }
+
         types_clear();
 
         next_type = Constants.PRIMITIVE_TYPES;
@@ -189,6 +218,9 @@ public class IbisSerializationOutputStream
      */
     protected IbisSerializationOutputStream() throws IOException {
         super();
+        pool = null;
+        references = new HandleHash(SerializationStatePool.HANDLE_HASH_SIZE);
+        types = new IbisHash();
         types_clear();
 
         next_type = Constants.PRIMITIVE_TYPES;
@@ -1157,6 +1189,10 @@ public class IbisSerializationOutputStream
     @Override
     public void close() throws IOException {
         super.close();
+        if (pool != null && references != null) {
+            pool.release(references);
+            pool.release(types);
+        }
         replacer = null;
         references = null;
         types = null;
@@ -65,6 +65,10 @@ public final class IbisVector {
         return array[index];
     }
 
+    final int capacity() {
+        return current_size;
+    }
+
     public final void clear() {
         for (int i = 0; i < maxfill; i++) {
             array[i] = null;
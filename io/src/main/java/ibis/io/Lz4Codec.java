@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java compressor and decompressor for the LZ4 block format. This
+ * is a fast, byte-oriented LZ77 variant: a compressed block is a sequence
+ * of (literals, match) pairs, where a match is a copy of earlier data at
+ * most 64 KB back. It compresses less than Deflate, but at a fraction of
+ * the CPU cost, which makes it suitable for compressing messages on the
+ * fly.
+ */
+final class Lz4Codec {
+
+    private static final int MIN_MATCH = 4;
+
+    /** The last bytes of a block are always literals. */
+    private static final int LAST_LITERALS = 5;
+
+    /** No match may start in the last bytes of a block. */
+    private static final int MF_LIMIT = 12;
+
+    private static final int MAX_DISTANCE = 65535;
+
+    private static final int HASH_LOG = 12;
+
+    private static final int RUN_MASK = 15;
+
+    private static final int SKIP_STRENGTH = 6;
+
+    /** Positions of the most recent occurrences of 4-byte sequences. */
+    private final int[] table = new int[1 << HASH_LOG];
+
+    /**
+     * Returns the maximum size of the compressed form of <code>len</code>
+     * bytes.
+     * @param len the number of bytes to be compressed.
+     * @return the maximum compressed size.
+     */
+    static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int writeLength(int len, byte[] dst, int dOff) {
+        while (len >= 255) {
+            dst[dOff++] = (byte) 255;
+            len -= 255;
+        }
+        dst[dOff++] = (byte) len;
+        return dOff;
+    }
+
+    private static int writeLiterals(byte[] src, int anchor, int len,
+            int matchToken, byte[] dst, int dOff) {
+        if (len >= RUN_MASK) {
+            dst[dOff++] = (byte) (RUN_MASK << 4 | matchToken);
+            dOff = writeLength(len - RUN_MASK, dst, dOff);
+        } else {
+            dst[dOff++] = (byte) (len << 4 | matchToken);
+        }
+        System.arraycopy(src, anchor, dst, dOff, len);
+        return dOff + len;
+    }
+
+    /**
+     * Compresses the specified bytes.
+     * @param src the bytes to be compressed.
+     * @param srcOff the offset of the first byte.
+     * @param srcLen the number of bytes.
+     * @param dst the destination, which must have room for
+     *     {@link #maxCompressedLength(int)} bytes.
+     * @param dstOff the offset in the destination.
+     * @return the size of the compressed data.
+     */
+    int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int sEnd = srcOff + srcLen;
+        int matchLimit = sEnd - LAST_LITERALS;
+        int mfLimit = sEnd - MF_LIMIT;
+        int anchor = srcOff;
+        int dOff = dstOff;
+
+        if (srcLen > MF_LIMIT) {
+            Arrays.fill(table, -1);
+            int sOff = srcOff;
+            int searches = 1 << SKIP_STRENGTH;
+
+            while (sOff < mfLimit) {
+                int seq = readInt(src, sOff);
+                int h = hash(seq);
+                int ref = table[h];
+                table[h] = sOff;
+
+                if (ref < 0 || sOff - ref > MAX_DISTANCE
+                        || readInt(src, ref) != seq) {
+                    // Speed up when no matches are found.
+                    sOff += searches++ >>> SKIP_STRENGTH;
+                    continue;
+                }
+                searches = 1 << SKIP_STRENGTH;
+
+                // Extend the match backwards.
+                while (sOff > anchor && ref > srcOff
+                        && src[sOff - 1] == src[ref - 1]) {
+                    sOff--;
+                    ref--;
+                }
+
+                int matchLen = MIN_MATCH;
+                while (sOff + matchLen < matchLimit
+                        && src[sOff + matchLen] == src[ref + matchLen]) {
+                    matchLen++;
+                }
+
+                int m = matchLen - MIN_MATCH;
+                int litLen = sOff - anchor;
+                dOff = writeLiterals(src, anchor, litLen,
+                        Math.min(m, RUN_MASK), dst, dOff);
+                int distance = sOff - ref;
+                dst[dOff++] = (byte) distance;
+                dst[dOff++] = (byte) (distance >>> 8);
+                if (m >= RUN_MASK) {
+                    dOff = writeLength(m - RUN_MASK, dst, dOff);
+                }
+
+                sOff += matchLen;
+                anchor = sOff;
+            }
+        }
+
+        dOff = writeLiterals(src, anchor, sEnd - anchor, 0, dst, dOff);
+        return dOff - dstOff;
+    }
+
+    /**
+     * Decompresses the specified bytes.
+     * @param src the compressed bytes.
+     * @param srcOff the offset of the first compressed byte.
+     * @param srcLen the number of compressed bytes.
+     * @param dst the destination.
+     * @param dstOff the offset in the destination.
+     * @param dstLen the size of the decompressed data.
+     * @exception IOException is thrown when the compressed data is corrupt.
+     */
+    static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst,
+            int dstOff, int dstLen) throws IOException {
+        int sOff = srcOff;
+        int sEnd = srcOff + srcLen;
+        int dOff = dstOff;
+        int dEnd = dstOff + dstLen;
+
+        try {
+            for (;;) {
+                int token = src[sOff++] & 0xff;
+
+                int litLen = token >>> 4;
+                if (litLen == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[sOff++] & 0xff;
+                        litLen += b;
+                    } while (b == 255);
+                }
+                if (sOff + litLen > sEnd || dOff + litLen > dEnd) {
+                    throw new IOException("Corrupt compressed data");
+                }
+                System.arraycopy(src, sOff, dst, dOff, litLen);
+                sOff += litLen;
+                dOff += litLen;
+
+                if (sOff == sEnd) {
+                    break;
+                }
+
+                int distance = (src[sOff] & 0xff) | (src[sOff + 1] & 0xff) << 8;
+                sOff += 2;
+
+                int matchLen = token & RUN_MASK;
+                if (matchLen == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[sOff++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                int ref = dOff - distance;
+                if (distance == 0 || ref < dstOff || dOff + matchLen > dEnd) {
+                    throw new IOException("Corrupt compressed data");
+                }
+                if (distance >= matchLen) {
+                    System.arraycopy(dst, ref, dst, dOff, matchLen);
+                    dOff += matchLen;
+                } else {
+                    // Overlapping copy: repeats the last distance bytes.
+                    for (int i = 0; i < matchLen; i++) {
+                        dst[dOff++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt compressed data");
+        }
+
+        if (dOff != dEnd) {
+            throw new IOException("Corrupt compressed data");
+        }
+    }
+}
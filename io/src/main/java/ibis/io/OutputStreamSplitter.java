@@ -21,6 +21,8 @@ import ibis.util.ThreadPool;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 
 /**
@@ -29,11 +31,18 @@ import java.util.ArrayList;
  * when the data is written to all streams, throw one large exception
  * that contains all previous exceptions.
  * This way, even when one of the streams dies, the rest will receive the data.
+ * The splitter is a channel as well: byte buffers written to it are handed
+ * straight to the underlying stream when there is just one, and that
+ * stream is a channel itself.
  **/
-public final class OutputStreamSplitter extends OutputStream {
+public final class OutputStreamSplitter extends OutputStream implements
+        WritableByteChannel {
 
     private static final int MAXTHREADS = 32;
 
+    /** Maximum size of the scratch array used to copy direct buffers. */
+    private static final int COPY_BUFFER_SIZE = 8192;
+
     private boolean removeOnException = false;
     private boolean saveException = false;
     private SplitterException savedException = null;
@@ -43,6 +52,12 @@ public final class OutputStreamSplitter extends OutputStream {
 
     private int numSenders = 0;
 
+    /**
+     * Scratch array for the data of a direct byte buffer, for streams that
+     * are no channel.
+     */
+    private byte[] copyBuffer = null;
+
     private class Sender implements Runnable {
         int offset;
         int len;
@@ -99,6 +114,19 @@ public final class OutputStreamSplitter extends OutputStream {
         }
     }
 
+    void doWrite(ByteBuffer buf, int index) {
+        try {
+            OutputStream o = out.get(index);
+            if (o != null) {
+                while (buf.hasRemaining()) {
+                    ((WritableByteChannel) o).write(buf);
+                }
+            }
+        } catch(IOException e) {
+            addException(e, index);
+        }
+    }
+
     void doFlush(int index) {
         try {
             OutputStream o = out.get(index);
@@ -243,6 +271,42 @@ public final class OutputStreamSplitter extends OutputStream {
         }
     }
 
+    public int write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        if (out.size() == 1 && out.get(0) instanceof WritableByteChannel) {
+            bytesWritten += len;
+            synchronized(this) {
+                while (numSenders != 0) {
+                    try {
+                        wait();
+                    } catch(Exception e) {
+                        // Ignored
+                    }
+                }
+                numSenders++;
+            }
+            doWrite(src, 0);
+            done();
+        } else if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), len);
+        } else {
+            if (copyBuffer == null) {
+                copyBuffer = new byte[COPY_BUFFER_SIZE];
+            }
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), copyBuffer.length);
+                src.get(copyBuffer, 0, n);
+                write(copyBuffer, 0, n);
+            }
+        }
+        src.position(src.limit());
+        return len;
+    }
+
+    public boolean isOpen() {
+        return true;
+    }
+
     public void flush() throws IOException {
         if (out.size() > 0) {
             synchronized(this) {
@@ -79,12 +79,44 @@ public class SerializationFactory {
      */
     public static SerializationInput createSerializationInput(String name,
             DataInputStream in, Properties props) throws IOException {
+        return createSerializationInput(name, in, props, null);
+    }
+
+    /**
+     * Creates a {@link SerializationInput} as specified by the name. If the
+     * serialization implementation supports it, its tables are borrowed from
+     * the specified pool.
+     * 
+     * @param name
+     *            the nickname for this serialization type.
+     * @param in
+     *            the underlying input stream.
+     * @param props
+     *            the properties to use
+     * @param pool
+     *            the pool to borrow serialization tables from, or
+     *            <code>null</code>.
+     * @return the serialization input stream.
+     * @exception IOException
+     *                gets thrown when an IO error occurs.
+     */
+    public static SerializationInput createSerializationInput(String name,
+            DataInputStream in, Properties props, SerializationStatePool pool)
+            throws IOException {
         String impl = implName(name, props) + "InputStream";
         try {
             Class<?> cl = Class.forName(impl);
-            Constructor<?> cons = cl
-                    .getConstructor(new Class[] { DataInputStream.class });
-            return (SerializationInput) cons.newInstance(new Object[] { in });
+            if (pool != null) {
+                try {
+                    Constructor<?> cons = cl.getConstructor(
+                            DataInputStream.class, SerializationStatePool.class);
+                    return (SerializationInput) cons.newInstance(in, pool);
+                } catch (NoSuchMethodException e) {
+                    // This serialization does not use pooled tables.
+                }
+            }
+            Constructor<?> cons = cl.getConstructor(DataInputStream.class);
+            return (SerializationInput) cons.newInstance(in);
         } catch (ClassNotFoundException e) {
             throw new IbisIOException("No such class: " + impl, e);
         } catch (NoSuchMethodException e) {
@@ -122,12 +154,44 @@ public class SerializationFactory {
      */
     public static SerializationOutput createSerializationOutput(String name,
             DataOutputStream out, Properties props) throws IOException {
+        return createSerializationOutput(name, out, props, null);
+    }
+
+    /**
+     * Creates a {@link SerializationOutput} as specified by the name. If the
+     * serialization implementation supports it, its tables are borrowed from
+     * the specified pool.
+     * 
+     * @param name
+     *            the nickname for this serialization type.
+     * @param out
+     *            the underlying output stream.
+     * @param props
+     *            the properties to use
+     * @param pool
+     *            the pool to borrow serialization tables from, or
+     *            <code>null</code>.
+     * @return the serialization output stream.
+     * @exception IOException
+     *                gets thrown when an IO error occurs.
+     */
+    public static SerializationOutput createSerializationOutput(String name,
+            DataOutputStream out, Properties props, SerializationStatePool pool)
+            throws IOException {
         String impl = implName(name, props) + "OutputStream";
         try {
             Class<?> cl = Class.forName(impl);
-            Constructor<?> cons = cl
-                    .getConstructor(new Class[] { DataOutputStream.class });
-            return (SerializationOutput) cons.newInstance(new Object[] { out });
+            if (pool != null) {
+                try {
+                    Constructor<?> cons = cl.getConstructor(
+                            DataOutputStream.class, SerializationStatePool.class);
+                    return (SerializationOutput) cons.newInstance(out, pool);
+                } catch (NoSuchMethodException e) {
+                    // This serialization does not use pooled tables.
+                }
+            }
+            Constructor<?> cons = cl.getConstructor(DataOutputStream.class);
+            return (SerializationOutput) cons.newInstance(out);
         } catch (ClassNotFoundException e) {
             throw new IbisIOException("No such class: " + impl, e);
         } catch (NoSuchMethodException e) {
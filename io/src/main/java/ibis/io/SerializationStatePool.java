@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.io;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of the tables that Ibis serialization streams need: the object
+ * handle and type tables of the output side, and the object table of the
+ * input side. Serialization streams that are created with a pool borrow
+ * their tables from it, and return them, cleared, when the stream is
+ * closed. This way, ports that connect and disconnect often do not have to
+ * allocate these tables over and over again.
+ *
+ * A pool is typically owned by an Ibis instance, and shared by all its
+ * ports. The number of idle tables of each kind that is kept is bounded, and
+ * tables that grew beyond their initial size are only kept if clearing them
+ * shrinks them again.
+ */
+public final class SerializationStatePool {
+
+    /** Initial size of the object handle table of an output stream. */
+    static final int HANDLE_HASH_SIZE = 2048;
+
+    /** Initial size of the object table of an input stream. */
+    static final int OBJECT_VECTOR_SIZE = 1024;
+
+    /** Maximum number of idle tables of each kind. */
+    private final int maxIdle;
+
+    private final ArrayList<HandleHash> handleHashes;
+
+    private final ArrayList<IbisHash> typeHashes;
+
+    private final ArrayList<IbisVector> objectVectors;
+
+    /** Number of requests satisfied from the pool. */
+    private long hits;
+
+    /** Number of requests that required a new table. */
+    private long misses;
+
+    /**
+     * Creates a pool with the size specified by the
+     * <code>ibis.io.serialization.pool.size</code> property.
+     */
+    public SerializationStatePool() {
+        this(IOProperties.SERIALIZATION_POOL_SIZE);
+    }
+
+    /**
+     * Creates a pool that keeps at most the specified number of idle tables
+     * of each kind.
+     * @param maxIdle the maximum number of idle tables of each kind.
+     */
+    public SerializationStatePool(int maxIdle) {
+        this.maxIdle = maxIdle;
+        handleHashes = new ArrayList<HandleHash>(maxIdle);
+        typeHashes = new ArrayList<IbisHash>(maxIdle);
+        objectVectors = new ArrayList<IbisVector>(maxIdle);
+    }
+
+    synchronized HandleHash getHandleHash() {
+        if (handleHashes.size() > 0) {
+            hits++;
+            return handleHashes.remove(handleHashes.size() - 1);
+        }
+        misses++;
+        return new HandleHash(HANDLE_HASH_SIZE);
+    }
+
+    synchronized IbisHash getTypeHash() {
+        if (typeHashes.size() > 0) {
+            hits++;
+            return typeHashes.remove(typeHashes.size() - 1);
+        }
+        misses++;
+        return new IbisHash();
+    }
+
+    synchronized IbisVector getObjectVector() {
+        if (objectVectors.size() > 0) {
+            hits++;
+            return objectVectors.remove(objectVectors.size() - 1);
+        }
+        misses++;
+        return new IbisVector(OBJECT_VECTOR_SIZE);
+    }
+
+    void release(HandleHash h) {
+        h.clear();
+        synchronized (this) {
+            if (handleHashes.size() < maxIdle) {
+                handleHashes.add(h);
+            }
+        }
+    }
+
+    void release(IbisHash h) {
+        h.clear();
+        synchronized (this) {
+            if (typeHashes.size() < maxIdle) {
+                typeHashes.add(h);
+            }
+        }
+    }
+
+    void release(IbisVector v) {
+        if (v.capacity() > OBJECT_VECTOR_SIZE) {
+            // clearing does not shrink it, so do not keep a grown vector
+            // around; a stream that needs a large one will grow its own.
+            return;
+        }
+        v.clear();
+        synchronized (this) {
+            if (objectVectors.size() < maxIdle) {
+                objectVectors.add(v);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of table requests that were satisfied from this
+     * pool.
+     * @return the number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of table requests that required a new table.
+     * @return the number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
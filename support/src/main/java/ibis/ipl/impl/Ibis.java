@@ -19,19 +19,26 @@ package ibis.ipl.impl;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ibis.io.IbisIOException;
+import ibis.io.SerializationStatePool;
 import ibis.ipl.Credentials;
 import ibis.ipl.IbisCapabilities;
 import ibis.ipl.IbisConfigurationException;
@@ -46,9 +53,11 @@ import ibis.ipl.ReceivePortConnectUpcall;
 import ibis.ipl.RegistryEventHandler;
 import ibis.ipl.SendPortDisconnectUpcall;
 import ibis.ipl.registry.Registry;
+import ibis.ipl.support.Client;
 import ibis.ipl.support.management.ManagementClient;
 import ibis.ipl.support.vivaldi.Coordinates;
 import ibis.ipl.support.vivaldi.VivaldiClient;
+import ibis.util.ThreadPool;
 import ibis.util.TypedProperties;
 
 /**
@@ -63,6 +72,11 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
     // at your own risk!
     public static final String ID_PROPERTY = "ibis.local.id";
 
+    // Property to start the services not needed to communicate (Vivaldi,
+    // management) in the background after joining, and to connect to the
+    // server while binding the sockets of this Ibis. Defaults to true.
+    public static final String STARTUP_LAZY_PROPERTY = "ibis.startup.lazy";
+
     /** Debugging output. */
     private static final Logger logger = LoggerFactory
             .getLogger("ibis.ipl.impl.Ibis");
@@ -86,10 +100,24 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
     private final Registry registry;
 
     /** Management Client */
-    private final ManagementClient managementClient;
+    private volatile ManagementClient managementClient;
 
     /** Vivaldi Client */
-    private final VivaldiClient vivaldiClient;
+    private volatile VivaldiClient vivaldiClient;
+
+    /** Services started in the background after joining the pool. */
+    private final ArrayList<FutureTask<Void>> lateStarts =
+        new ArrayList<FutureTask<Void>>();
+
+    /** Startup of the Vivaldi client, null if not enabled. */
+    private FutureTask<Void> vivaldiStart = null;
+
+    /** Time spent in each phase of the startup of this Ibis, in ms. */
+    private final Map<String, String> startupTimes =
+        new LinkedHashMap<String, String>();
+
+    /** Serialization tables, shared by the ports of this Ibis instance. */
+    private final SerializationStatePool serializationStatePool = new SerializationStatePool();
 
     /** Identifies this Ibis instance in the registry. */
     public final IbisIdentifier ident;
@@ -218,10 +246,52 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
             registryHandler = new RegistryEventHandlerWrapper(registryHandler,
                     this);
         }
+        // If not lazy, everything is started in turn, as before
+        boolean lazy = properties.getBooleanProperty(STARTUP_LAZY_PROPERTY,
+                true);
+
+        long start = System.nanoTime();
+
+        // Connecting to the server does not need the address of this Ibis,
+        // so do it while the implementation binds its server socket(s).
+        FutureTask<Client> server = null;
+        String registryName = properties
+                .getProperty(IbisProperties.REGISTRY_IMPLEMENTATION);
+        if (lazy && !createsClient()
+                && ("central".equalsIgnoreCase(registryName)
+                || "gossip".equalsIgnoreCase(registryName))) {
+            final Properties clientProperties = properties;
+            server = new FutureTask<Client>(new Callable<Client>() {
+                public Client call() throws Exception {
+                    return Client.getOrCreateClient(
+                            clientProperties.getProperty(ID_PROPERTY),
+                            clientProperties, 0);
+                }
+            });
+            ThreadPool.createNew(server, "Ibis server connection");
+        }
+
         try {
+            long phase = System.nanoTime();
+            byte[] data = getData();
+            startupTime("data", phase);
+
+            if (server != null) {
+                phase = System.nanoTime();
+                try {
+                    server.get();
+                } catch (Throwable e) {
+                    // the registry tries again, and reports the error
+                    logger.debug("could not connect to server", e);
+                }
+                startupTime("server", phase);
+            }
+
+            phase = System.nanoTime();
             registry = Registry.createRegistry(this.capabilities,
-                    registryHandler, properties, getData(),
+                    registryHandler, properties, data,
                     getImplementationVersion(), applicationTag, credentials);
+            startupTime("registry", phase);
         } catch (IbisConfigurationException e) {
             throw e;
         } catch (Throwable e) {
@@ -231,33 +301,43 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
 
         ident = registry.getIbisIdentifier();
 
-        if (properties.getBooleanProperty("ibis.vivaldi")) {
-            try {
-                vivaldiClient = new VivaldiClient(properties, registry);
-            } catch (Exception e) {
-                throw new IbisCreationFailedException(
-                        "Could not create vivaldi client", e);
-            }
-        } else {
-            vivaldiClient = null;
-        }
-
         if (properties.getBooleanProperty("ibis.bytescount")) {
             sentBytesPerIbis = new HashMap<ibis.ipl.IbisIdentifier, Long>();
             receivedBytesPerIbis = new HashMap<ibis.ipl.IbisIdentifier, Long>();
         }
 
+        // Vivaldi and the management client are not needed to communicate,
+        // so when lazy they are started in the background.
+
+        if (properties.getBooleanProperty("ibis.vivaldi")) {
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws Exception {
+                    long phase = System.nanoTime();
+                    vivaldiClient = new VivaldiClient(Ibis.this.properties,
+                            registry);
+                    startupTime("vivaldi", phase);
+                    return null;
+                }
+            });
+            vivaldiStart = task;
+            startService(task, "Vivaldi", lazy);
+        }
+
         if (properties.getBooleanProperty("ibis.managementclient")) {
-            try {
-                managementClient = new ManagementClient(properties, this);
-            } catch (Throwable e) {
-                throw new IbisCreationFailedException(
-                        "Could not create management client", e);
-            }
-        } else {
-            managementClient = null;
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws Exception {
+                    long phase = System.nanoTime();
+                    managementClient = new ManagementClient(
+                            Ibis.this.properties, Ibis.this);
+                    startupTime("management", phase);
+                    return null;
+                }
+            });
+            startService(task, "Management", lazy);
         }
 
+        startupTime("total", start);
+
         /*
          * // add bean to JMX try { MBeanServer mbs =
          * ManagementFactory.getPlatformMBeanServer(); ObjectName name = new
@@ -266,6 +346,65 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
          */
     }
 
+    private void startService(final FutureTask<Void> task,
+            final String name, boolean lazy)
+            throws IbisCreationFailedException {
+        if (lazy) {
+            synchronized (lateStarts) {
+                lateStarts.add(task);
+            }
+            // report a failure right away, not when the Ibis ends
+            ThreadPool.createNew(new Runnable() {
+                public void run() {
+                    task.run();
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        logger.error("Could not create " + name.toLowerCase()
+                                + " client", e.getCause());
+                    } catch (InterruptedException e) {
+                        // cannot happen, the task is done
+                    }
+                }
+            }, "Ibis " + name + " startup");
+            return;
+        }
+
+        task.run();
+        try {
+            task.get();
+        } catch (Throwable e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            throw new IbisCreationFailedException("Could not create "
+                    + name.toLowerCase() + " client", cause);
+        }
+    }
+
+    // waits until the services started in the background are running, or
+    // failed to start (which was reported when it happened)
+    private void awaitLateStarts() {
+        FutureTask<?>[] tasks;
+        synchronized (lateStarts) {
+            tasks = lateStarts.toArray(new FutureTask<?>[lateStarts.size()]);
+        }
+
+        for (FutureTask<?> task : tasks) {
+            try {
+                task.get();
+            } catch (Throwable e) {
+                // IGNORE
+            }
+        }
+    }
+
+    private void startupTime(String phase, long start) {
+        double time = (System.nanoTime() - start) / 1000000.0;
+        synchronized (startupTimes) {
+            startupTimes.put("startup." + phase,
+                    String.format(Locale.ROOT, "%.3f", time));
+        }
+    }
+
     void died(ibis.ipl.IbisIdentifier corpse) {
         killConnections(corpse);
     }
@@ -354,6 +493,8 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
             }
         }
 
+        awaitLateStarts();
+
         if (managementClient != null) {
             managementClient.end();
         }
@@ -467,6 +608,16 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
         return sendPorts.get(name);
     }
 
+    /**
+     * Returns the pool of serialization tables shared by the ports of this
+     * Ibis instance.
+     *
+     * @return the serialization state pool.
+     */
+    public SerializationStatePool getSerializationStatePool() {
+        return serializationStatePool;
+    }
+
     public ReceivePortIdentifier createReceivePortIdentifier(String name,
             IbisIdentifier id) {
         return new ReceivePortIdentifier(name, id);
@@ -497,6 +648,19 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
      */
     protected abstract byte[] getData() throws IOException;
 
+    /**
+     * Returns whether {@link #getData()} creates the {@link Client} of this
+     * Ibis itself. If so, the connection to the server is not set up while
+     * <code>getData()</code> runs, as that would create the client first, and
+     * decide its settings (such as its local port) instead. The default
+     * implementation returns <code>false</code>.
+     *
+     * @return whether <code>getData()</code> creates the client.
+     */
+    protected boolean createsClient() {
+        return false;
+    }
+
     public ibis.ipl.SendPort createSendPort(PortType tp) throws IOException {
         return createSendPort(tp, null, null, null);
     }
@@ -769,8 +933,23 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
 
     /*
      * @ibis.experimental
+     *
+     * If the Vivaldi client is started in the background (see
+     * STARTUP_LAZY_PROPERTY), waits until it is running. Returns null if
+     * Vivaldi is not enabled, or could not be started.
      */
     public Coordinates getVivaldiCoordinates() {
+        if (vivaldiStart != null) {
+            try {
+                vivaldiStart.get();
+            } catch (ExecutionException e) {
+                // reported when it happened
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
         if (vivaldiClient == null) {
             return null;
         }
@@ -853,6 +1032,15 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
         result.put("incomingMessageCount", "" + getIncomingMessageCount());
         result.put("bytesReceived", "" + getBytesReceived());
         result.put("bytesRead", "" + getBytesRead());
+        result.put("serializationPoolHits", ""
+                + serializationStatePool.getHits());
+        result.put("serializationPoolMisses", ""
+                + serializationStatePool.getMisses());
+
+        // time spent in each phase of the startup, in milliseconds
+        synchronized (startupTimes) {
+            result.putAll(startupTimes);
+        }
 
         return result;
     }
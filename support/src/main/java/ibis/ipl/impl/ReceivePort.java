@@ -30,6 +30,7 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ibis.io.CompressionStatistics;
 import ibis.io.SerializationInput;
 import ibis.ipl.ConnectionClosedException;
 import ibis.ipl.IbisConfigurationException;
@@ -121,6 +122,12 @@ public abstract class ReceivePort extends Manageable
     /** The serialization for this receive port. */
     protected final String serialization;
 
+    /**
+     * Decompression statistics of all connections, or <code>null</code> if
+     * the port type does not have the communication.compressed capability.
+     */
+    final CompressionStatistics compressionStatistics;
+
     /** Set when this port is closed. */
     protected boolean closed = false;
 
@@ -200,6 +207,11 @@ public abstract class ReceivePort extends Manageable
         } else {
             serialization = "byte";
         }
+        if (type.hasCapability(PortType.COMMUNICATION_COMPRESSED)) {
+            compressionStatistics = new CompressionStatistics();
+        } else {
+            compressionStatistics = null;
+        }
         ibis.register(this);
         if (logger.isDebugEnabled()) {
             logger.debug(ibis.ident + ": ReceivePort '" + name + "' created");
@@ -210,6 +222,10 @@ public abstract class ReceivePort extends Manageable
         addValidKey("Connections");
         addValidKey("LostConnections");
         addValidKey("ClosedConnections");
+        if (compressionStatistics != null) {
+            addValidKey("CompressionRatio");
+            addValidKey("DecompressionCpuTime");
+        }
     }
 
     protected ReadMessage createReadMessage(SerializationInput in,
@@ -758,6 +774,12 @@ public abstract class ReceivePort extends Manageable
         setProperty("Messages", "" + nMessages);
         setProperty("MessageBytes", "" + messageBytes);
         setProperty("LostConnections", "" + nLostConnections);
+        if (compressionStatistics != null) {
+            setProperty("CompressionRatio",
+                    "" + compressionStatistics.getRatio());
+            setProperty("DecompressionCpuTime",
+                    "" + compressionStatistics.getCpuTime());
+        }
     }
 
     @Override
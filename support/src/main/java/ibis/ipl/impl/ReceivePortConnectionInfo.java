@@ -17,7 +17,9 @@
 
 package ibis.ipl.impl;
 
+import ibis.io.BufferedArrayInputStream;
 import ibis.io.DataInputStream;
+import ibis.io.DecompressionInputStream;
 import ibis.io.SerializationFactory;
 import ibis.io.SerializationInput;
 
@@ -103,8 +105,13 @@ public class ReceivePortConnectionInfo {
         if (in != null) {
             in.close();
         }
+        DataInputStream d = dataIn;
+        if (port.compressionStatistics != null) {
+            d = new BufferedArrayInputStream(new DecompressionInputStream(
+                    dataIn, port.compressionStatistics));
+        }
         in = SerializationFactory.createSerializationInput(port.serialization,
-                dataIn, port.properties);
+                d, port.properties, port.ibis.getSerializationStatePool());
         message = port.createReadMessage(in, this);
     }
 
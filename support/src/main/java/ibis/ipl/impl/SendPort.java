@@ -32,7 +32,11 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ibis.io.BufferedArrayOutputStream;
+import ibis.io.CompressionOutputStream;
+import ibis.io.CompressionStatistics;
 import ibis.io.DataOutputStream;
+import ibis.io.IOProperties;
 import ibis.io.Replacer;
 import ibis.io.SerializationFactory;
 import ibis.io.SerializationOutput;
@@ -60,13 +64,19 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
 
     private static final String ALLOW_CONN_IN_UPCALL = "ibis.upcall.connections";
 
+    private static final String COMPRESSION = "ibis.compression";
+
     private static final String[][] propertiesList = new String[][] {
             { ALLOW_COMM_IN_UPCALL, "false",
                     "Boolean: when set, communication is allowed from inside upcalls,"
                             + " without first calling finish()." },
             { ALLOW_CONN_IN_UPCALL, "false",
                     "Boolean: when set, connection setup is allowed from inside upcalls,"
-                            + " without first calling finish()." }, };
+                            + " without first calling finish()." },
+            { COMPRESSION, "lz4",
+                    "String: the codec used by send ports of a port type with"
+                            + " the communication.compressed capability:"
+                            + " lz4, deflate or none." }, };
 
     /** The type of this port. */
     public final PortType type;
@@ -115,6 +125,18 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
     /** The underlying data output stream. */
     protected DataOutputStream dataOut;
 
+    /**
+     * Compression statistics, or <code>null</code> if the port type does not
+     * have the communication.compressed capability.
+     */
+    private final CompressionStatistics compressionStatistics;
+
+    /** The compression codec for new serialization streams. */
+    private String compression;
+
+    /** The compression stage of the current serialization stream. */
+    private CompressionOutputStream compressionOut;
+
     /** The write message for this port. */
     protected final WriteMessage w;
 
@@ -233,6 +255,16 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
                 false);
         allowConnectionsInUpcall = tp.getBooleanProperty(ALLOW_CONN_IN_UPCALL,
                 false);
+        if (type.hasCapability(PortType.COMMUNICATION_COMPRESSED)) {
+            compression = tp.getProperty(COMPRESSION, "lz4");
+            if (!CompressionOutputStream.isCodec(compression)) {
+                throw new IbisConfigurationException(
+                        "Unknown compression codec " + compression);
+            }
+            compressionStatistics = new CompressionStatistics();
+        } else {
+            compressionStatistics = null;
+        }
         ibis.register(this);
         if (logger.isDebugEnabled()) {
             logger.debug(
@@ -246,6 +278,12 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
         addValidKey("Connections");
         addValidKey("LostConnections");
         addValidKey("ClosedConnections");
+        addValidKey("BufferSize");
+        if (compressionStatistics != null) {
+            addValidKey("Compression");
+            addValidKey("CompressionRatio");
+            addValidKey("CompressionCpuTime");
+        }
     }
 
     /**
@@ -301,6 +339,16 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
         setProperty("Messages", "" + nMessages);
         setProperty("MessageBytes", "" + messageBytes);
         setProperty("Bytes", "" + bytes);
+        if (dataOut != null) {
+            setProperty("BufferSize", "" + dataOut.bufferSize());
+        }
+        if (compressionStatistics != null) {
+            setProperty("Compression", compression);
+            setProperty("CompressionRatio",
+                    "" + compressionStatistics.getRatio());
+            setProperty("CompressionCpuTime",
+                    "" + compressionStatistics.getCpuTime());
+        }
     }
 
     @Override
@@ -326,6 +374,17 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
             messageBytes = Long.parseLong(value);
         } else if (key.equals("LostConnections")) {
             nLostConnections = Long.parseLong(value);
+        } else if (key.equals("Compression")) {
+            // Changes the codec of this port, also for existing connections.
+            if (!CompressionOutputStream.isCodec(value)) {
+                throw new IbisConfigurationException(
+                        "Unknown compression codec " + value);
+            }
+            compression = value;
+            CompressionOutputStream c = compressionOut;
+            if (c != null) {
+                c.setCodec(value);
+            }
         }
     }
 
@@ -359,8 +418,15 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
         } else {
             serialization = "byte";
         }
+        DataOutputStream d = dataOut;
+        if (compressionStatistics != null) {
+            compressionOut = new CompressionOutputStream(dataOut, compression,
+                    compressionStatistics);
+            d = new BufferedArrayOutputStream(compressionOut,
+                    IOProperties.BUFFER_SIZE);
+        }
         out = SerializationFactory.createSerializationOutput(serialization,
-                dataOut, properties);
+                d, properties, ibis.getSerializationStatePool());
         if (replacer != null) {
             out.setReplacer(replacer);
         }
@@ -21,6 +21,7 @@ import java.util.Map;
 
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.NoSuchPropertyException;
+import ibis.ipl.support.vivaldi.ProximityService;
 
 public final class ForwardingRegistry extends ibis.ipl.registry.Registry {
 
@@ -162,6 +163,11 @@ public final class ForwardingRegistry extends ibis.ipl.registry.Registry {
         return target.wonElections();
     }
 
+    @Override
+    public void setProximityService(ProximityService proximity) {
+        target.setProximityService(proximity);
+    }
+
     @Override
     public void addTokens(String name, int count) throws IOException {
         target.addTokens(name, count);
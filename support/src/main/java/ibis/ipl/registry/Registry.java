@@ -26,6 +26,7 @@ import ibis.ipl.IbisConfigurationException;
 import ibis.ipl.IbisProperties;
 import ibis.ipl.RegistryEventHandler;
 import ibis.ipl.impl.IbisIdentifier;
+import ibis.ipl.support.vivaldi.ProximityService;
 
 /**
  * This implementation of the {@link ibis.ipl.Registry} interface defines the
@@ -131,4 +132,17 @@ public abstract class Registry implements ibis.ipl.Registry {
     public abstract IbisIdentifier getRandomPoolMember();
 
     public abstract String[] wonElections();
+
+    /**
+     * Passes the service keeping track of the Vivaldi coordinates of the
+     * members of the pool to this registry. Registries may spread coordinates
+     * and use proximity information, for instance when choosing peers to
+     * communicate with. Ignored by default.
+     * 
+     * @param proximity
+     *            the proximity service
+     */
+    public void setProximityService(ProximityService proximity) {
+        // IGNORE
+    }
 }
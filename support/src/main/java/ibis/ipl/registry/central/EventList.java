@@ -16,23 +16,68 @@
 package ibis.ipl.registry.central;
 
 import java.util.ArrayList;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * List of events, indexed by event time. Events are kept in a ring buffer,
+ * in which the slot of an event follows directly from its time. Lookups are
+ * constant time, a range of events is read with at most two array copies,
+ * and purging old events only moves the start of the buffer. The buffer
+ * grows when events arrive beyond its end, and shrinks again when most of it
+ * is purged, so memory use follows the number of events still needed.
+ * 
+ * Events may be added out of order, leaving empty slots until the missing
+ * events arrive.
+ */
 public class EventList {
     
     private static final Logger logger = LoggerFactory.getLogger(EventList.class);
-    
-    private final SortedSet<Event> events;
-    
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // slot (head + time - minimum) % ring.length holds the event of the given
+    // time, or null if this event has not been received (yet)
+    private Event[] ring;
+
+    // slot of the event with time "minimum"
+    private int head;
+
+    // number of slots in use, counted from head, including empty ones
+    private int count;
+
     private int minimum;
+
+    // all events from minimum + 1 up to and including this time are present
+    private int contiguous;
     
     public EventList() {
-        events = new TreeSet<Event>();
+        ring = new Event[INITIAL_CAPACITY];
+        head = 0;
+        count = 0;
         minimum = 0;
+        contiguous = 0;
+    }
+
+    private Event slot(int time) {
+        return ring[(head + time - minimum) % ring.length];
+    }
+
+    // resize the ring buffer, keeping the slots in use
+    private void resize(int capacity) {
+        Event[] result = new Event[capacity];
+        copy(0, count, result, 0);
+        ring = result;
+        head = 0;
+    }
+
+    // copy length slots, starting at the given offset from head
+    private void copy(int offset, int length, Event[] dest, int destPos) {
+        int start = (head + offset) % ring.length;
+        int first = Math.min(length, ring.length - start);
+        System.arraycopy(ring, start, dest, destPos, first);
+        System.arraycopy(ring, 0, dest, destPos + first, length - first);
     }
 
     /**
@@ -43,128 +88,149 @@ public class EventList {
      *  @return the specified event, or null if it is not found.
      */
     public Event get(int time) {
-	if (logger.isDebugEnabled()) {
-	    logger.debug("getting event " + time);
-	}
-        for(Event event: events) {
-            if (event.getTime() == time) {
-        	if (logger.isDebugEnabled()) {
-        	    logger.debug("getting event " + time + ", returning " + event);
-        	}
-                return event;
-            }
-            if (event.getTime() > time) {
-        	if (logger.isDebugEnabled()) {
-        	    logger.debug("getting event " + time + ", returning <null>");
-        	}
-                return null;
-            }
-        }
-        if (logger.isDebugEnabled()) {
-            logger.debug("getting event " + time + ", returning <null>");
+        if (time < minimum || time >= minimum + count) {
+            return null;
         }
-        return null;
+        return slot(time);
     }
-    
+
+    /**
+     * Returns the events from the first available event at or after the
+     * given time, up to the first missing event.
+     */
     public Event[] getList(int start) {
-	if (logger.isDebugEnabled()) {
-	    logger.debug("getting events from " + start);
-	}
-        ArrayList<Event> result = new ArrayList<Event>();
-        
-        for(Event event: events) {
-            if (logger.isDebugEnabled()) {
-        	logger.debug("considering " + event);
-            }
-            int time = event.getTime();
-            if (time >= start) {
-                if (result.isEmpty()) {
-                    if (logger.isDebugEnabled()) {
-                	logger.debug("adding " + event);
-                    }
-                    result.add(event);
-                } else {
-                    Event previous = result.get(result.size() - 1);
-                    if (time != (previous.getTime() + 1)) {
-                	if (logger.isDebugEnabled()) {
-                	    logger.debug("NOT adding " + event + " time should be " + (previous.getTime() + 1));
-                	}
-                        return result.toArray(new Event[0]);
-                    }
-                    if (logger.isDebugEnabled()) {
-                	logger.debug("adding " + event);
-                    }
-                    result.add(event);
-                }
-            }
+        int first = Math.max(start, minimum);
+        int end = minimum + count;
+
+        while (first < end && slot(first) == null) {
+            first++;
         }
-        return result.toArray(new Event[0]);
+
+        int last = first;
+        while (last < end && slot(last) != null) {
+            last++;
+        }
+
+        Event[] result = new Event[last - first];
+        if (result.length > 0) {
+            copy(first - minimum, result.length, result, 0);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("getting events from " + start + ", returning "
+                    + result.length + " events");
+        }
+
+        return result;
     }
 
     public Event[] getSignalEvents(int from, int to) {
         ArrayList<Event> result = new ArrayList<Event>();
-        
-        for (Event event: events) {
-            if (event.getTime() > to) {
-                //no more events will have a time >= from and <= to
-                return result.toArray(new Event[0]);
-            }
 
-            if (event.getType() == Event.SIGNAL && event.getTime() >= from) {
+        int last = Math.min(to, minimum + count - 1);
+        for (int time = Math.max(from, minimum); time <= last; time++) {
+            Event event = slot(time);
+            if (event != null && event.getType() == Event.SIGNAL) {
                 result.add(event);
             }
         }
-        
+
         return result.toArray(new Event[0]);
     }
 
     public void add(Event... newEvents) {
         for(Event event: newEvents) {
-            events.add(event);
+            int time = event.getTime();
+
+            if (time < minimum) {
+                // already purged
+                continue;
+            }
+
+            int offset = time - minimum;
+            if (offset >= ring.length) {
+                resize(Math.max(ring.length * 2,
+                        Integer.highestOneBit(offset) * 2));
+            }
+
+            int index = (head + offset) % ring.length;
+            if (ring[index] == null) {
+                ring[index] = event;
+            }
+            count = Math.max(count, offset + 1);
+
             if (logger.isDebugEnabled()) {
-                logger.debug("adding event to list: " + event + ", list now " + toString());
+                logger.debug("adding event to list: " + event);
             }
         }
+        advance();
+    }
+
+    // move contiguous past the events that are present
+    private void advance() {
+        while (contiguous + 1 < minimum + count
+                && slot(contiguous + 1) != null) {
+            contiguous++;
+        }
     }
     
     public void setMinimum(int time) {
-        minimum = time;
         if (logger.isDebugEnabled()) {
             logger.debug("purging upto " + time);
         }
-        while(!events.isEmpty() && events.first().getTime() < time) {
-            Event first = events.first();
-            if (logger.isDebugEnabled()) {
-        	logger.debug("removing " + first);
+
+        if (time < minimum) {
+            // make room for the (empty) slots below the old minimum
+            int shift = minimum - time;
+            Event[] result = new Event[Math.max(ring.length, count + shift)];
+            copy(0, count, result, shift);
+            ring = result;
+            head = 0;
+            count += shift;
+            minimum = time;
+            contiguous = time;
+        } else {
+            int purged = Math.min(time - minimum, count);
+            for (int i = 0; i < purged; i++) {
+                ring[(head + i) % ring.length] = null;
             }
-            events.remove(first);
+            head = (head + purged) % ring.length;
+            count -= purged;
+            minimum = time;
+            contiguous = Math.max(contiguous, time);
+        }
+        advance();
+
+        if (ring.length > INITIAL_CAPACITY && count < ring.length / 4) {
+            resize(Math.max(INITIAL_CAPACITY, ring.length / 2));
         }
     }
-    
+
+    /**
+     * Returns the time of the minimum event in this list.
+     */
+    public int getMinimum() {
+        return minimum;
+    }
+
     public int getNextRequiredEvent() {
-        int result = minimum;
-        
-        for (Event event: events) {
-            if (event.getTime() == result + 1) {
-                result = result + 1;
-            }
-        }
-  
         if (logger.isDebugEnabled()) {
-            logger.debug("next required event: " + result);
+            logger.debug("next required event: " + contiguous);
         }
         
-        return result;
+        return contiguous;
     }
 
-    
     public String toString() {
-        String message = "eventList: ";
-        for(Event event: events) {
-            message += event + " ";
+        StringBuilder message = new StringBuilder("eventList: ");
+        for (int i = 0; i < count; i++) {
+            Event event = ring[(head + i) % ring.length];
+            if (event != null) {
+                message.append(event).append(" ");
+            }
         }
         
-        return message;
+        return message.toString();
     }
     
 }
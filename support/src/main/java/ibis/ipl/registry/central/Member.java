@@ -79,6 +79,17 @@ public final class Member implements Serializable {
         this.currentEventTime = currentTime;
     }
 
+    /**
+     * Sets the current event time of this member, unless it is already
+     * further along. Times may be reported out of order by different
+     * requests, so an older time is silently ignored.
+     */
+    public synchronized void advanceCurrentTime(int currentTime) {
+        if (currentTime > this.currentEventTime) {
+            this.currentEventTime = currentTime;
+        }
+    }
+
     public synchronized void updateTime() {
         time = System.currentTimeMillis();
     }
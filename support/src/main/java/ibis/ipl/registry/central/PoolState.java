@@ -0,0 +1,97 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.central;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encoding of the state of a pool, as sent to members that need to bootstrap.
+ * The state consists of a version byte, a snapshot of the pool, the signal
+ * events before the snapshot a member still needs, and the events after the
+ * snapshot (the delta). This allows a single snapshot to be shared by many
+ * members joining around the same time: only the delta differs.
+ * 
+ * The snapshot itself is written as a sequence of chunks, each preceded by
+ * its length, and terminated by an empty chunk. This way, the snapshot can
+ * be written straight from where it is kept, without first copying it.
+ */
+public final class PoolState {
+
+    public static final byte VERSION = 1;
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private PoolState() {
+        // only static methods
+    }
+
+    public static void writeSnapshot(DataOutputStream out, byte[] snapshot)
+            throws IOException {
+        for (int offset = 0; offset < snapshot.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, snapshot.length - offset);
+            out.writeInt(length);
+            out.write(snapshot, offset, length);
+        }
+        out.writeInt(0);
+    }
+
+    public static byte[] readSnapshot(DataInputStream in) throws IOException {
+        byte[] result = new byte[0];
+        int size = 0;
+
+        while (true) {
+            int length = in.readInt();
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > CHUNK_SIZE) {
+                throw new IOException("invalid state chunk size: " + length);
+            }
+            if (size + length > result.length) {
+                result = Arrays.copyOf(result,
+                        Math.max(size + length, 2 * result.length));
+            }
+            in.readFully(result, size, length);
+            size += length;
+        }
+
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    public static void writeEvents(DataOutputStream out, Event[] events)
+            throws IOException {
+        out.writeInt(events.length);
+        for (Event event : events) {
+            event.writeTo(out);
+        }
+    }
+
+    public static Event[] readEvents(DataInputStream in) throws IOException {
+        int nrOfEvents = in.readInt();
+        if (nrOfEvents < 0) {
+            throw new IOException("negative number of events");
+        }
+
+        Event[] result = new Event[nrOfEvents];
+        for (int i = 0; i < nrOfEvents; i++) {
+            result[i] = new Event(in);
+        }
+        return result;
+    }
+}
@@ -57,10 +57,20 @@ public final class Protocol {
 
     public static final byte OPCODE_GET_TOKEN = 16;
 
-    public static final int NR_OF_OPCODES = 17;
+    // opens a persistent channel, over which multiple requests are sent
+    public static final byte OPCODE_SESSION = 17;
+
+    public static final byte OPCODE_LEASE_SEQUENCE_NRS = 18;
+
+    public static final byte OPCODE_LEASE_TOKENS = 19;
+
+    public static final byte OPCODE_EVENT_STREAM = 20;
+
+    public static final int NR_OF_OPCODES = 21;
 
     public static final String[] OPCODE_NAMES = { "JOIN", "LEAVE", "GOSSIP",
             "ELECT", "SEQUENCE_NR", "DEAD", "MAYBE_DEAD", "SIGNAL", "PING",
             "PUSH", "BROADCAST", "FORWARD", "GET_STATE", "HEARTBEAT",
-            "TERMINATE", "ADD_TOKENS", "GET_TOKEN" };
+            "TERMINATE", "ADD_TOKENS", "GET_TOKEN", "SESSION",
+            "LEASE_SEQUENCE_NRS", "LEASE_TOKENS", "EVENT_STREAM" };
 }
@@ -42,6 +42,8 @@ public class RegistryProperties {
 
     public static final String TREE = PREFIX + "tree";
 
+    public static final String TREE_FANOUT = PREFIX + "tree.fanout";
+
     public static final String PURGE_HISTORY = PREFIX + "purge.history";
 
     public static final String PEER_BOOTSTRAP = PREFIX + "peer.bootstrap";
@@ -52,6 +54,14 @@ public class RegistryProperties {
     public static final String SERVER_CONNECT_TIMEOUT = PREFIX
             + "server.connect.timeout";
 
+    public static final String SERVER_CHANNEL = PREFIX + "server.channel";
+
+    public static final String SEQUENCE_LEASE_SIZE = PREFIX
+            + "sequence.lease.size";
+
+    public static final String TOKEN_LEASE_SIZE = PREFIX
+            + "token.lease.size";
+
     public static final String STATISTICS = PREFIX + "statistics";
 
     public static final String STATISTICS_INTERVAL = PREFIX
@@ -94,11 +104,14 @@ public class RegistryProperties {
                     "Boolean: use a broadcast tree instead of "
                             + "serial send or gossiping" },
 
+            { TREE_FANOUT, "0",
+                    "Int: fan-out of the broadcast tree. If 0, a binomial tree is used, in which the server sends to a number of members that grows with the pool size" },
+
             { PEER_BOOTSTRAP, "true",
                     "Boolean: bootstrap with peers, not just with the server" },
 
             { PURGE_HISTORY, "false",
-                    "Boolean: purge history when not needed anymore" },
+                    "Boolean: have members purge their event history when not needed anymore. The server always discards events all members have received" },
 
             {
                     CLIENT_CONNECT_TIMEOUT,
@@ -110,6 +123,15 @@ public class RegistryProperties {
                     "10",
                     "Int(seconds): how long does the server attempt to connect to a client before giving up" },
 
+            { SERVER_CHANNEL, "true",
+                    "Boolean: send requests to the server over a single persistent connection, instead of a new connection per request" },
+
+            { SEQUENCE_LEASE_SIZE, "1024",
+                    "Int: number of sequence numbers reserved at once when leasing (see IbisCapabilities.REGISTRY_LEASES)" },
+
+            { TOKEN_LEASE_SIZE, "16",
+                    "Int: maximum number of tokens taken at once when leasing (see IbisCapabilities.REGISTRY_LEASES)" },
+
             { STATISTICS, "false",
                     "Boolean: gather per-pool statistics at the server and save them to a file" },
 
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.central;
+
+import ibis.ipl.impl.IbisIdentifier;
+import ibis.ipl.support.Connection;
+import ibis.util.ThreadPool;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends events to the children of a node in a k-ary broadcast tree. Each
+ * child gets a thread and a persistent event stream of its own, over which
+ * new events are sent as soon as they are available. A scheduler thread
+ * opens and closes streams as the children change, for instance when the
+ * tree is repaired after a member left or died.
+ *
+ * The server uses this for the children of the root, members use it to
+ * forward events to their own children.
+ */
+public abstract class TreeEventPusher implements Runnable {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger(TreeEventPusher.class);
+
+    private class Child implements Runnable {
+
+        private final Member member;
+
+        private boolean done = false;
+
+        Child(Member member) {
+            this.member = member;
+
+            ThreadPool.createNew(this, name + " thread");
+        }
+
+        synchronized void end() {
+            done = true;
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        public void run() {
+            Connection connection = null;
+
+            while (!isDone() && !hasEnded()) {
+                int eventTime = getEventTime();
+
+                try {
+                    if (connection == null) {
+                        connection = openEventStream(member);
+                    }
+                    streamEvents(member, connection);
+                } catch (IOException e) {
+                    if (connection != null) {
+                        connection.close();
+                        connection = null;
+                    }
+                    if (!isDone() && isMember(member)) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("cannot stream events to " + member,
+                                    e);
+                        }
+                        // have the member checked, so the tree is repaired
+                        // if it died
+                        maybeDead(member);
+                    }
+                }
+
+                waitForEventTime(eventTime + 1, timeout);
+            }
+
+            if (connection != null) {
+                closeEventStream(connection);
+            }
+        }
+    }
+
+    private final String name;
+
+    private final long timeout;
+
+    // current children, by identifier
+    private final Map<IbisIdentifier, Child> children =
+        new HashMap<IbisIdentifier, Child>();
+
+    /**
+     * @param name
+     *            name of this pusher, used for its threads.
+     * @param timeout
+     *            maximum time to wait for a new event before checking the
+     *            children again, in milliseconds.
+     */
+    protected TreeEventPusher(String name, long timeout) {
+        this.name = name;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts the scheduler thread. Called by subclasses once they are fully
+     * constructed.
+     */
+    protected final void start() {
+        ThreadPool.createNew(this, name + " scheduler thread");
+    }
+
+    protected abstract boolean hasEnded();
+
+    protected abstract int getEventTime();
+
+    protected abstract void waitForEventTime(int time, long timeout);
+
+    protected abstract Member[] getChildren();
+
+    protected abstract boolean isMember(Member member);
+
+    protected abstract Connection openEventStream(Member member)
+            throws IOException;
+
+    protected abstract void streamEvents(Member member, Connection connection)
+            throws IOException;
+
+    protected abstract void closeEventStream(Connection connection);
+
+    protected abstract void maybeDead(Member member);
+
+    /**
+     * Called by the scheduler thread after each update of the children.
+     */
+    protected void updated() {
+        // nothing by default
+    }
+
+    // start streams to new children, end the streams of former ones
+    private void update(Member[] current) {
+        Set<IbisIdentifier> present = new HashSet<IbisIdentifier>();
+
+        for (Member member : current) {
+            present.add(member.getIbis());
+            if (!children.containsKey(member.getIbis())) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(name + ": new child " + member);
+                }
+                children.put(member.getIbis(), new Child(member));
+            }
+        }
+
+        Iterator<Map.Entry<IbisIdentifier, Child>> iterator =
+            children.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<IbisIdentifier, Child> entry = iterator.next();
+            if (!present.contains(entry.getKey())) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(name + ": no longer a child: "
+                            + entry.getKey());
+                }
+                entry.getValue().end();
+                iterator.remove();
+            }
+        }
+    }
+
+    public void run() {
+        while (!hasEnded()) {
+            int eventTime = getEventTime();
+
+            update(getChildren());
+
+            updated();
+
+            waitForEventTime(eventTime + 1, timeout);
+        }
+
+        for (Child child : children.values()) {
+            child.end();
+        }
+        children.clear();
+    }
+
+}
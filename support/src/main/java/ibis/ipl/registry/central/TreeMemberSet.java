@@ -80,11 +80,31 @@ public final class TreeMemberSet implements MemberSet, Serializable {
 
     private int nextNodeIndex;
 
+    // fan-out of the k-ary tree, or 0 if the binomial tree is used
+    private int fanout;
+
     private final Random random;
 
     private Node lastSearchResult;
 
     public TreeMemberSet() {
+        this(0);
+    }
+
+    /**
+     * Creates a member set with a broadcast tree of the given fan-out. In a
+     * k-ary tree the members are laid out as a heap over the member list: the
+     * root has the members at position 0 to k-1 as children, and the children
+     * of the member at position p are at positions k * (p + 1) to
+     * k * (p + 1) + k - 1. A member that is removed is replaced by the last
+     * member in the list, so the tree stays balanced, and every member
+     * computes the same tree from the same sequence of events.
+     * 
+     * @param fanout
+     *            fan-out of the tree, or 0 to use a binomial tree.
+     */
+    public TreeMemberSet(int fanout) {
+        this.fanout = fanout;
         nextNodeIndex = 0;
 
         root = new ArrayList<Node>();
@@ -118,6 +138,7 @@ public final class TreeMemberSet implements MemberSet, Serializable {
             list = (ArrayList<Node>) objectInput.readObject();
             spares = (SortedSet<Node>) objectInput.readObject();
             nextNodeIndex = objectInput.readInt();
+            fanout = objectInput.readInt();
         } catch (ClassNotFoundException e) {
             throw new IOException("could not deserialize data for tree");
         }
@@ -146,6 +167,7 @@ public final class TreeMemberSet implements MemberSet, Serializable {
         objectOutput.writeObject(list);
         objectOutput.writeObject(spares);
         objectOutput.writeInt(nextNodeIndex);
+        objectOutput.writeInt(fanout);
         objectOutput.flush();
         objectOutput.close();
 
@@ -217,7 +239,16 @@ public final class TreeMemberSet implements MemberSet, Serializable {
             if (node.member.getIbis().equals(identifier)) {
                 Member result = node.member;
                 node.member = null;
-                list.remove(i);
+                if (fanout > 0) {
+                    // move the last node into the gap, keeping the heap
+                    // layout of the k-ary tree complete
+                    Node last = list.remove(list.size() - 1);
+                    if (last != node) {
+                        list.set(i, last);
+                    }
+                } else {
+                    list.remove(i);
+                }
                 spares.add(node);
 
                 if (logger.isDebugEnabled()) {
@@ -406,6 +437,14 @@ public final class TreeMemberSet implements MemberSet, Serializable {
             }
         }
 
+        if (fanout > 0) {
+            int position = list.indexOf(lastSearchResult);
+            if (position == -1) {
+                return new Member[0];
+            }
+            return getKaryChildren(fanout * (position + 1));
+        }
+
         ArrayList<Member> result = new ArrayList<Member>();
 
         // add all children (in reverse order)
@@ -425,7 +464,26 @@ public final class TreeMemberSet implements MemberSet, Serializable {
         return result.toArray(new Member[0]);
     }
 
+    // members at position first to first + fanout - 1, as far as present
+    private Member[] getKaryChildren(int first) {
+        int end = Math.min(first + fanout, list.size());
+
+        if (first >= end) {
+            return new Member[0];
+        }
+
+        Member[] result = new Member[end - first];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(first + i).member;
+        }
+        return result;
+    }
+
     public Member[] getRootChildren() {
+        if (fanout > 0) {
+            return getKaryChildren(0);
+        }
+
         ArrayList<Member> result = new ArrayList<Member>();
 
         // add all children (in reverse order)
@@ -48,6 +48,9 @@ final class CommunicationHandler implements Runnable {
 
     private static final int MAX_THREADS = 10;
 
+    // time before retrying to open a channel to the server after a failure
+    private static final long CHANNEL_RETRY_INTERVAL = 10000;
+
     private static final Logger logger = LoggerFactory
             .getLogger(CommunicationHandler.class);
 
@@ -71,6 +74,16 @@ final class CommunicationHandler implements Runnable {
 
     private final Statistics statistics;
 
+    // persistent channel to the server
+
+    private final boolean useChannel;
+
+    private final Object channelLock = new Object();
+
+    private ServerChannel channel = null;
+
+    private long channelRetryTime = 0;
+
     // communication settings
 
     private final boolean peerBootstrap;
@@ -130,6 +143,9 @@ final class CommunicationHandler implements Runnable {
         timeout = properties.getIntProperty(
                 RegistryProperties.CLIENT_CONNECT_TIMEOUT) * 1000;
 
+        useChannel = properties
+                .getBooleanProperty(RegistryProperties.SERVER_CHANNEL);
+
         String clientID = this.properties.getProperty(Ibis.ID_PROPERTY);
         client = Client.getOrCreateClient(clientID, properties, 0);
         virtualSocketFactory = client.getFactory();
@@ -169,7 +185,10 @@ final class CommunicationHandler implements Runnable {
         }
 
         // init broadcaster (if needed)
-        if (tree) {
+        if (tree && properties.getIntProperty(
+                RegistryProperties.TREE_FANOUT) > 0) {
+            new TreeEventForwarder(pool, this, 1000);
+        } else if (tree) {
             Thread eventPusher = new IterativeEventPusher(pool, this);
             eventPusher.setDaemon(true);
             eventPusher.start();
@@ -181,6 +200,111 @@ final class CommunicationHandler implements Runnable {
         return identifier;
     }
 
+    /**
+     * Returns the persistent channel to the server, opening it if needed, or
+     * null if no channel is available.
+     */
+    private ServerChannel getChannel() {
+        if (!useChannel) {
+            return null;
+        }
+        synchronized (channelLock) {
+            if (channel != null && !channel.isBroken()) {
+                return channel;
+            }
+            channel = null;
+            if (pool.isStopped()
+                    || System.currentTimeMillis() < channelRetryTime) {
+                return null;
+            }
+            try {
+                channel = new ServerChannel(serverAddress, timeout,
+                        virtualSocketFactory);
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("could not open channel to server, "
+                            + "using a connection per request", e);
+                }
+                channelRetryTime = System.currentTimeMillis()
+                        + CHANNEL_RETRY_INTERVAL;
+            }
+            return channel;
+        }
+    }
+
+    private void closeChannel() {
+        synchronized (channelLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private static void closeRequest(Connection request,
+            Connection connection) {
+        request.close();
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Starts a request to the server. If requests are sent over a persistent
+     * channel, the request data is buffered, and sent as a whole by
+     * {@link #sendRequest(Connection, byte, int)}. Otherwise, a new
+     * connection to the server is opened.
+     */
+    private Connection startRequest(byte opcode, int timeout)
+            throws IOException {
+        if (useChannel) {
+            return new Connection(new byte[0]);
+        }
+
+        Connection connection = new Connection(serverAddress, timeout, true,
+                virtualSocketFactory);
+        connection.out().writeByte(Protocol.MAGIC_BYTE);
+        connection.out().writeByte(opcode);
+        return connection;
+    }
+
+    /**
+     * Sends a request started with {@link #startRequest(byte, int)}, and
+     * returns the connection the reply can be read from. Falls back to a new
+     * connection if the request cannot be sent over the persistent channel.
+     */
+    private Connection sendRequest(Connection request, byte opcode,
+            int timeout) throws IOException {
+        if (!request.isBuffered()) {
+            request.out().flush();
+            return request;
+        }
+
+        byte[] data = request.toByteArray();
+
+        ServerChannel channel = getChannel();
+        if (channel != null) {
+            // the given timeout is a connect timeout, so it does not apply
+            Connection reply = channel.call(opcode, data, this.timeout);
+            if (reply != null) {
+                return reply;
+            }
+        }
+
+        Connection connection = new Connection(serverAddress, timeout, true,
+                virtualSocketFactory);
+        try {
+            connection.out().writeByte(Protocol.MAGIC_BYTE);
+            connection.out().writeByte(opcode);
+            connection.out().write(data);
+            connection.out().flush();
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
     /**
      * connects to the registry server, joins, and gets back the identifier of
      * this Ibis and some bootstrap information
@@ -203,6 +327,8 @@ final class CommunicationHandler implements Runnable {
                 .getIntProperty(RegistryProperties.GOSSIP_INTERVAL) * 1000;
         boolean adaptGossipInterval = properties
                 .getBooleanProperty(RegistryProperties.ADAPT_GOSSIP_INTERVAL);
+        int treeFanout = properties
+                .getIntProperty(RegistryProperties.TREE_FANOUT);
         boolean keepStatistics = properties
                 .getBooleanProperty(RegistryProperties.STATISTICS);
         long statisticsInterval = properties
@@ -269,6 +395,7 @@ final class CommunicationHandler implements Runnable {
             connection.out().writeLong(gossipInterval);
             connection.out().writeBoolean(adaptGossipInterval);
             connection.out().writeBoolean(tree);
+            connection.out().writeInt(treeFanout);
             connection.out().writeBoolean(pool.isClosedWorld());
             connection.out().writeInt(pool.getSize());
             connection.out().writeBoolean(keepStatistics);
@@ -430,19 +557,18 @@ final class CommunicationHandler implements Runnable {
             throws IOException {
         long start = System.currentTimeMillis();
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection request = startRequest(Protocol.OPCODE_SIGNAL, timeout);
+        Connection connection = null;
 
         try {
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_SIGNAL);
-            getIdentifier().writeTo(connection.out());
-            connection.out().writeUTF(signal);
-            connection.out().writeInt(ibisses.length);
+            getIdentifier().writeTo(request.out());
+            request.out().writeUTF(signal);
+            request.out().writeInt(ibisses.length);
             for (int i = 0; i < ibisses.length; i++) {
-                ((IbisIdentifier) ibisses[i]).writeTo(connection.out());
+                ((IbisIdentifier) ibisses[i]).writeTo(request.out());
             }
-            connection.out().flush();
+            connection = sendRequest(request, Protocol.OPCODE_SIGNAL,
+                    timeout);
 
             connection.getAndCheckReply();
             connection.close();
@@ -456,10 +582,10 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_SIGNAL, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
         } catch (IOException e) {
-            connection.close();
+            closeRequest(request, connection);
             throw e;
         }
     }
@@ -467,14 +593,13 @@ final class CommunicationHandler implements Runnable {
     public void terminate() throws IOException {
         long start = System.currentTimeMillis();
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection request = startRequest(Protocol.OPCODE_TERMINATE, timeout);
+        Connection connection = null;
 
         try {
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_TERMINATE);
-            getIdentifier().writeTo(connection.out());
-            connection.out().flush();
+            getIdentifier().writeTo(request.out());
+            connection = sendRequest(request, Protocol.OPCODE_TERMINATE,
+                    timeout);
 
             connection.getAndCheckReply();
             connection.close();
@@ -487,10 +612,10 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_TERMINATE, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
         } catch (IOException e) {
-            connection.close();
+            closeRequest(request, connection);
             throw e;
         }
 
@@ -507,15 +632,14 @@ final class CommunicationHandler implements Runnable {
         if (logger.isDebugEnabled()) {
             logger.debug("getting sequence number");
         }
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection request = startRequest(Protocol.OPCODE_SEQUENCE_NR, timeout);
+        Connection connection = null;
 
         try {
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_SEQUENCE_NR);
-            getIdentifier().writeTo(connection.out());
-            connection.out().writeUTF(name);
-            connection.out().flush();
+            getIdentifier().writeTo(request.out());
+            request.out().writeUTF(name);
+            connection = sendRequest(request, Protocol.OPCODE_SEQUENCE_NR,
+                    timeout);
 
             connection.getAndCheckReply();
 
@@ -531,12 +655,12 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_SEQUENCE_NR, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
 
             return result;
         } catch (IOException e) {
-            connection.close();
+            closeRequest(request, connection);
             throw e;
         }
     }
@@ -553,15 +677,14 @@ final class CommunicationHandler implements Runnable {
             logger.debug("declaring " + ibis + " to be dead");
         }
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection request = startRequest(Protocol.OPCODE_DEAD, timeout);
+        Connection connection = null;
 
         try {
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_DEAD);
-            getIdentifier().writeTo(connection.out());
-            ((IbisIdentifier) ibis).writeTo(connection.out());
-            connection.out().flush();
+            getIdentifier().writeTo(request.out());
+            ((IbisIdentifier) ibis).writeTo(request.out());
+            connection = sendRequest(request, Protocol.OPCODE_DEAD,
+                    timeout);
 
             connection.getAndCheckReply();
 
@@ -575,10 +698,10 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_DEAD, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
         } catch (IOException e) {
-            connection.close();
+            closeRequest(request, connection);
             throw e;
         }
     }
@@ -595,15 +718,14 @@ final class CommunicationHandler implements Runnable {
             logger.debug("reporting " + ibis + " to possibly be dead");
         }
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection request = startRequest(Protocol.OPCODE_MAYBE_DEAD, timeout);
+        Connection connection = null;
 
         try {
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_MAYBE_DEAD);
-            getIdentifier().writeTo(connection.out());
-            ((IbisIdentifier) ibis).writeTo(connection.out());
-            connection.out().flush();
+            getIdentifier().writeTo(request.out());
+            ((IbisIdentifier) ibis).writeTo(request.out());
+            connection = sendRequest(request, Protocol.OPCODE_MAYBE_DEAD,
+                    timeout);
 
             connection.getAndCheckReply();
             connection.close();
@@ -616,10 +738,10 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_MAYBE_DEAD, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
         } catch (IOException e) {
-            connection.close();
+            closeRequest(request, connection);
             throw e;
         }
     }
@@ -649,15 +771,15 @@ final class CommunicationHandler implements Runnable {
             logger.debug("sending heartbeat to server");
         }
 
+        Connection request = null;
         Connection connection = null;
         try {
-            connection = new Connection(serverAddress, timeout, true,
-                    virtualSocketFactory);
+            request = startRequest(Protocol.OPCODE_HEARTBEAT, timeout);
 
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_HEARTBEAT);
-            getIdentifier().writeTo(connection.out());
-            connection.out().flush();
+            getIdentifier().writeTo(request.out());
+            request.out().writeInt(pool.getNextRequiredEvent());
+            connection = sendRequest(request, Protocol.OPCODE_HEARTBEAT,
+                    timeout);
 
             connection.getAndCheckReply();
 
@@ -666,15 +788,15 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_HEARTBEAT, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
             if (logger.isDebugEnabled()) {
                 logger.debug("sent heartbeat");
             }
             return true;
         } catch (Exception e) {
-            if (connection != null) {
-                connection.close();
+            if (request != null) {
+                closeRequest(request, connection);
             }
             if (logger.isInfoEnabled()) {
                 logger.info(identifier + ": could not send heartbeat to server",
@@ -691,14 +813,12 @@ final class CommunicationHandler implements Runnable {
 
         long start = System.currentTimeMillis();
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection request = startRequest(Protocol.OPCODE_LEAVE, timeout);
+        Connection connection = null;
 
         try {
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_LEAVE);
-            getIdentifier().writeTo(connection.out());
-            connection.out().flush();
+            getIdentifier().writeTo(request.out());
+            connection = sendRequest(request, Protocol.OPCODE_LEAVE, timeout);
 
             connection.getAndCheckReply();
 
@@ -709,14 +829,15 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_LEAVE, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
             if (logger.isDebugEnabled()) {
                 logger.debug("left");
             }
 
         } finally {
-            connection.close();
+            closeRequest(request, connection);
+            closeChannel();
             pool.stop();
             end();
             heartbeat.nudge();
@@ -736,15 +857,15 @@ final class CommunicationHandler implements Runnable {
             timeout = this.timeout;
         }
 
-        Connection connection = new Connection(serverAddress, (int) timeout,
-                true, virtualSocketFactory);
+        Connection request = startRequest(Protocol.OPCODE_ELECT,
+                (int) timeout);
+        Connection connection = null;
 
         try {
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_ELECT);
-            getIdentifier().writeTo(connection.out());
-            connection.out().writeUTF(election);
-            connection.out().flush();
+            getIdentifier().writeTo(request.out());
+            request.out().writeUTF(election);
+            connection = sendRequest(request, Protocol.OPCODE_ELECT,
+                    (int) timeout);
 
             connection.getAndCheckReply();
 
@@ -762,13 +883,13 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_ELECT, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
 
             return winner;
 
         } catch (IOException e) {
-            connection.close();
+            closeRequest(request, connection);
             throw e;
         }
     }
@@ -1110,6 +1231,148 @@ final class CommunicationHandler implements Runnable {
         }
     }
 
+    /**
+     * Receives events from our parent in a k-ary tree over a persistent
+     * connection, until the parent ends the stream. Each round is the same
+     * exchange as a push.
+     */
+    private void handleEventStream(Connection connection) throws IOException {
+        String poolName = connection.in().readUTF();
+
+        if (!poolName.equals(pool.getName())) {
+            logger.error("wrong pool: " + poolName + " instead of "
+                    + pool.getName());
+            connection.closeWithError("wrong pool: " + poolName + " instead of "
+                    + pool.getName());
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("event stream opened");
+        }
+
+        while (connection.in().readBoolean()) {
+            boolean requestBootstrap = !peerBootstrap && !pool.isInitialized();
+            int joinTime;
+            synchronized (this) {
+                joinTime = this.joinTime;
+            }
+
+            connection.out().writeBoolean(requestBootstrap);
+            connection.out().writeInt(joinTime);
+            connection.out().writeInt(pool.getNextRequiredEvent());
+            connection.out().flush();
+
+            connection.getAndCheckReply();
+
+            if (requestBootstrap) {
+                pool.init(connection.in());
+            }
+
+            int events = connection.in().readInt();
+            if (events < 0) {
+                throw new IOException("negative event value");
+            }
+
+            Event[] newEvents = new Event[events];
+            for (int i = 0; i < newEvents.length; i++) {
+                newEvents[i] = new Event(connection.in());
+            }
+
+            int minEventTime = connection.in().readInt();
+
+            pool.newEventsReceived(newEvents);
+
+            if (minEventTime != -1) {
+                pool.purgeHistoryUpto(minEventTime);
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("event stream ended");
+        }
+    }
+
+    /**
+     * Opens a persistent event stream to the given child in a k-ary tree.
+     * Events are sent over the stream with
+     * {@link #streamEvents(IbisIdentifier, Connection)}.
+     */
+    Connection openEventStream(IbisIdentifier ibis) throws IOException {
+        Connection connection = new Connection(ibis, timeout, false,
+                virtualSocketFactory, Protocol.VIRTUAL_PORT);
+
+        try {
+            connection.out().writeByte(Protocol.MAGIC_BYTE);
+            connection.out().writeByte(Protocol.OPCODE_EVENT_STREAM);
+            connection.out().writeUTF(pool.getName());
+            connection.out().flush();
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Forwards the events the given child still needs over an event stream.
+     */
+    void streamEvents(IbisIdentifier ibis, Connection connection)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        int read = connection.read();
+        int written = connection.written();
+
+        // start of a new round
+        connection.out().writeBoolean(true);
+        connection.out().flush();
+
+        boolean requestBootstrap = connection.in().readBoolean();
+        int peerJoinTime = connection.in().readInt();
+        int requestedEventTime = connection.in().readInt();
+
+        connection.sendOKReply();
+
+        if (requestBootstrap) {
+            pool.writeState(connection.out(), peerJoinTime);
+        }
+
+        Event[] events = pool.getEventsFrom(requestedEventTime);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("streaming " + events.length + " entries to " + ibis);
+        }
+
+        connection.out().writeInt(events.length);
+        for (int i = 0; i < events.length; i++) {
+            events[i].writeTo(connection.out());
+        }
+
+        // pass on the minimum time we got from our own parent
+        connection.out().writeInt(pool.getMinEventTime());
+        connection.out().flush();
+
+        if (statistics != null) {
+            statistics.add(Protocol.OPCODE_EVENT_STREAM,
+                    System.currentTimeMillis() - start,
+                    connection.read() - read, connection.written() - written,
+                    false);
+        }
+    }
+
+    /**
+     * Ends an event stream opened with {@link #openEventStream(IbisIdentifier)}.
+     */
+    void closeEventStream(Connection connection) {
+        try {
+            connection.out().writeBoolean(false);
+            connection.out().flush();
+        } catch (IOException e) {
+            // IGNORE
+        }
+        connection.close();
+    }
+
     private void handlePing(Connection connection) throws IOException {
         if (logger.isDebugEnabled()) {
             logger.debug("got a ping request");
@@ -1230,6 +1493,23 @@ final class CommunicationHandler implements Runnable {
                         "received request: " + Protocol.OPCODE_NAMES[opcode]);
             }
 
+            if (opcode == Protocol.OPCODE_EVENT_STREAM) {
+                // an event stream does not hold up accepting new connections
+                // (the thread is released exactly once, so always return)
+                threadEnded();
+                try {
+                    handleEventStream(connection);
+                } catch (IOException e) {
+                    // the usual way a stream ends: our parent left or died
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("event stream closed", e);
+                    }
+                } catch (Throwable e) {
+                    logger.error("error on handling event stream", e);
+                }
+                return;
+            }
+
             switch (opcode) {
             case Protocol.OPCODE_GOSSIP:
                 handleGossip(connection);
@@ -1266,6 +1546,8 @@ final class CommunicationHandler implements Runnable {
     }
 
     void end() {
+        closeChannel();
+
         try {
             serverSocket.close();
         } catch (Exception e) {
@@ -1290,16 +1572,15 @@ final class CommunicationHandler implements Runnable {
         if (logger.isDebugEnabled()) {
             logger.debug("adding tokens");
         }
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection request = startRequest(Protocol.OPCODE_ADD_TOKENS, timeout);
+        Connection connection = null;
 
         try {
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_ADD_TOKENS);
-            getIdentifier().writeTo(connection.out());
-            connection.out().writeUTF(name);
-            connection.out().writeInt(count);
-            connection.out().flush();
+            getIdentifier().writeTo(request.out());
+            request.out().writeUTF(name);
+            request.out().writeInt(count);
+            connection = sendRequest(request, Protocol.OPCODE_ADD_TOKENS,
+                    timeout);
 
             connection.getAndCheckReply();
             connection.close();
@@ -1308,10 +1589,10 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_ADD_TOKENS, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
         } catch (IOException e) {
-            connection.close();
+            closeRequest(request, connection);
             throw e;
         }
     }
@@ -1327,15 +1608,14 @@ final class CommunicationHandler implements Runnable {
         if (logger.isDebugEnabled()) {
             logger.debug("getting token");
         }
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection request = startRequest(Protocol.OPCODE_GET_TOKEN, timeout);
+        Connection connection = null;
 
         try {
-            connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_GET_TOKEN);
-            getIdentifier().writeTo(connection.out());
-            connection.out().writeUTF(name);
-            connection.out().flush();
+            getIdentifier().writeTo(request.out());
+            request.out().writeUTF(name);
+            connection = sendRequest(request, Protocol.OPCODE_GET_TOKEN,
+                    timeout);
 
             connection.getAndCheckReply();
             int reply = connection.in().readInt();
@@ -1345,11 +1625,102 @@ final class CommunicationHandler implements Runnable {
             long end = System.currentTimeMillis();
             if (statistics != null) {
                 statistics.add(Protocol.OPCODE_GET_TOKEN, end - start,
-                        connection.read(), connection.written(), false);
+                        connection.read(), request.written(), false);
             }
             return reply == 0 ? null : name;
         } catch (IOException e) {
+            closeRequest(request, connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Reserves a block of sequence numbers at the server.
+     *
+     * @return the first number of the block
+     */
+    long leaseSeqnos(String name, int count) throws IOException {
+        long start = System.currentTimeMillis();
+
+        if (pool.isStopped()) {
+            throw new IOException(
+                    "cannot lease sequence numbers, registry already stopped");
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("leasing " + count + " sequence numbers");
+        }
+        Connection request = startRequest(Protocol.OPCODE_LEASE_SEQUENCE_NRS,
+                timeout);
+        Connection connection = null;
+
+        try {
+            getIdentifier().writeTo(request.out());
+            request.out().writeUTF(name);
+            request.out().writeInt(count);
+            connection = sendRequest(request,
+                    Protocol.OPCODE_LEASE_SEQUENCE_NRS, timeout);
+
+            connection.getAndCheckReply();
+
+            long result = connection.in().readLong();
+
+            connection.close();
+
+            heartbeat.resetDeadlines();
+            long end = System.currentTimeMillis();
+            if (statistics != null) {
+                statistics.add(Protocol.OPCODE_LEASE_SEQUENCE_NRS, end - start,
+                        connection.read(), request.written(), false);
+            }
+
+            return result;
+        } catch (IOException e) {
+            closeRequest(request, connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Takes at most the given number of tokens from the server.
+     *
+     * @return the number of tokens taken
+     */
+    int leaseTokens(String name, int max) throws IOException {
+        long start = System.currentTimeMillis();
+
+        if (pool.isStopped()) {
+            throw new IOException(
+                    "cannot lease tokens, registry already stopped");
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("leasing at most " + max + " tokens");
+        }
+        Connection request = startRequest(Protocol.OPCODE_LEASE_TOKENS,
+                timeout);
+        Connection connection = null;
+
+        try {
+            getIdentifier().writeTo(request.out());
+            request.out().writeUTF(name);
+            request.out().writeInt(max);
+            connection = sendRequest(request, Protocol.OPCODE_LEASE_TOKENS,
+                    timeout);
+
+            connection.getAndCheckReply();
+            int result = connection.in().readInt();
             connection.close();
+
+            heartbeat.resetDeadlines();
+            long end = System.currentTimeMillis();
+            if (statistics != null) {
+                statistics.add(Protocol.OPCODE_LEASE_TOKENS, end - start,
+                        connection.read(), request.written(), false);
+            }
+            return result;
+        } catch (IOException e) {
+            closeRequest(request, connection);
             throw e;
         }
     }
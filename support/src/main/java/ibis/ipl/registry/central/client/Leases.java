@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.registry.central.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.util.ThreadPool;
+
+/**
+ * Leases of sequence numbers and tokens, used when the
+ * {@link ibis.ipl.IbisCapabilities#REGISTRY_LEASES} capability is requested.
+ * Blocks of sequence numbers and tokens are obtained from the server, and
+ * handed out locally. A new block is requested in the background when a
+ * lease is about to run out, so most requests do not wait for the server.
+ */
+final class Leases {
+
+    private static final Logger logger = LoggerFactory.getLogger(Leases.class);
+
+    private final CommunicationHandler commHandler;
+
+    private final int sequenceLeaseSize;
+
+    private final int tokenLeaseSize;
+
+    private final HashMap<String, SequenceLease> sequences =
+            new HashMap<String, SequenceLease>();
+
+    private final HashMap<String, TokenLease> tokens =
+            new HashMap<String, TokenLease>();
+
+    Leases(CommunicationHandler commHandler, int sequenceLeaseSize,
+            int tokenLeaseSize) {
+        this.commHandler = commHandler;
+        this.sequenceLeaseSize = Math.max(1, sequenceLeaseSize);
+        this.tokenLeaseSize = Math.max(1, tokenLeaseSize);
+    }
+
+    long getSequenceNumber(String name) throws IOException {
+        SequenceLease lease;
+        synchronized (this) {
+            lease = sequences.get(name);
+            if (lease == null) {
+                lease = new SequenceLease(name);
+                sequences.put(name, lease);
+            }
+        }
+        return lease.next();
+    }
+
+    String getToken(String name) throws IOException {
+        TokenLease lease;
+        synchronized (this) {
+            lease = tokens.get(name);
+            if (lease == null) {
+                lease = new TokenLease(name);
+                tokens.put(name, lease);
+            }
+        }
+        return lease.take() ? name : null;
+    }
+
+    /**
+     * Returns all unused tokens to the server. Unused sequence numbers are
+     * simply dropped.
+     */
+    void end() {
+        TokenLease[] leases;
+        synchronized (this) {
+            leases = tokens.values().toArray(new TokenLease[tokens.size()]);
+            tokens.clear();
+        }
+        for (TokenLease lease : leases) {
+            lease.end();
+        }
+    }
+
+    private final class SequenceLease implements Runnable {
+
+        private final String name;
+
+        // current block: [next, end)
+        private long next = 0;
+
+        private long end = 0;
+
+        // block obtained in the background: [prefetchStart, prefetchEnd)
+        private long prefetchStart = 0;
+
+        private long prefetchEnd = 0;
+
+        private boolean renewing = false;
+
+        SequenceLease(String name) {
+            this.name = name;
+        }
+
+        synchronized long next() throws IOException {
+            while (true) {
+                if (next < end) {
+                    long result = next++;
+                    if (!renewing && prefetchStart == prefetchEnd
+                            && end - next <= sequenceLeaseSize / 4) {
+                        renewing = true;
+                        ThreadPool.createNew(this, "sequence lease renewal");
+                    }
+                    return result;
+                }
+                if (prefetchStart < prefetchEnd) {
+                    next = prefetchStart;
+                    end = prefetchEnd;
+                    prefetchStart = prefetchEnd = 0;
+                } else if (renewing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // IGNORE
+                    }
+                } else {
+                    next = commHandler.leaseSeqnos(name, sequenceLeaseSize);
+                    end = next + sequenceLeaseSize;
+                }
+            }
+        }
+
+        public void run() {
+            long first = 0;
+            boolean success = false;
+            try {
+                first = commHandler.leaseSeqnos(name, sequenceLeaseSize);
+                success = true;
+            } catch (IOException e) {
+                // next() will try again, and report the error
+                if (logger.isDebugEnabled()) {
+                    logger.debug("could not renew sequence lease " + name, e);
+                }
+            }
+            synchronized (this) {
+                if (success) {
+                    prefetchStart = first;
+                    prefetchEnd = first + sequenceLeaseSize;
+                }
+                renewing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private final class TokenLease implements Runnable {
+
+        private final String name;
+
+        private int available = 0;
+
+        // set if the last lease got all tokens it asked for, so more are
+        // likely to be available
+        private boolean plenty = false;
+
+        private boolean renewing = false;
+
+        private boolean ended = false;
+
+        TokenLease(String name) {
+            this.name = name;
+        }
+
+        synchronized boolean take() throws IOException {
+            while (true) {
+                if (available > 0) {
+                    available--;
+                    if (!renewing && plenty
+                            && available <= tokenLeaseSize / 4) {
+                        renewing = true;
+                        ThreadPool.createNew(this, "token lease renewal");
+                    }
+                    return true;
+                }
+                if (renewing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // IGNORE
+                    }
+                } else {
+                    int count = commHandler.leaseTokens(name, tokenLeaseSize);
+                    plenty = count == tokenLeaseSize;
+                    if (count == 0) {
+                        return false;
+                    }
+                    available = count;
+                }
+            }
+        }
+
+        public void run() {
+            int count = 0;
+            try {
+                count = commHandler.leaseTokens(name, tokenLeaseSize);
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("could not renew token lease " + name, e);
+                }
+            }
+
+            boolean giveBack;
+            synchronized (this) {
+                giveBack = ended;
+                if (!ended) {
+                    available += count;
+                }
+                plenty = count == tokenLeaseSize;
+                renewing = false;
+                notifyAll();
+            }
+            if (giveBack && count > 0) {
+                giveBack(count);
+            }
+        }
+
+        void end() {
+            int count;
+            synchronized (this) {
+                ended = true;
+                count = available;
+                available = 0;
+            }
+            if (count > 0) {
+                giveBack(count);
+            }
+        }
+
+        private void giveBack(int count) {
+            try {
+                commHandler.addTokens(name, count);
+            } catch (IOException e) {
+                logger.warn("could not return " + count + " unused tokens "
+                        + name + " to the server", e);
+            }
+        }
+    }
+}
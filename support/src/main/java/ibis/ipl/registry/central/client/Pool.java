@@ -26,6 +26,7 @@ import ibis.ipl.registry.central.EventList;
 import ibis.ipl.registry.central.ListMemberSet;
 import ibis.ipl.registry.central.Member;
 import ibis.ipl.registry.central.MemberSet;
+import ibis.ipl.registry.central.PoolState;
 import ibis.ipl.registry.central.RegistryProperties;
 import ibis.ipl.registry.central.TreeMemberSet;
 import ibis.ipl.registry.statistics.Statistics;
@@ -37,6 +38,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -79,6 +81,10 @@ final class Pool {
 
     private int time;
 
+    // minimum event time last received from the server (or a parent in the
+    // tree), or -1 if none was received yet
+    private int minEventTime = -1;
+
     Pool(IbisCapabilities capabilities, TypedProperties properties,
             Registry registry, Statistics statistics) {
         this.registry = registry;
@@ -216,13 +222,25 @@ final class Pool {
         }
 
         eventList.setMinimum(time);
+        minEventTime = time;
+    }
+
+    synchronized int getMinEventTime() {
+        return minEventTime;
     }
 
     void init(DataInputStream stream) throws IOException {
         long start = System.currentTimeMillis();
-        // copy over data first so we are not blocked while reading data
-        byte[] bytes = new byte[stream.readInt()];
-        stream.readFully(bytes);
+
+        byte version = stream.readByte();
+        if (version != PoolState.VERSION) {
+            throw new IOException("unsupported pool state version: " + version);
+        }
+
+        // read all data first so we are not blocked while reading data
+        byte[] bytes = PoolState.readSnapshot(stream);
+        Event[] signals = PoolState.readEvents(stream);
+        Event[] delta = PoolState.readEvents(stream);
 
         DataInputStream in = new DataInputStream(
                 new ByteArrayInputStream(bytes));
@@ -249,15 +267,6 @@ final class Pool {
             long membersDone = System.currentTimeMillis();
 
             elections.init(in);
-            int nrOfSignals = in.readInt();
-            if (nrOfSignals < 0) {
-                throw new IOException("negative number of signals");
-            }
-
-            ArrayList<Event> signals = new ArrayList<Event>();
-            for (int i = 0; i < nrOfSignals; i++) {
-                signals.add(new Event(in));
-            }
 
             closed = in.readBoolean();
             if (closed) {
@@ -274,7 +283,7 @@ final class Pool {
             SortedSet<Event> events = new TreeSet<Event>();
             events.addAll(members.getJoinEvents());
             events.addAll(elections.getEvents());
-            events.addAll(signals);
+            events.addAll(Arrays.asList(signals));
             if (closed) {
             	events.add(closeEvent);
             }
@@ -295,6 +304,9 @@ final class Pool {
             initialized = true;
             notifyAll();
 
+            // events after the snapshot, handled below
+            eventList.add(delta);
+
             if (statistics != null) {
                 statistics.newPoolSize(members.size());
             }
@@ -319,6 +331,8 @@ final class Pool {
     void writeState(DataOutputStream out, int joinTime) throws IOException {
         ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
         DataOutputStream dataOut = new DataOutputStream(arrayOut);
+        Event[] signals;
+        Event[] delta;
 
         synchronized (this) {
             if (!initialized) {
@@ -330,27 +344,28 @@ final class Pool {
             members.writeTo(dataOut);
             elections.writeTo(dataOut);
 
-            Event[] signals = eventList.getSignalEvents(joinTime, time);
-            dataOut.writeInt(signals.length);
-            for (Event event : signals) {
-                event.writeTo(dataOut);
-            }
-
             dataOut.writeBoolean(closed);
             if (closed) {
-            	closeEvent.writeTo(out);
+                closeEvent.writeTo(dataOut);
             }
             dataOut.writeBoolean(terminated);
             if (terminated) {
-            	terminateEvent.writeTo(out);
+                terminateEvent.writeTo(dataOut);
             }
+
+            signals = eventList.getSignalEvents(joinTime, time - 1);
+            // events we received, but did not handle yet
+            delta = eventList.getList(time);
         }
 
         dataOut.flush();
-        dataOut.close();
         byte[] bytes = arrayOut.toByteArray();
-        out.writeInt(bytes.length);
-        out.write(bytes);
+
+        out.writeByte(PoolState.VERSION);
+        PoolState.writeSnapshot(out, bytes);
+        PoolState.writeEvents(out, signals);
+        PoolState.writeEvents(out, delta);
+
         if (logger.isDebugEnabled()) {
             logger.debug("pool state size = " + bytes.length);
         }
@@ -58,6 +58,9 @@ public final class Registry extends ibis.ipl.registry.Registry {
     // client-side representation of the Pool the local Ibis is in.
     private final Pool pool;
 
+    // leased sequence numbers and tokens, null if leasing is not requested
+    private final Leases leases;
+
     private final IbisIdentifier identifier;
 
     private final IbisCapabilities capabilities;
@@ -162,6 +165,17 @@ public final class Registry extends ibis.ipl.registry.Registry {
 
             communicationHandler.bootstrap();
 
+            if (capabilities
+                    .hasCapability(IbisCapabilities.REGISTRY_LEASES)) {
+                leases = new Leases(communicationHandler,
+                        properties.getIntProperty(
+                                RegistryProperties.SEQUENCE_LEASE_SIZE),
+                        properties.getIntProperty(
+                                RegistryProperties.TOKEN_LEASE_SIZE));
+            } else {
+                leases = null;
+            }
+
         } catch (RemoteException e) {
             // error caused by server "complaining"
             throw new IbisConfigurationException(e.getMessage());
@@ -380,6 +394,10 @@ public final class Registry extends ibis.ipl.registry.Registry {
                     "cannot send signals, registry already stopped");
         }
 
+        if (leases != null) {
+            return leases.getSequenceNumber(name);
+        }
+
         return communicationHandler.getSeqno(name);
     }
 
@@ -389,6 +407,10 @@ public final class Registry extends ibis.ipl.registry.Registry {
             throw new IOException("cannot leave, registry already stopped");
         }
 
+        if (leases != null) {
+            leases.end();
+        }
+
         communicationHandler.leave();
 
         if (statistics != null) {
@@ -553,6 +575,10 @@ public final class Registry extends ibis.ipl.registry.Registry {
                     "cannot get tokens, registry already stopped");
         }
 
+        if (leases != null) {
+            return leases.getToken(name);
+        }
+
         return communicationHandler.getToken(name);
     }
 
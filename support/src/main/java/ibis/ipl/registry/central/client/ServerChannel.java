@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.registry.central.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.ipl.registry.central.Protocol;
+import ibis.ipl.support.Connection;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+import ibis.util.ThreadPool;
+
+/**
+ * Persistent channel to the server, over which requests are multiplexed.
+ * Each request gets an id, and is sent without waiting for the replies to
+ * earlier requests. A reader thread hands out the replies to the waiting
+ * callers. Once broken, a channel cannot be used anymore.
+ */
+final class ServerChannel implements Runnable {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(ServerChannel.class);
+
+    private final Connection connection;
+
+    // replies by request id, null until the reply arrives
+    private final HashMap<Integer, byte[]> replies = new HashMap<Integer, byte[]>();
+
+    private int nextID = 0;
+
+    private boolean broken = false;
+
+    ServerChannel(VirtualSocketAddress serverAddress, int timeout,
+            VirtualSocketFactory factory) throws IOException {
+        connection = new Connection(serverAddress, timeout, true, factory);
+
+        try {
+            connection.out().writeByte(Protocol.MAGIC_BYTE);
+            connection.out().writeByte(Protocol.OPCODE_SESSION);
+            connection.out().flush();
+
+            connection.getAndCheckReply();
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+
+        ThreadPool.createNew(this, "registry server channel");
+    }
+
+    synchronized boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Sends a request to the server, and waits for the reply.
+     * 
+     * @param opcode
+     *            opcode of the request
+     * @param request
+     *            data of the request
+     * @param timeout
+     *            time to wait for the reply, in milliseconds
+     * @return a connection from which the reply can be read, or null if the
+     *         request could not be sent because the channel is broken
+     * @throws IOException
+     *             if the request was sent, but no reply was received
+     */
+    Connection call(byte opcode, byte[] request, long timeout)
+            throws IOException {
+        int id;
+        synchronized (this) {
+            if (broken) {
+                return null;
+            }
+            id = nextID++;
+            replies.put(id, null);
+        }
+
+        try {
+            synchronized (connection) {
+                connection.out().writeInt(id);
+                connection.out().writeByte(opcode);
+                connection.out().writeInt(request.length);
+                connection.out().write(request);
+                connection.out().flush();
+            }
+        } catch (IOException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("could not send request over channel", e);
+            }
+            close();
+            return null;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            try {
+                while (replies.get(id) == null) {
+                    if (broken) {
+                        throw new IOException(
+                                "channel to server broken while waiting for reply");
+                    }
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        // server unresponsive, do not use this channel again
+                        close();
+                        throw new IOException(
+                                "timeout while waiting for reply from server");
+                    }
+                    try {
+                        wait(left);
+                    } catch (InterruptedException e) {
+                        // IGNORE
+                    }
+                }
+                return new Connection(replies.get(id));
+            } finally {
+                replies.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Reads replies, and hands them to the callers waiting for them.
+     */
+    public void run() {
+        try {
+            while (true) {
+                int id = connection.in().readInt();
+                int length = connection.in().readInt();
+                if (length < 0) {
+                    throw new IOException("negative reply size");
+                }
+                byte[] reply = new byte[length];
+                connection.in().readFully(reply);
+
+                synchronized (this) {
+                    // caller may have given up on this reply
+                    if (replies.containsKey(id)) {
+                        replies.put(id, reply);
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!broken && logger.isDebugEnabled()) {
+                    logger.debug("channel to server broken", e);
+                }
+            }
+            close();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            broken = true;
+            notifyAll();
+        }
+        connection.close();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.central.client;
+
+import ibis.ipl.registry.central.Member;
+import ibis.ipl.registry.central.TreeEventPusher;
+import ibis.ipl.support.Connection;
+
+import java.io.IOException;
+
+/**
+ * Forwards events to our children in a k-ary broadcast tree. Children that
+ * can no longer be reached are reported to the server, so the tree is
+ * repaired if they died.
+ */
+final class TreeEventForwarder extends TreeEventPusher {
+
+    private final Pool pool;
+
+    private final CommunicationHandler commHandler;
+
+    TreeEventForwarder(Pool pool, CommunicationHandler commHandler,
+            long timeout) {
+        super("tree event forwarder", timeout);
+        this.pool = pool;
+        this.commHandler = commHandler;
+
+        start();
+    }
+
+    @Override
+    protected boolean hasEnded() {
+        return pool.isStopped();
+    }
+
+    @Override
+    protected int getEventTime() {
+        return pool.getTime();
+    }
+
+    @Override
+    protected void waitForEventTime(int time, long timeout) {
+        pool.waitForEventTime(time, timeout);
+    }
+
+    @Override
+    protected Member[] getChildren() {
+        return pool.getChildren();
+    }
+
+    @Override
+    protected boolean isMember(Member member) {
+        return pool.isMember(member.getIbis());
+    }
+
+    @Override
+    protected Connection openEventStream(Member member) throws IOException {
+        return commHandler.openEventStream(member.getIbis());
+    }
+
+    @Override
+    protected void streamEvents(Member member, Connection connection)
+            throws IOException {
+        commHandler.streamEvents(member.getIbis(), connection);
+    }
+
+    @Override
+    protected void closeEventStream(Connection connection) {
+        commHandler.closeEventStream(connection);
+    }
+
+    @Override
+    protected void maybeDead(Member member) {
+        try {
+            commHandler.maybeDead(member.getIbis());
+        } catch (IOException e) {
+            // IGNORE
+        }
+    }
+
+}
@@ -19,7 +19,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -70,7 +70,7 @@ public final class CentralRegistryService extends Thread
 
     private ServerConnectionHandler handler;
 
-    private boolean stopped = false;
+    private volatile boolean stopped = false;
 
     /**
      * Constructor to create a registry server which is part of a IbisServer
@@ -105,7 +105,7 @@ public final class CentralRegistryService extends Thread
         connectTimeout = typedProperties.getIntProperty(
                 RegistryProperties.SERVER_CONNECT_TIMEOUT) * 1000;
 
-        pools = new TreeMap<String, Pool>();
+        pools = new ConcurrentSkipListMap<String, Pool>();
 
         // start handling connections
         handler = new ServerConnectionHandler(this, socketFactory, policy);
@@ -118,7 +118,9 @@ public final class CentralRegistryService extends Thread
         }
     }
 
-    synchronized Pool getPool(String poolName) {
+    // pools are kept in a concurrent map, so requests can look up their
+    // pool without waiting for the service lock
+    Pool getPool(String poolName) {
         return pools.get(poolName);
     }
 
@@ -135,8 +137,9 @@ public final class CentralRegistryService extends Thread
     synchronized Pool getOrCreatePool(String poolName, boolean peerBootstrap,
             long heartbeatInterval, long eventPushInterval, boolean gossip,
             long gossipInterval, boolean adaptGossipInterval, boolean tree,
-            boolean closedWorld, int poolSize, boolean keepStatistics,
-            long statisticsInterval, boolean purgeHistory,
+            int treeFanout, boolean closedWorld, int poolSize,
+            boolean keepStatistics, long statisticsInterval,
+            boolean purgeHistory,
             String implementationVersion) throws IOException {
         Pool result = getPool(poolName);
 
@@ -144,8 +147,8 @@ public final class CentralRegistryService extends Thread
 
             result = new Pool(poolName, socketFactory, peerBootstrap,
                     heartbeatInterval, eventPushInterval, gossip,
-                    gossipInterval, adaptGossipInterval, tree, closedWorld,
-                    poolSize, keepStatistics, statisticsInterval,
+                    gossipInterval, adaptGossipInterval, tree, treeFanout,
+                    closedWorld, poolSize, keepStatistics, statisticsInterval,
                     connectTimeout, implementationVersion, printEvents,
                     printErrors, purgeHistory);
             pools.put(poolName, result);
@@ -154,7 +157,7 @@ public final class CentralRegistryService extends Thread
         return result;
     }
 
-    synchronized boolean isStopped() {
+    boolean isStopped() {
         return stopped;
     }
 
@@ -23,6 +23,8 @@ import java.util.Formatter;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +38,7 @@ import ibis.ipl.registry.central.EventList;
 import ibis.ipl.registry.central.ListMemberSet;
 import ibis.ipl.registry.central.Member;
 import ibis.ipl.registry.central.MemberSet;
+import ibis.ipl.registry.central.PoolState;
 import ibis.ipl.registry.central.Protocol;
 import ibis.ipl.registry.central.TreeMemberSet;
 import ibis.ipl.registry.statistics.Statistics;
@@ -51,6 +54,10 @@ final class Pool implements Runnable {
     // called by the user
     private static final long RECENTLY_SEEN_THRESHOLD = 1000;
 
+    // number of events members are sent on top of a snapshot, before a new
+    // snapshot is made. Larger pools allow a larger delta.
+    private static final int MIN_SNAPSHOT_DELTA = 16;
+
     private static final Logger logger = LoggerFactory.getLogger(Pool.class);
 
     private final VirtualSocketFactory socketFactory;
@@ -74,6 +81,17 @@ final class Pool implements Runnable {
 
     private final MemberSet members;
 
+    // current members by ID. Used to look up members without taking the
+    // pool lock, for instance on heartbeats. Only updated under the pool lock.
+    private final ConcurrentHashMap<String, Member> memberIndex;
+
+    // serialized snapshot of the pool state, shared by all members that
+    // bootstrap until it is replaced. null if not created yet.
+    private byte[] snapshot = null;
+
+    // event time of the snapshot
+    private int snapshotTime;
+
     private final OndemandEventPusher pusher;
 
     private final String name;
@@ -101,28 +119,33 @@ final class Pool implements Runnable {
     // so the server can print them if so requested
     private final int[] eventStats;
 
-    private final Map<String, Integer> sequencers;
+    // sequencers do not need the pool lock
+    private final ConcurrentHashMap<String, AtomicLong> sequencers;
 
+    // guarded by its own lock
     private final Map<String, Integer> tokens;
 
     private int nextID;
 
-    private boolean ended = false;
+    // volatile, so these can be read without the pool lock
 
-    private boolean closed = false;
+    private volatile boolean ended = false;
+
+    private volatile boolean closed = false;
 
     private Event closeEvent = null;
 
-    private boolean terminated = false;
+    private volatile boolean terminated = false;
 
     private Event terminateEvent = null;
 
     Pool(String name, VirtualSocketFactory socketFactory, boolean peerBootstrap,
             long heartbeatInterval, long eventPushInterval, boolean gossip,
             long gossipInterval, boolean adaptGossipInterval, boolean tree,
-            boolean closedWorld, int poolSize, boolean keepStatistics,
-            long statisticsInterval, int connectTimeout,
-            String implementationVersion, boolean printEvents,
+            int treeFanout, boolean closedWorld, int poolSize,
+            boolean keepStatistics, long statisticsInterval,
+            int connectTimeout, String implementationVersion,
+            boolean printEvents,
             boolean printErrors, boolean purgeHistory) {
         print("creating new pool: \"" + name + "\"");
 
@@ -151,17 +174,23 @@ final class Pool implements Runnable {
         currentEventTime = 0;
         minEventTime = 0;
         nextID = 0;
-        sequencers = new HashMap<String, Integer>();
+        sequencers = new ConcurrentHashMap<String, AtomicLong>();
         tokens = new HashMap<String, Integer>();
 
         events = new EventList();
         eventStats = new int[Event.NR_OF_TYPES];
         elections = new ElectionSet();
+        memberIndex = new ConcurrentHashMap<String, Member>();
 
         if (gossip) {
             members = new ListMemberSet();
             new IterativeEventPusher(this, eventPushInterval, false, false);
             new RandomEventPusher(this, gossipInterval, adaptGossipInterval);
+        } else if (tree && treeFanout > 0) {
+            members = new TreeMemberSet(treeFanout);
+            // stream events to the children of the root of the tree only,
+            // members forward them to their own children
+            new RootEventPusher(this, 1000);
         } else if (tree) {
             members = new TreeMemberSet();
             // on new event send to children in tree
@@ -259,8 +288,8 @@ final class Pool implements Runnable {
         }
     }
 
-    synchronized int getSize() {
-        return members.size();
+    int getSize() {
+        return memberIndex.size();
     }
 
     synchronized ibis.ipl.Location[] getLocations() {
@@ -286,15 +315,15 @@ final class Pool implements Runnable {
      *
      * @see ibis.ipl.impl.registry.central.SuperPool#ended()
      */
-    synchronized boolean hasEnded() {
+    boolean hasEnded() {
         return ended;
     }
 
-    synchronized boolean isClosed() {
+    boolean isClosed() {
         return closed;
     }
 
-    synchronized boolean hasTerminated() {
+    boolean hasTerminated() {
         return terminated;
     }
 
@@ -355,6 +384,7 @@ final class Pool implements Runnable {
         member.updateTime();
 
         members.add(member);
+        memberIndex.put(identifier.getID(), member);
 
         if (logger.isDebugEnabled()) {
             logger.debug("members now: " + members);
@@ -404,47 +434,79 @@ final class Pool implements Runnable {
 
     }
 
+    /**
+     * Returns true if a new snapshot should be made, instead of sending the
+     * events since the current snapshot.
+     */
+    private boolean snapshotOutdated() {
+        if (snapshot == null || snapshotTime < minEventTime
+                || snapshotTime < events.getMinimum()) {
+            return true;
+        }
+        int delta = currentEventTime - snapshotTime;
+        return delta > Math.max(MIN_SNAPSHOT_DELTA, memberIndex.size() / 4);
+    }
+
     public void writeState(DataOutputStream out, int joinTime)
             throws IOException {
+        byte[] state;
+        Event[] signals;
+        Event[] delta;
 
-        ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
-        DataOutputStream dataOut = new DataOutputStream(arrayOut);
-
-        // create byte array of data
         synchronized (this) {
-            dataOut.writeInt(currentEventTime);
+            if (snapshotOutdated()) {
+                ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
+                DataOutputStream dataOut = new DataOutputStream(arrayOut);
 
-            members.writeTo(dataOut);
-            elections.writeTo(dataOut);
+                dataOut.writeInt(currentEventTime);
 
-            Event[] signals = events.getSignalEvents(joinTime,
-                    currentEventTime);
-            dataOut.writeInt(signals.length);
-            for (Event event : signals) {
-                event.writeTo(dataOut);
-            }
+                members.writeTo(dataOut);
+                elections.writeTo(dataOut);
 
-            dataOut.writeBoolean(closed);
-            if (closed) {
-                closeEvent.writeTo(dataOut);
-            }
-            dataOut.writeBoolean(terminated);
-            if (terminated) {
-                terminateEvent.writeTo(dataOut);
+                dataOut.writeBoolean(closed);
+                if (closed) {
+                    closeEvent.writeTo(dataOut);
+                }
+                dataOut.writeBoolean(terminated);
+                if (terminated) {
+                    terminateEvent.writeTo(dataOut);
+                }
+                dataOut.flush();
+
+                snapshot = arrayOut.toByteArray();
+                snapshotTime = currentEventTime;
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("new pool state snapshot at time "
+                            + snapshotTime + ", size = " + snapshot.length);
+                }
             }
-        }
 
-        dataOut.flush();
-        byte[] bytes = arrayOut.toByteArray();
+            state = snapshot;
+            signals = events.getSignalEvents(joinTime, snapshotTime - 1);
+            delta = events.getList(snapshotTime);
+        }
 
-        out.writeInt(bytes.length);
-        out.write(bytes);
+        // the snapshot is never changed, so can be written without the lock
+        out.writeByte(PoolState.VERSION);
+        PoolState.writeSnapshot(out, state);
+        PoolState.writeEvents(out, signals);
+        PoolState.writeEvents(out, delta);
 
         if (logger.isDebugEnabled()) {
-            logger.debug("pool state size = " + bytes.length);
+            logger.debug("pool state snapshot size = " + state.length
+                    + ", delta = " + delta.length + " events");
         }
     }
 
+    private synchronized Member removeMember(IbisIdentifier identifier) {
+        Member member = members.remove(identifier);
+        if (member != null) {
+            memberIndex.remove(identifier.getID());
+        }
+        return member;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -452,7 +514,7 @@ final class Pool implements Runnable {
      * IbisIdentifier )
      */
     synchronized void leave(IbisIdentifier identifier) throws Exception {
-        if (members.remove(identifier) == null) {
+        if (removeMember(identifier) == null) {
             // May happen if it was declared dead before. So, no exception.
             // --Ceriel
             // logger.error("unknown ibis " + identifier + " tried to leave");
@@ -499,7 +561,7 @@ final class Pool implements Runnable {
      * IbisIdentifier )
      */
     synchronized void dead(IbisIdentifier identifier, Exception exception) {
-        Member member = members.remove(identifier);
+        Member member = removeMember(identifier);
         if (member == null) {
             // member removed already
             return;
@@ -551,7 +613,7 @@ final class Pool implements Runnable {
         Election election = elections.get(electionName);
 
         if (election == null) {
-            if (!members.contains(candidate)) {
+            if (!memberIndex.containsKey(candidate.getID())) {
                 throw new IOException(candidate + " tries to win election "
                         + electionName + ", but is not a member of the pool");
             }
@@ -577,18 +639,27 @@ final class Pool implements Runnable {
         return election.getWinner();
     }
 
-    synchronized long getSequenceNumber(String name) {
-        Integer currentValue = sequencers.get(name);
+    long getSequenceNumber(String name) {
+        return getSequenceNumbers(name, 1);
+    }
 
-        if (currentValue == null) {
-            currentValue = new Integer(0);
+    /**
+     * Reserves a block of consecutive sequence numbers.
+     *
+     * @return the first number of the block
+     */
+    long getSequenceNumbers(String name, int count) {
+        AtomicLong sequencer = sequencers.get(name);
+
+        if (sequencer == null) {
+            AtomicLong existing = sequencers.putIfAbsent(name,
+                    sequencer = new AtomicLong());
+            if (existing != null) {
+                sequencer = existing;
+            }
         }
 
-        int result = currentValue;
-
-        sequencers.put(name, currentValue + 1);
-
-        return result;
+        return sequencer.getAndAdd(count);
     }
 
     /*
@@ -597,9 +668,9 @@ final class Pool implements Runnable {
      * @seeibis.ipl.impl.registry.central.SuperPool#maybeDead(ibis.ipl.impl.
      * IbisIdentifier)
      */
-    synchronized void maybeDead(IbisIdentifier identifier) {
+    void maybeDead(IbisIdentifier identifier) {
 
-        Member member = members.get(identifier);
+        Member member = memberIndex.get(identifier.getID());
 
         if (member != null) {
             if (member.getTime() > (System.currentTimeMillis()
@@ -617,7 +688,9 @@ final class Pool implements Runnable {
 
                 member.clearTime();
                 // wake up checker thread, this suspect now (among) the oldest
-                notifyAll();
+                synchronized (this) {
+                    notifyAll();
+                }
             }
         } else {
             if (logger.isDebugEnabled()) {
@@ -639,7 +712,7 @@ final class Pool implements Runnable {
         ArrayList<IbisIdentifier> result = new ArrayList<IbisIdentifier>();
 
         for (IbisIdentifier target : targets) {
-            if (members.contains(target)) {
+            if (memberIndex.containsKey(target.getID())) {
                 result.add(target);
             }
         }
@@ -877,6 +950,93 @@ final class Pool implements Runnable {
         }
     }
 
+    /**
+     * Opens a persistent event stream to the given member. Events are sent
+     * over the stream with {@link #streamEvents(Member, Connection)}.
+     */
+    Connection openEventStream(Member member) throws IOException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("opening event stream to " + member);
+        }
+
+        Connection connection = new Connection(member.getIbis(),
+                connectTimeout, true, socketFactory, Protocol.VIRTUAL_PORT);
+
+        try {
+            connection.out().writeByte(Protocol.MAGIC_BYTE);
+            connection.out().writeByte(Protocol.OPCODE_EVENT_STREAM);
+            connection.out().writeUTF(getName());
+            connection.out().flush();
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Sends the events the given member still needs over an event stream.
+     * Each round is the same exchange as a push, but the connection stays
+     * open for the next round.
+     */
+    void streamEvents(Member member, Connection connection)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        int read = connection.read();
+        int written = connection.written();
+
+        // start of a new round
+        connection.out().writeBoolean(true);
+        connection.out().flush();
+
+        boolean requestBootstrap = connection.in().readBoolean();
+        int joinTime = connection.in().readInt();
+        int requestedEventTime = connection.in().readInt();
+
+        connection.sendOKReply();
+
+        if (requestBootstrap) {
+            writeState(connection.out(), joinTime);
+        }
+
+        member.advanceCurrentTime(requestedEventTime);
+        Event[] events = getEvents(requestedEventTime);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("streaming " + events.length + " entries to "
+                    + member);
+        }
+
+        connection.out().writeInt(events.length);
+        for (int i = 0; i < events.length; i++) {
+            events[i].writeTo(connection.out());
+        }
+        connection.out().writeInt(getMinEventTime());
+        connection.out().flush();
+
+        member.updateTime();
+
+        if (statistics != null) {
+            statistics.add(Protocol.OPCODE_EVENT_STREAM,
+                    System.currentTimeMillis() - start,
+                    connection.read() - read, connection.written() - written,
+                    false);
+        }
+    }
+
+    /**
+     * Ends an event stream opened with {@link #openEventStream(Member)}.
+     */
+    void closeEventStream(Connection connection) {
+        try {
+            connection.out().writeBoolean(false);
+            connection.out().flush();
+        } catch (IOException e) {
+            // IGNORE
+        }
+        connection.close();
+    }
+
     private synchronized Member getSuspectMember() {
         while (!hasEnded()) {
 
@@ -917,8 +1077,8 @@ final class Pool implements Runnable {
         return null;
     }
 
-    synchronized void gotHeartbeat(IbisIdentifier identifier) {
-        Member member = members.get(identifier);
+    void gotHeartbeat(IbisIdentifier identifier) {
+        Member member = memberIndex.get(identifier.getID());
 
         if (logger.isDebugEnabled()) {
             logger.debug("updating last seen time for " + member);
@@ -929,6 +1089,21 @@ final class Pool implements Runnable {
         }
     }
 
+    /**
+     * Heartbeat which also reports the next event the member requires. Used
+     * to keep track of the progress of members the server does not send
+     * events to itself, such as the members deeper in a k-ary tree.
+     */
+    void gotHeartbeat(IbisIdentifier identifier, int nextRequiredEvent) {
+        gotHeartbeat(identifier);
+
+        Member member = memberIndex.get(identifier.getID());
+
+        if (member != null) {
+            member.advanceCurrentTime(nextRequiredEvent);
+        }
+    }
+
     synchronized Member[] getRandomMembers(int size) {
         return members.getRandom(size);
     }
@@ -937,8 +1112,8 @@ final class Pool implements Runnable {
         return members.getRandom();
     }
 
-    synchronized boolean isMember(Member member) {
-        return members.contains(member);
+    boolean isMember(Member member) {
+        return memberIndex.containsKey(member.getIbis().getID());
     }
 
     synchronized Member[] getMembers() {
@@ -1005,11 +1180,6 @@ final class Pool implements Runnable {
      *
      */
     synchronized void purgeHistory() {
-        if (!purgeHistory) {
-            // do nothing, history purge disabled
-            return;
-        }
-
         int newMinimum = members.getMinimumTime();
 
         if (newMinimum == -1) {
@@ -1017,6 +1187,17 @@ final class Pool implements Runnable {
             newMinimum = getEventTime();
         }
 
+        if (!purgeHistory) {
+            // Members keep their history, but the server only needs the
+            // events members have not received yet. Joining members get a
+            // snapshot of the pool, in which departed members and old
+            // signals are already gone.
+            if (newMinimum > events.getMinimum()) {
+                events.setMinimum(newMinimum);
+            }
+            return;
+        }
+
         if (newMinimum < minEventTime) {
             logger.error("tried to set minimum event time backwards");
             return;
@@ -1057,29 +1238,42 @@ final class Pool implements Runnable {
         return statistics;
     }
 
-    public String getToken(String name2) {
-        Integer currentValue = tokens.get(name2);
+    String getToken(String name2) {
+        return getTokens(name2, 1) == 0 ? null : name2;
+    }
 
-        if (currentValue == null) {
-            return null;
-        }
+    /**
+     * Takes at most the given number of tokens.
+     *
+     * @return the number of tokens taken
+     */
+    int getTokens(String name2, int max) {
+        synchronized (tokens) {
+            Integer currentValue = tokens.get(name2);
 
-        int result = currentValue - 1;
-        if (result == 0) {
-            tokens.remove(name2);
-        } else {
-            tokens.put(name2, result);
+            if (currentValue == null) {
+                return 0;
+            }
+
+            int result = Math.min(currentValue, max);
+            if (result == currentValue) {
+                tokens.remove(name2);
+            } else {
+                tokens.put(name2, currentValue - result);
+            }
+            return result;
         }
-        return name2;
     }
 
-    public void addTokens(String name2, int count) {
-        Integer currentValue = tokens.get(name2);
+    void addTokens(String name2, int count) {
+        synchronized (tokens) {
+            Integer currentValue = tokens.get(name2);
 
-        if (currentValue != null) {
-            count += currentValue;
+            if (currentValue != null) {
+                count += currentValue;
+            }
+            tokens.put(name2, count);
         }
-        tokens.put(name2, count);
     }
 
 }
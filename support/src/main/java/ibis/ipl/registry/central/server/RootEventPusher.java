@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.central.server;
+
+import ibis.ipl.registry.central.Member;
+import ibis.ipl.registry.central.TreeEventPusher;
+import ibis.ipl.support.Connection;
+
+import java.io.IOException;
+
+/**
+ * Sends events to the children of the root of a k-ary broadcast tree.
+ * Members forward the events to their own children, so the number of
+ * members the server sends events to is bounded by the fan-out of the tree,
+ * whatever the pool size.
+ *
+ * When a member leaves or dies, the tree is repaired by the member set (see
+ * {@link ibis.ipl.registry.central.TreeMemberSet}), and streams are opened
+ * and closed as the children of the root change.
+ */
+final class RootEventPusher extends TreeEventPusher {
+
+    private final Pool pool;
+
+    RootEventPusher(Pool pool, long timeout) {
+        super("tree event pusher", timeout);
+        this.pool = pool;
+
+        start();
+    }
+
+    @Override
+    protected boolean hasEnded() {
+        return pool.hasEnded();
+    }
+
+    @Override
+    protected int getEventTime() {
+        return pool.getEventTime();
+    }
+
+    @Override
+    protected void waitForEventTime(int time, long timeout) {
+        pool.waitForEventTime(time, timeout);
+    }
+
+    @Override
+    protected Member[] getChildren() {
+        return pool.getChildren();
+    }
+
+    @Override
+    protected boolean isMember(Member member) {
+        return pool.isMember(member);
+    }
+
+    @Override
+    protected Connection openEventStream(Member member) throws IOException {
+        return pool.openEventStream(member);
+    }
+
+    @Override
+    protected void streamEvents(Member member, Connection connection)
+            throws IOException {
+        pool.streamEvents(member, connection);
+    }
+
+    @Override
+    protected void closeEventStream(Connection connection) {
+        pool.closeEventStream(connection);
+    }
+
+    @Override
+    protected void maybeDead(Member member) {
+        pool.maybeDead(member.getIbis());
+    }
+
+    @Override
+    protected void updated() {
+        pool.purgeHistory();
+    }
+
+}
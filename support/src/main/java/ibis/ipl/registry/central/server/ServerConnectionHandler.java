@@ -17,6 +17,8 @@ package ibis.ipl.registry.central.server;
 
 import java.io.IOException;
 import java.security.AccessControlException;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +42,9 @@ final class ServerConnectionHandler implements Runnable {
 
     static final int MAX_THREADS = 50;
 
+    // maximum number of persistent client channels
+    static final int MAX_SESSIONS = 1000;
+
     private static final Logger logger = LoggerFactory
             .getLogger(ServerConnectionHandler.class);
 
@@ -55,6 +60,8 @@ final class ServerConnectionHandler implements Runnable {
 
     private ControlPolicy policy;
 
+    private final Set<Connection> sessions = new HashSet<Connection>();
+
     ServerConnectionHandler(CentralRegistryService server,
             VirtualSocketFactory connectionFactory, ControlPolicy policy)
                     throws IOException {
@@ -110,6 +117,7 @@ final class ServerConnectionHandler implements Runnable {
         long gossipInterval = connection.in().readLong();
         boolean adaptGossipInterval = connection.in().readBoolean();
         boolean tree = connection.in().readBoolean();
+        int treeFanout = connection.in().readInt();
         boolean closedWorld = connection.in().readBoolean();
         int poolSize = connection.in().readInt();
         boolean keepStatistics = connection.in().readBoolean();
@@ -148,7 +156,7 @@ final class ServerConnectionHandler implements Runnable {
 
         pool = server.getOrCreatePool(poolName, peerBootstrap,
                 heartbeatInterval, eventPushInterval, gossip, gossipInterval,
-                adaptGossipInterval, tree, closedWorld, poolSize,
+                adaptGossipInterval, tree, treeFanout, closedWorld, poolSize,
                 keepStatistics, statisticsInterval, purgeHistory,
                 implementationVersion);
 
@@ -254,6 +262,33 @@ final class ServerConnectionHandler implements Runnable {
 
     }
 
+    private Pool handleLeaseSequenceNumbers(Connection connection)
+            throws Exception {
+        IbisIdentifier identifier = new IbisIdentifier(connection.in());
+        String name = connection.in().readUTF();
+        int count = connection.in().readInt();
+
+        Pool pool = server.getPool(identifier.poolName());
+
+        if (pool == null) {
+            connection.closeWithError("pool not found");
+            throw new Exception("pool " + identifier.poolName() + " not found");
+        }
+
+        if (count <= 0) {
+            connection.closeWithError("invalid lease size: " + count);
+            throw new Exception("invalid lease size: " + count);
+        }
+
+        long first = pool.getSequenceNumbers(name, count);
+
+        connection.sendOKReply();
+
+        connection.out().writeLong(first);
+        pool.gotHeartbeat(identifier);
+        return pool;
+    }
+
     private Pool handleAddTokens(Connection connection) throws Exception {
         IbisIdentifier identifier = new IbisIdentifier(connection.in());
         String name = connection.in().readUTF();
@@ -294,6 +329,32 @@ final class ServerConnectionHandler implements Runnable {
         return pool;
     }
 
+    private Pool handleLeaseTokens(Connection connection) throws Exception {
+        IbisIdentifier identifier = new IbisIdentifier(connection.in());
+        String name = connection.in().readUTF();
+        int max = connection.in().readInt();
+
+        Pool pool = server.getPool(identifier.poolName());
+
+        if (pool == null) {
+            connection.closeWithError("pool not found");
+            throw new Exception("pool " + identifier.poolName() + " not found");
+        }
+
+        if (max <= 0) {
+            connection.closeWithError("invalid lease size: " + max);
+            throw new Exception("invalid lease size: " + max);
+        }
+
+        int count = pool.getTokens(name, max);
+
+        connection.sendOKReply();
+        connection.out().writeInt(count);
+
+        pool.gotHeartbeat(identifier);
+        return pool;
+    }
+
     private Pool handleDead(Connection connection) throws Exception {
         IbisIdentifier identifier = new IbisIdentifier(connection.in());
         IbisIdentifier corpse = new IbisIdentifier(connection.in());
@@ -393,8 +454,10 @@ final class ServerConnectionHandler implements Runnable {
             throw new Exception("pool " + identifier.poolName() + " not found");
         }
 
+        int nextRequiredEvent = connection.in().readInt();
+
         connection.sendOKReply();
-        pool.gotHeartbeat(identifier);
+        pool.gotHeartbeat(identifier, nextRequiredEvent);
         return pool;
 
     }
@@ -444,6 +507,131 @@ final class ServerConnectionHandler implements Runnable {
         notifyAll();
     }
 
+    private Pool handleRequest(byte opcode, Connection connection)
+            throws Exception {
+        switch (opcode) {
+        case Protocol.OPCODE_JOIN:
+            return handleJoin(connection);
+        case Protocol.OPCODE_LEAVE:
+            return handleLeave(connection);
+        case Protocol.OPCODE_ELECT:
+            return handleElect(connection);
+        case Protocol.OPCODE_SEQUENCE_NR:
+            return handleGetSequenceNumber(connection);
+        case Protocol.OPCODE_DEAD:
+            return handleDead(connection);
+        case Protocol.OPCODE_MAYBE_DEAD:
+            return handleMaybeDead(connection);
+        case Protocol.OPCODE_SIGNAL:
+            return handleSignal(connection);
+        case Protocol.OPCODE_GET_STATE:
+            return handleGetState(connection);
+        case Protocol.OPCODE_HEARTBEAT:
+            return handleHeartbeat(connection);
+        case Protocol.OPCODE_TERMINATE:
+            return handleTerminate(connection);
+        case Protocol.OPCODE_ADD_TOKENS:
+            return handleAddTokens(connection);
+        case Protocol.OPCODE_GET_TOKEN:
+            return handleGetToken(connection);
+        case Protocol.OPCODE_LEASE_SEQUENCE_NRS:
+            return handleLeaseSequenceNumbers(connection);
+        case Protocol.OPCODE_LEASE_TOKENS:
+            return handleLeaseTokens(connection);
+        default:
+            throw new IOException("unknown opcode: " + opcode);
+        }
+    }
+
+    private void requestDone(Pool pool, byte opcode, long start,
+            Connection connection) {
+        if (pool == null) {
+            return;
+        }
+        if (pool.getStatistics() != null) {
+            pool.getStatistics().add(opcode,
+                    System.currentTimeMillis() - start, connection.read(),
+                    connection.written(), true);
+            if (logger.isDebugEnabled()) {
+                logger.debug("done handling request");
+            }
+        }
+        if (pool.hasEnded()) {
+            // save statistics
+            pool.saveStatistics();
+        }
+    }
+
+    /**
+     * Handles a persistent channel from a client. Each request on the channel
+     * consists of a request id, an opcode, and the request data, which is
+     * the same as on a connection of its own. Each reply consists of the
+     * request id and the reply data. Requests are handled in order, but a
+     * client may send new requests before the replies to earlier ones have
+     * arrived.
+     */
+    private void handleSession(Connection connection) {
+        synchronized (this) {
+            if (sessions.size() >= MAX_SESSIONS) {
+                connection.closeWithError("too many sessions");
+                return;
+            }
+            sessions.add(connection);
+        }
+
+        try {
+            connection.sendOKReply();
+
+            while (!server.isStopped()) {
+                int id = connection.in().readInt();
+                byte opcode = connection.in().readByte();
+                int length = connection.in().readInt();
+                if (length < 0) {
+                    throw new IOException("negative request size");
+                }
+                byte[] data = new byte[length];
+                connection.in().readFully(data);
+
+                if (logger.isDebugEnabled() && opcode >= 0
+                        && opcode < Protocol.NR_OF_OPCODES) {
+                    logger.debug("got session request " + id + ", opcode = "
+                            + Protocol.OPCODE_NAMES[opcode]);
+                }
+
+                long start = System.currentTimeMillis();
+                Connection request = new Connection(data);
+                Pool pool = null;
+                try {
+                    pool = handleRequest(opcode, request);
+                } catch (Exception e) {
+                    if (request.written() == 0) {
+                        request.closeWithError("Server: " + e.getMessage());
+                    }
+                    logger.error("error on handling session request", e);
+                }
+
+                byte[] reply = request.toByteArray();
+                connection.out().writeInt(id);
+                connection.out().writeInt(reply.length);
+                connection.out().write(reply);
+                // pipelined requests are answered with a single flush
+                if (connection.in().available() == 0) {
+                    connection.out().flush();
+                }
+
+                requestDone(pool, opcode, start, request);
+            }
+        } catch (IOException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("session ended", e);
+            }
+        } finally {
+            synchronized (this) {
+                sessions.remove(connection);
+            }
+        }
+    }
+
     public void run() {
         Connection connection = null;
         try {
@@ -494,46 +682,14 @@ final class ServerConnectionHandler implements Runnable {
                         + Protocol.OPCODE_NAMES[opcode]);
             }
 
-            switch (opcode) {
-            case Protocol.OPCODE_JOIN:
-                pool = handleJoin(connection);
-                break;
-            case Protocol.OPCODE_LEAVE:
-                pool = handleLeave(connection);
-                break;
-            case Protocol.OPCODE_ELECT:
-                pool = handleElect(connection);
-                break;
-            case Protocol.OPCODE_SEQUENCE_NR:
-                pool = handleGetSequenceNumber(connection);
-                break;
-            case Protocol.OPCODE_DEAD:
-                pool = handleDead(connection);
-                break;
-            case Protocol.OPCODE_MAYBE_DEAD:
-                pool = handleMaybeDead(connection);
-                break;
-            case Protocol.OPCODE_SIGNAL:
-                pool = handleSignal(connection);
-                break;
-            case Protocol.OPCODE_GET_STATE:
-                pool = handleGetState(connection);
-                break;
-            case Protocol.OPCODE_HEARTBEAT:
-                pool = handleHeartbeat(connection);
-                break;
-            case Protocol.OPCODE_TERMINATE:
-                pool = handleTerminate(connection);
-                break;
-            case Protocol.OPCODE_ADD_TOKENS:
-                pool = handleAddTokens(connection);
-                break;
-            case Protocol.OPCODE_GET_TOKEN:
-                pool = handleGetToken(connection);
-                break;
-            default:
-                logger.error("unknown opcode: " + opcode);
+            if (opcode == Protocol.OPCODE_SESSION) {
+                // a session does not hold up accepting new connections
+                threadEnded();
+                handleSession(connection);
+                return;
             }
+
+            pool = handleRequest(opcode, connection);
         } catch (Exception e) {
             // send error to client
             connection.closeWithError("Server: " + e.getMessage());
@@ -542,20 +698,7 @@ final class ServerConnectionHandler implements Runnable {
             connection.close();
         }
 
-        if (pool != null) {
-            if (pool.getStatistics() != null) {
-                pool.getStatistics().add(opcode,
-                        System.currentTimeMillis() - start, connection.read(),
-                        connection.written(), true);
-                if (logger.isDebugEnabled()) {
-                    logger.debug("done handling request");
-                }
-            }
-            if (pool.hasEnded()) {
-                // save statistics
-                pool.saveStatistics();
-            }
-        }
+        requestDone(pool, opcode, start, connection);
         threadEnded();
     }
 
@@ -565,6 +708,14 @@ final class ServerConnectionHandler implements Runnable {
         } catch (Exception e) {
             // IGNORE
         }
+
+        Connection[] open;
+        synchronized (this) {
+            open = sessions.toArray(new Connection[sessions.size()]);
+        }
+        for (Connection session : open) {
+            session.close();
+        }
         if (logger.isInfoEnabled()) {
             synchronized (this) {
                 logger.debug(
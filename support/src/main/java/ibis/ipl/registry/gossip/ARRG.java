@@ -297,58 +297,73 @@ class ARRG extends Thread {
         return result.toArray(new VirtualSocketAddress[0]);
     }
 
-    public void run() {
-        while (!ended()) {
-            ARRGCacheEntry victim = cache.getRandomEntry(true);
+    /**
+     * Does a single round of gossip: with a random member of the cache, or
+     * of the fallback cache, or else with the bootstrap service.
+     */
+    void gossipRound() {
+        ARRGCacheEntry victim = cache.getRandomEntry(true);
+
+        boolean success = false;
+
+        // first try normal cache
+        if (victim != null) {
+            try {
+                gossip(victim.getAddress(), CONNECT_TIMEOUT, false);
+                fallbackCache.add(victim);
+                success = true;
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("could not gossip with " + victim, e);
+                }
+            }
 
-            boolean success = false;
+        }
 
-            // first try normal cache
+        // then try fallback cache
+        if (success == false) {
+            victim = fallbackCache.getRandomEntry(true);
             if (victim != null) {
                 try {
                     gossip(victim.getAddress(), CONNECT_TIMEOUT, false);
-                    fallbackCache.add(victim);
                     success = true;
                 } catch (IOException e) {
                     if (logger.isDebugEnabled()) {
-                	logger.debug("could not gossip with " + victim, e);
+                        logger.debug("could not gossip with fallback entry: "
+                                + victim, e);
                     }
                 }
-
             }
+        }
 
-            // then try fallback cache
-            if (success == false) {
-                victim = fallbackCache.getRandomEntry(true);
-                if (victim != null) {
-                    try {
-                        gossip(victim.getAddress(), CONNECT_TIMEOUT, false);
-                        success = true;
-                    } catch (IOException e) {
-                	if (logger.isDebugEnabled()) {
-                	    logger.debug("could not gossip with fallback entry: "
-                		    + victim, e);
-                	}
-                    }
+        // lastly, use bootstrap service (also wait longer on connecting)
+        if (success == false) {
+            if (bootstrapAddress != null) {
+                try {
+                    gossip(bootstrapAddress, SERVER_CONNECT_TIMEOUT, true);
+                    success = true;
+                } catch (IOException e) {
+                    logger.error(
+                        "could not gossip with bootstrap server at "
+                                + bootstrapAddress, e);
                 }
             }
+        }
+    }
 
-            // lastly, use bootstrap service (also wait longer on connecting)
-            if (success == false) {
-                if (bootstrapAddress != null) {
-                    try {
-                        gossip(bootstrapAddress, SERVER_CONNECT_TIMEOUT, true);
-                        success = true;
-                    } catch (IOException e) {
-                        logger.error(
-                            "could not gossip with bootstrap server at "
-                                    + bootstrapAddress, e);
-                    }
-                }
-            }
+    /**
+     * Returns the (random) time to wait until the next gossip round.
+     */
+    static long nextGossipDelay() {
+        return (long) (Math.random() * GOSSIP_TIMEOUT) + 1;
+    }
+
+    public void run() {
+        while (!ended()) {
+            gossipRound();
 
             synchronized (this) {
-                long timeout = (long) (Math.random() * GOSSIP_TIMEOUT) + 1;
+                long timeout = nextGossipDelay();
 
                 try {
                     if (logger.isDebugEnabled()) {
@@ -28,18 +28,39 @@ import ibis.util.TypedProperties;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Bootstrap service for pools using the gossip registry. All pools share a
+ * single accept thread, and two executors with a fixed number of threads.
+ * Accepted connections are handled by the connection executor. The ARRG
+ * instance of each pool is a passive object, of which the gossip rounds are
+ * scheduled on the gossip executor. A gossip round may block for a long time
+ * on unreachable peers, so these are kept apart: incoming requests are still
+ * answered while all gossip threads are busy. The number of threads does not
+ * depend on the number of pools, so a single server can bootstrap many pools
+ * at once.
+ */
 public class BootstrapService implements Service, Runnable {
 
-
-
     private static final int CONNECTION_BACKLOG = 50;
 
     static final int MAX_THREADS = 50;
 
+    static final int MAX_GOSSIP_THREADS = 50;
+
+    // how often pools without any gossip are removed (in milliseconds)
+    private static final long CLEANUP_INTERVAL = 60000;
+
     private static final Logger logger = LoggerFactory
             .getLogger(BootstrapService.class);
 
@@ -47,9 +68,11 @@ public class BootstrapService implements Service, Runnable {
 
     private final VirtualSocketFactory socketFactory;
 
-    private final Map<String, ARRG> arrgs;
+    private final ExecutorService connectionExecutor;
 
-    // private final boolean printEvents;
+    private final ScheduledExecutorService gossipExecutor;
+
+    private final ConcurrentHashMap<String, ARRG> arrgs;
 
     // private final boolean printEvents;
 
@@ -57,11 +80,7 @@ public class BootstrapService implements Service, Runnable {
 
     private final boolean keepStatistics;
 
-    private boolean ended = false;
-
-    private int currentNrOfThreads = 0;
-
-    private int maxNrOfThreads = 0;
+    private volatile boolean ended = false;
 
     public BootstrapService(TypedProperties properties,
             VirtualSocketFactory socketFactory) throws IOException {
@@ -75,19 +94,41 @@ public class BootstrapService implements Service, Runnable {
         keepStatistics = properties
                 .getBooleanProperty(RegistryProperties.STATISTICS);
 
-        arrgs = new HashMap<String, ARRG>();
+        arrgs = new ConcurrentHashMap<String, ARRG>();
+
+        connectionExecutor = Executors.newFixedThreadPool(MAX_THREADS,
+            daemonThreads("bootstrap service thread"));
+
+        gossipExecutor = Executors.newScheduledThreadPool(MAX_GOSSIP_THREADS,
+            daemonThreads("bootstrap service gossip thread"));
 
         serverSocket = socketFactory.createServerSocket(Protocol.VIRTUAL_PORT,
             CONNECTION_BACKLOG, null);
 
-        createThread();
+        gossipExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                cleanup();
+            }
+        }, CLEANUP_INTERVAL, CLEANUP_INTERVAL, TimeUnit.MILLISECONDS);
+
+        ThreadPool.createNew(this, "bootstrap service acceptor");
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread result = new Thread(runnable, name);
+                result.setDaemon(true);
+                return result;
+            }
+        };
     }
 
     public String getServiceName() {
         return "bootstrap";
     }
 
-    public synchronized void end(long deadline) {
+    public void end(long deadline) {
         ended = true;
 
         try {
@@ -100,17 +141,28 @@ public class BootstrapService implements Service, Runnable {
             arrg.end();
         }
 
-        notifyAll();
+        connectionExecutor.shutdownNow();
+        gossipExecutor.shutdownNow();
     }
 
-    synchronized boolean hasEnded() {
+    boolean hasEnded() {
         return ended;
     }
 
-    private synchronized ARRG getOrCreateARRG(String poolName) {
+    private ARRG getOrCreateARRG(String poolName) {
         ARRG result = arrgs.get(poolName);
 
-        if (result == null) {
+        if (result != null) {
+            return result;
+        }
+
+        synchronized (this) {
+            // check again, some other thread may have just created it
+            result = arrgs.get(poolName);
+            if (result != null) {
+                return result;
+            }
+
             Statistics statistics = null;
             if (keepStatistics) {
                 statistics = new Statistics(Protocol.OPCODE_NAMES);
@@ -119,87 +171,96 @@ public class BootstrapService implements Service, Runnable {
             }
             result = new ARRG(serverSocket.getLocalSocketAddress(), true,
                     new VirtualSocketAddress[0], null, poolName, socketFactory,
-                    null);
-            result.start();
+                    statistics);
             arrgs.put(poolName, result);
-
-            System.out.println("Bootstrap service for new pool: " + poolName);
         }
 
-        return result;
-    }
-
-    private synchronized void cleanup() {
-        // copy values so we can remove them from the map
-        for (ARRG arrg : arrgs.values().toArray(new ARRG[0])) {
-            if (arrg.isDead()) {
-                // this pool is dead, remove it...
-                arrgs.remove(arrg.getPoolName());
-            }
-        }
-    }
+        scheduleGossip(result, ARRG.nextGossipDelay());
 
-    private synchronized void createThread() {
-        while (currentNrOfThreads >= MAX_THREADS) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                // IGNORE
-            }
-        }
+        System.out.println("Bootstrap service for new pool: " + poolName);
 
-        // create new thread for next connection
-        ThreadPool.createNew(this, "bootstrap service connection handler");
-        currentNrOfThreads++;
+        return result;
+    }
 
-        if (logger.isTraceEnabled()) {
-            logger.trace("now " + currentNrOfThreads + " threads");
+    /**
+     * Schedules the next gossip round of the given ARRG, which schedules the
+     * round after that when done, until the ARRG or this service ends.
+     */
+    private void scheduleGossip(final ARRG arrg, long delay) {
+        if (hasEnded() || arrg.ended()) {
+            return;
         }
 
-        if (currentNrOfThreads > maxNrOfThreads) {
-            maxNrOfThreads = currentNrOfThreads;
+        try {
+            gossipExecutor.schedule(new Runnable() {
+                public void run() {
+                    if (hasEnded() || arrg.ended()) {
+                        return;
+                    }
+                    arrg.gossipRound();
+                    scheduleGossip(arrg, ARRG.nextGossipDelay());
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // service ended
         }
     }
 
-    private synchronized void threadEnded() {
-        currentNrOfThreads--;
+    private void cleanup() {
+        for (ARRG arrg : arrgs.values()) {
+            if (arrg.isDead()) {
+                // this pool is dead, remove it...
+                arrg.end();
+                arrgs.remove(arrg.getPoolName(), arrg);
 
-        notifyAll();
+                Statistics statistics = arrg.getStatistics();
+                if (statistics != null) {
+                    statistics.end();
+                }
+            }
+        }
     }
 
     public void run() {
-        Connection connection = null;
-        try {
-            if (logger.isDebugEnabled()) {
-        	logger.debug("accepting connection");
-            }
-            connection = new Connection(serverSocket);
-            if (logger.isDebugEnabled()) {
-        	logger.debug("connection accepted");
-            }
-        } catch (IOException e) {
-            if (hasEnded()) {
-                threadEnded();
-                return;
+        while (!hasEnded()) {
+            final Connection connection;
+            try {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("accepting connection");
+                }
+                connection = new Connection(serverSocket);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("connection accepted");
+                }
+            } catch (IOException e) {
+                if (hasEnded()) {
+                    return;
+                }
+                logger.error("Accept failed, waiting a second, will retry", e);
+
+                // wait a bit
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e1) {
+                    // IGNORE
+                }
+                continue;
             }
-            logger.error("Accept failed, waiting a second, will retry", e);
 
-            // wait a bit
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e1) {
-                // IGNORE
+                connectionExecutor.execute(new Runnable() {
+                    public void run() {
+                        handleConnection(connection);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // service ended
+                connection.close();
             }
         }
+    }
 
-        // create new thread for next connection
-        createThread();
-
-        if (connection == null) {
-            threadEnded();
-            return;
-        }
-
+    private void handleConnection(Connection connection) {
         long start = System.currentTimeMillis();
         byte opcode = 0;
         try {
@@ -248,10 +309,6 @@ public class BootstrapService implements Service, Runnable {
         if (logger.isDebugEnabled()) {
             logger.debug("done handling request");
         }
-
-        // delete any dead ARRG's
-        cleanup();
-        threadEnded();
     }
 
     public String toString() {
@@ -259,8 +316,9 @@ public class BootstrapService implements Service, Runnable {
     }
 
     public Map<String, String> getStats() {
-        // no statistics
-        return new HashMap<String, String>();
+        Map<String, String> result = new HashMap<String, String>();
+        result.put("pools", Integer.toString(arrgs.size()));
+        return result;
     }
 
 }
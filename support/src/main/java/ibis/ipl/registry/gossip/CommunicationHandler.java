@@ -21,6 +21,7 @@ import ibis.ipl.impl.IbisIdentifier;
 import ibis.ipl.registry.statistics.Statistics;
 import ibis.ipl.support.Client;
 import ibis.ipl.support.Connection;
+import ibis.ipl.support.vivaldi.ProximityService;
 import ibis.smartsockets.virtual.VirtualServerSocket;
 import ibis.smartsockets.virtual.VirtualSocketAddress;
 import ibis.smartsockets.virtual.VirtualSocketFactory;
@@ -28,6 +29,7 @@ import ibis.util.ThreadPool;
 import ibis.util.TypedProperties;
 
 import java.io.IOException;
+import java.util.Random;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,6 +65,12 @@ class CommunicationHandler implements Runnable {
 
     private final int gossipSize;
 
+    private final double proximityBias;
+
+    private final int proximityPeers;
+
+    private final Random random;
+
     private int currentNrOfThreads = 0;
 
     private int maxNrOfThreads = 0;
@@ -80,6 +88,12 @@ class CommunicationHandler implements Runnable {
 
         gossipSize = properties.getIntProperty(RegistryProperties.GOSSIP_COUNT);
 
+        proximityBias = properties
+                .getDoubleProperty(RegistryProperties.PROXIMITY_BIAS);
+        proximityPeers = properties
+                .getIntProperty(RegistryProperties.PROXIMITY_PEERS);
+        random = new Random();
+
         String clientID = properties.getProperty(Ibis.ID_PROPERTY);
         Client client = Client.getOrCreateClient(clientID, properties, 0);
         socketFactory = client.getFactory();
@@ -163,34 +177,65 @@ class CommunicationHandler implements Runnable {
         connection.close();
     }
 
+    // with a chance of proximity.bias, pick one of the members nearest to us
+    private IbisIdentifier getNearbyMember() {
+        ProximityService proximity = registry.getProximityService();
+
+        if (proximity == null || proximityBias <= 0
+                || random.nextDouble() >= proximityBias) {
+            return null;
+        }
+
+        IbisIdentifier[] nearest = proximity.getNearest(proximityPeers);
+        if (nearest.length == 0) {
+            return null;
+        }
+        return nearest[random.nextInt(nearest.length)];
+    }
+
     public void gossip() {
-        VirtualSocketAddress address = arrg.getRandomMember();
+        IbisIdentifier nearby = getNearbyMember();
+        VirtualSocketAddress address = null;
 
-        if (address == null
-                || address.equals(serverSocket.getLocalSocketAddress())) {
-            if (logger.isDebugEnabled()) {
-        	logger.debug("noone to gossip with, or (not) gossiping with self");
+        if (nearby == null) {
+            address = arrg.getRandomMember();
+
+            if (address == null
+                    || address.equals(serverSocket.getLocalSocketAddress())) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("noone to gossip with, or (not) gossiping with self");
+                }
+                return;
             }
-            return;
         }
 
         try {
             long start = System.currentTimeMillis();
-            Connection connection = new Connection(address, CONNECTION_TIMEOUT,
-                    true, socketFactory);
+            Connection connection;
+            if (nearby != null) {
+                connection = new Connection(nearby, CONNECTION_TIMEOUT, true,
+                        socketFactory, Protocol.VIRTUAL_PORT);
+            } else {
+                connection = new Connection(address, CONNECTION_TIMEOUT, true,
+                        socketFactory);
+            }
 
             connection.out().writeByte(Protocol.MAGIC_BYTE);
             connection.out().writeByte(Protocol.OPCODE_GOSSIP);
             registry.getIbisIdentifier().writeTo(connection.out());
 
-            pool.writeGossipData(connection.out(), gossipSize);
+            pool.writeDigest(connection.out());
             elections.writeGossipData(connection.out());
 
             connection.getAndCheckReply();
 
+            GossipDigest peerDigest = new GossipDigest(connection.in());
             pool.readGossipData(connection.in());
             elections.readGossipData(connection.in());
 
+            // send the peer what it is missing
+            pool.writeGossipData(connection.out(), gossipSize, peerDigest);
+
             connection.close();
             if (statistics != null) {
                 statistics
@@ -200,7 +245,8 @@ class CommunicationHandler implements Runnable {
             }
         } catch (IOException e) {
             if (logger.isDebugEnabled()) {
-        	logger.debug("could not gossip with " + address, e);
+                logger.debug("could not gossip with "
+                        + (nearby == null ? address : nearby), e);
             }
         }
     }
@@ -217,13 +263,17 @@ class CommunicationHandler implements Runnable {
             connection.closeWithError("wrong pool");
         }
 
-        pool.readGossipData(connection.in());
+        GossipDigest peerDigest = new GossipDigest(connection.in());
         elections.readGossipData(connection.in());
 
         connection.sendOKReply();
 
-        pool.writeGossipData(connection.out(), gossipSize);
+        pool.writeDigest(connection.out());
+        pool.writeGossipData(connection.out(), gossipSize, peerDigest);
         elections.writeGossipData(connection.out());
+        connection.out().flush();
+
+        pool.readGossipData(connection.in());
 
         connection.close();
     }
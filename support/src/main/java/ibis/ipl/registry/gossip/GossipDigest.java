@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.gossip;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Compact summary of the members and tombstones (dead and left members) a
+ * peer knows, exchanged before the gossip data itself, so peers only send
+ * each other the entries the other side is missing. Both sets are stored as
+ * Bloom filters of about a byte per entry. A false positive causes an entry
+ * not to be sent in one exchange. Every digest uses a new random seed, so
+ * the entry is sent in one of the next exchanges.
+ */
+final class GossipDigest {
+
+    // bits per entry in a filter, gives about 2% false positives
+    private static final int BITS_PER_ENTRY = 8;
+
+    private static final int HASHES = 4;
+
+    // maximum size of a filter, in longs
+    private static final int MAX_FILTER_SIZE = 1024 * 1024;
+
+    private static final Random random = new Random();
+
+    private final long seed;
+
+    private final long[] members;
+
+    private final long[] tombstones;
+
+    GossipDigest(Collection<UUID> members, Collection<UUID> tombstones) {
+        synchronized (random) {
+            seed = random.nextLong();
+        }
+        this.members = createFilter(members);
+        this.tombstones = createFilter(tombstones);
+    }
+
+    GossipDigest(DataInputStream in) throws IOException {
+        seed = in.readLong();
+        members = readFilter(in);
+        tombstones = readFilter(in);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(seed);
+        writeFilter(out, members);
+        writeFilter(out, tombstones);
+    }
+
+    /**
+     * Returns true if the peer (probably) knows the given member, either as a
+     * member or as a tombstone.
+     */
+    boolean knowsMember(UUID id) {
+        return contains(members, id) || contains(tombstones, id);
+    }
+
+    /**
+     * Returns true if the peer (probably) knows the given member is dead or
+     * has left.
+     */
+    boolean knowsTombstone(UUID id) {
+        return contains(tombstones, id);
+    }
+
+    private long[] createFilter(Collection<UUID> ids) {
+        int size = Math.max(1, (ids.size() * BITS_PER_ENTRY + 63) / 64);
+        long[] result = new long[size];
+
+        for (UUID id : ids) {
+            long h1 = hash(id.getMostSignificantBits() ^ seed);
+            long h2 = hash(id.getLeastSignificantBits() + h1);
+            long bits = (long) result.length * 64;
+            for (int i = 0; i < HASHES; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+                result[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+        return result;
+    }
+
+    private boolean contains(long[] filter, UUID id) {
+        long h1 = hash(id.getMostSignificantBits() ^ seed);
+        long h2 = hash(id.getLeastSignificantBits() + h1);
+        long bits = (long) filter.length * 64;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            if ((filter[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 64 bit finalizer, from MurmurHash3
+    private static long hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static void writeFilter(DataOutputStream out, long[] filter)
+            throws IOException {
+        out.writeInt(filter.length);
+        for (long value : filter) {
+            out.writeLong(value);
+        }
+    }
+
+    private static long[] readFilter(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size <= 0 || size > MAX_FILTER_SIZE) {
+            throw new IOException("invalid digest filter size: " + size);
+        }
+        long[] result = new long[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = in.readLong();
+        }
+        return result;
+    }
+}
@@ -16,6 +16,7 @@
 package ibis.ipl.registry.gossip;
 
 import ibis.ipl.impl.IbisIdentifier;
+import ibis.ipl.support.vivaldi.Coordinates;
 import ibis.util.TypedProperties;
 
 import java.io.DataInputStream;
@@ -49,6 +50,9 @@ class Member {
 
     private boolean left;
 
+    // Vivaldi coordinates of this member, if known
+    private Coordinates coordinates;
+
     Member(IbisIdentifier identifier, TypedProperties properties) {
         this.properties = properties;
 
@@ -86,7 +90,12 @@ class Member {
         
         dead = in.readBoolean();
         left = in.readBoolean();
-        
+
+        if (in.readBoolean()) {
+            byte[] bytes = new byte[Coordinates.SIZE];
+            in.readFully(bytes);
+            coordinates = new Coordinates(bytes);
+        }
     }
     
     synchronized void writeTo(DataOutputStream out) throws IOException {
@@ -104,6 +113,13 @@ class Member {
         
         out.writeBoolean(dead);
         out.writeBoolean(left);
+
+        if (coordinates == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.write(coordinates.toBytes());
+        }
     }
     
     synchronized public void merge(Member other) {
@@ -113,6 +129,13 @@ class Member {
         
         if (other.lastSeen > lastSeen) {
             lastSeen = other.lastSeen;
+            // coordinates are set by the member itself, so the most
+            // recently seen copy has the most recent ones
+            if (other.coordinates != null) {
+                coordinates = other.coordinates;
+            }
+        } else if (coordinates == null) {
+            coordinates = other.coordinates;
         }
         
         for(UUID witness: other.witnesses) {
@@ -156,6 +179,14 @@ class Member {
     }
 
     
+    synchronized Coordinates getCoordinates() {
+        return coordinates;
+    }
+
+    synchronized void setCoordinates(Coordinates coordinates) {
+        this.coordinates = coordinates;
+    }
+
     synchronized void setLeft() {
         left = true;
     }
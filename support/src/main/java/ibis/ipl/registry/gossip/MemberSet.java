@@ -17,6 +17,7 @@ package ibis.ipl.registry.gossip;
 
 import ibis.ipl.impl.IbisIdentifier;
 import ibis.ipl.registry.statistics.Statistics;
+import ibis.ipl.support.vivaldi.ProximityService;
 import ibis.util.TypedProperties;
 
 import java.io.DataInputStream;
@@ -24,7 +25,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Random;
 import java.util.UUID;
 
@@ -42,9 +43,12 @@ class MemberSet extends Thread {
 
     private final Statistics statistics;
 
-    private final HashSet<UUID> deceased;
+    // tombstones of dead and left members, with the time they were added
+    private final HashMap<UUID, Long> deceased;
 
-    private final HashSet<UUID> left;
+    private final HashMap<UUID, Long> left;
+
+    private final long tombstoneTimeout;
 
     private final HashMap<UUID, Member> members;
 
@@ -63,8 +67,10 @@ class MemberSet extends Thread {
         this.registry = registry;
         this.statistics = statistics;
 
-        deceased = new HashSet<UUID>();
-        left = new HashSet<UUID>();
+        deceased = new HashMap<UUID, Long>();
+        left = new HashMap<UUID, Long>();
+        tombstoneTimeout = properties
+                .getIntProperty(RegistryProperties.TOMBSTONE_TIMEOUT) * 1000L;
         members = new HashMap<UUID, Member>();
 
         random = new Random();
@@ -83,7 +89,7 @@ class MemberSet extends Thread {
 
         UUID id = UUID.fromString(ibis.getID());
 
-        if (deceased.contains(id) || left.contains(id)) {
+        if (deceased.containsKey(id) || left.containsKey(id)) {
             return null;
         }
 
@@ -161,28 +167,63 @@ class MemberSet extends Thread {
         return candidates[0];
     }
 
-    public void writeGossipData(DataOutputStream out, int gossipSize) throws IOException {
-        UUID[] deceased;
-        UUID[] left;
+    /**
+     * Writes a digest of the members and tombstones we know, so the peer can
+     * send us only what we are missing.
+     */
+    public void writeDigest(DataOutputStream out) throws IOException {
+        GossipDigest digest;
+
+        synchronized (this) {
+            ArrayList<UUID> tombstones = new ArrayList<UUID>(deceased.keySet());
+            tombstones.addAll(left.keySet());
+            digest = new GossipDigest(members.keySet(), tombstones);
+        }
+
+        digest.writeTo(out);
+    }
+
+    /**
+     * Writes the tombstones the peer with the given digest does not know, and
+     * at most gossipSize members: ourselves, then members the peer does not
+     * know, then random other members to spread their current state.
+     */
+    public void writeGossipData(DataOutputStream out, int gossipSize,
+            GossipDigest peer) throws IOException {
+        ArrayList<UUID> deceased = new ArrayList<UUID>();
+        ArrayList<UUID> left = new ArrayList<UUID>();
         Member[] randomMembers;
 
         synchronized (this) {
-            deceased = this.deceased.toArray(new UUID[0]);
-            left = this.left.toArray(new UUID[0]);
-            randomMembers = getRandomMembers(gossipSize);
+            for (UUID id : this.deceased.keySet()) {
+                if (!peer.knowsTombstone(id)) {
+                    deceased.add(id);
+                }
+            }
+            for (UUID id : this.left.keySet()) {
+                if (!peer.knowsTombstone(id)) {
+                    left.add(id);
+                }
+            }
             if (self != null) {
-                // make sure we send out ourselves as "just seen"
+                // make sure we send out ourselves as "just seen", with our
+                // current coordinates
                 self.seen();
+                ProximityService proximity = registry.getProximityService();
+                if (proximity != null) {
+                    self.setCoordinates(proximity.getLocalCoordinates());
+                }
             }
+            randomMembers = getGossipMembers(gossipSize, peer);
         }
 
-        out.writeInt(deceased.length);
+        out.writeInt(deceased.size());
         for (UUID id : deceased) {
             out.writeLong(id.getMostSignificantBits());
             out.writeLong(id.getLeastSignificantBits());
         }
 
-        out.writeInt(left.length);
+        out.writeInt(left.size());
         for (UUID id : left) {
             out.writeLong(id.getMostSignificantBits());
             out.writeLong(id.getLeastSignificantBits());
@@ -238,9 +279,11 @@ class MemberSet extends Thread {
                 if (members.containsKey(id)) {
                     // merge state of know and received member
                     members.get(id).merge(member);
-                } else if (!deceased.contains(id) && !left.contains(id)) {
+                    updateCoordinates(members.get(id));
+                } else if (!deceased.containsKey(id) && !left.containsKey(id)) {
                     // add new member
                     members.put(id, member);
+                    updateCoordinates(member);
                     // tell registry about his new member
                     registry.ibisJoined(member.getIdentifier());
                     if (statistics != null) {
@@ -249,34 +292,55 @@ class MemberSet extends Thread {
                 }
             }
 
+            long now = System.currentTimeMillis();
+
             for (UUID id : newDeceased) {
                 if (members.containsKey(id)) {
                     members.get(id).declareDead();
-                } else if (!left.contains(id)) {
-                    deceased.add(id);
+                } else if (!left.containsKey(id)
+                        && !deceased.containsKey(id)) {
+                    deceased.put(id, now);
                 }
             }
 
             for (UUID id : newLeft) {
                 if (members.containsKey(id)) {
                     members.get(id).setLeft();
-                } else {
-                    left.add(id);
+                } else if (!left.containsKey(id)) {
+                    left.put(id, now);
                 }
             }
         }
     }
 
+    // pass coordinates learned through gossip to the proximity service
+    private void updateCoordinates(Member member) {
+        ProximityService proximity = registry.getProximityService();
+
+        if (proximity != null && member != self
+                && member.getCoordinates() != null) {
+            proximity.update(member.getIdentifier(), member.getCoordinates());
+        }
+    }
+
+    private void forgetCoordinates(Member member) {
+        ProximityService proximity = registry.getProximityService();
+
+        if (proximity != null) {
+            proximity.remove(member.getIdentifier());
+        }
+    }
+
     /**
      * Clean up the list of members. Also passes leave and died events to the
      * registry.
      */
     private synchronized void cleanup(Member member) {
-        if (deceased.contains(member.getUUID())) {
+        if (deceased.containsKey(member.getUUID())) {
             member.declareDead();
         }
 
-        if (left.contains(member.getUUID())) {
+        if (left.containsKey(member.getUUID())) {
             member.setLeft();
         }
 
@@ -293,21 +357,23 @@ class MemberSet extends Thread {
         }
 
         if (member.hasLeft()) {
-            left.add(member.getUUID());
+            left.put(member.getUUID(), System.currentTimeMillis());
             members.remove(member.getUUID());
             if (statistics != null) {
                 statistics.newPoolSize(members.size());
             }
+            forgetCoordinates(member);
             registry.ibisLeft(member.getIdentifier());
             if (logger.isDebugEnabled()) {
         	logger.debug("purged " + member + " from list");
             }
         } else if (member.isDead()) {
-            deceased.add(member.getUUID());
+            deceased.put(member.getUUID(), System.currentTimeMillis());
             members.remove(member.getUUID());
             if (statistics != null) {
                 statistics.newPoolSize(members.size());
             }
+            forgetCoordinates(member);
             registry.ibisDied(member.getIdentifier());
             if (logger.isDebugEnabled()) {
         	logger.debug("purged " + member + " from list");
@@ -345,6 +411,9 @@ class MemberSet extends Thread {
             cleanup(member);
         }
 
+        expireTombstones(deceased);
+        expireTombstones(left);
+
         if (logger.isDebugEnabled()) {
             logger.debug(self.getIdentifier() + ": members = " + members.size()
                     + ", left = " + left.size() + " deceased = "
@@ -352,6 +421,22 @@ class MemberSet extends Thread {
         }
     }
 
+    /**
+     * Forget dead and left members after the tombstone timeout. By then,
+     * every peer should have heard they are gone, and no longer gossips
+     * them back into the pool.
+     */
+    private void expireTombstones(HashMap<UUID, Long> tombstones) {
+        long expired = System.currentTimeMillis() - tombstoneTimeout;
+
+        Iterator<Long> iterator = tombstones.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() < expired) {
+                iterator.remove();
+            }
+        }
+    }
+
     private synchronized Member[] getRandomSuspects(int count) {
         ArrayList<Member> suspects = new ArrayList<Member>();
 
@@ -382,14 +467,44 @@ class MemberSet extends Thread {
         return result.toArray(new Member[0]);
     }
 
+    private synchronized Member[] getGossipMembers(int count,
+            GossipDigest peer) {
+        ArrayList<Member> result = new ArrayList<Member>();
+        ArrayList<Member> missing = new ArrayList<Member>();
+        ArrayList<Member> known = new ArrayList<Member>();
+
+        for (Member member : members.values()) {
+            if (member == self) {
+                continue;
+            }
+            if (peer.knowsMember(member.getUUID())) {
+                known.add(member);
+            } else {
+                missing.add(member);
+            }
+        }
+
+        if (self != null && count > 0) {
+            result.add(self);
+        }
+        while (result.size() < count && !missing.isEmpty()) {
+            result.add(missing.remove(random.nextInt(missing.size())));
+        }
+        while (result.size() < count && !known.isEmpty()) {
+            result.add(known.remove(random.nextInt(known.size())));
+        }
+
+        return result.toArray(new Member[0]);
+    }
+
     synchronized void printMembers() {
         System.out.println("pool at " + registry.getIbisIdentifier());
         System.out.println("dead:");
-        for (UUID member : deceased) {
+        for (UUID member : deceased.keySet()) {
             System.out.println(member);
         }
         System.out.println("left:");
-        for (UUID member : left) {
+        for (UUID member : left.keySet()) {
             System.out.println(member);
         }
         System.out.println("current:");
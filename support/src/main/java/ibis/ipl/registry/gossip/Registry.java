@@ -35,6 +35,7 @@ import ibis.ipl.RegistryEventHandler;
 import ibis.ipl.impl.IbisIdentifier;
 import ibis.ipl.impl.Location;
 import ibis.ipl.registry.statistics.Statistics;
+import ibis.ipl.support.vivaldi.ProximityService;
 import ibis.util.ThreadPool;
 import ibis.util.TypedProperties;
 
@@ -72,6 +73,9 @@ public class Registry extends ibis.ipl.registry.Registry implements Runnable {
 
     private boolean stopped;
 
+    // set if Vivaldi coordinates are available, see setProximityService()
+    private volatile ProximityService proximity;
+
     /**
      * Creates a Gossip Registry.
      *
@@ -213,6 +217,15 @@ public class Registry extends ibis.ipl.registry.Registry implements Runnable {
         return commHandler;
     }
 
+    @Override
+    public void setProximityService(ProximityService proximity) {
+        this.proximity = proximity;
+    }
+
+    ProximityService getProximityService() {
+        return proximity;
+    }
+
     public IbisIdentifier elect(String electionName) throws IOException {
         if (!capabilities
                 .hasCapability(IbisCapabilities.ELECTIONS_UNRELIABLE)) {
@@ -50,10 +50,17 @@ public class RegistryProperties {
 
     public static final String PRINT_MEMBERS = PREFIX + "print.members";
 
+    public static final String TOMBSTONE_TIMEOUT = PREFIX
+            + "tombstone.timeout";
+
+    public static final String PROXIMITY_BIAS = PREFIX + "proximity.bias";
+
+    public static final String PROXIMITY_PEERS = PREFIX + "proximity.peers";
+
     // list of descriptions and defaults
     private static final String[][] propertiesList = new String[][] {
             { GOSSIP_INTERVAL, "1", "How often do we gossip (in seconds)" },
-            { GOSSIP_COUNT, "30000", "How many members do we transfer (maximum)" },
+            { GOSSIP_COUNT, "100", "How many members do we transfer (maximum). Members the peer does not know yet are sent first" },
             { BOOTSTRAP_LIST, null, "List of peers to bootstrap of off" },
             { WITNESSES_REQUIRED, "5",
                     "Int: how many peers need to agree before a node is declared dead" },
@@ -76,6 +83,12 @@ public class RegistryProperties {
                     "Int: how many nodes do we send a message to saying we are leaving" },
             { PRINT_MEMBERS, "false",
                     "Boolean: if true, the list of members is printed periodically" },
+            { TOMBSTONE_TIMEOUT, "3600",
+                    "Number of seconds dead and left members are remembered" },
+            { PROXIMITY_BIAS, "0",
+                    "Double: chance of gossiping with one of the nearest members instead of a random one, if Vivaldi coordinates are available (ibis.vivaldi)" },
+            { PROXIMITY_PEERS, "5",
+                    "Int: how many of the nearest members are candidates for proximity biased gossip" },
 
     };
 
@@ -16,26 +16,59 @@
 package ibis.ipl.registry.statistics;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ibis.util.ThreadPool;
 
+/**
+ * Statistics of a registry. Statistics are written to an append-only file
+ * (statistics/POOL_NAME/ID). The file starts with a header, followed by
+ * fixed-size records: one for each pool size change and election event, and
+ * one with the current value of all counters for each write interval. Writing
+ * only appends the records of the last interval, so the cost of a write does
+ * not depend on the length of the history. Files can be read while they are
+ * written, see {@link StatisticsReader}.
+ */
 public final class Statistics implements Runnable {
 
-    public static final int VERSION = 1;
+    public static final int VERSION = 2;
+
+    // version of files containing a single snapshot of all statistics
+    static final int SNAPSHOT_VERSION = 1;
+
+    // record types, a zero type marks the end of the written records
+
+    static final byte RECORD_END = 0;
+
+    static final byte RECORD_POOL_SIZE = 1;
+
+    static final byte RECORD_ELECTION = 2;
+
+    static final byte RECORD_COUNTERS = 3;
+
+    // type, time and value
+    static final int POINT_RECORD_SIZE = 1 + 8 + 8;
+
+    // counters per opcode in a counters record
+    static final int COUNTERS_PER_OPCODE = 5;
+
+    // size of the parts of the file that are mapped at once
+    private static final int SEGMENT_SIZE = 64 * 1024;
 
     private static final Logger logger = LoggerFactory
             .getLogger(Statistics.class);
@@ -46,15 +79,17 @@ public final class Statistics implements Runnable {
 
     private final String[] opcodes;
 
-    private final double[] totalTimes;
+    // counters are updated without locking, as they are on the request path
+
+    private final AtomicLongArray totalTimes;
 
-    private final long[] incomingRequestCounter;
+    private final AtomicLongArray incomingRequestCounter;
 
-    private final long[] outgoingRequestCounter;
+    private final AtomicLongArray outgoingRequestCounter;
 
-    private final long[] bytesIn;
+    private final AtomicLongArray bytesIn;
 
-    private final long[] bytesOut;
+    private final AtomicLongArray bytesOut;
 
     private String id;
 
@@ -62,32 +97,34 @@ public final class Statistics implements Runnable {
 
     private long writeInterval;
 
+    // data points not written yet, or all data points if read from a file
     List<DataPoint> poolSizeHistory;
 
     int currentPoolSize;
 
     List<DataPoint> electionEventHistory;
 
+    private long electionCount;
+
     private boolean ended = false;
 
-    public Statistics(String[] opcodes) {
-        this.opcodes = opcodes;
-        this.id = "unknown";
-        this.poolName = "unknown";
+    // state of the file we write to, guarded by fileLock
 
-        start = System.currentTimeMillis();
-        offset = 0;
+    private final Object fileLock = new Object();
 
-        totalTimes = new double[opcodes.length];
-        incomingRequestCounter = new long[opcodes.length];
-        outgoingRequestCounter = new long[opcodes.length];
-        bytesIn = new long[opcodes.length];
-        bytesOut = new long[opcodes.length];
+    private File file;
 
-        poolSizeHistory = new LinkedList<DataPoint>();
-        electionEventHistory = new LinkedList<DataPoint>();
+    private FileChannel channel;
+
+    private MappedByteBuffer segment;
 
-        currentPoolSize = 0;
+    private long fileLength;
+
+    // set by end(), so no new file is opened once the last one is closed
+    private boolean closed = false;
+
+    public Statistics(String[] opcodes) {
+        this(opcodes, System.currentTimeMillis(), "unknown", "unknown");
 
         newPoolSize(0);
 
@@ -96,182 +133,250 @@ public final class Statistics implements Runnable {
         }
     }
 
-    public Statistics(File file) throws IOException {
-        DataInputStream in = new DataInputStream(new FileInputStream(file));
-
-        try {
+    Statistics(String[] opcodes, long start, String id, String poolName) {
+        this.opcodes = opcodes;
+        this.start = start;
+        this.id = id;
+        this.poolName = poolName;
 
-            int version = in.readInt();
+        offset = 0;
 
-            if (version != VERSION) {
-                throw new IOException(
-                        "cannot read statistics file version: " + version);
-            }
+        totalTimes = new AtomicLongArray(opcodes.length);
+        incomingRequestCounter = new AtomicLongArray(opcodes.length);
+        outgoingRequestCounter = new AtomicLongArray(opcodes.length);
+        bytesIn = new AtomicLongArray(opcodes.length);
+        bytesOut = new AtomicLongArray(opcodes.length);
 
-            start = in.readLong();
-            offset = in.readLong();
+        poolSizeHistory = new LinkedList<DataPoint>();
+        electionEventHistory = new LinkedList<DataPoint>();
 
-            id = in.readUTF();
+        currentPoolSize = -1;
+        electionCount = 0;
+    }
 
-            int nrOfOpcodes = in.readInt();
+    /**
+     * Reads all statistics in the given file.
+     */
+    public Statistics(File file) throws IOException {
+        this(new StatisticsReader(file));
+    }
 
-            if (nrOfOpcodes < 0) {
-                throw new IOException("negative number of opcodes");
-            }
+    private Statistics(StatisticsReader reader) throws IOException {
+        this(reader.getOpcodes(), reader.getStartTime(), reader.getID(),
+                reader.getPoolName());
 
-            opcodes = new String[nrOfOpcodes];
-            totalTimes = new double[nrOfOpcodes];
-            incomingRequestCounter = new long[nrOfOpcodes];
-            outgoingRequestCounter = new long[nrOfOpcodes];
-            bytesIn = new long[nrOfOpcodes];
-            bytesOut = new long[nrOfOpcodes];
-
-            for (int i = 0; i < nrOfOpcodes; i++) {
-                opcodes[i] = in.readUTF();
-                totalTimes[i] = in.readDouble();
-                incomingRequestCounter[i] = in.readLong();
-                outgoingRequestCounter[i] = in.readLong();
-                bytesIn[i] = in.readLong();
-                bytesOut[i] = in.readLong();
-            }
+        try {
+            reader.update(this);
+        } finally {
+            reader.close();
+        }
+    }
 
-            poolSizeHistory = new LinkedList<DataPoint>();
-            electionEventHistory = new LinkedList<DataPoint>();
+    static int countersRecordSize(int nrOfOpcodes) {
+        // type, time, offset and counters
+        return 1 + 8 + 8 + (nrOfOpcodes * COUNTERS_PER_OPCODE * 8);
+    }
 
-            int nrOfSizeDataPoints = in.readInt();
-            if (nrOfSizeDataPoints < 0) {
-                throw new IOException("negative list size");
-            }
-            for (int i = 0; i < nrOfSizeDataPoints; i++) {
-                poolSizeHistory
-                        .add(new DataPoint(in.readLong(), in.readLong()));
-            }
+    public void end() {
+        synchronized (this) {
+            ended = true;
+            notifyAll();
+        }
 
-            int nrOfElectionDataPoints = in.readInt();
-            if (nrOfElectionDataPoints < 0) {
-                throw new IOException("negative list size");
+        synchronized (fileLock) {
+            closed = true;
+            if (channel == null) {
+                return;
             }
-
-            for (int i = 0; i < nrOfElectionDataPoints; i++) {
-                electionEventHistory
-                        .add(new DataPoint(in.readLong(), in.readLong()));
+            try {
+                // cut off the unused part of the last segment
+                segment = null;
+                channel.truncate(fileLength);
+                channel.close();
+            } catch (IOException e) {
+                logger.error("cannot close statistics file " + file, e);
             }
-
-            currentPoolSize = in.readInt();
-
-        } finally {
-            in.close();
+            channel = null;
         }
     }
 
-    public synchronized void end() {
-        ended = true;
-        notifyAll();
-    }
-
+    /**
+     * Appends the pool size changes and election events since the last write
+     * to the statistics file, followed by the current value of all counters.
+     */
     public void write() {
-        File file = null;
+        List<DataPoint> poolSizes;
+        List<DataPoint> elections;
+        String id;
+        String poolName;
+        long offset;
+
+        synchronized (this) {
+            poolSizes = poolSizeHistory;
+            poolSizeHistory = new LinkedList<DataPoint>();
+            elections = electionEventHistory;
+            electionEventHistory = new LinkedList<DataPoint>();
+            id = this.id;
+            poolName = this.poolName;
+            offset = this.offset;
+        }
 
-        try {
+        synchronized (fileLock) {
+            try {
+                if (closed) {
+                    // file already closed
+                    return;
+                }
+                if (channel == null) {
+                    open(id, poolName);
+                }
 
-            ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("writing statistics to: " + file);
+                }
 
-            DataOutputStream out = new DataOutputStream(byteOut);
+                for (DataPoint point : poolSizes) {
+                    appendPoint(RECORD_POOL_SIZE, point);
+                }
+                for (DataPoint point : elections) {
+                    appendPoint(RECORD_ELECTION, point);
+                }
+                appendCounters(offset);
+            } catch (IOException e) {
+                logger.error("cannot write statistics to " + file, e);
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("DONE writing statistics for: " + id);
+        }
+    }
 
-            // write data to array
-            synchronized (this) {
-                out.writeInt(VERSION);
+    private void open(String id, String poolName) throws IOException {
+        file = new File("statistics" + File.separator + poolName
+                + File.separator + id);
 
-                out.writeLong(start);
-                out.writeLong(offset);
-                out.writeUTF(id);
+        if (file.exists()) {
+            file.renameTo(new File(file.getPath() + ".old"));
+        }
 
-                out.writeInt(opcodes.length);
+        file.getParentFile().mkdirs();
 
-                for (int i = 0; i < opcodes.length; i++) {
-                    out.writeUTF(opcodes[i]);
-                    out.writeDouble(totalTimes[i]);
-                    out.writeLong(incomingRequestCounter[i]);
-                    out.writeLong(outgoingRequestCounter[i]);
-                    out.writeLong(bytesIn[i]);
-                    out.writeLong(bytesOut[i]);
-                }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
 
-                out.writeInt(poolSizeHistory.size());
+        out.writeInt(VERSION);
+        out.writeLong(start);
+        out.writeUTF(id);
+        out.writeUTF(poolName);
+        out.writeInt(opcodes.length);
+        for (String opcode : opcodes) {
+            out.writeUTF(opcode);
+        }
+        out.flush();
 
-                for (DataPoint point : poolSizeHistory) {
-                    out.writeLong(point.getTime());
-                    out.writeLong(point.getValue());
-                }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(bytes.toByteArray()), 0);
 
-                out.writeInt(electionEventHistory.size());
+        fileLength = bytes.size();
+        segment = null;
+    }
 
-                for (DataPoint point : electionEventHistory) {
-                    out.writeLong(point.getTime());
-                    out.writeLong(point.getValue());
-                }
+    // make sure the mapped segment has room for a record of the given size,
+    // returns the buffer to write the record to
+    private MappedByteBuffer reserve(int size) throws IOException {
+        if (segment == null || segment.remaining() < size) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, fileLength,
+                    Math.max(SEGMENT_SIZE, size));
+        }
+        return segment;
+    }
 
-                out.writeInt(currentPoolSize);
+    private void appendPoint(byte type, DataPoint point) throws IOException {
+        MappedByteBuffer buffer = reserve(POINT_RECORD_SIZE);
 
-                out.flush();
-                out.close();
-            }
+        int position = buffer.position();
+        buffer.position(position + 1);
+        buffer.putLong(point.getTime());
+        buffer.putLong(point.getValue());
+        // write the type last, so readers never see a partial record
+        buffer.put(position, type);
 
-            // write data to file
+        fileLength += POINT_RECORD_SIZE;
+    }
 
-            file = new File("statistics" + File.separator + poolName
-                    + File.separator + id);
+    private void appendCounters(long offset) throws IOException {
+        int size = countersRecordSize(opcodes.length);
+        MappedByteBuffer buffer = reserve(size);
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("writing statistics to: " + file);
-            }
+        int position = buffer.position();
+        buffer.position(position + 1);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putLong(offset);
+        for (int i = 0; i < opcodes.length; i++) {
+            buffer.putLong(totalTimes.get(i));
+            buffer.putLong(incomingRequestCounter.get(i));
+            buffer.putLong(outgoingRequestCounter.get(i));
+            buffer.putLong(bytesIn.get(i));
+            buffer.putLong(bytesOut.get(i));
+        }
+        buffer.put(position, RECORD_COUNTERS);
 
-            if (file.exists()) {
-                file.renameTo(new File(file.getPath() + ".old"));
-            }
+        fileLength += size;
+    }
 
-            file.getParentFile().mkdirs();
+    /**
+     * Sets all counters, in the order they appear in a counters record.
+     */
+    void setCounters(long[] counters) {
+        for (int i = 0; i < opcodes.length; i++) {
+            int base = i * COUNTERS_PER_OPCODE;
+            totalTimes.set(i, counters[base]);
+            incomingRequestCounter.set(i, counters[base + 1]);
+            outgoingRequestCounter.set(i, counters[base + 2]);
+            bytesIn.set(i, counters[base + 3]);
+            bytesOut.set(i, counters[base + 4]);
+        }
+    }
 
-            FileOutputStream fileOut = new FileOutputStream(file);
+    synchronized void addPoolSizePoint(DataPoint point) {
+        poolSizeHistory.add(point);
+        currentPoolSize = (int) point.getValue();
+    }
 
-            byteOut.writeTo(fileOut);
-            fileOut.flush();
-            fileOut.close();
-        } catch (IOException e) {
-            logger.error("cannot write statistics to " + file, e);
-        }
-        if (logger.isDebugEnabled()) {
-            logger.debug("DONE writing statistics for: " + id);
-        }
+    synchronized void addElectionPoint(DataPoint point) {
+        electionEventHistory.add(point);
+        electionCount = point.getValue();
     }
 
-    public synchronized void add(byte opcode, long time, long bytesReceived,
+    public void add(byte opcode, long time, long bytesReceived,
             long bytesSend, boolean incoming) {
         if (opcode >= opcodes.length) {
             logger.error("unknown opcode in handling stats: " + opcode);
+            return;
         }
 
-        totalTimes[opcode] = totalTimes[opcode] + time;
+        totalTimes.addAndGet(opcode, time);
         if (incoming) {
-            incomingRequestCounter[opcode]++;
+            incomingRequestCounter.incrementAndGet(opcode);
         } else {
-            outgoingRequestCounter[opcode]++;
+            outgoingRequestCounter.incrementAndGet(opcode);
         }
-        bytesIn[opcode] += bytesReceived;
-        bytesOut[opcode] += bytesSend;
+        bytesIn.addAndGet(opcode, bytesReceived);
+        bytesOut.addAndGet(opcode, bytesSend);
     }
 
-    synchronized void clear() {
+    void clear() {
         for (int i = 0; i < opcodes.length; i++) {
-            totalTimes[i] = 0;
-            incomingRequestCounter[i] = 0;
-            outgoingRequestCounter[i] = 0;
+            totalTimes.set(i, 0);
+            incomingRequestCounter.set(i, 0);
+            outgoingRequestCounter.set(i, 0);
         }
     }
 
     public synchronized boolean empty() {
         for (byte i = 0; i < opcodes.length; i++) {
-            if (totalTimes[i] != 0) {
+            if (totalTimes.get(i) != 0) {
                 return false;
             }
         }
@@ -308,16 +413,18 @@ public final class Statistics implements Runnable {
         for (byte i = 0; i < opcodes.length; i++) {
             // totalTraffic += bytesIn[i] + bytesOut[i];
 
-            double average = totalTimes[i]
-                    / (incomingRequestCounter[i] + outgoingRequestCounter[i]);
-            if (incomingRequestCounter[i] == 0
-                    && outgoingRequestCounter[i] == 0) {
+            long incoming = incomingRequestCounter.get(i);
+            long outgoing = outgoingRequestCounter.get(i);
+            double totalTime = totalTimes.get(i);
+
+            double average = totalTime / (incoming + outgoing);
+            if (incoming == 0 && outgoing == 0) {
                 average = 0;
             }
 
             out.format("#%-20s %9d %9d %8d %9d %10.2f %10.2f\n", opcodes[i],
-                    incomingRequestCounter[i], outgoingRequestCounter[i],
-                    bytesIn[i], bytesOut[i], totalTimes[i] / 1000.0, average);
+                    incoming, outgoing, bytesIn.get(i), bytesOut.get(i),
+                    totalTime / 1000.0, average);
         }
         out.format("#distance from server: %d Ms\n", offset);
     }
@@ -332,17 +439,13 @@ public final class Statistics implements Runnable {
     }
 
     public synchronized void newPoolSize(int poolSize) {
-        if (!poolSizeHistory.isEmpty()) {
-            long lastPoolSize = poolSizeHistory.get(poolSizeHistory.size() - 1)
-                    .getValue();
-
-            if (poolSize == lastPoolSize) {
-                // ignore this update, value equal to last
-                return;
-            }
+        if (poolSize == currentPoolSize) {
+            // ignore this update, value equal to last
+            return;
         }
 
         poolSizeHistory.add(new DataPoint(poolSize));
+        currentPoolSize = poolSize;
 
         if (logger.isTraceEnabled()) {
             logger.trace("reported pool size now: " + poolSize);
@@ -350,8 +453,12 @@ public final class Statistics implements Runnable {
     }
 
     public synchronized void electionEvent() {
-        electionEventHistory
-                .add(new DataPoint(electionEventHistory.size() + 1));
+        electionCount++;
+        electionEventHistory.add(new DataPoint(electionCount));
+    }
+
+    public synchronized int getCurrentPoolSize() {
+        return currentPoolSize;
     }
 
     public synchronized long getStartTime() {
@@ -416,7 +523,7 @@ public final class Statistics implements Runnable {
         double totalTraffic = 0;
 
         for (byte i = 0; i < opcodes.length; i++) {
-            totalTraffic = totalTraffic + bytesIn[i] + bytesOut[i];
+            totalTraffic = totalTraffic + bytesIn.get(i) + bytesOut.get(i);
         }
 
         return totalTraffic / 1024.0 / 1024.0;
@@ -496,11 +603,11 @@ public final class Statistics implements Runnable {
         long totalBytesOut = 0;
 
         for (byte i = 0; i < opcodes.length; i++) {
-            totalTime += totalTimes[i];
-            totalInRequests += incomingRequestCounter[i];
-            totalOutRequests += outgoingRequestCounter[i];
-            totalBytesIn += bytesIn[i];
-            totalBytesOut += bytesOut[i];
+            totalTime += totalTimes.get(i);
+            totalInRequests += incomingRequestCounter.get(i);
+            totalOutRequests += outgoingRequestCounter.get(i);
+            totalBytesIn += bytesIn.get(i);
+            totalBytesOut += bytesOut.get(i);
         }
 
         double averageRequestTime = totalTime
@@ -176,14 +176,51 @@ public class StatisticsProcessor {
 //
 //    }
     
+    // print the pool size and traffic of a (live) statistics file whenever
+    // new records are appended to it
+    private static void tail(File file, long interval) throws IOException {
+        StatisticsReader reader = new StatisticsReader(file);
+        Statistics statistics = reader.createStatistics();
+        Formatter out = new Formatter(System.out);
+
+        out.format("#statistics for %s\n", statistics.getID());
+        out.format("#TIME POOL_SIZE TRAFFIC\n");
+        out.format("#(sec)               (MB)\n");
+        out.flush();
+
+        try {
+            while (true) {
+                if (reader.update(statistics) > 0) {
+                    double time = (reader.getLastRecordTime()
+                            - statistics.getStartTime()) / 1000.0;
+                    out.format("%.2f %d %.2f\n", time, statistics
+                            .getCurrentPoolSize(), statistics.totalTraffic());
+                    out.flush();
+                }
+
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
     public static void main(String[] args) throws IOException {
         ArrayList<File> directories = new ArrayList<File>();
         long interval = 0;
+        File tailFile = null;
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].equalsIgnoreCase("--interval")) {
                 i++;
                 interval = Long.parseLong(args[i]);
+            } else if (args[i].equalsIgnoreCase("--tail")) {
+                i++;
+                tailFile = new File(args[i]);
             } else if (args[i].startsWith("-")) {
                 System.err.println("unknown option: " + args[i]);
                 System.exit(1);
@@ -192,10 +229,18 @@ public class StatisticsProcessor {
             }
         }
 
+        if (tailFile != null) {
+            tail(tailFile, interval == 0 ? 1000 : interval);
+            return;
+        }
+
         if (directories.size() == 0) {
             System.err.println("usage: StatisticsProcessor [OPTIONS] DIRECTORY [DIRECTORY]...");
+            System.err.println("       StatisticsProcessor [--interval INTERVAL] --tail FILE");
             System.err.println("options:");
             System.err.println("--interval INTERVAL Interval of datapoints in graphs (milliseconds)");
+            System.err.println("--tail FILE         Follow a statistics file as it is written,");
+            System.err.println("                    checking every INTERVAL milliseconds");
             System.exit(1);
         }
         
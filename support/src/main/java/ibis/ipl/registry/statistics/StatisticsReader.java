@@ -0,0 +1,261 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.statistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a statistics file written by {@link Statistics}. The records in the
+ * file are read incrementally, so a file can be followed while it is still
+ * being written: each call to {@link #update(Statistics)} reads the records
+ * appended since the previous call. Files in the old snapshot format are
+ * read in one go.
+ */
+public final class StatisticsReader {
+
+    private final File path;
+
+    private final RandomAccessFile file;
+
+    private final int version;
+
+    private final long start;
+
+    private final String id;
+
+    private final String poolName;
+
+    private final String[] opcodes;
+
+    // position of the next record
+    private long position;
+
+    // time of the last counters record read
+    private long lastRecordTime;
+
+    // content of a snapshot file, applied on the first update
+
+    private List<DataPoint> snapshotPoolSizes;
+
+    private List<DataPoint> snapshotElections;
+
+    private long[] snapshotCounters;
+
+    private long snapshotOffset;
+
+    public StatisticsReader(File path) throws IOException {
+        this.path = path;
+
+        file = new RandomAccessFile(path, "r");
+
+        try {
+            version = file.readInt();
+
+            if (version == Statistics.VERSION) {
+                start = file.readLong();
+                id = file.readUTF();
+                poolName = file.readUTF();
+
+                opcodes = new String[readCount()];
+                for (int i = 0; i < opcodes.length; i++) {
+                    opcodes[i] = file.readUTF();
+                }
+            } else if (version == Statistics.SNAPSHOT_VERSION) {
+                start = file.readLong();
+                snapshotOffset = file.readLong();
+                id = file.readUTF();
+                poolName = path.getParentFile() == null ? "unknown" : path
+                        .getParentFile().getName();
+
+                opcodes = new String[readCount()];
+                snapshotCounters = new long[opcodes.length
+                        * Statistics.COUNTERS_PER_OPCODE];
+                for (int i = 0; i < opcodes.length; i++) {
+                    int base = i * Statistics.COUNTERS_PER_OPCODE;
+
+                    opcodes[i] = file.readUTF();
+                    snapshotCounters[base] = (long) file.readDouble();
+                    for (int j = 1; j < Statistics.COUNTERS_PER_OPCODE; j++) {
+                        snapshotCounters[base + j] = file.readLong();
+                    }
+                }
+
+                snapshotPoolSizes = readPoints();
+                snapshotElections = readPoints();
+            } else {
+                throw new IOException(
+                        "cannot read statistics file version: " + version);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+
+        position = file.getFilePointer();
+        lastRecordTime = start;
+    }
+
+    private int readCount() throws IOException {
+        int result = file.readInt();
+
+        if (result < 0) {
+            throw new IOException("negative list size");
+        }
+        return result;
+    }
+
+    private List<DataPoint> readPoints() throws IOException {
+        int count = readCount();
+
+        List<DataPoint> result = new ArrayList<DataPoint>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(new DataPoint(file.readLong(), file.readLong()));
+        }
+        return result;
+    }
+
+    String[] getOpcodes() {
+        return opcodes.clone();
+    }
+
+    long getStartTime() {
+        return start;
+    }
+
+    String getID() {
+        return id;
+    }
+
+    String getPoolName() {
+        return poolName;
+    }
+
+    /**
+     * Returns the time of the last counters record read so far, or the start
+     * time if none was read yet.
+     */
+    public long getLastRecordTime() {
+        return lastRecordTime;
+    }
+
+    /**
+     * Creates an empty statistics object for the registry this file belongs
+     * to, to pass to {@link #update(Statistics)}.
+     */
+    public Statistics createStatistics() {
+        return new Statistics(getOpcodes(), start, id, poolName);
+    }
+
+    /**
+     * Adds all complete records written since the last update to the given
+     * statistics.
+     *
+     * @return the number of records read
+     */
+    public synchronized int update(Statistics statistics) throws IOException {
+        if (version == Statistics.SNAPSHOT_VERSION) {
+            return updateFromSnapshot(statistics);
+        }
+
+        int countersRecordSize = Statistics.countersRecordSize(opcodes.length);
+        byte[] bytes = new byte[countersRecordSize];
+        long length = file.length();
+        int result = 0;
+
+        while (position < length) {
+            file.seek(position);
+            byte type = file.readByte();
+
+            int size;
+            if (type == Statistics.RECORD_END) {
+                // rest of the file not written yet
+                break;
+            } else if (type == Statistics.RECORD_POOL_SIZE
+                    || type == Statistics.RECORD_ELECTION) {
+                size = Statistics.POINT_RECORD_SIZE;
+            } else if (type == Statistics.RECORD_COUNTERS) {
+                size = countersRecordSize;
+            } else {
+                throw new IOException("unknown record type " + type + " in "
+                        + path + " at " + position);
+            }
+
+            if (position + size > length) {
+                // partially written record
+                break;
+            }
+
+            file.readFully(bytes, 0, size - 1);
+            ByteBuffer record = ByteBuffer.wrap(bytes, 0, size - 1);
+
+            if (type == Statistics.RECORD_POOL_SIZE) {
+                statistics.addPoolSizePoint(new DataPoint(record.getLong(),
+                        record.getLong()));
+            } else if (type == Statistics.RECORD_ELECTION) {
+                statistics.addElectionPoint(new DataPoint(record.getLong(),
+                        record.getLong()));
+            } else {
+                lastRecordTime = record.getLong();
+                statistics.setOffset(record.getLong());
+
+                long[] counters = new long[opcodes.length
+                        * Statistics.COUNTERS_PER_OPCODE];
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] = record.getLong();
+                }
+                statistics.setCounters(counters);
+            }
+
+            position += size;
+            result++;
+        }
+
+        return result;
+    }
+
+    private int updateFromSnapshot(Statistics statistics) {
+        if (snapshotCounters == null) {
+            // already applied
+            return 0;
+        }
+
+        statistics.setOffset(snapshotOffset);
+        statistics.setCounters(snapshotCounters);
+        for (DataPoint point : snapshotPoolSizes) {
+            statistics.addPoolSizePoint(point);
+        }
+        for (DataPoint point : snapshotElections) {
+            statistics.addElectionPoint(point);
+        }
+
+        int result = 1 + snapshotPoolSizes.size() + snapshotElections.size();
+
+        snapshotCounters = null;
+        snapshotPoolSizes = null;
+        snapshotElections = null;
+
+        return result;
+    }
+
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+}
@@ -17,6 +17,8 @@ package ibis.ipl.support;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -44,8 +46,12 @@ public final class Connection {
     private static final Logger logger = LoggerFactory
             .getLogger(Connection.class);
 
+    // null for buffered connections
     private final VirtualSocket socket;
 
+    // only used for buffered connections
+    private final ByteArrayOutputStream buffer;
+
     private final DataOutputStream out;
 
     private final DataInputStream in;
@@ -89,6 +95,7 @@ public final class Connection {
 
         socket = factory.createClientSocket(address, timeout, fillTimeout,
                 lightConnection);
+        buffer = null;
         socket.setTcpNoDelay(true);
 
         out = new DataOutputStream(new BufferedOutputStream(
@@ -117,6 +124,7 @@ public final class Connection {
         }
         socket = serverSocket.accept();
         socket.setTcpNoDelay(true);
+        buffer = null;
 
         counter = new CountInputStream(new BufferedInputStream(
                 socket.getInputStream(), IOProperties.BUFFER_SIZE));
@@ -129,6 +137,48 @@ public final class Connection {
         }
     }
 
+    /**
+     * Creates a buffered connection, which is not backed by a socket. Data is
+     * read from the given bytes, and everything written to the connection is
+     * kept in memory, see {@link #toByteArray()}. Used to multiplex requests
+     * and replies over a single persistent connection.
+     * 
+     * @param data
+     *            the data to be read from this connection
+     */
+    public Connection(byte[] data) {
+        socket = null;
+        buffer = new ByteArrayOutputStream();
+        out = new DataOutputStream(buffer);
+        counter = new CountInputStream(new ByteArrayInputStream(data));
+        in = new DataInputStream(counter);
+    }
+
+    /**
+     * Returns true if this connection is not backed by a socket, but by
+     * in-memory buffers.
+     * 
+     * @return true if this is a buffered connection
+     */
+    public boolean isBuffered() {
+        return socket == null;
+    }
+
+    /**
+     * Returns everything written to this buffered connection so far.
+     * 
+     * @return the data written to this connection
+     * @throws IOException
+     *             when an IO error occurs
+     */
+    public byte[] toByteArray() throws IOException {
+        if (buffer == null) {
+            throw new IOException("not a buffered connection");
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
     public DataOutputStream out() {
         return out;
     }
@@ -220,6 +270,10 @@ public final class Connection {
             // IGNORE
         }
 
+        if (socket == null) {
+            return;
+        }
+
         try {
             socket.close();
         } catch (IOException e) {
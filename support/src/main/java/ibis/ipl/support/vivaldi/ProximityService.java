@@ -0,0 +1,234 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.support.vivaldi;
+
+import ibis.ipl.impl.IbisIdentifier;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps track of the Vivaldi coordinates of the other members of a pool, and
+ * answers proximity queries on them, such as the k peers nearest to this
+ * node. Coordinates are learned from Vivaldi pings, and from registries that
+ * piggyback coordinates on their gossip.
+ *
+ * Nearest peer queries use a k-d tree over the coordinates, which is rebuilt
+ * on the first query after the coordinates changed.
+ */
+public final class ProximityService {
+
+    private static final class Node {
+        final IbisIdentifier ibis;
+
+        final double[] point;
+
+        final int axis;
+
+        Node left;
+
+        Node right;
+
+        Node(IbisIdentifier ibis, double[] point, int axis) {
+            this.ibis = ibis;
+            this.point = point;
+            this.axis = axis;
+        }
+    }
+
+    private static final class Candidate {
+        final IbisIdentifier ibis;
+
+        final double distance;
+
+        Candidate(IbisIdentifier ibis, double distance) {
+            this.ibis = ibis;
+            this.distance = distance;
+        }
+    }
+
+    private final IbisIdentifier self;
+
+    private final HashMap<IbisIdentifier, Coordinates> peers;
+
+    private Coordinates local;
+
+    // k-d tree over the coordinates of the peers, null if outdated
+    private Node index;
+
+    public ProximityService(IbisIdentifier self, Coordinates local) {
+        this.self = self;
+        this.local = local;
+
+        peers = new HashMap<IbisIdentifier, Coordinates>();
+        index = null;
+    }
+
+    public synchronized Coordinates getLocalCoordinates() {
+        return local;
+    }
+
+    synchronized void setLocalCoordinates(Coordinates coordinates) {
+        local = coordinates;
+    }
+
+    /**
+     * Sets the current coordinates of the given peer.
+     */
+    public synchronized void update(IbisIdentifier ibis,
+            Coordinates coordinates) {
+        if (ibis.equals(self) || coordinates == null) {
+            return;
+        }
+        peers.put(ibis, coordinates);
+        index = null;
+    }
+
+    /**
+     * Forgets the given peer, for instance because it left the pool.
+     */
+    public synchronized void remove(IbisIdentifier ibis) {
+        if (peers.remove(ibis) != null) {
+            index = null;
+        }
+    }
+
+    /**
+     * Returns the last known coordinates of the given peer, or null if they
+     * are not known.
+     */
+    public synchronized Coordinates getCoordinates(IbisIdentifier ibis) {
+        return peers.get(ibis);
+    }
+
+    /**
+     * Returns the number of peers of which the coordinates are known.
+     */
+    public synchronized int size() {
+        return peers.size();
+    }
+
+    /**
+     * Returns (at most) the k peers nearest to this node, nearest first.
+     */
+    public IbisIdentifier[] getNearest(int k) {
+        return getNearest(getLocalCoordinates(), k);
+    }
+
+    /**
+     * Returns (at most) the k peers nearest to the given coordinates, nearest
+     * first.
+     */
+    public synchronized IbisIdentifier[] getNearest(Coordinates target,
+            int k) {
+        if (k <= 0 || peers.isEmpty()) {
+            return new IbisIdentifier[0];
+        }
+
+        if (index == null) {
+            buildIndex();
+        }
+
+        // max-heap of the best candidates so far
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(k,
+                new Comparator<Candidate>() {
+                    public int compare(Candidate one, Candidate other) {
+                        return Double.compare(other.distance, one.distance);
+                    }
+                });
+
+        search(index, target.getCoordinates(), k, best);
+
+        IbisIdentifier[] result = new IbisIdentifier[best.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = best.poll().ibis;
+        }
+        return result;
+    }
+
+    private void buildIndex() {
+        IbisIdentifier[] ibises = peers.keySet().toArray(
+                new IbisIdentifier[0]);
+        double[][] points = new double[ibises.length][];
+        for (int i = 0; i < ibises.length; i++) {
+            points[i] = peers.get(ibises[i]).getCoordinates();
+        }
+
+        Integer[] order = new Integer[ibises.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        index = build(ibises, points, order, 0, order.length, 0);
+    }
+
+    private static Node build(IbisIdentifier[] ibises,
+            final double[][] points, Integer[] order, int from, int to,
+            final int axis) {
+        if (from >= to) {
+            return null;
+        }
+
+        Arrays.sort(order, from, to, new Comparator<Integer>() {
+            public int compare(Integer one, Integer other) {
+                return Double.compare(points[one][axis], points[other][axis]);
+            }
+        });
+
+        int median = (from + to) >>> 1;
+        int next = (axis + 1) % Coordinates.DIMENSIONS;
+
+        Node result = new Node(ibises[order[median]], points[order[median]],
+                axis);
+        result.left = build(ibises, points, order, from, median, next);
+        result.right = build(ibises, points, order, median + 1, to, next);
+        return result;
+    }
+
+    private static void search(Node node, double[] target, int k,
+            PriorityQueue<Candidate> best) {
+        if (node == null) {
+            return;
+        }
+
+        double distance = 0;
+        for (int i = 0; i < Coordinates.DIMENSIONS; i++) {
+            double delta = node.point[i] - target[i];
+            distance += delta * delta;
+        }
+        distance = Math.sqrt(distance);
+
+        if (best.size() < k) {
+            best.add(new Candidate(node.ibis, distance));
+        } else if (distance < best.peek().distance) {
+            best.poll();
+            best.add(new Candidate(node.ibis, distance));
+        }
+
+        double delta = target[node.axis] - node.point[node.axis];
+        Node near = delta < 0 ? node.left : node.right;
+        Node far = delta < 0 ? node.right : node.left;
+
+        search(near, target, k, best);
+
+        // only search the other side if it can contain something closer
+        if (best.size() < k || Math.abs(delta) < best.peek().distance) {
+            search(far, target, k, best);
+        }
+    }
+}
@@ -59,11 +59,15 @@ public class VivaldiClient implements Runnable {
 
     private Coordinates coordinates;
 
+    private final ProximityService proximity;
+
     public VivaldiClient(Properties properties, Registry registry)
             throws IOException {
         this.registry = registry;
 
         this.coordinates = new Coordinates();
+        this.proximity = new ProximityService(registry.getIbisIdentifier(),
+                coordinates);
 
         String clientID = properties.getProperty(Ibis.ID_PROPERTY);
         Client client = Client.getOrCreateClient(clientID, properties, 0);
@@ -75,6 +79,9 @@ public class VivaldiClient implements Runnable {
         // start handling connections
         new ConnectionHandler(serverSocket, this);
 
+        // let the registry spread and use our coordinates
+        registry.setProximityService(proximity);
+
         ThreadPool.createNew(this, "Vivaldi Client");
     }
 
@@ -105,6 +112,7 @@ public class VivaldiClient implements Runnable {
             remaining -= read;
         }
         Coordinates remoteCoordinates = new Coordinates(coordinateBytes);
+        proximity.update(identifier, remoteCoordinates);
 
         for (int i = 0; i < PING_COUNT; i++) {
             long start = System.nanoTime();
@@ -169,6 +177,7 @@ public class VivaldiClient implements Runnable {
     private synchronized void updateCoordinates(Coordinates remoteCoordinates,
             double rtt) {
         coordinates = coordinates.update(remoteCoordinates, rtt);
+        proximity.setLocalCoordinates(coordinates);
 
         if (logger.isDebugEnabled()) {
             logger.debug("coordinates now " + coordinates);
@@ -179,6 +188,14 @@ public class VivaldiClient implements Runnable {
         return coordinates;
     }
 
+    /**
+     * Returns the service keeping track of the coordinates of other members
+     * of the pool.
+     */
+    public ProximityService getProximityService() {
+        return proximity;
+    }
+
     private synchronized boolean ended() {
         return ended;
     }
@@ -15,6 +15,9 @@
  */
 package ibis.util;
 
+import ibis.ipl.IbisProperties;
+import ibis.ipl.impl.ManifestCache;
+
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -33,10 +36,21 @@ import java.util.jar.Manifest;
  * This class exports a method for searching either the classpath or a
  * specified list of directories for jar-files with a specified name in the
  * Manifest.
+ *
+ * The Ibis entries ("Ibis-...") of the manifests are cached on disk, in the
+ * same cache the IPL uses to find Ibis implementations (see the
+ * ibis.manifest.cache system property), so jar files are only opened when
+ * they changed since the cache was written.
  */
 public class ClassLister {
 
-    private JarFile[] jarFiles;
+    private File[] jarFiles;
+
+    // Ibis entries of the manifests of the jar files
+    private Attributes[] attributes;
+
+    private final ManifestCache cache = new ManifestCache(System.getProperty(
+            IbisProperties.MANIFEST_CACHE, ManifestCache.DEFAULT_FILE));
 
     private ClassLoader ld = null;
 
@@ -60,12 +74,13 @@ public class ClassLister {
             readJarFiles();
         }
 
+        cache.save();
+
         URL[] urls = new URL[jarFiles.length];
 
         for (int i = 0; i < jarFiles.length; i++) {
             try {
-                File f = new File(jarFiles[i].getName());
-                urls[i] = f.toURI().toURL();
+                urls[i] = jarFiles[i].toURI().toURL();
             } catch (Exception e) {
                 throw new Error(e);
             }
@@ -104,7 +119,8 @@ public class ClassLister {
      * in a list that can be searched for specific names later on.
      */
     protected void readJarFiles() {
-        ArrayList<JarFile> jarList = new ArrayList<JarFile>();
+        ArrayList<File> jarList = new ArrayList<File>();
+        ArrayList<Attributes> attributeList = new ArrayList<Attributes>();
         String classPath = System.getProperty("java.class.path");
         if (classPath != null) {
             StringTokenizer st = new StringTokenizer(classPath,
@@ -112,22 +128,27 @@ public class ClassLister {
             while (st.hasMoreTokens()) {
                 String jar = st.nextToken();
                 File f = new File(jar);
-                try {
-                    JarFile jarFile = new JarFile(f, true);
-                    Manifest manifest = jarFile.getManifest();
-                    if (manifest != null) {
-                        manifest.getMainAttributes();
-                        jarList.add(jarFile);
-                    }
-                } catch(IOException e) {
-                    // ignore. Could be a directory.
+                // directories are ignored
+                if (f.isFile()) {
+                    addJarFile(f, jarList, attributeList);
                 }
             }
         }
-        jarFiles = jarList.toArray(new JarFile[0]);
+        jarFiles = jarList.toArray(new File[0]);
+        attributes = attributeList.toArray(new Attributes[0]);
+    }
+
+    private void addJarFile(File f, ArrayList<File> jarList,
+            ArrayList<Attributes> attributeList) {
+        Attributes ab = cache.getIbisAttributes(f);
+        if (ab != null) {
+            jarList.add(f);
+            attributeList.add(ab);
+        }
     }
 
-    private void addJarFiles(String dir, ArrayList<JarFile> jarList) {
+    private void addJarFiles(String dir, ArrayList<File> jarList,
+            ArrayList<Attributes> attributeList) {
         File f = new File(dir);
         File[] files = f.listFiles();
         if (files == null) {
@@ -135,16 +156,7 @@ public class ClassLister {
         }
         for (int i = 0; i < files.length; i++) {
             if (files[i].isFile()) {
-                try {
-                    JarFile jarFile = new JarFile(files[i], true);
-                    Manifest manifest = jarFile.getManifest();
-                    if (manifest != null) {
-                        manifest.getMainAttributes();
-                        jarList.add(jarFile);
-                    }
-                } catch(IOException e) {
-                    // ignore
-                }
+                addJarFile(files[i], jarList, attributeList);
             }
         }
     }
@@ -157,15 +169,34 @@ public class ClassLister {
      * <code>java.io.File.pathSeparator</code>.
      */
     protected void readJarFiles(String dirList) {
-        ArrayList<JarFile> jarList = new ArrayList<JarFile>();
+        ArrayList<File> jarList = new ArrayList<File>();
+        ArrayList<Attributes> attributeList = new ArrayList<Attributes>();
 
         StringTokenizer st = new StringTokenizer(dirList, File.pathSeparator);
 
         while (st.hasMoreTokens()) {
             String dir = st.nextToken();
-            addJarFiles(dir, jarList);
+            addJarFiles(dir, jarList, attributeList);
+        }
+        jarFiles = jarList.toArray(new File[0]);
+        attributes = attributeList.toArray(new Attributes[0]);
+    }
+
+    // Only the Ibis entries of the manifests are cached, others are read
+    // from the jar file itself.
+    private Attributes getUncachedAttributes(int i) {
+        try {
+            JarFile jarFile = new JarFile(jarFiles[i], false);
+            try {
+                Manifest mf = jarFile.getManifest();
+                return mf == null ? null : mf.getMainAttributes();
+            } finally {
+                jarFile.close();
+            }
+        } catch(IOException e) {
+            throw new Error("Could not get Manifest from "
+                    + jarFiles[i], e);
         }
-        jarFiles = jarList.toArray(new JarFile[0]);
     }
 
     /**
@@ -183,15 +214,10 @@ public class ClassLister {
         HashSet<String> classNames = new HashSet<String>();
 
         for (int i = 0; i < jarFiles.length; i++) {
-            Manifest mf = null;
-            try {
-                mf = jarFiles[i].getManifest();
-            } catch(IOException e) {
-                throw new Error("Could not get Manifest from "
-                        + jarFiles[i].getName(), e);
-            }
-            if (mf != null) {
-                Attributes ab = mf.getMainAttributes();
+            Attributes ab = attribName.startsWith(
+                    ManifestCache.ATTRIBUTE_PREFIX) ? attributes[i]
+                    : getUncachedAttributes(i);
+            if (ab != null) {
                 String names = ab.getValue(attribName);
                 if (names != null) {
                     StringTokenizer st = new StringTokenizer(names, ", ");
@@ -205,7 +231,7 @@ public class ClassLister {
                             } catch(Exception e) {
                                 throw new Error("Could not load class " + className
                                         + ". Something wrong with jar "
-                                        + jarFiles[i].getName() + "?", e);
+                                        + jarFiles[i] + "?", e);
                             }
                         }
                     }